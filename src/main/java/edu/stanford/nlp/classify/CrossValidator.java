@@ -1,16 +1,29 @@
 package edu.stanford.nlp.classify;
 
+import edu.stanford.nlp.stats.MultiClassAccuracyStats;
 import edu.stanford.nlp.util.Pair;
+import edu.stanford.nlp.util.Timing;
 import edu.stanford.nlp.util.Triple;
 import edu.stanford.nlp.util.Function;
+import edu.stanford.nlp.util.concurrent.MulticoreWrapper;
+import edu.stanford.nlp.util.concurrent.ThreadsafeProcessor;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 
 /**
  * This class is meant to simplify performing cross validation of
  * classifiers for hyper-parameters.  It has the ability to save
  * state for each fold (for instance, the weights for a MaxEnt
  * classifier, and the alphas for an SVM).
+ * <br>
+ * Each fold is split off the data once, the first time it is needed, and
+ * then reused for every hyper-parameter setting tried.  The folds share the
+ * rows of the original data rather than copying them.
+ * {@link #computeAverages} tries several settings at once, one fold of one
+ * setting to a thread.
  *
  * @author Aria Haghighi
  * @author Jenny Finkel
@@ -20,6 +33,7 @@ public class CrossValidator<L, F> {
   private final GeneralDataset<L, F> originalTrainData;
   private final int kFold;
   private final SavedState[] savedStates;
+  private final List<Pair<GeneralDataset<L, F>, GeneralDataset<L, F>>> folds;
 
   public CrossValidator(GeneralDataset<L, F> trainData) {
     this(trainData, 10);
@@ -32,6 +46,32 @@ public class CrossValidator<L, F> {
     for (int i = 0; i < savedStates.length; i++) {
       savedStates[i] = new SavedState();
     }
+    folds = new ArrayList<>(kFold);
+  }
+
+  /**
+   * Returns the train and test sets of the given fold, splitting them off
+   * the first time.  Their arrays are trimmed here, so that getDataArray()
+   * and the like then only read them, and they may be trained on by several
+   * threads at once.
+   */
+  private synchronized Pair<GeneralDataset<L, F>, GeneralDataset<L, F>> fold(int i) {
+    while (folds.size() <= i) {
+      int start = originalTrainData.size() * folds.size() / kFold;
+      int end = originalTrainData.size() * (folds.size() + 1) / kFold;
+      //System.err.println("##train data size: " +  originalTrainData.size() + " start " + start + " end " + end);
+      Pair<GeneralDataset<L, F>, GeneralDataset<L, F>> split = originalTrainData.split(start, end);
+      trim(split.first());
+      trim(split.second());
+      folds.add(split);
+    }
+    return folds.get(i);
+  }
+
+  private static void trim(GeneralDataset<?, ?> set) {
+    set.getDataArray();
+    set.getLabelsArray();
+    set.getValuesArray();
   }
 
   /**
@@ -56,6 +96,69 @@ public class CrossValidator<L, F> {
     return sum / kFold;
   }
 
+  /**
+   * Computes the average over all folds of the function for each of several
+   * hyper-parameter settings, like {@link #computeAverage} for each, but
+   * with the folds of all of them evaluated on numThreads threads at once.
+   * The function is given the setting and the fold, whose saved state is a
+   * new one for each setting, since the settings are not tried in turn.
+   * The function is called from several threads, so it must not change the
+   * train and test sets, which are shared, nor anything else shared without
+   * synchronizing.
+   * Prints the average for each setting as it is finished, and the time taken.
+   *
+   * @return The average for each setting, in the order given
+   */
+  public <H> double[] computeAverages(List<H> settings,
+                                      final Function<Pair<H, Triple<GeneralDataset<L, F>,GeneralDataset<L, F>,SavedState>>,Double> function,
+                                      int numThreads) {
+    Timing timing = new Timing();
+    // split the folds before any thread needs them
+    for (int i = 0; i < kFold; i++) {
+      fold(i);
+    }
+    ThreadsafeProcessor<Pair<H, Integer>, Double> processor = new ThreadsafeProcessor<Pair<H, Integer>, Double>() {
+      @Override
+      public Double process(Pair<H, Integer> job) {
+        Pair<GeneralDataset<L, F>, GeneralDataset<L, F>> split = fold(job.second());
+        return function.apply(new Pair<>(job.first(), new Triple<>(split.first(), split.second(), new SavedState())));
+      }
+      @Override
+      public ThreadsafeProcessor<Pair<H, Integer>, Double> newInstance() {
+        return this;
+      }
+    };
+    MulticoreWrapper<Pair<H, Integer>, Double> wrapper = new MulticoreWrapper<>(numThreads, processor);
+    double[] averages = new double[settings.size()];
+    int done = 0;
+    for (H setting : settings) {
+      for (int i = 0; i < kFold; i++) {
+        wrapper.put(new Pair<>(setting, i));
+      }
+      while (wrapper.peek()) {
+        done = addResult(settings, averages, done, wrapper.poll());
+      }
+    }
+    wrapper.join();
+    while (wrapper.peek()) {
+      done = addResult(settings, averages, done, wrapper.poll());
+    }
+    System.err.printf("%d settings x %d folds on %d threads: %.1f seconds%n",
+        settings.size(), kFold, numThreads, timing.report() / 1000.0);
+    return averages;
+  }
+
+  /** Adds the next result, which the jobs return in order, to its setting's sum, and averages it after the last fold */
+  private <H> int addResult(List<H> settings, double[] averages, int done, double result) {
+    int setting = done / kFold;
+    averages[setting] += result;
+    if (done % kFold == kFold - 1) {
+      averages[setting] /= kFold;
+      System.err.println("  " + settings.get(setting) + " -> average score " + averages[setting]);
+    }
+    return done + 1;
+  }
+
   class CrossValidationIterator implements Iterator<Triple<GeneralDataset<L, F>,GeneralDataset<L, F>,SavedState>>
   {
     int iter;
@@ -69,10 +172,7 @@ public class CrossValidator<L, F> {
     public Triple<GeneralDataset<L, F>,GeneralDataset<L, F>,SavedState> next()
     {
       if (iter == kFold) return null;
-      int start = originalTrainData.size() * iter / kFold;
-      int end = originalTrainData.size() * (iter + 1) / kFold;
-      //System.err.println("##train data size: " +  originalTrainData.size() + " start " + start + " end " + end);
-      Pair<GeneralDataset<L, F>, GeneralDataset<L, F>> split = originalTrainData.split(start, end);
+      Pair<GeneralDataset<L, F>, GeneralDataset<L, F>> split = fold(iter);
 
       return new Triple<>(split.first(),split.second(),savedStates[iter++]);
     }
@@ -82,13 +182,20 @@ public class CrossValidator<L, F> {
     public Object state;
   }
 
+  /**
+   * Tunes the sigma of a maxent classifier on a data set in SVM light format,
+   * by 10-fold cross-validation over a grid of sigmas, first with one thread
+   * and then with numThreads threads, which should give the same scores.
+   * Usage: CrossValidator svmLightFile [numThreads]
+   */
   public static void main(String... args) {
     Dataset<String, String> d = Dataset.readSVMLightFormat(args[0]);
-    Iterator<Triple<GeneralDataset<String, String>,GeneralDataset<String, String>,SavedState>> it = new CrossValidator<>(d).iterator();
-    while (it.hasNext())
-    {
-      it.next();
-      break;
+    int numThreads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+    for (int threads : new int[] { 1, numThreads }) {
+      LinearClassifierFactory<String, String> factory = new LinearClassifierFactory<>();
+      double[] scores = factory.crossValidateSetSigma(d, 10, new MultiClassAccuracyStats<String>(MultiClassAccuracyStats.USE_LOGLIKELIHOOD),
+          LinearClassifierFactory.sigmasToTry, threads);
+      System.err.println(threads + " threads: scores " + Arrays.toString(scores) + ", best sigma " + factory.getSigma());
     }
   }
 }
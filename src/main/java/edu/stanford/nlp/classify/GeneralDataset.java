@@ -50,12 +50,16 @@ public abstract class GeneralDataset<L, F>  implements Serializable, Iterable<RV
   public int numClasses() { return labelIndex.size(); }
 
   public int[] getLabelsArray() {
-    labels = trimToSize(labels);
+    if (labels.length != size) {
+      labels = trimToSize(labels);
+    }
     return labels;
   }
 
   public int[][] getDataArray() {
-    data = trimToSize(data);
+    if (data.length != size) {
+      data = trimToSize(data);
+    }
     return data;
   }
 
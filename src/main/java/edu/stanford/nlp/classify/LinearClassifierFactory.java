@@ -31,8 +31,10 @@ package edu.stanford.nlp.classify;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 import edu.stanford.nlp.ling.Datum;
 import edu.stanford.nlp.ling.RVFDatum;
@@ -83,8 +85,11 @@ public class LinearClassifierFactory<L, F> extends AbstractLinearClassifierFacto
   private boolean retrainFromScratchAfterSigmaTuning;
 
   private Factory<Minimizer<DiffFunction>> minimizerCreator;
+  /** Whether minimizerCreator always returns the same Minimizer, which was given to the constructor */
+  private boolean sharedMinimizer;
   private int evalIters = -1;
   private Evaluator[] evaluators;
+  private int numThreads = 1;
 
   private Minimizer<DiffFunction> getMinimizer() {
     // Create a new minimizer
@@ -146,6 +151,7 @@ public class LinearClassifierFactory<L, F> extends AbstractLinearClassifierFacto
       }
     }
     LogConditionalObjectiveFunction<L, F> objective = new LogConditionalObjectiveFunction<>(dataset, logPrior);
+    objective.setNumThreads(numThreads);
     if(initial == null && interimWeights != null && ! retrainFromScratchAfterSigmaTuning) {
       //System.err.println("## taking advantage of interim weights as starting point.");
       initial = interimWeights;
@@ -369,6 +375,7 @@ public class LinearClassifierFactory<L, F> extends AbstractLinearClassifierFacto
         return min;
       }
     };
+    this.sharedMinimizer = true;
     this.TOL = tol;
     //this.useSum = useSum;
     this.logPrior = logPrior;
@@ -381,6 +388,41 @@ public class LinearClassifierFactory<L, F> extends AbstractLinearClassifierFacto
     this.logPrior = logPrior;
   }
 
+  /**
+   * Makes a copy of the factory with all of its settings, but with a prior of
+   * its own, which has the given sigma.  Only priors given by their type,
+   * sigma and epsilon can be copied.
+   */
+  private LinearClassifierFactory(LinearClassifierFactory<L, F> other, double sigma) {
+    other.checkPriorCanBeCopied();
+    this.logPrior = new LogPrior(other.logPrior.getType(), sigma, other.logPrior.getEpsilon());
+    this.TOL = other.TOL;
+    this.mem = other.mem;
+    this.verbose = other.verbose;
+    this.tuneSigmaHeldOut = other.tuneSigmaHeldOut;
+    this.tuneSigmaCV = other.tuneSigmaCV;
+    this.folds = other.folds;
+    this.min = other.min;
+    this.max = other.max;
+    this.retrainFromScratchAfterSigmaTuning = other.retrainFromScratchAfterSigmaTuning;
+    this.minimizerCreator = other.minimizerCreator;
+    this.sharedMinimizer = other.sharedMinimizer;
+    this.evalIters = other.evalIters;
+    this.evaluators = other.evaluators;
+    this.numThreads = other.numThreads;
+    this.heldOutSearcher = other.heldOutSearcher;
+    this.featureIndex = other.featureIndex;
+    this.labelIndex = other.labelIndex;
+  }
+
+  /** Throws an UnsupportedOperationException unless the prior is given by its type, sigma and epsilon */
+  private void checkPriorCanBeCopied() {
+    LogPrior.LogPriorType priorType = logPrior.getType();
+    if (priorType == LogPrior.LogPriorType.ADAPT || priorType == LogPrior.LogPriorType.MULTIPLE_QUADRATIC) {
+      throw new UnsupportedOperationException("Cannot copy a LinearClassifierFactory with a " + priorType + " prior");
+    }
+  }
+
   /**
    * Set the tolerance.  1e-4 is the default.
    */
@@ -409,11 +451,21 @@ public class LinearClassifierFactory<L, F> extends AbstractLinearClassifierFacto
     this.verbose = verbose;
   }
 
+  /**
+   * Sets the number of threads to compute the objective function and its
+   * gradient on when training from a {@link GeneralDataset}; each thread takes
+   * a contiguous part of the data.  1 is the default.
+   */
+  public void setNumThreads(int numThreads) {
+    this.numThreads = numThreads;
+  }
+
   /**
    * Sets the minimizer.  {@link QNMinimizer} is the default.
    */
   public void setMinimizerCreator(Factory<Minimizer<DiffFunction>> minimizerCreator) {
     this.minimizerCreator = minimizerCreator;
+    this.sharedMinimizer = false;
   }
 
   /**
@@ -435,27 +487,27 @@ public class LinearClassifierFactory<L, F> extends AbstractLinearClassifierFacto
    * Sets the minimizer to QuasiNewton. {@link QNMinimizer} is the default.
    */
   public void useQuasiNewton() {
-    this.minimizerCreator = new Factory<Minimizer<DiffFunction>>() {
+    setMinimizerCreator(new Factory<Minimizer<DiffFunction>>() {
       public Minimizer<DiffFunction> create() {
         return new QNMinimizer(LinearClassifierFactory.this.mem);
       }
-    };
+    });
   }
 
   public void useQuasiNewton(final boolean useRobust) {
-    this.minimizerCreator = new Factory<Minimizer<DiffFunction>>() {
+    setMinimizerCreator(new Factory<Minimizer<DiffFunction>>() {
       public Minimizer<DiffFunction> create() {
         return new QNMinimizer(LinearClassifierFactory.this.mem, useRobust);
       }
-    };
+    });
   }
 
   public void useStochasticQN(final double initialSMDGain, final int stochasticBatchSize){
-    this.minimizerCreator = new Factory<Minimizer<DiffFunction>>() {
+    setMinimizerCreator(new Factory<Minimizer<DiffFunction>>() {
       public Minimizer<DiffFunction> create() {
         return new SQNMinimizer<>(LinearClassifierFactory.this.mem, initialSMDGain, stochasticBatchSize, false);
       }
-    };
+    });
   }
 
   public void useStochasticMetaDescent(){
@@ -464,11 +516,11 @@ public class LinearClassifierFactory<L, F> extends AbstractLinearClassifierFacto
 
   public void useStochasticMetaDescent(final double initialSMDGain, final int stochasticBatchSize,
                                        final StochasticCalculateMethods stochasticMethod,final int passes) {
-    this.minimizerCreator = new Factory<Minimizer<DiffFunction>>() {
+    setMinimizerCreator(new Factory<Minimizer<DiffFunction>>() {
       public Minimizer<DiffFunction> create() {
         return new SMDMinimizer<>(initialSMDGain,stochasticBatchSize,stochasticMethod,passes);
       }
-    };
+    });
   }
 
   public void useStochasticGradientDescent(){
@@ -476,11 +528,11 @@ public class LinearClassifierFactory<L, F> extends AbstractLinearClassifierFacto
   }
 
   public void useStochasticGradientDescent(final double gainSGD, final int stochasticBatchSize){
-    this.minimizerCreator = new Factory<Minimizer<DiffFunction>>() {
+    setMinimizerCreator(new Factory<Minimizer<DiffFunction>>() {
       public Minimizer<DiffFunction> create() {
         return new SGDMinimizer<>(gainSGD,stochasticBatchSize);
       }
-    };
+    });
   }
 
   public void useInPlaceStochasticGradientDescent() {
@@ -488,32 +540,32 @@ public class LinearClassifierFactory<L, F> extends AbstractLinearClassifierFacto
   }
 
   public void useInPlaceStochasticGradientDescent(final int SGDPasses, final int tuneSampleSize, final double sigma) {
-    this.minimizerCreator = new Factory<Minimizer<DiffFunction>>() {
+    setMinimizerCreator(new Factory<Minimizer<DiffFunction>>() {
       public Minimizer<DiffFunction> create() {
         return new StochasticInPlaceMinimizer<>(sigma, SGDPasses, tuneSampleSize);
       }
-    };
+    });
   }
 
   public void useHybridMinimizerWithInPlaceSGD(final int SGDPasses, final int tuneSampleSize, final double sigma) {
-    this.minimizerCreator = new Factory<Minimizer<DiffFunction>>() {
+    setMinimizerCreator(new Factory<Minimizer<DiffFunction>>() {
       public Minimizer<DiffFunction> create() {
         Minimizer<DiffFunction> firstMinimizer = new StochasticInPlaceMinimizer<>(sigma, SGDPasses, tuneSampleSize);
         Minimizer<DiffFunction> secondMinimizer = new QNMinimizer(mem);
         return new HybridMinimizer(firstMinimizer, secondMinimizer, SGDPasses);
       }
-    };
+    });
   }
 
   public void useStochasticGradientDescentToQuasiNewton(final double SGDGain, final int batchSize, final int sgdPasses,
                                                         final int qnPasses, final int hessSamples, final int QNMem,
                                                         final boolean outputToFile) {
-    this.minimizerCreator = new Factory<Minimizer<DiffFunction>>() {
+    setMinimizerCreator(new Factory<Minimizer<DiffFunction>>() {
       public Minimizer<DiffFunction> create() {
         return new SGDToQNMinimizer(SGDGain, batchSize, sgdPasses,
                                     qnPasses, hessSamples, QNMem, outputToFile);
       }
-    };
+    });
   }
 
   public void useHybridMinimizer() {
@@ -522,13 +574,13 @@ public class LinearClassifierFactory<L, F> extends AbstractLinearClassifierFacto
 
   public void useHybridMinimizer(final double initialSMDGain, final int stochasticBatchSize,
                                  final StochasticCalculateMethods stochasticMethod, final int cutoffIteration){
-    this.minimizerCreator = new Factory<Minimizer<DiffFunction>>() {
+    setMinimizerCreator(new Factory<Minimizer<DiffFunction>>() {
       public Minimizer<DiffFunction> create() {
         Minimizer<DiffFunction> firstMinimizer = new SMDMinimizer<>(initialSMDGain, stochasticBatchSize,stochasticMethod,cutoffIteration);
         Minimizer<DiffFunction> secondMinimizer = new QNMinimizer(mem);
         return new HybridMinimizer(firstMinimizer,secondMinimizer,cutoffIteration);
       }
-    };
+    });
   }
 
   /**
@@ -559,11 +611,11 @@ public class LinearClassifierFactory<L, F> extends AbstractLinearClassifierFacto
    * Sets the minimizer to {@link CGMinimizer}.
    */
   public void useConjugateGradientAscent() {
-    this.minimizerCreator = new Factory<Minimizer<DiffFunction>>() {
+    setMinimizerCreator(new Factory<Minimizer<DiffFunction>>() {
       public Minimizer<DiffFunction> create() {
         return new CGMinimizer(!LinearClassifierFactory.this.verbose);
       }
-    };
+    });
   }
 
   /**
@@ -692,6 +744,62 @@ public class LinearClassifierFactory<L, F> extends AbstractLinearClassifierFacto
     setSigma(bestSigma);
   }
 
+  /**
+   * Sets the sigma parameter to whichever of {@code sigmas} has the best
+   * cross-validation score given by {@code scorer}.  Unlike a line search,
+   * which must try one sigma after another, the folds of all of the sigmas
+   * are trained at once on {@code numThreads} threads, each by a copy of this
+   * factory with all of its settings and its own sigma.  Only priors given by
+   * their type, sigma and epsilon can be copied, so this throws an
+   * UnsupportedOperationException for ADAPT and MULTIPLE_QUADRATIC priors.
+   * Each fold also needs a minimizer of its own, which it only gets when this
+   * factory makes a new one each time (as after {@link #useQuasiNewton()}),
+   * rather than having been given one; otherwise the folds are trained one at a time.
+   * The scorer is only called by one thread at a time.
+   *
+   * @param dataset the data set to optimize sigma on.
+   * @return The average score of each of the sigmas, in order
+   */
+  public double[] crossValidateSetSigma(GeneralDataset<L, F> dataset, int kfold, final Scorer<L> scorer, double[] sigmas, int numThreads) {
+    System.err.println("##in Cross Validate, folds = " + kfold + ", sigmas = " + Arrays.toString(sigmas));
+    System.err.println("##Scorer is " + scorer);
+
+    checkPriorCanBeCopied();
+    featureIndex = dataset.featureIndex;
+    labelIndex = dataset.labelIndex;
+    if (numThreads > 1 && sharedMinimizer) {
+      System.err.println("##the minimizer is shared, so training the folds on one thread");
+      numThreads = 1;
+    }
+
+    Function<Pair<Double, Triple<GeneralDataset<L, F>,GeneralDataset<L, F>,CrossValidator.SavedState>>,Double> score =
+      new Function<Pair<Double, Triple<GeneralDataset<L, F>,GeneralDataset<L, F>,CrossValidator.SavedState>>,Double> ()
+      {
+        public Double apply (Pair<Double, Triple<GeneralDataset<L, F>,GeneralDataset<L, F>,CrossValidator.SavedState>> job) {
+          GeneralDataset<L, F> trainSet = job.second().first();
+          GeneralDataset<L, F> devSet   = job.second().second();
+
+          LinearClassifierFactory<L, F> factory = new LinearClassifierFactory<>(LinearClassifierFactory.this, job.first());
+          double[][] weights2D = factory.trainWeights(trainSet, null, true);
+          LinearClassifier<L, F> classifier = new LinearClassifier<>(weights2D, trainSet.featureIndex, trainSet.labelIndex);
+
+          synchronized (scorer) {
+            return scorer.score(classifier, devSet);
+          }
+        }
+      };
+
+    List<Double> sigmaList = new ArrayList<>();
+    for (double sigma : sigmas) {
+      sigmaList.add(sigma);
+    }
+    double[] scores = new CrossValidator<>(dataset, kfold).computeAverages(sigmaList, score, numThreads);
+    double bestSigma = sigmas[ArrayMath.argmax(scores)];
+    System.err.println("##best sigma: " + bestSigma);
+    setSigma(bestSigma);
+    return scores;
+  }
+
   /**
    * Set the {@link LineSearcher} to be used in {@link #heldOutSetSigma(GeneralDataset, GeneralDataset)}.
    */
@@ -813,6 +921,7 @@ public class LinearClassifierFactory<L, F> extends AbstractLinearClassifierFacto
     if(dataset instanceof RVFDataset)
       ((RVFDataset<L,F>)dataset).ensureRealValues();
     LogConditionalObjectiveFunction<L, F> objective = new LogConditionalObjectiveFunction<>(dataset, dataWeights, logPrior);
+    objective.setNumThreads(numThreads);
 
     double[] initial = objective.initial();
     double[] weights = minimizer.minimize(objective, TOL, initial);
@@ -910,6 +1019,59 @@ public class LinearClassifierFactory<L, F> extends AbstractLinearClassifierFacto
     return new LinearClassifierCreator<>(dataset.featureIndex, dataset.labelIndex);
   }
 
+  /**
+   * Trains on a random sparse dataset with 1, 4 and 16 threads, reporting
+   * the training time and the largest difference from the weights trained
+   * on one thread.
+   * Usage: LinearClassifierFactory [numDatums [numFeatures]]
+   */
+  public static void main(String... args) {
+    int numDatums = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+    int numFeatures = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+    int numClasses = 4;
+    int featuresPerDatum = 20;
+    Index<Integer> labelIndex = new HashIndex<>();
+    for (int c = 0; c < numClasses; c++) {
+      labelIndex.add(c);
+    }
+    Index<Integer> featureIndex = new HashIndex<>();
+    for (int f = 0; f < numFeatures; f++) {
+      featureIndex.add(f);
+    }
+    // each label is mostly decided by the first feature of the datum
+    Random random = new Random(1);
+    int[][] data = new int[numDatums][featuresPerDatum];
+    int[] labels = new int[numDatums];
+    for (int d = 0; d < numDatums; d++) {
+      for (int n = 0; n < featuresPerDatum; n++) {
+        data[d][n] = random.nextInt(numFeatures);
+      }
+      labels[d] = random.nextInt(5) == 0 ? random.nextInt(numClasses) : data[d][0] % numClasses;
+    }
+    Dataset<Integer, Integer> dataset = new Dataset<>(labelIndex, labels, featureIndex, data);
+
+    double[][] singleThreaded = null;
+    for (int threads : new int[] { 1, 4, 16 }) {
+      LinearClassifierFactory<Integer, Integer> factory = new LinearClassifierFactory<>();
+      factory.setNumThreads(threads);
+      Timing timing = new Timing();
+      double[][] weights = factory.trainWeights(dataset);
+      long millis = timing.stop();
+      double maxDifference = 0.0;
+      if (singleThreaded == null) {
+        singleThreaded = weights;
+      } else {
+        for (int f = 0; f < weights.length; f++) {
+          for (int c = 0; c < weights[f].length; c++) {
+            maxDifference = Math.max(maxDifference, Math.abs(weights[f][c] - singleThreaded[f][c]));
+          }
+        }
+      }
+      System.err.printf("%2d threads: trained in %.2f sec., max weight difference from 1 thread %.2e%n",
+          threads, millis / 1000.0, maxDifference);
+    }
+  }
+
   public static class LinearClassifierCreator<L,F> implements ClassifierCreator, ProbabilisticClassifierCreator
   {
     LogConditionalObjectiveFunction objective;
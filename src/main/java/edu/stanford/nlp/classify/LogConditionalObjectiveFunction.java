@@ -3,6 +3,7 @@ package edu.stanford.nlp.classify;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
 
 import edu.stanford.nlp.ling.Datum;
 import edu.stanford.nlp.math.ADMath;
@@ -11,6 +12,8 @@ import edu.stanford.nlp.math.DoubleAD;
 import edu.stanford.nlp.optimization.AbstractStochasticCachingDiffUpdateFunction;
 import edu.stanford.nlp.optimization.StochasticCalculateMethods;
 import edu.stanford.nlp.util.Index;
+import edu.stanford.nlp.util.Pair;
+import edu.stanford.nlp.util.concurrent.ContiguousBlocks;
 
 
 /**
@@ -54,6 +57,8 @@ public class LogConditionalObjectiveFunction<L, F> extends AbstractStochasticCac
 
   protected boolean useSummedConditionalLikelihood; //whether to use sumConditional or logConditional
 
+  protected int numThreads = 1;
+
   @Override
   public int domainDimension() {
     return numFeatures * numClasses;
@@ -251,86 +256,49 @@ public class LogConditionalObjectiveFunction<L, F> extends AbstractStochasticCac
     }
     copy(derivative, derivativeNumerator);
     //    Arrays.fill(derivative, 0.0);
+    if ( ! useIterable) {
+      value = calculateCLInShards(x);
+      value += prior.compute(x, derivative);
+      return;
+    }
     double[] sums = new double[numClasses];
     double[] probs = new double[numClasses];
     //    double[] counts = new double[numClasses];
     //    Arrays.fill(counts, 0.0);
 
-    Iterator<Datum<L, F>> iter = null;
+    Iterator<Datum<L, F>> iter = dataIterable.iterator();
     int d = -1;
-    if(useIterable)
-      iter = dataIterable.iterator();
-    Datum<L, F> datum = null;
-    while(true){
-      if(useIterable) {
-        if(!iter.hasNext()) break;
-        datum = iter.next();
-      } else {
-        d++;
-        if(d >= data.length) break;
-      }
-
-      //       if (d == testMin) {
-      //         d = testMax - 1;
-      //         continue;
-      //       }
+    while (iter.hasNext()) {
+      Datum<L, F> datum = iter.next();
 
       // activation
       Arrays.fill(sums, 0.0);
       double total = 0;
-        if (useIterable) {
-            Collection<F> features = datum.asFeatures();
-            for (int c = 0; c < numClasses; c++) {
-                for (F feature : features) {
-                    int i = indexOf(featureIndex.indexOf(feature), c);
-                    sums[c] += x[i];
-                }
-            }
-            // expectation (slower routine replaced by fast way)
-            // double total = Double.NEGATIVE_INFINITY;
-            // for (int c=0; c<numClasses; c++) {
-            //   total = SloppyMath.logAdd(total, sums[c]);
-            // }
-            total = ArrayMath.logSum(sums);
-            for (int c = 0; c < numClasses; c++) {
-                probs[c] = Math.exp(sums[c] - total);
-                if (dataweights != null) {
-                    probs[c] *= dataweights[d];
-                }
-                for (F feature : features) {
-                    int i = indexOf(featureIndex.indexOf(feature), c);
-                    derivative[i] += probs[c];
-                }
-            }
-        } else {
-            int[] featuresArr = data[d];
-
-            for (int c = 0; c < numClasses; c++) {
-                for (int aFeaturesArr : featuresArr) {
-                    int i = indexOf(aFeaturesArr, c);
-                    sums[c] += x[i];
-                }
-            }
-            // expectation (slower routine replaced by fast way)
-            // double total = Double.NEGATIVE_INFINITY;
-            // for (int c=0; c<numClasses; c++) {
-            //   total = SloppyMath.logAdd(total, sums[c]);
-            // }
-            total = ArrayMath.logSum(sums);
-            for (int c = 0; c < numClasses; c++) {
-                probs[c] = Math.exp(sums[c] - total);
-                if (dataweights != null) {
-                    probs[c] *= dataweights[d];
-                }
-                for (int aFeaturesArr : featuresArr) {
-                    int i = indexOf(aFeaturesArr, c);
-                    derivative[i] += probs[c];
-                }
-            }
+      Collection<F> features = datum.asFeatures();
+      for (int c = 0; c < numClasses; c++) {
+        for (F feature : features) {
+          int i = indexOf(featureIndex.indexOf(feature), c);
+          sums[c] += x[i];
+        }
+      }
+      // expectation (slower routine replaced by fast way)
+      // double total = Double.NEGATIVE_INFINITY;
+      // for (int c=0; c<numClasses; c++) {
+      //   total = SloppyMath.logAdd(total, sums[c]);
+      // }
+      total = ArrayMath.logSum(sums);
+      for (int c = 0; c < numClasses; c++) {
+        probs[c] = Math.exp(sums[c] - total);
+        if (dataweights != null) {
+          probs[c] *= dataweights[d];
         }
+        for (F feature : features) {
+          int i = indexOf(featureIndex.indexOf(feature), c);
+          derivative[i] += probs[c];
+        }
+      }
 
-      int labelindex;
-        labelindex = useIterable ? labelIndex.indexOf(datum.label()) : labels[d];
+      int labelindex = labelIndex.indexOf(datum.label());
       double dV = sums[labelindex] - total;
       if (dataweights != null) {
         dV *= dataweights[d];
@@ -542,7 +510,8 @@ public class LogConditionalObjectiveFunction<L, F> extends AbstractStochasticCac
 
   @Override
   public double calculateStochasticUpdate(double[] x, double xscale, int[] batch, double gain) {
-    value = 0.0;
+    // the value is kept locally, since several threads may update x at once
+    double batchValue = 0.0;
 
     int batchSize = batch.length;
 
@@ -591,9 +560,10 @@ public class LogConditionalObjectiveFunction<L, F> extends AbstractStochasticCac
           if (dataweights != null) {
               dV *= dataweights[m];
           }
-          value -= dV;
+          batchValue -= dV;
       }
-    return value;
+    value = batchValue;
+    return batchValue;
   }
 
   protected void calculateStochasticAlgorithmicDifferentiation(double[] x, double[] v, int... batch) {
@@ -713,46 +683,24 @@ public class LogConditionalObjectiveFunction<L, F> extends AbstractStochasticCac
   }
 
   /**
-   * Calculate conditional likelihood for datasets with real-valued features.
-   * Currently this can calculate CL only (no support for SCL).
-   * TODO: sum-conditional obj. fun. with RVFs.
-   *
+   * Adds the expected feature counts of data start to end to the derivative,
+   * and returns the negated log likelihood of those data.  Works both for
+   * binary features and, if {@code values} is set, real-valued ones.
    */
-  protected void rvfcalculate(double... x) {
-    value = 0.0;
-    if (derivativeNumerator == null) {
-      derivativeNumerator = new double[x.length];
-      for (int d = 0; d < data.length; d++) {
-        //         if (d == testMin) {
-        //           d = testMax - 1;
-        //           continue;
-        //         }
-        int[] features = data[d];
-        for (int f = 0; f < features.length; f++) {
-          int i = indexOf(features[f], labels[d]);
-            derivativeNumerator[i] -= dataweights == null ? values[d][f] : dataweights[d] * values[d][f];
-        }
-      }
-    }
-    copy(derivative, derivativeNumerator);
-    //    Arrays.fill(derivative, 0.0);
+  private double calculateCLForData(double[] x, int start, int end, double[] derivative) {
+    double value = 0.0;
     double[] sums = new double[numClasses];
     double[] probs = new double[numClasses];
-    //    double[] counts = new double[numClasses];
-    //    Arrays.fill(counts, 0.0);
-    for (int d = 0; d < data.length; d++) {
-      //       if (d == testMin) {
-      //         d = testMax - 1;
-      //         continue;
-      //       }
+    for (int d = start; d < end; d++) {
       int[] features = data[d];
+      double[] featureValues = values == null ? null : values[d];
       // activation
       Arrays.fill(sums, 0.0);
 
       for (int c = 0; c < numClasses; c++) {
         for (int f = 0; f < features.length; f++) {
           int i = indexOf(features[f], c);
-          sums[c] += x[i] * values[d][f];
+          sums[c] += featureValues == null ? x[i] : x[i] * featureValues[f];
         }
       }
       // expectation (slower routine replaced by fast way)
@@ -768,7 +716,7 @@ public class LogConditionalObjectiveFunction<L, F> extends AbstractStochasticCac
         }
         for (int f = 0; f < features.length; f++) {
           int i = indexOf(features[f], c);
-          derivative[i] += probs[c] * values[d][f];
+          derivative[i] += featureValues == null ? probs[c] : probs[c] * featureValues[f];
         }
       }
 
@@ -778,6 +726,67 @@ public class LogConditionalObjectiveFunction<L, F> extends AbstractStochasticCac
       }
       value -= dV;
     }
+    return value;
+  }
+
+  /**
+   * Adds the expected feature counts of all the data to the derivative, and
+   * returns the negated log likelihood of the data.  With {@code numThreads}
+   * above 1, the data are split into that many contiguous shards, each of which
+   * is summed on its own thread into its own gradient array.  The shards are then
+   * added up in order, so the result does not depend on the thread scheduling.
+   */
+  private double calculateCLInShards(final double[] x) {
+    if (numThreads <= 1 || data.length < numThreads) {
+      return calculateCLForData(x, 0, data.length, derivative);
+    }
+    int[] shardStarts = ContiguousBlocks.evenStarts(data.length, numThreads);
+    List<Pair<Double, double[]>> results = ContiguousBlocks.process(shardStarts, new ContiguousBlocks.Job<Pair<Double, double[]>>() {
+      @Override
+      public Pair<Double, double[]> process(int shard, int start, int end) {
+        // the first shard adds straight into the derivative
+        double[] shardDerivative = shard == 0 ? derivative : new double[x.length];
+        double shardValue = calculateCLForData(x, start, end, shardDerivative);
+        return new Pair<>(shardValue, shardDerivative);
+      }
+    });
+
+    double value = 0.0;
+    for (int shard = 0; shard < results.size(); shard++) {
+      Pair<Double, double[]> result = results.get(shard);
+      value += result.first();
+      if (shard > 0) {
+        ArrayMath.pairwiseAddInPlace(derivative, result.second());
+      }
+    }
+    return value;
+  }
+
+  /**
+   * Calculate conditional likelihood for datasets with real-valued features.
+   * Currently this can calculate CL only (no support for SCL).
+   * TODO: sum-conditional obj. fun. with RVFs.
+   *
+   */
+  protected void rvfcalculate(double... x) {
+    value = 0.0;
+    if (derivativeNumerator == null) {
+      derivativeNumerator = new double[x.length];
+      for (int d = 0; d < data.length; d++) {
+        //         if (d == testMin) {
+        //           d = testMax - 1;
+        //           continue;
+        //         }
+        int[] features = data[d];
+        for (int f = 0; f < features.length; f++) {
+          int i = indexOf(features[f], labels[d]);
+            derivativeNumerator[i] -= dataweights == null ? values[d][f] : dataweights[d] * values[d][f];
+        }
+      }
+    }
+    copy(derivative, derivativeNumerator);
+    //    Arrays.fill(derivative, 0.0);
+    value = calculateCLInShards(x);
     value += prior.compute(x, derivative);
   }
 
@@ -790,6 +799,16 @@ public class LogConditionalObjectiveFunction<L, F> extends AbstractStochasticCac
     this.useSummedConditionalLikelihood = value;
   }
 
+  /**
+   * Sets the number of threads which {@link #calculate} splits the data
+   * between.  Only the conditional likelihood of data in arrays, not an
+   * Iterable, is computed on several threads.  The default is 1.
+   */
+  public void setNumThreads(int numThreads) {
+    this.numThreads = numThreads;
+    clearCache();
+  }
+
   public LogConditionalObjectiveFunction(GeneralDataset<L, F> dataset) {
     this(dataset, new LogPrior(LogPrior.LogPriorType.QUADRATIC));
   }
@@ -899,7 +899,9 @@ public class RVFDataset<L, F> extends GeneralDataset<L, F> { // implements Itera
 
   @Override
   public double[][] getValuesArray() {
-    values = trimToSize(values, size);
+    if (values.length != size) {
+      values = trimToSize(values, size);
+    }
     return values;
   }
 
@@ -29,6 +29,7 @@ package edu.stanford.nlp.ie.crf;
 import ca.gedge.radixtree.RadixTree;
 import edu.stanford.nlp.ie.*;
 import edu.stanford.nlp.io.IOUtils;
+import edu.stanford.nlp.io.RuntimeIOException;
 import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.math.ArrayMath;
@@ -38,6 +39,7 @@ import edu.stanford.nlp.optimization.*;
 import edu.stanford.nlp.optimization.Function;
 import edu.stanford.nlp.sequences.*;
 import edu.stanford.nlp.stats.ClassicCounter;
+import edu.stanford.nlp.stats.CountMinSketch;
 import edu.stanford.nlp.stats.Counter;
 import edu.stanford.nlp.util.*;
 import javolution.util.FastMap;
@@ -154,6 +156,8 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
   Index<Integer> nodeFeatureIndicesMap;
   Index<Integer> edgeFeatureIndicesMap;
   RadixTree< double[]> embeddings;
+  /** The weights to start the next training run from, when warm starting from another classifier */
+  private double[] warmStartWeights;
 
   /**
    * Name of default serialized classifier resource to look for in a jar file.
@@ -686,6 +690,39 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
             featureValArr);
   }
 
+  /**
+   * Convert an ObjectBank to data features and labels kept in a temporary
+   * file, as {@link #documentsToDataAndLabels} does in memory.  Each document
+   * is written out as soon as it is featurized, so only its features need to
+   * be in memory at once.  This version is used at training time.
+   *
+   * @return The features and labels of the documents, read from the file as needed
+   */
+  public CRFDataFile documentsToDataFile(Collection<List<IN>> documents) {
+    int numDatums = 0;
+    CRFDataFile dataFile;
+    try {
+      CRFDataFile.Writer writer = new CRFDataFile.Writer();
+      for (List<IN> doc : documents) {
+        Triple<int[][][], int[], double[][][]> docTriple = documentToDataAndLabels(doc, true);
+        writer.add(docTriple.first(), docTriple.second());
+        numDatums += doc.size();
+      }
+      dataFile = writer.finish();
+    } catch (IOException e) {
+      throw new RuntimeIOException("Could not write training data to a temporary file", e);
+    }
+
+    System.err.println("numClasses: " + classIndex.size() + ' ' + classIndex);
+    System.err.println("numDocuments: " + dataFile.size());
+    System.err.println("numDatums: " + numDatums);
+    System.err.println("numFeatures: " + featureIndex.size());
+    System.err.println("training data file size: " + dataFile.sizeInBytes() + " bytes");
+    printFeatures();
+
+    return dataFile;
+  }
+
   /**
    * Convert an ObjectBank to corresponding collection of data features and
    * labels. This version is used at test time.
@@ -743,6 +780,16 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
    *          {@code List<CoreLabel>}.
    */
   protected void makeAnswerArraysAndTagIndex(Collection<List<IN>> ob) {
+    makeAnswerArraysAndTagIndex(ob, null);
+  }
+
+  /**
+   * As {@link #makeAnswerArraysAndTagIndex(Collection)}, but starting from
+   * the classes, labels and features of a previously trained classifier, if
+   * warmStart is not null.  They keep the indices they had there, and those
+   * of the training data which it does not have are added after them.
+   */
+  private void makeAnswerArraysAndTagIndex(Collection<List<IN>> ob, CRFClassifier<?> warmStart) {
 
     Set<String>[] featureIndices = new HashSet[windowSize];
     for (int i = 0; i < windowSize; i++) {
@@ -757,9 +804,22 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
     Index<CRFLabel> labelIndex = labelIndices.get(windowSize - 1);
 
     classIndex = new HashIndex<>();
+    if (warmStart != null) {
+      classIndex.addAll(warmStart.classIndex.objectsList());
+      for (int i = 0; i < windowSize; i++) {
+        labelIndices.get(i).addAll(warmStart.labelIndices.get(i).objectsList());
+      }
+    }
     // classIndex.add("O");
     classIndex.add(flags.backgroundSymbol);
 
+    // with a feature count threshold, the features are first counted without
+    // being stored, so that only those over the threshold are ever indexed
+    CountMinSketch<String>[] featureCounts = null;
+    if (flags.featureCountThreshold > 1) {
+      featureCounts = countFeatures(ob);
+    }
+
     Set<String>[] seenBackgroundFeatures = new HashSet[2];
       seenBackgroundFeatures[0] = new FastSet<>();
       seenBackgroundFeatures[1] = new FastSet<>();
@@ -790,6 +850,15 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
         List<List<String>> features = d.asFeatures();
         for (int k = 0, fsize = features.size(); k < fsize; k++) {
           Collection<String> cliqueFeatures = features.get(k);
+          if (featureCounts != null) {
+            List<String> frequentFeatures = new ArrayList<>(cliqueFeatures.size());
+            for (String f : cliqueFeatures) {
+              if (featureCounts[k].count(f) >= flags.featureCountThreshold) {
+                frequentFeatures.add(f);
+              }
+            }
+            cliqueFeatures = frequentFeatures;
+          }
           if (k < 2 && flags.removeBackgroundSingletonFeatures) {
             String ans = doc.get(j).get(CoreAnnotations.AnswerAnnotation.class);
             boolean background = ans.equals(flags.backgroundSymbol);
@@ -827,8 +896,22 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
     for (int i = 0; i < windowSize; i++) {
       numFeatures += featureIndices[i].size();
     }
+    if (featureCounts != null) {
+      System.err.println("Kept " + numFeatures + " features with counts of at least " + flags.featureCountThreshold);
+    }
 
     featureIndex = new HashIndex<>();
+    if (warmStart != null) {
+      // the old features come first, including those the training data does not have
+      numFeatures = 0;
+      for (String feature : warmStart.featureIndex) {
+        featureIndices[getFeatureTypeIndex(feature)].add(feature);
+        featureIndex.add(feature);
+      }
+      for (int i = 0; i < windowSize; i++) {
+        numFeatures += featureIndices[i].size();
+      }
+    }
     map = new int[numFeatures];
 
     for (int i = 0; i < windowSize; i++) {
@@ -875,6 +958,51 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
     }
   }
 
+  /**
+   * Counts the features of each clique size in the documents, in a
+   * {@link CountMinSketch} for each, so that they can be thresholded by their
+   * counts without storing every feature.  The counts may be a little too high,
+   * so a few features under the threshold may be kept, but none over it are lost.
+   * The answers are added to the classIndex as they are found, as the datums need them.
+   */
+  private CountMinSketch<String>[] countFeatures(Collection<List<IN>> ob) {
+    Timing timer = new Timing();
+    @SuppressWarnings("unchecked")
+    CountMinSketch<String>[] featureCounts = (CountMinSketch<String>[]) new CountMinSketch<?>[windowSize];
+    // flags serialized before featureCountSketchWidth was added have it 0
+    int sketchWidth = flags.featureCountSketchWidth > 0 ? flags.featureCountSketchWidth : SeqClassifierFlags.DEFAULT_FEATURE_COUNT_SKETCH_WIDTH;
+    for (int i = 0; i < windowSize; i++) {
+      featureCounts[i] = new CountMinSketch<>(4, sketchWidth);
+    }
+    for (List<IN> doc : ob) {
+      if (flags.useReverse) {
+        Collections.reverse(doc);
+      }
+      for (IN token : doc) {
+        String ans = token.get(CoreAnnotations.AnswerAnnotation.class);
+        if (ans != null && ! ans.isEmpty()) {
+          classIndex.add(ans);
+        }
+      }
+      for (int j = 0, docSize = doc.size(); j < docSize; j++) {
+        List<List<String>> features = makeDatum(doc, j, featureFactory).asFeatures();
+        for (int k = 0, fsize = features.size(); k < fsize; k++) {
+          for (String f : features.get(k)) {
+            featureCounts[k].add(f);
+          }
+        }
+      }
+      if (flags.useReverse) {
+        Collections.reverse(doc);
+      }
+    }
+    for (int i = 0; i < windowSize; i++) {
+      System.err.println("Feature counts for cliques of size " + (i + 1) + ": " + featureCounts[i]);
+    }
+    System.err.println("Time to count features: " + Timing.toSecondsString(timer.stop()) + " seconds");
+    return featureCounts;
+  }
+
   protected static Index<CRFLabel> allLabels(int window, Index<String> classIndex) {
     int[] label = new int[window];
     // cdm july 2005: below array initialization isn't necessary: JLS (3rd ed.)
@@ -1720,6 +1848,19 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
     Timing timer = new Timing();
     timer.start();
 
+    if (flags.saveTrainingDataToDisk && (flags.nonLinearCRF || flags.useFloat || flags.numLopExpert > 1 ||
+        flags.useEmbedding || flags.loadProcessedData != null)) {
+      throw new UnsupportedOperationException("saveTrainingDataToDisk is only supported for training a linear CRF " +
+          "with double weights and no feature values or processed data");
+    }
+    if (flags.warmStartClassifier != null && (flags.nonLinearCRF || flags.useFloat || flags.numLopExpert > 1)) {
+      throw new UnsupportedOperationException("warmStartClassifier is only supported for training a linear CRF " +
+          "with double weights");
+    }
+    if (flags.warmStartClassifier != null && flags.initialWeights != null) {
+      throw new IllegalArgumentException("warmStartClassifier and initialWeights cannot both be given");
+    }
+
     if (flags.numOfSlices > 0) {
       System.err.println("Taking " + flags.numOfSlices + " out of " + flags.totalDataSlice + " slices of data for training");
       List<List<IN>> docsToShuffle = new ArrayList<>();
@@ -1731,7 +1872,18 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
       docs = docsToShuffle.subList(0, cutOff);
     }
 
-    makeAnswerArraysAndTagIndex(docs);
+    CRFClassifier<CoreLabel> warmStart = null;
+    if (flags.warmStartClassifier != null) {
+      warmStart = getClassifierNoExceptions(flags.warmStartClassifier);
+      if (warmStart.windowSize != windowSize) {
+        throw new RuntimeException("Incompatible warm start classifier: windowSize does not match");
+      }
+      if (warmStart.weights == null) {
+        throw new RuntimeException("Incompatible warm start classifier: it is not a linear CRF");
+      }
+    }
+
+    makeAnswerArraysAndTagIndex(docs, warmStart);
     long elapsedMs = timer.stop();
     System.err.println("Time to convert docs to feature indices: " + Timing.toSecondsString(elapsedMs) + " seconds");
     if (flags.exportFeatures != null) {
@@ -1741,10 +1893,17 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
       elapsedMs = timer.stop();
       System.err.println("Time to export features: " + Timing.toSecondsString(elapsedMs) + " seconds");
     }
-
     for (int i = 0; i <= flags.numTimesPruneFeatures; i++) {
       timer.start();
-      Triple<int[][][][], int[][], double[][][][]> dataAndLabelsAndFeatureVals = documentsToDataAndLabels(docs);
+      // with saveTrainingDataToDisk, the data is only in the file, and not in dataAndLabelsAndFeatureVals
+      CRFDataFile dataFile = null;
+      Triple<int[][][][], int[][], double[][][][]> dataAndLabelsAndFeatureVals;
+      if (flags.saveTrainingDataToDisk) {
+        dataFile = documentsToDataFile(docs);
+        dataAndLabelsAndFeatureVals = new Triple<>(null, dataFile.labels(), null);
+      } else {
+        dataAndLabelsAndFeatureVals = documentsToDataAndLabels(docs);
+      }
       elapsedMs = timer.stop();
       System.err.println("Time to convert docs to data/labels: " + Timing.toSecondsString(elapsedMs) + " seconds");
 
@@ -1759,8 +1918,9 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
           int[][][][] data = dataAndLabelsAndFeatureVals.first();
           int[][] labels = dataAndLabelsAndFeatureVals.second();
           double[][][][] featureVal = dataAndLabelsAndFeatureVals.third();
-          for (int j = 0; j < data.length; j++) {
-            Triple<int[][][], int[], double[][][]> p = new Triple<>(data[j], labels[j], featureVal[j]);
+          for (int j = 0; j < labels.length; j++) {
+            int[][][] docData = dataFile != null ? dataFile.document(j) : data[j];
+            Triple<int[][][], int[], double[][][]> p = new Triple<>(docData, labels[j], featureVal != null ? featureVal[j] : null);
             trainDataAndLabels.add(p);
           }
           crfEvaluator.setTestData(docs, trainDataAndLabels);
@@ -1802,6 +1962,9 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
       if (flags.numTimesPruneFeatures == i) {
         docs = null; // hopefully saves memory
       }
+      // the old weights are found by feature name, so before the feature index may be saved to disk
+      warmStartWeights = warmStart != null ? warmStartWeights(warmStart) : null;
+
       // save feature index to disk and read in later
       File featIndexFile = null;
 
@@ -1919,11 +2082,15 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
         }
       } else {
         double[] oneDimWeights = null;
-        if (flags.useFloat) {
+        if (dataFile != null) {
+          oneDimWeights = trainWeightsUsingDoubleCRF(dataFile, evaluators, i);
+          dataFile.delete();
+        } else if (flags.useFloat) {
           oneDimWeights = trainWeightsUsingFloatCRF(data, labels, i);
         } else
             oneDimWeights = flags.numLopExpert > 1 ? trainWeightsUsingLopCRF(numFeatures, data, labels, evaluators, i) : trainWeightsUsingDoubleCRF(data, labels, evaluators, i, featureVals);
         this.weights = CRFLogConditionalObjectiveFunction.to2D(oneDimWeights, labelIndices, map);
+        warmStartWeights = null;
       }
 
       // save feature index to disk and read in later
@@ -1945,7 +2112,7 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
 
   protected double[] trainWeightsUsingFloatCRF(int[][][][] data, int[][] labels, int pruneFeatureItr) {
     CRFLogConditionalObjectiveFloatFunction func = new CRFLogConditionalObjectiveFloatFunction(data, labels,
-        featureIndex, windowSize, classIndex, labelIndices, map, flags.backgroundSymbol, flags.sigma);
+        featureIndex, windowSize, classIndex, labelIndices, map, flags.backgroundSymbol, flags.sigma, flags.multiThreadGrad);
     cliquePotentialFunctionHelper = func;
 
     QNMinimizer minimizer;
@@ -2209,7 +2376,7 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
     // Arrays.fill(lopScales, 1.0);
     CRFLogConditionalObjectiveFunctionForLOP func = new CRFLogConditionalObjectiveFunctionForLOP(data, labels, lopExpertWeights,
         windowSize, classIndex, labelIndices, map, flags.backgroundSymbol, numLopExpert, featureIndicesSetArray, featureIndicesListArray,
-        flags.backpropLopTraining);
+        flags.backpropLopTraining, flags.multiThreadGrad);
     cliquePotentialFunctionHelper = func;
 
     Minimizer minimizer = getMinimizer(0, evaluators);
@@ -2249,6 +2416,69 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
     return func.initial();
   }
 
+  /**
+   * Returns the weights of another, previously trained classifier, laid out
+   * as the weights of this one for its current features and labels, to start
+   * training from.  A feature of this classifier which the other has (the
+   * feature names give the clique sizes) takes the other's weight for each
+   * sequence of classes which the other also has; all other weights start at zero.
+   * The features are found by name, as they may have been pruned since
+   * {@link #makeAnswerArraysAndTagIndex(Collection, CRFClassifier)} started
+   * from the other's.
+   */
+  private double[] warmStartWeights(CRFClassifier<?> other) {
+    // this classifier's classes in the other classifier, or -1
+    int[] otherClasses = new int[classIndex.size()];
+    for (int c = 0; c < otherClasses.length; c++) {
+      otherClasses[c] = other.classIndex.indexOf(classIndex.get(c));
+    }
+    // for each clique size, this classifier's labels in the other classifier, or -1
+    int[][] otherLabels = new int[labelIndices.size()][];
+    for (int k = 0; k < otherLabels.length; k++) {
+      Index<CRFLabel> labelIndex = labelIndices.get(k);
+      otherLabels[k] = new int[labelIndex.size()];
+      LABELS: for (int j = 0; j < otherLabels[k].length; j++) {
+        int[] label = labelIndex.get(j).getLabel();
+        int[] otherLabel = new int[label.length];
+        for (int n = 0; n < label.length; n++) {
+          otherLabel[n] = otherClasses[label[n]];
+          if (otherLabel[n] < 0) {
+            otherLabels[k][j] = -1;
+            continue LABELS;
+          }
+        }
+        otherLabels[k][j] = other.labelIndices.get(k).indexOf(new CRFLabel(otherLabel));
+      }
+    }
+
+    int numWeights = 0;
+    for (int k : map) {
+      numWeights += otherLabels[k].length;
+    }
+    double[] initial = new double[numWeights];
+    int numFeaturesFound = 0;
+    int numWeightsFound = 0;
+    int index = 0;
+    for (int f = 0; f < map.length; f++) {
+      int k = map[f];
+      int otherF = other.featureIndex.indexOf(featureIndex.get(f));
+      if (otherF >= 0) {
+        numFeaturesFound++;
+        for (int j = 0; j < otherLabels[k].length; j++) {
+          if (otherLabels[k][j] >= 0) {
+            initial[index + j] = other.weights[otherF][otherLabels[k][j]];
+            numWeightsFound++;
+          }
+        }
+      }
+      index += otherLabels[k].length;
+    }
+    System.err.println("Warm starting from " + flags.warmStartClassifier + ": " + numFeaturesFound + " of " +
+        map.length + " features and " + numWeightsFound + " of " + numWeights + " weights found among its " +
+        other.featureIndex.size() + " features");
+    return initial;
+  }
+
   protected double[] trainWeightsUsingNonLinearCRF(AbstractCachingDiffFunction func, Evaluator... evaluators) {
     Minimizer minimizer = getMinimizer(0, evaluators);
 
@@ -2293,13 +2523,31 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
   protected double[] trainWeightsUsingDoubleCRF(int[][][][] data, int[][] labels, Evaluator[] evaluators, int pruneFeatureItr, double[][][][] featureVals) {
 
     CRFLogConditionalObjectiveFunction func = new CRFLogConditionalObjectiveFunction(data, labels,
-        windowSize, classIndex, labelIndices, map, flags.priorType, flags.backgroundSymbol, flags.sigma, featureVals);
+        windowSize, classIndex, labelIndices, map, flags.priorType, flags.backgroundSymbol, flags.sigma, featureVals,
+        flags.multiThreadGrad);
+    return trainWeightsUsingDoubleCRF(func, evaluators, pruneFeatureItr);
+  }
+
+  /**
+   * Trains the weights on documents kept on disk, which are read from the
+   * file each time the objective function is evaluated.
+   */
+  protected double[] trainWeightsUsingDoubleCRF(CRFDataFile dataFile, Evaluator[] evaluators, int pruneFeatureItr) {
+    CRFLogConditionalObjectiveFunction func = new CRFLogConditionalObjectiveFunction(dataFile,
+        windowSize, classIndex, labelIndices, map, flags.priorType, flags.backgroundSymbol, flags.sigma,
+        flags.multiThreadGrad);
+    return trainWeightsUsingDoubleCRF(func, evaluators, pruneFeatureItr);
+  }
+
+  private double[] trainWeightsUsingDoubleCRF(CRFLogConditionalObjectiveFunction func, Evaluator[] evaluators, int pruneFeatureItr) {
     cliquePotentialFunctionHelper = func;
 
     Minimizer minimizer = getMinimizer(pruneFeatureItr, evaluators);
 
     double[] initialWeights;
-    if (flags.initialWeights == null) {
+    if (warmStartWeights != null) {
+      initialWeights = warmStartWeights;
+    } else if (flags.initialWeights == null) {
       initialWeights = func.initial();
     } else {
       try {
@@ -2366,8 +2614,9 @@ public class CRFClassifier<IN extends CoreMap> extends AbstractSequenceClassifie
         ((QNMinimizer) minimizer).useOWLQN(flags.useOWLQN, flags.priorL1Lambda);
       }
     } else if (flags.useInPlaceSGD) {
-      StochasticInPlaceMinimizer<DiffFunction> sgdMinimizer =
-              new StochasticInPlaceMinimizer<>(flags.sigma, flags.SGDPasses, flags.tuneSampleSize, flags.stochasticBatchSize);
+      StochasticInPlaceMinimizer<DiffFunction> sgdMinimizer = flags.hogwildThreads > 1 ?
+              new HogwildMinimizer<DiffFunction>(flags.sigma, flags.SGDPasses, flags.tuneSampleSize, flags.stochasticBatchSize, flags.hogwildThreads) :
+              new StochasticInPlaceMinimizer<DiffFunction>(flags.sigma, flags.SGDPasses, flags.tuneSampleSize, flags.stochasticBatchSize);
       if (flags.useSGDtoQN) {
         QNMinimizer qnMinimizer;
         int QNmem;
@@ -0,0 +1,310 @@
+package edu.stanford.nlp.ie.crf;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import edu.stanford.nlp.util.HashIndex;
+import edu.stanford.nlp.util.Index;
+import edu.stanford.nlp.util.Timing;
+
+/**
+ * The features of CRF training documents, as in the int[][][][] data which
+ * {@link CRFClassifier#documentsToDataAndLabels} returns, kept in a file which
+ * is memory-mapped and decoded a document at a time, rather than on the heap.
+ * This lets a CRF be trained on more documents than their features would take
+ * up as Java arrays, since the operating system pages the file in and out as
+ * needed.
+ * <br>
+ * Each document is stored as its number of tokens, and for each token its
+ * number of cliques, and for each clique its number of features and then the
+ * features, all as variable length ints of 7 bits a byte.  Most feature indices
+ * thus take 2 or 3 bytes rather than the 4 of an int, with no array headers.
+ * The labels, one int a token, are kept in memory.
+ * <br>
+ * A file is written with a {@link Writer}, and may then be read by any number
+ * of threads at once.
+ */
+public class CRFDataFile {
+
+  /** The most bytes mapped in one buffer */
+  private static final long MAX_CHUNK_SIZE = Integer.MAX_VALUE;
+
+  private final File file;
+  private final MappedByteBuffer[] chunks;
+  private final int[] docChunks;
+  private final int[] docOffsets;
+  private final int[] docLengths;
+  private final int[][] labels;
+
+  private CRFDataFile(File file, List<Long> chunkStarts, long length, int[] docChunks, int[] docOffsets, int[] docLengths, int[][] labels) throws IOException {
+    this.file = file;
+    this.docChunks = docChunks;
+    this.docOffsets = docOffsets;
+    this.docLengths = docLengths;
+    this.labels = labels;
+    chunks = new MappedByteBuffer[chunkStarts.size()];
+    try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+      FileChannel channel = raf.getChannel();
+      for (int c = 0; c < chunks.length; c++) {
+        long start = chunkStarts.get(c);
+        long end = c + 1 < chunks.length ? chunkStarts.get(c + 1) : length;
+        chunks[c] = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+      }
+    }
+  }
+
+  /** Returns the number of documents */
+  public int size() {
+    return docLengths.length;
+  }
+
+  /** Returns the number of tokens in each document */
+  public int[] docLengths() {
+    return docLengths;
+  }
+
+  /** Returns the labels of each document, labels[docIndex][tokenIndex] */
+  public int[][] labels() {
+    return labels;
+  }
+
+  /** Returns the size of the file in bytes */
+  public long sizeInBytes() {
+    return file.length();
+  }
+
+  /**
+   * Returns the features of the document, as
+   * {@code documentToDataAndLabels(document).first()} would.  A new array
+   * is decoded each time.
+   */
+  public int[][][] document(int docIndex) {
+    ByteBuffer buffer = chunks[docChunks[docIndex]].duplicate();
+    buffer.position(docOffsets[docIndex]);
+    int[][][] docData = new int[readVInt(buffer)][][];
+    for (int i = 0; i < docData.length; i++) {
+      int[][] cliques = new int[readVInt(buffer)][];
+      for (int j = 0; j < cliques.length; j++) {
+        int[] features = new int[readVInt(buffer)];
+        for (int n = 0; n < features.length; n++) {
+          features[n] = readVInt(buffer);
+        }
+        cliques[j] = features;
+      }
+      docData[i] = cliques;
+    }
+    return docData;
+  }
+
+  /** Deletes the file.  The documents may not be read afterwards. */
+  public void delete() {
+    if ( ! file.delete()) {
+      file.deleteOnExit();
+    }
+  }
+
+  private static int readVInt(ByteBuffer buffer) {
+    int b = buffer.get();
+    int value = b & 0x7f;
+    for (int shift = 7; b < 0; shift += 7) {
+      b = buffer.get();
+      value |= (b & 0x7f) << shift;
+    }
+    return value;
+  }
+
+  private static void writeVInt(OutputStream out, int value) throws IOException {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+
+  /**
+   * Writes documents to a file one at a time, so that only the document being
+   * written needs to be in memory.  {@link #finish()} then returns the file to read.
+   */
+  public static class Writer implements Closeable {
+
+    private final File file;
+    private final OutputStream out;
+    private final ByteArrayOutputStream docBytes = new ByteArrayOutputStream();
+    private final List<Long> chunkStarts = new ArrayList<>();
+    private final List<Integer> docChunks = new ArrayList<>();
+    private final List<Integer> docOffsets = new ArrayList<>();
+    private final List<Integer> docLengths = new ArrayList<>();
+    private final List<int[]> labels = new ArrayList<>();
+    private long length;
+
+    /** Writes to the given file */
+    public Writer(File file) throws IOException {
+      this.file = file;
+      this.out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+      chunkStarts.add(0L);
+    }
+
+    /** Writes to a new temporary file, which is deleted on exit */
+    public Writer() throws IOException {
+      this(makeTempFile());
+    }
+
+    private static File makeTempFile() throws IOException {
+      File file = File.createTempFile("crfData", ".tmp");
+      file.deleteOnExit();
+      return file;
+    }
+
+    /** Adds a document's features and labels */
+    public void add(int[][][] docData, int[] docLabels) throws IOException {
+      docBytes.reset();
+      writeVInt(docBytes, docData.length);
+      for (int[][] cliques : docData) {
+        writeVInt(docBytes, cliques.length);
+        for (int[] features : cliques) {
+          writeVInt(docBytes, features.length);
+          for (int feature : features) {
+            writeVInt(docBytes, feature);
+          }
+        }
+      }
+      // start a new chunk if the document would not fit in this one
+      long chunkStart = chunkStarts.get(chunkStarts.size() - 1);
+      if (length + docBytes.size() - chunkStart > MAX_CHUNK_SIZE) {
+        chunkStart = length;
+        chunkStarts.add(chunkStart);
+      }
+      docChunks.add(chunkStarts.size() - 1);
+      docOffsets.add((int) (length - chunkStart));
+      docLengths.add(docData.length);
+      labels.add(docLabels);
+      docBytes.writeTo(out);
+      length += docBytes.size();
+    }
+
+    /** Closes the file and maps it for reading */
+    public CRFDataFile finish() throws IOException {
+      close();
+      int numDocs = docLengths.size();
+      int[] chunkArr = new int[numDocs];
+      int[] offsetArr = new int[numDocs];
+      int[] lengthArr = new int[numDocs];
+      for (int m = 0; m < numDocs; m++) {
+        chunkArr[m] = docChunks.get(m);
+        offsetArr[m] = docOffsets.get(m);
+        lengthArr[m] = docLengths.get(m);
+      }
+      return new CRFDataFile(file, chunkStarts, length, chunkArr, offsetArr, lengthArr,
+              labels.toArray(new int[numDocs][]));
+    }
+
+    @Override
+    public void close() throws IOException {
+      out.close();
+    }
+  }
+
+
+  /**
+   * Compares training a CRF on random documents kept in memory and kept in a
+   * file: the heap the documents take up once loaded, and the time to evaluate
+   * the objective function and its gradient, which should have the same value.
+   * Usage: CRFDataFile [numDocs [numFeatures [evaluations]]]
+   */
+  public static void main(String[] args) throws IOException {
+    int numDocs = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+    int numFeatures = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+    int evaluations = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+    int numClasses = 5;
+    Index<String> classIndex = new HashIndex<>();
+    for (int c = 0; c < numClasses; c++) {
+      classIndex.add("C" + c);
+    }
+    List<Index<CRFLabel>> labelIndices = new ArrayList<>();
+    for (int size = 1; size <= 2; size++) {
+      Index<CRFLabel> labelIndex = new HashIndex<>();
+      for (int label = 0; label < (size == 1 ? numClasses : numClasses * numClasses); label++) {
+        labelIndex.add(size == 1 ? new CRFLabel(label) : new CRFLabel(label / numClasses, label % numClasses));
+      }
+      labelIndices.add(labelIndex);
+    }
+    // the first tenth of the features are edge features
+    int[] map = new int[numFeatures];
+    for (int f = 0; f < numFeatures; f++) {
+      map[f] = f < numFeatures / 10 ? 1 : 0;
+    }
+
+    for (String mode : new String[] { "file", "memory" }) {
+      long before = usedMemory();
+      // documents of 5 to 40 tokens with 20 node features a token, made the same way each time
+      Random random = new Random(1);
+      int[][][][] data = mode.equals("memory") ? new int[numDocs][][][] : null;
+      int[][] labels = new int[numDocs][];
+      Writer writer = mode.equals("file") ? new Writer() : null;
+      for (int m = 0; m < numDocs; m++) {
+        int length = 5 + random.nextInt(36);
+        int[][][] docData = new int[length][2][];
+        labels[m] = new int[length];
+        for (int i = 0; i < length; i++) {
+          int[] nodeFeatures = new int[20];
+          for (int n = 0; n < nodeFeatures.length; n++) {
+            nodeFeatures[n] = numFeatures / 10 + random.nextInt(numFeatures - numFeatures / 10);
+          }
+          docData[i][0] = nodeFeatures;
+          docData[i][1] = new int[] { random.nextInt(numFeatures / 10) };
+          labels[m][i] = random.nextInt(4) == 0 ? random.nextInt(numClasses) : nodeFeatures[0] % numClasses;
+        }
+        if (writer != null) {
+          writer.add(docData, labels[m]);
+        } else {
+          data[m] = docData;
+        }
+      }
+      CRFDataFile dataFile = writer != null ? writer.finish() : null;
+      CRFLogConditionalObjectiveFunction func = dataFile != null ?
+          new CRFLogConditionalObjectiveFunction(dataFile, 2, classIndex, labelIndices, map, "QUADRATIC", "C0", 1.0, 1) :
+          new CRFLogConditionalObjectiveFunction(data, labels, 2, classIndex, labelIndices, map, "QUADRATIC", "C0", 1.0, null, 1);
+      long heap = usedMemory() - before;
+
+      double[] x = new double[func.domainDimension()];
+      Random weights = new Random(2);
+      double value = 0.0;
+      Timing timing = new Timing();
+      for (int e = 0; e < evaluations; e++) {
+        for (int i = 0; i < x.length; i++) {
+          x[i] = weights.nextGaussian() * 0.1;
+        }
+        value = func.valueAt(x);
+      }
+      long millis = timing.stop();
+      System.err.printf("%-6s: %,d MB of heap for data and objective%s, %.1f ms an evaluation, last value %.6f%n",
+          mode, heap >> 20, dataFile != null ? String.format(" (%,d MB in the file)", dataFile.sizeInBytes() >> 20) : "",
+          (double) millis / evaluations, value);
+      if (dataFile != null) {
+        dataFile.delete();
+      }
+    }
+  }
+
+  private static long usedMemory() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+}
@@ -34,6 +34,8 @@ public class CRFLogConditionalObjectiveFloatFunction extends AbstractCachingDiff
   int[][][][] data;
   int[][] labels;
   int domainDimension = -1;
+  /** The number of threads to compute the value and gradient on */
+  int multiThreadGrad = 1;
 
   String backgroundSymbol;
 
@@ -51,6 +53,11 @@ public class CRFLogConditionalObjectiveFloatFunction extends AbstractCachingDiff
     this(data, labels, featureIndex, window, classIndex, labelIndices, map, prior, backgroundSymbol, 1.0f);
   }
 
+  CRFLogConditionalObjectiveFloatFunction(int[][][][] data, int[][] labels, Index<String> featureIndex, int window, Index<String> classIndex, List<Index<CRFLabel>> labelIndices, int[] map, String backgroundSymbol, double sigma, int multiThreadGrad) {
+    this(data, labels, featureIndex, window, classIndex, labelIndices, map, QUADRATIC_PRIOR, backgroundSymbol, sigma);
+    this.multiThreadGrad = multiThreadGrad;
+  }
+
   CRFLogConditionalObjectiveFloatFunction(int[][][][] data, int[][] labels, Index featureIndex, int window, Index classIndex, List<Index<CRFLabel>> labelIndices, int[] map, int prior, String backgroundSymbol, double sigma) {
     this.featureIndex = featureIndex;
     this.window = window;
@@ -231,6 +238,53 @@ public class CRFLogConditionalObjectiveFloatFunction extends AbstractCachingDiff
     return factorTables;
   }
 
+  /**
+   * Adds the expected counts of document m to E, and returns its log probability.
+   */
+  private float expectedCountsAndValueForADoc(float[][] weights, float[][] E, int m) {
+    float prob = 0;
+    FloatFactorTable[] factorTables = getCalibratedCliqueTree(weights, data[m], labelIndices, numClasses);
+    //             System.err.println("calibrated:");
+    //             for (int i = 0; i < factorTables.length; i++) {
+    //               System.out.println(factorTables[i]);
+    //               System.out.println("+++++++++++++++++++++++++++++");
+
+    //             }
+    //             System.exit(0);
+    float z = factorTables[0].totalMass();
+
+    int[] given = new int[window - 1];
+    Arrays.fill(given, classIndex.indexOf(backgroundSymbol));
+    for (int i = 0; i < data[m].length; i++) {
+      float p = factorTables[i].conditionalLogProb(given, labels[m][i]);
+      if (VERBOSE) {
+        System.err.println("P(" + labels[m][i] + '|' + Arrays.toString(given) + ")=" + p);
+      }
+      prob += p;
+      System.arraycopy(given, 1, given, 0, given.length - 1);
+      given[given.length - 1] = labels[m][i];
+    }
+
+    // get predicted count
+    for (int i = 0; i < data[m].length; i++) {
+      // go through each clique...
+      for (int j = 0; j < data[m][i].length; j++) {
+        Index labelIndex = labelIndices.get(j);
+        // ...and each possible labeling for that clique
+        for (int k = 0; k < labelIndex.size(); k++) {
+          int[] label = ((CRFLabel) labelIndex.get(k)).getLabel();
+
+          // float p = Math.pow(Math.E, factorTables[i].logProbEnd(label));
+          float p = (float) Math.exp(factorTables[i].unnormalizedLogProbEnd(label) - z);
+          for (int n = 0; n < data[m][i][j].length; n++) {
+            E[data[m][i][j][n]][k] += p;
+          }
+        }
+      }
+    }
+    return prob;
+  }
+
   @Override
   public void calculate(float... x) {
 
@@ -239,51 +293,30 @@ public class CRFLogConditionalObjectiveFloatFunction extends AbstractCachingDiff
     //   return;
     // }
 
-    float[][] weights = to2D(x);
+    final float[][] weights = to2D(x);
     float prob = 0;
 
     float[][] E = empty2D();
 
-    for (int m = 0; m < data.length; m++) {
-
-      FloatFactorTable[] factorTables = getCalibratedCliqueTree(weights, data[m], labelIndices, numClasses);
-      //             System.err.println("calibrated:");
-      //             for (int i = 0; i < factorTables.length; i++) {
-      //               System.out.println(factorTables[i]);
-      //               System.out.println("+++++++++++++++++++++++++++++");
-
-      //             }
-      //             System.exit(0);
-      float z = factorTables[0].totalMass();
-
-      int[] given = new int[window - 1];
-      Arrays.fill(given, classIndex.indexOf(backgroundSymbol));
-      for (int i = 0; i < data[m].length; i++) {
-        float p = factorTables[i].conditionalLogProb(given, labels[m][i]);
-        if (VERBOSE) {
-          System.err.println("P(" + labels[m][i] + '|' + Arrays.toString(given) + ")=" + p);
+    if (multiThreadGrad > 1) {
+      DocumentBlockCalculator<float[][]> calculator = new DocumentBlockCalculator<float[][]>() {
+        @Override
+        float[][] emptyExpectations() {
+          return empty2D();
         }
-        prob += p;
-        System.arraycopy(given, 1, given, 0, given.length - 1);
-        given[given.length - 1] = labels[m][i];
-      }
-
-      // get predicted count
-      for (int i = 0; i < data[m].length; i++) {
-        // go through each clique...
-        for (int j = 0; j < data[m][i].length; j++) {
-          Index labelIndex = labelIndices.get(j);
-          // ...and each possible labeling for that clique
-          for (int k = 0; k < labelIndex.size(); k++) {
-            int[] label = ((CRFLabel) labelIndex.get(k)).getLabel();
-
-            // float p = Math.pow(Math.E, factorTables[i].logProbEnd(label));
-            float p = (float) Math.exp(factorTables[i].unnormalizedLogProbEnd(label) - z);
-            for (int n = 0; n < data[m][i][j].length; n++) {
-              E[data[m][i][j][n]][k] += p;
-            }
-          }
+        @Override
+        double expectedCountsAndValueForADoc(float[][] E, int docIndex) {
+          return CRFLogConditionalObjectiveFloatFunction.this.expectedCountsAndValueForADoc(weights, E, docIndex);
+        }
+        @Override
+        void addExpectations(float[][] to, float[][] from) {
+          addInPlace(to, from);
         }
+      };
+      prob = (float) calculator.calculate(data, multiThreadGrad, E);
+    } else {
+      for (int m = 0; m < data.length; m++) {
+        prob += expectedCountsAndValueForADoc(weights, E, m);
       }
     }
 
@@ -2,10 +2,15 @@ package edu.stanford.nlp.ie.crf;
 
 import edu.stanford.nlp.math.ArrayMath;
 import edu.stanford.nlp.optimization.AbstractStochasticCachingDiffUpdateFunction;
+import edu.stanford.nlp.optimization.QNMinimizer;
+import edu.stanford.nlp.util.HashIndex;
 import edu.stanford.nlp.util.Index;
+import edu.stanford.nlp.util.Timing;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Random;
 
 /**
  * @author Jenny Finkel
@@ -31,10 +36,21 @@ public class CRFLogConditionalObjectiveFunction extends AbstractStochasticCachin
   private final int numClasses;
   private final int[] map;
   private final int[][][][] data;  // data[docIndex][tokenIndex][][]
+  /** The data, if it is kept on disk rather than in data */
+  private final CRFDataFile dataFile;
+  private final int[] docLengths;  // docLengths[docIndex] is the number of tokens in the document
   private final double[][][][] featureVal;  // featureVal[docIndex][tokenIndex][][]
   private final int[][] labels;    // labels[docIndex][tokenIndex]
   private final int domainDimension;
-  private double[][] eHat4Update, e4Update;
+  /** The number of threads to compute the value and gradient on */
+  private final int multiThreadGrad;
+  /** The empirical and expected counts of each thread's stochastic updates, which are kept all zero between updates */
+  private final ThreadLocal<double[][][]> updateEs = new ThreadLocal<double[][][]>() {
+    @Override
+    protected double[][][] initialValue() {
+      return new double[][][] { empty2D(), empty2D() };
+    }
+  };
 
   private int[][] weightIndices;
 
@@ -70,17 +86,36 @@ public class CRFLogConditionalObjectiveFunction extends AbstractStochasticCachin
   }
 
   CRFLogConditionalObjectiveFunction(int[][][][] data, int[][] labels, int window, Index<String> classIndex, List<Index<CRFLabel>> labelIndices, int[] map, String priorType, String backgroundSymbol, double sigma, double[][][][] featureVal) {
+    this(data, labels, window, classIndex, labelIndices, map, priorType, backgroundSymbol, sigma, featureVal, 1);
+  }
+
+  CRFLogConditionalObjectiveFunction(int[][][][] data, int[][] labels, int window, Index<String> classIndex, List<Index<CRFLabel>> labelIndices, int[] map, String priorType, String backgroundSymbol, double sigma, double[][][][] featureVal, int multiThreadGrad) {
+    this(data, null, labels, window, classIndex, labelIndices, map, priorType, backgroundSymbol, sigma, featureVal, multiThreadGrad);
+  }
+
+  /**
+   * Makes the objective function of documents kept in a file, which are read
+   * from it each time the function is evaluated.  Feature values are not supported.
+   */
+  CRFLogConditionalObjectiveFunction(CRFDataFile dataFile, int window, Index<String> classIndex, List<Index<CRFLabel>> labelIndices, int[] map, String priorType, String backgroundSymbol, double sigma, int multiThreadGrad) {
+    this(null, dataFile, dataFile.labels(), window, classIndex, labelIndices, map, priorType, backgroundSymbol, sigma, null, multiThreadGrad);
+  }
+
+  private CRFLogConditionalObjectiveFunction(int[][][][] data, CRFDataFile dataFile, int[][] labels, int window, Index<String> classIndex, List<Index<CRFLabel>> labelIndices, int[] map, String priorType, String backgroundSymbol, double sigma, double[][][][] featureVal, int multiThreadGrad) {
     this.window = window;
     this.classIndex = classIndex;
     this.numClasses = classIndex.size();
     this.labelIndices = labelIndices;
     this.map = map;
     this.data = data;
+    this.dataFile = dataFile;
+    this.docLengths = dataFile != null ? dataFile.docLengths() : DocumentBlockCalculator.docLengths(data);
     this.featureVal = featureVal;
     this.labels = labels;
     this.prior = getPriorType(priorType);
     this.backgroundSymbol = backgroundSymbol;
     this.sigma = sigma;
+    this.multiThreadGrad = multiThreadGrad;
     Ehat = empty2D();
     empiricalCounts(Ehat);
     int myDomainDimension = 0;
@@ -120,10 +155,12 @@ public class CRFLogConditionalObjectiveFunction extends AbstractStochasticCachin
   }
 
   public double[][] to2D(double[] weights, double wscale) {
-    for (int i = 0; i < weights.length; i++)
-      weights[i] = weights[i] * wscale;
-
-    return to2D(weights, this.labelIndices, this.map);
+    // scale the copy, not the weights, which the caller is still using
+    double[][] newWeights = to2D(weights, this.labelIndices, this.map);
+    for (double[] newWeight : newWeights) {
+      ArrayMath.multiplyInPlace(newWeight, wscale);
+    }
+    return newWeights;
   }
 
   public static double[] to1D(double[][] weights, int domainDimension) {
@@ -140,7 +177,7 @@ public class CRFLogConditionalObjectiveFunction extends AbstractStochasticCachin
     return to1D(weights, domainDimension());
   }
 
-  public int[][] getWeightIndices()
+  public synchronized int[][] getWeightIndices()
   {
     if (weightIndices == null) {
       weightIndices = new int[map.length][];
@@ -165,14 +202,19 @@ public class CRFLogConditionalObjectiveFunction extends AbstractStochasticCachin
     return d;
   }
 
+  /** Returns the features of the document, docData[tokenIndex][][] */
+  private int[][][] docData(int docIndex) {
+    return dataFile != null ? dataFile.document(docIndex) : data[docIndex];
+  }
+
   private void empiricalCounts(double[][] eHat) {
-    for (int m = 0; m < data.length; m++) {
+    for (int m = 0; m < docLengths.length; m++) {
       empiricalCountsForADoc(eHat, m);
     }
   }
       
   private void empiricalCountsForADoc(double[][] eHat, int docIndex) {
-    int[][][] docData = data[docIndex];
+    int[][][] docData = docData(docIndex);
     int[] docLabels = labels[docIndex];
     int[] windowLabels = new int[window];
     Arrays.fill(windowLabels, classIndex.indexOf(backgroundSymbol));
@@ -221,16 +263,40 @@ public class CRFLogConditionalObjectiveFunction extends AbstractStochasticCachin
     return new LinearCliquePotentialFunction(weights);
   }
 
+  /**
+   * Returns the clique potential function of the weights x scaled by xscale,
+   * which reads x as it goes rather than copying it.
+   */
+  private CliquePotentialFunction getCliquePotentialFunction(final double[] x, final double xscale) {
+    final int[][] wis = getWeightIndices();
+    return new CliquePotentialFunction() {
+      @Override
+      public double computeCliquePotential(int cliqueSize, int labelIndex, int[] cliqueFeatures, double... featureVal) {
+        double output = 0.0;
+        for (int m = 0; m < cliqueFeatures.length; m++) {
+          double dotProd = x[wis[cliqueFeatures[m]][labelIndex]] * xscale;
+          if (featureVal != null)
+            dotProd *= featureVal[m];
+          output += dotProd;
+        }
+        return output;
+      }
+    };
+  }
+
   private double expectedCountsAndValueForADoc(double[][] weights, double[][] E, int docIndex, boolean skipExpectedCountCal) {
+    return expectedCountsAndValueForADoc(new LinearCliquePotentialFunction(weights), E, docIndex, skipExpectedCountCal);
+  }
+
+  private double expectedCountsAndValueForADoc(CliquePotentialFunction cliquePotentialFunc, double[][] E, int docIndex, boolean skipExpectedCountCal) {
     double prob = 0;
-    int[][][] docData = data[docIndex];
+    int[][][] docData = docData(docIndex);
     int[] docLabels = labels[docIndex];
 
     double[][][] featureVal3DArr = null;
     if (featureVal != null)
       featureVal3DArr = featureVal[docIndex];
 
-    CliquePotentialFunction cliquePotentialFunc = new LinearCliquePotentialFunction(weights);
     // make a clique tree for this document
     CRFCliqueTree cliqueTree = CRFCliqueTree.getCalibratedCliqueTree(docData, labelIndices, numClasses, classIndex, backgroundSymbol, cliquePotentialFunc, featureVal3DArr);
 
@@ -289,17 +355,29 @@ public class CRFLogConditionalObjectiveFunction extends AbstractStochasticCachin
   @Override
   public void calculate(double... x) {
 
-    double prob = 0.0; // the log prob of the sequence given the model, which is the negation of value at this point
-    double[][] weights = to2D(x);
+    final double[][] weights = to2D(x);
 
     // the expectations over counts
     // first index is feature index, second index is of possible labeling
     double[][] E = empty2D();
 
-    // iterate over all the documents
-    for (int m = 0; m < data.length; m++) {
-      prob += expectedCountsAndValueForADoc(weights, E, m);
-    }
+    // iterate over all the documents, on multiThreadGrad threads
+    DocumentBlockCalculator<double[][]> calculator = new DocumentBlockCalculator<double[][]>() {
+      @Override
+      double[][] emptyExpectations() {
+        return empty2D();
+      }
+      @Override
+      double expectedCountsAndValueForADoc(double[][] E, int docIndex) {
+        return CRFLogConditionalObjectiveFunction.this.expectedCountsAndValueForADoc(weights, E, docIndex);
+      }
+      @Override
+      void addExpectations(double[][] to, double[][] from) {
+        addInPlace(to, from);
+      }
+    };
+    // the log prob of the sequence given the model, which is the negation of value at this point
+    double prob = calculator.calculate(docLengths, multiThreadGrad, E);
 
     if (Double.isNaN(prob)) { // shouldn't be the case
       throw new RuntimeException("Got NaN for prob in CRFLogConditionalObjectiveFunction.calculate()" +
@@ -366,7 +444,7 @@ public class CRFLogConditionalObjectiveFunction extends AbstractStochasticCachin
 
   @Override
   public int dataDimension(){
-    return data.length;
+    return docLengths.length;
   }
 
 
@@ -406,17 +484,12 @@ public class CRFLogConditionalObjectiveFunction extends AbstractStochasticCachin
     applyPrior(x, batchScale);
   }
 
-  // re-inititalization is faster than Arrays.fill(arr, 0)
-  private void clearUpdateEs() {
-    for (int i = 0; i < eHat4Update.length; i++)
-      eHat4Update[i] = new double[eHat4Update[i].length];
-    for (int i = 0; i < e4Update.length; i++)
-      e4Update[i] = new double[e4Update[i].length];
-  }
-
   /**
    * Performs stochastic update of weights x (scaled by xscale) based
    * on samples indexed by batch.
+   * Only the weights of the features in the batch are read or changed, and
+   * all the other state is local to the thread, so several threads may update
+   * the same x at once, as {@link edu.stanford.nlp.optimization.HogwildMinimizer} does.
    * NOTE: This function does not do regularization (regularization is done by the minimizer).
    *
    * @param x - unscaled weights
@@ -428,64 +501,45 @@ public class CRFLogConditionalObjectiveFunction extends AbstractStochasticCachin
   @Override
   public double calculateStochasticUpdate(double[] x, double xscale, int[] batch, double gscale) {
     double prob = 0.0; // the log prob of the sequence given the model, which is the negation of value at this point
-    // int[][] wis = getWeightIndices();
-    double[][] weights = to2D(x, xscale);
-
-    if (eHat4Update == null) {
-      eHat4Update = empty2D();
-      e4Update = new double[eHat4Update.length][];
-      for (int i = 0; i < e4Update.length; i++)
-        e4Update[i] = new double[eHat4Update[i].length];
-    } else {
-      clearUpdateEs();
-    }
+    int[][] wis = getWeightIndices();
+    CliquePotentialFunction cliquePotentialFunc = getCliquePotentialFunction(x, xscale);
+    double[][][] es = updateEs.get();
+    double[][] eHat4Update = es[0];
+    double[][] e4Update = es[1];
 
     // Adjust weight by -gscale*gradient
     // gradient is expected count - empirical count
     // so we adjust by + gscale(empirical count - expected count)
 
-    // iterate over all the documents
+    // iterate over all the documents, counting at the weights before the update
     for (int ind : batch) {
-      // clearUpdateEs();
-
       empiricalCountsForADoc(eHat4Update, ind);
-      prob += expectedCountsAndValueForADoc(weights, e4Update, ind);
-
-      /* the commented out code below is to iterate over the batch docs instead of iterating over all
-         parameters at the end, which is more efficient; but it would also require us to clearUpdateEs()
-         for each document, which is likely to out-weight the cost of iterating over params once at the end
-      
-      for (int i = 0; i < data[ind].length; i++) {
-        // for each possible clique at this position
-        for (int j = 0; j < data[ind][i].length; j++) {
-          Index labelIndex = labelIndices.get(j);
-          // for each possible labeling for that clique
-          for (int k = 0; k < labelIndex.size(); k++) {
-            for (int n = 0; n < data[ind][i][j].length; n++) {
-              // Adjust weight by (eHat-e)*gscale (empirical count minus expected count scaled)
-              int fIndex = docData[i][j][n];
-              x[wis[fIndex][k]] += (eHat4Update[fIndex][k] - e4Update[fIndex][k]) * gscale;
-            }
-          }
-        }
-      }
-      */
+      prob += expectedCountsAndValueForADoc(cliquePotentialFunc, e4Update, ind, false);
     }
 
     if (Double.isNaN(prob)) { // shouldn't be the case
       throw new RuntimeException("Got NaN for prob in CRFLogConditionalObjectiveFunction.calculate()");
     }
 
-    value = -prob;
-
-    int index = 0;
-    for (int i = 0; i < e4Update.length; i++) {
-      for (int j = 0; j < e4Update[i].length; j++) {
-        x[index++] += (eHat4Update[i][j] - e4Update[i][j]) * gscale;
+    // then update only the features of the documents, setting their counts back to zero as we go
+    for (int ind : batch) {
+      for (int[][] position : docData(ind)) {
+        for (int[] cliqueFeatures : position) {
+          for (int fIndex : cliqueFeatures) {
+            double[] eHatF = eHat4Update[fIndex];
+            double[] eF = e4Update[fIndex];
+            int[] wisF = wis[fIndex];
+            for (int k = 0; k < eF.length; k++) {
+              x[wisF[k]] += (eHatF[k] - eF[k]) * gscale;
+            }
+            Arrays.fill(eHatF, 0.0);
+            Arrays.fill(eF, 0.0);
+          }
+        }
       }
     }
-     
-    return value;
+
+    return -prob;
   }
 
   /**
@@ -516,4 +570,73 @@ public class CRFLogConditionalObjectiveFunction extends AbstractStochasticCachin
     value = -prob;
     return value;
   }
+
+  /**
+   * Trains a CRF on random documents with {@link QNMinimizer} at 1, 4 and 16
+   * gradient threads, reporting the time each takes and how far its weights
+   * are from those trained on one thread.
+   * Usage: CRFLogConditionalObjectiveFunction [numDocs [numFeatures]]
+   */
+  public static void main(String[] args) {
+    int numDocs = args.length > 0 ? Integer.parseInt(args[0]) : 2000;
+    int numFeatures = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+    int numClasses = 5;
+    Index<String> classIndex = new HashIndex<>();
+    for (int c = 0; c < numClasses; c++) {
+      classIndex.add("C" + c);
+    }
+    List<Index<CRFLabel>> labelIndices = new ArrayList<>();
+    for (int size = 1; size <= 2; size++) {
+      Index<CRFLabel> labelIndex = new HashIndex<>();
+      for (int label = 0; label < (size == 1 ? numClasses : numClasses * numClasses); label++) {
+        labelIndex.add(size == 1 ? new CRFLabel(label) : new CRFLabel(label / numClasses, label % numClasses));
+      }
+      labelIndices.add(labelIndex);
+    }
+    // the first tenth of the features are edge features
+    int[] map = new int[numFeatures];
+    for (int f = 0; f < numFeatures; f++) {
+      map[f] = f < numFeatures / 10 ? 1 : 0;
+    }
+    // documents of 5 to 40 tokens, whose labels depend on their node features
+    Random random = new Random(1);
+    int[][][][] data = new int[numDocs][][][];
+    int[][] labels = new int[numDocs][];
+    for (int m = 0; m < numDocs; m++) {
+      int length = 5 + random.nextInt(36);
+      data[m] = new int[length][2][];
+      labels[m] = new int[length];
+      for (int i = 0; i < length; i++) {
+        int[] nodeFeatures = new int[8];
+        for (int n = 0; n < nodeFeatures.length; n++) {
+          nodeFeatures[n] = numFeatures / 10 + random.nextInt(numFeatures - numFeatures / 10);
+        }
+        data[m][i][0] = nodeFeatures;
+        data[m][i][1] = new int[] { random.nextInt(numFeatures / 10) };
+        labels[m][i] = random.nextInt(4) == 0 ? random.nextInt(numClasses) : nodeFeatures[0] % numClasses;
+      }
+    }
+
+    double[] singleThreaded = null;
+    for (int threads : new int[] { 1, 4, 16 }) {
+      CRFLogConditionalObjectiveFunction func = new CRFLogConditionalObjectiveFunction(data, labels, 2, classIndex,
+          labelIndices, map, "QUADRATIC", "C0", 1.0, null, threads);
+      QNMinimizer minimizer = new QNMinimizer(25);
+      minimizer.shutUp();
+      Timing timing = new Timing();
+      double[] weights = minimizer.minimize(func, 1e-4, func.initial());
+      long millis = timing.stop();
+      double maxDifference = 0.0;
+      if (singleThreaded == null) {
+        singleThreaded = weights;
+      } else {
+        for (int i = 0; i < weights.length; i++) {
+          maxDifference = Math.max(maxDifference, Math.abs(weights[i] - singleThreaded[i]));
+        }
+      }
+      System.err.printf("%2d threads: trained in %.2f sec., value %.4f, max weight difference from 1 thread %.2e%n",
+          threads, millis / 1000.0, func.valueAt(weights), maxDifference);
+    }
+  }
+
 }
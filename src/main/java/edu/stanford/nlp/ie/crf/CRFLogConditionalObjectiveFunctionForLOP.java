@@ -3,6 +3,7 @@ package edu.stanford.nlp.ie.crf;
 import edu.stanford.nlp.math.ArrayMath;
 import edu.stanford.nlp.optimization.AbstractCachingDiffFunction;
 import edu.stanford.nlp.util.Index;
+import edu.stanford.nlp.util.Pair;
 
 import java.util.*;
 
@@ -34,6 +35,8 @@ public class CRFLogConditionalObjectiveFunctionForLOP extends AbstractCachingDif
   int numLopExpert;
   boolean backpropTraining;
   int domainDimension = -1;
+  /** The number of threads to compute the value and gradient on */
+  int multiThreadGrad = 1;
 
   String crfType = "maxent";
   String backgroundSymbol;
@@ -43,6 +46,14 @@ public class CRFLogConditionalObjectiveFunctionForLOP extends AbstractCachingDif
   CRFLogConditionalObjectiveFunctionForLOP(int[][][][] data, int[][] labels, double[][] lopExpertWeights, int window,
       Index<String> classIndex, List<Index<CRFLabel>> labelIndices, int[] map, String backgroundSymbol, int numLopExpert,
       List<Set<Integer>> featureIndicesSetArray, List<List<Integer>> featureIndicesListArray, boolean backpropTraining) {
+    this(data, labels, lopExpertWeights, window, classIndex, labelIndices, map, backgroundSymbol, numLopExpert,
+        featureIndicesSetArray, featureIndicesListArray, backpropTraining, 1);
+  }
+
+  CRFLogConditionalObjectiveFunctionForLOP(int[][][][] data, int[][] labels, double[][] lopExpertWeights, int window,
+      Index<String> classIndex, List<Index<CRFLabel>> labelIndices, int[] map, String backgroundSymbol, int numLopExpert,
+      List<Set<Integer>> featureIndicesSetArray, List<List<Integer>> featureIndicesListArray, boolean backpropTraining,
+      int multiThreadGrad) {
     this.window = window;
     this.classIndex = classIndex;
     this.numClasses = classIndex.size();
@@ -56,6 +67,7 @@ public class CRFLogConditionalObjectiveFunctionForLOP extends AbstractCachingDif
     this.featureIndicesSetArray = featureIndicesSetArray;
     this.featureIndicesListArray = featureIndicesListArray;
     this.backpropTraining = backpropTraining;
+    this.multiThreadGrad = multiThreadGrad;
     initialize2DWeights();
     if (backpropTraining) {
       computeEHat();
@@ -305,6 +317,80 @@ public class CRFLogConditionalObjectiveFunctionForLOP extends AbstractCachingDif
     return new LinearCliquePotentialFunction(combinedWeights2D);
   }
 
+  /**
+   * Adds the expected counts of document m to E and eScales, and returns its log probability.
+   */
+  private double expectedCountsAndValueForADoc(double[][] combinedWeights2D, double[] scales, double[][][] E, double[] eScales, int m) {
+    double prob = 0.0;
+    int[][][] docData = data[m];
+    int[] docLabels = labels[m];
+    double[][][][] sumOfELPm = sumOfExpectedLogPotential[m]; // sumOfExpectedLogPotential[m][i][j][lopIter][k] m-docNo;i-position;j-cliqueNo;k-label 
+
+    // make a clique tree for this document
+    CliquePotentialFunction cliquePotentialFunc = new LinearCliquePotentialFunction(combinedWeights2D);
+    CRFCliqueTree cliqueTree = CRFCliqueTree.getCalibratedCliqueTree(docData, labelIndices, numClasses, classIndex, backgroundSymbol, cliquePotentialFunc, null);
+
+    // compute the log probability of the document given the model with the parameters x
+    int[] given = new int[window - 1];
+    Arrays.fill(given, classIndex.indexOf(backgroundSymbol));
+    if (docLabels.length > docData.length) { // only true for self-training
+      // fill the given array with the extra docLabels
+      System.arraycopy(docLabels, 0, given, 0, given.length);
+      // shift the docLabels array left
+      int[] newDocLabels = new int[docData.length];
+      System.arraycopy(docLabels, docLabels.length-newDocLabels.length, newDocLabels, 0, newDocLabels.length);
+      docLabels = newDocLabels;
+    }
+    // iterate over the positions in this document
+    for (int i = 0; i < docData.length; i++) {
+      int label = docLabels[i];
+      double p = cliqueTree.condLogProbGivenPrevious(i, label, given);
+      if (VERBOSE) {
+        System.err.println("P(" + label + '|' + ArrayMath.toString(given) + ")=" + p);
+      }
+      prob += p;
+      System.arraycopy(given, 1, given, 0, given.length - 1);
+      given[given.length - 1] = label;
+    }
+
+    // compute the expected counts for this document, which we will need to compute the derivative
+    // iterate over the positions in this document
+    for (int i = 0; i < docData.length; i++) {
+      // for each possible clique at this position
+      double[][][] sumOfELPmi = sumOfELPm[i];
+      for (int j = 0; j < docData[i].length; j++) {
+        double[][] sumOfELPmij = sumOfELPmi[j];
+        Index<CRFLabel> labelIndex = labelIndices.get(j);
+        // for each possible labeling for that clique
+        for (int l = 0; l < labelIndex.size(); l++) {
+          int[] label = labelIndex.get(l).getLabel();
+          double p = cliqueTree.prob(i, label); // probability of these labels occurring in this clique with these features
+          for (int lopIter = 0; lopIter < numLopExpert; lopIter++) {
+            Set<Integer> indicesSet = featureIndicesSetArray.get(lopIter);
+            double scale = scales[lopIter];
+            double expected = sumOfELPmij[lopIter][l];
+            for (int innerLopIter = 0; innerLopIter < numLopExpert; innerLopIter++) {
+              expected -= scales[innerLopIter] * sumOfELPmij[innerLopIter][l];
+            }
+            expected *= scale;
+            eScales[lopIter] += p * expected;
+
+            double[][] eOfIter = E[lopIter];
+            if (backpropTraining) {
+              for (int k = 0; k < docData[i][j].length; k++) { // k iterates over features
+                int featureIdx = docData[i][j][k];
+                if (indicesSet.contains(featureIdx)) {
+                  eOfIter[featureIdx][l] += p;
+                }
+              }
+            }
+          }
+        }
+      }
+    }
+    return prob;
+  }
+
   // todo [cdm]: Below data[m] --> docData
   /**
    * Calculates both value and partial derivatives at the point x, and save them internally.
@@ -312,88 +398,37 @@ public class CRFLogConditionalObjectiveFunctionForLOP extends AbstractCachingDif
   @Override
   public void calculate(double... x) {
 
-    double prob = 0.0; // the log prob of the sequence given the model, which is the negation of value at this point
     double[][][] E = empty2D();
     double[] eScales = new double[numLopExpert];
 
     double[] rawScales = separateLopScales(x);
-    double[] scales = ArrayMath.softmax(rawScales);
+    final double[] scales = ArrayMath.softmax(rawScales);
     double[][][] learnedLopExpertWeights2D = lopExpertWeights2D;
     if (backpropTraining) {
       learnedLopExpertWeights2D = separateLopExpertWeights2D(x);
       logPotential(learnedLopExpertWeights2D);
     }
 
-    double[][] combinedWeights2D = combineAndScaleLopWeights2D(numLopExpert, learnedLopExpertWeights2D, scales);
-    // iterate over all the documents
-    for (int m = 0; m < data.length; m++) {
-      int[][][] docData = data[m];
-      int[] docLabels = labels[m];
-      double[][][][] sumOfELPm = sumOfExpectedLogPotential[m]; // sumOfExpectedLogPotential[m][i][j][lopIter][k] m-docNo;i-position;j-cliqueNo;k-label 
-
-      // make a clique tree for this document
-      CliquePotentialFunction cliquePotentialFunc = new LinearCliquePotentialFunction(combinedWeights2D);
-      CRFCliqueTree cliqueTree = CRFCliqueTree.getCalibratedCliqueTree(docData, labelIndices, numClasses, classIndex, backgroundSymbol, cliquePotentialFunc, null);
-
-      // compute the log probability of the document given the model with the parameters x
-      int[] given = new int[window - 1];
-      Arrays.fill(given, classIndex.indexOf(backgroundSymbol));
-      if (docLabels.length > docData.length) { // only true for self-training
-        // fill the given array with the extra docLabels
-        System.arraycopy(docLabels, 0, given, 0, given.length);
-        // shift the docLabels array left
-        int[] newDocLabels = new int[docData.length];
-        System.arraycopy(docLabels, docLabels.length-newDocLabels.length, newDocLabels, 0, newDocLabels.length);
-        docLabels = newDocLabels;
+    final double[][] combinedWeights2D = combineAndScaleLopWeights2D(numLopExpert, learnedLopExpertWeights2D, scales);
+    // iterate over all the documents, on multiThreadGrad threads
+    DocumentBlockCalculator<Pair<double[][][], double[]>> calculator = new DocumentBlockCalculator<Pair<double[][][], double[]>>() {
+      @Override
+      Pair<double[][][], double[]> emptyExpectations() {
+        return new Pair<>(empty2D(), new double[numLopExpert]);
       }
-      // iterate over the positions in this document
-      for (int i = 0; i < docData.length; i++) {
-        int label = docLabels[i];
-        double p = cliqueTree.condLogProbGivenPrevious(i, label, given);
-        if (VERBOSE) {
-          System.err.println("P(" + label + '|' + ArrayMath.toString(given) + ")=" + p);
-        }
-        prob += p;
-        System.arraycopy(given, 1, given, 0, given.length - 1);
-        given[given.length - 1] = label;
+      @Override
+      double expectedCountsAndValueForADoc(Pair<double[][][], double[]> expectations, int docIndex) {
+        return CRFLogConditionalObjectiveFunctionForLOP.this.expectedCountsAndValueForADoc(combinedWeights2D, scales,
+            expectations.first(), expectations.second(), docIndex);
       }
-
-      // compute the expected counts for this document, which we will need to compute the derivative
-      // iterate over the positions in this document
-      for (int i = 0; i < docData.length; i++) {
-        // for each possible clique at this position
-        double[][][] sumOfELPmi = sumOfELPm[i];
-        for (int j = 0; j < docData[i].length; j++) {
-          double[][] sumOfELPmij = sumOfELPmi[j];
-          Index<CRFLabel> labelIndex = labelIndices.get(j);
-          // for each possible labeling for that clique
-          for (int l = 0; l < labelIndex.size(); l++) {
-            int[] label = labelIndex.get(l).getLabel();
-            double p = cliqueTree.prob(i, label); // probability of these labels occurring in this clique with these features
-            for (int lopIter = 0; lopIter < numLopExpert; lopIter++) {
-              Set<Integer> indicesSet = featureIndicesSetArray.get(lopIter);
-              double scale = scales[lopIter];
-              double expected = sumOfELPmij[lopIter][l];
-              for (int innerLopIter = 0; innerLopIter < numLopExpert; innerLopIter++) {
-                expected -= scales[innerLopIter] * sumOfELPmij[innerLopIter][l];
-              }
-              expected *= scale;
-              eScales[lopIter] += p * expected;
-
-              double[][] eOfIter = E[lopIter];
-              if (backpropTraining) {
-                for (int k = 0; k < docData[i][j].length; k++) { // k iterates over features
-                  int featureIdx = docData[i][j][k];
-                  if (indicesSet.contains(featureIdx)) {
-                    eOfIter[featureIdx][l] += p;
-                  }
-                }
-              }
-            }
-          }
-        }
+      @Override
+      void addExpectations(Pair<double[][][], double[]> to, Pair<double[][][], double[]> from) {
+        addInPlace(to.first(), from.first());
+        ArrayMath.pairwiseAddInPlace(to.second(), from.second());
       }
-    }
+    };
+    // the log prob of the sequence given the model, which is the negation of value at this point
+    double prob = calculator.calculate(data, multiThreadGrad, new Pair<>(E, eScales));
 
     if (Double.isNaN(prob)) { // shouldn't be the case
       throw new RuntimeException("Got NaN for prob in CRFLogConditionalObjectiveFunctionForLOP.calculate()");
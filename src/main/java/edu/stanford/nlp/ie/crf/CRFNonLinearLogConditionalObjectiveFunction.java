@@ -333,268 +333,234 @@ public class CRFNonLinearLogConditionalObjectiveFunction extends AbstractCaching
   }
 
   /**
-   * Calculates both value and partial derivatives at the point x, and save them internally.
+   * Adds the expected counts of document m to E, eW and eU, and its empirical
+   * counts to What and Uhat, and returns its log probability.
    */
-  @Override
-  public void calculate(double... x) {
-
-    double prob = 0.0; // the log prob of the sequence given the model, which is the negation of value at this point
-    Triple<double[][], double[][], double[][]> allParams = separateWeights(x);
-    double[][] linearWeights = allParams.first();
-    double[][] W = allParams.second(); // inputLayerWeights 
-    double[][] U = allParams.third(); // outputLayerWeights
-
-    double[][] Y = null;
-    if (flags.softmaxOutputLayer) {
-      Y = new double[U.length][];
-      for (int i = 0; i < U.length; i++) {
-        Y[i] = ArrayMath.softmax(U[i]);
+  private double expectedCountsAndValueForADoc(double[][] linearWeights, double[][] W, double[][] U, double[][] Y,
+      double[][] E, double[][] eW, double[][] eU, double[][] What, double[][] Uhat, int m) {
+    double prob = 0.0;
+    int[][][] docData = data[m];
+    int[] docLabels = labels[m];
+
+    double[][][] featureVal3DArr = null;
+    if (featureVal != null)
+      featureVal3DArr = featureVal[m];
+
+    // make a clique tree for this document
+    CRFCliqueTree cliqueTree = CRFCliqueTree.getCalibratedCliqueTree(docData, labelIndices, numClasses, classIndex,
+      backgroundSymbol, new NonLinearCliquePotentialFunction(linearWeights, W, U, flags), featureVal3DArr);
+
+    // compute the log probability of the document given the model with the parameters x
+    int[] given = new int[window - 1];
+    Arrays.fill(given, classIndex.indexOf(backgroundSymbol));
+    int[] windowLabels = new int[window];
+    Arrays.fill(windowLabels, classIndex.indexOf(backgroundSymbol));
+
+    if (docLabels.length>docData.length) { // only true for self-training
+      // fill the given array with the extra docLabels
+      System.arraycopy(docLabels, 0, given, 0, given.length);
+      System.arraycopy(docLabels, 0, windowLabels, 0, windowLabels.length);
+      // shift the docLabels array left
+      int[] newDocLabels = new int[docData.length];
+      System.arraycopy(docLabels, docLabels.length-newDocLabels.length, newDocLabels, 0, newDocLabels.length);
+      docLabels = newDocLabels;
+    }
+    // iterate over the positions in this document
+    for (int i = 0; i < docData.length; i++) {
+      int label = docLabels[i];
+      double p = cliqueTree.condLogProbGivenPrevious(i, label, given);
+      if (VERBOSE) {
+        System.err.println("P(" + label + '|' + ArrayMath.toString(given) + ")=" + p);
       }
+      prob += p;
+      System.arraycopy(given, 1, given, 0, given.length - 1);
+      given[given.length - 1] = label;
     }
 
-    double[][] What = emptyW();
-    double[][] Uhat = emptyU();
-
-    // the expectations over counts
-    // first index is feature index, second index is of possible labeling
-    double[][] E = empty2D();
-    double[][] eW = emptyW();
-    double[][] eU = emptyU();
-
-    // iterate over all the documents
-    for (int m = 0; m < data.length; m++) {
-      int[][][] docData = data[m];
-      int[] docLabels = labels[m];
-
-      double[][][] featureVal3DArr = null;
-      if (featureVal != null)
-        featureVal3DArr = featureVal[m];
+    // compute the expected counts for this document, which we will need to compute the derivative
+    // iterate over the positions in this document
+    for (int i = 0; i < docData.length; i++) {
+      // for each possible clique at this position
+      System.arraycopy(windowLabels, 1, windowLabels, 0, window - 1);
+      windowLabels[window - 1] = docLabels[i];
+      for (int j = 0; j < docData[i].length; j++) {
+        Index<CRFLabel> labelIndex = labelIndices.get(j);
+        // for each possible labeling for that clique
+        int[] cliqueFeatures = docData[i][j];
+        double[] As = null;
+        double[] fDeriv = null;
+        double[][] yTimesA = null;
+        double[] sumOfYTimesA = null;
+
+        // calculating empirical counts of node features
+        if (j == 0) {
+          double[] featureValArr = null;
+          if (featureVal3DArr != null)
+            featureValArr = featureVal3DArr[i][j];
+          As = NonLinearCliquePotentialFunction.hiddenLayerOutput(W, cliqueFeatures, flags, featureValArr);
+          fDeriv = new double[inputLayerSize];
+          double fD = 0;
+          for (int q = 0; q < inputLayerSize; q++) {
+              fD = useSigmoid ? As[q] * (1 - As[q]) : 1 - As[q] * As[q];
+            fDeriv[q] = fD;
+          }
 
-      // make a clique tree for this document
-      CRFCliqueTree cliqueTree = CRFCliqueTree.getCalibratedCliqueTree(docData, labelIndices, numClasses, classIndex,
-        backgroundSymbol, new NonLinearCliquePotentialFunction(linearWeights, W, U, flags), featureVal3DArr);
+          // calculating yTimesA for softmax
+          if (flags.softmaxOutputLayer) {
+            double val = 0;
 
-      // compute the log probability of the document given the model with the parameters x
-      int[] given = new int[window - 1];
-      Arrays.fill(given, classIndex.indexOf(backgroundSymbol));
-      int[] windowLabels = new int[window];
-      Arrays.fill(windowLabels, classIndex.indexOf(backgroundSymbol));
-
-      if (docLabels.length>docData.length) { // only true for self-training
-        // fill the given array with the extra docLabels
-        System.arraycopy(docLabels, 0, given, 0, given.length);
-        System.arraycopy(docLabels, 0, windowLabels, 0, windowLabels.length);
-        // shift the docLabels array left
-        int[] newDocLabels = new int[docData.length];
-        System.arraycopy(docLabels, docLabels.length-newDocLabels.length, newDocLabels, 0, newDocLabels.length);
-        docLabels = newDocLabels;
-      }
-      // iterate over the positions in this document
-      for (int i = 0; i < docData.length; i++) {
-        int label = docLabels[i];
-        double p = cliqueTree.condLogProbGivenPrevious(i, label, given);
-        if (VERBOSE) {
-          System.err.println("P(" + label + '|' + ArrayMath.toString(given) + ")=" + p);
-        }
-        prob += p;
-        System.arraycopy(given, 1, given, 0, given.length - 1);
-        given[given.length - 1] = label;
-      }
-
-      // compute the expected counts for this document, which we will need to compute the derivative
-      // iterate over the positions in this document
-      for (int i = 0; i < docData.length; i++) {
-        // for each possible clique at this position
-        System.arraycopy(windowLabels, 1, windowLabels, 0, window - 1);
-        windowLabels[window - 1] = docLabels[i];
-        for (int j = 0; j < docData[i].length; j++) {
-          Index<CRFLabel> labelIndex = labelIndices.get(j);
-          // for each possible labeling for that clique
-          int[] cliqueFeatures = docData[i][j];
-          double[] As = null;
-          double[] fDeriv = null;
-          double[][] yTimesA = null;
-          double[] sumOfYTimesA = null;
-
-          // calculating empirical counts of node features
-          if (j == 0) {
-            double[] featureValArr = null;
-            if (featureVal3DArr != null)
-              featureValArr = featureVal3DArr[i][j];
-            As = NonLinearCliquePotentialFunction.hiddenLayerOutput(W, cliqueFeatures, flags, featureValArr);
-            fDeriv = new double[inputLayerSize];
-            double fD = 0;
-            for (int q = 0; q < inputLayerSize; q++) {
-                fD = useSigmoid ? As[q] * (1 - As[q]) : 1 - As[q] * As[q];
-              fDeriv[q] = fD;
+            yTimesA = new double[outputLayerSize][numHiddenUnits];
+            for (int ii = 0; ii < outputLayerSize; ii++) {
+              yTimesA[ii] = new double[numHiddenUnits];
             }
+            sumOfYTimesA = new double[outputLayerSize];
 
-            // calculating yTimesA for softmax
-            if (flags.softmaxOutputLayer) {
-              double val = 0;
-
-              yTimesA = new double[outputLayerSize][numHiddenUnits];
-              for (int ii = 0; ii < outputLayerSize; ii++) {
-                yTimesA[ii] = new double[numHiddenUnits];
-              }
-              sumOfYTimesA = new double[outputLayerSize];
-
-              for (int k = 0; k < outputLayerSize; k++) {
-                double[] Yk = null;
-                  Yk = flags.tieOutputLayer ? Y[0] : Y[k];
-                double sum = 0;
-                for (int q = 0; q < inputLayerSize; q++) {
-                  if (q % outputLayerSize == k) {
-                    int hiddenUnitNo = q / outputLayerSize;
-                    val = As[q] * Yk[hiddenUnitNo];
-                    yTimesA[k][hiddenUnitNo] = val;
-                    sum += val;
-                  }
+            for (int k = 0; k < outputLayerSize; k++) {
+              double[] Yk = null;
+                Yk = flags.tieOutputLayer ? Y[0] : Y[k];
+              double sum = 0;
+              for (int q = 0; q < inputLayerSize; q++) {
+                if (q % outputLayerSize == k) {
+                  int hiddenUnitNo = q / outputLayerSize;
+                  val = As[q] * Yk[hiddenUnitNo];
+                  yTimesA[k][hiddenUnitNo] = val;
+                  sum += val;
                 }
-                sumOfYTimesA[k] = sum;
               }
+              sumOfYTimesA[k] = sum;
             }
+          }
 
-            // calculating Uhat What
-            int[] cliqueLabel = new int[j + 1];
-            System.arraycopy(windowLabels, window - 1 - j, cliqueLabel, 0, j + 1);
-
-            CRFLabel crfLabel = new CRFLabel(cliqueLabel);
-            int givenLabelIndex = labelIndex.indexOf(crfLabel);
-            double[] Uk = null;
-            double[] UhatK = null;
-            double[] Yk = null;
-            double[] yTimesAK = null;
-            double sumOfYTimesAK = 0;
-            if (flags.tieOutputLayer) {
-              Uk = U[0];
-              UhatK = Uhat[0];
-              if (flags.softmaxOutputLayer) {
-                Yk = Y[0];
-              }
-            } else {
-              Uk = U[givenLabelIndex];
-              UhatK = Uhat[givenLabelIndex];
-              if (flags.softmaxOutputLayer) {
-                Yk = Y[givenLabelIndex];
-              }
+          // calculating Uhat What
+          int[] cliqueLabel = new int[j + 1];
+          System.arraycopy(windowLabels, window - 1 - j, cliqueLabel, 0, j + 1);
+
+          CRFLabel crfLabel = new CRFLabel(cliqueLabel);
+          int givenLabelIndex = labelIndex.indexOf(crfLabel);
+          double[] Uk = null;
+          double[] UhatK = null;
+          double[] Yk = null;
+          double[] yTimesAK = null;
+          double sumOfYTimesAK = 0;
+          if (flags.tieOutputLayer) {
+            Uk = U[0];
+            UhatK = Uhat[0];
+            if (flags.softmaxOutputLayer) {
+              Yk = Y[0];
             }
-
+          } else {
+            Uk = U[givenLabelIndex];
+            UhatK = Uhat[givenLabelIndex];
             if (flags.softmaxOutputLayer) {
-              yTimesAK = yTimesA[givenLabelIndex];
-              sumOfYTimesAK = sumOfYTimesA[givenLabelIndex];
+              Yk = Y[givenLabelIndex];
             }
+          }
 
-            for (int k = 0; k < inputLayerSize; k++) {
-              double deltaK = 1;
-              if (flags.sparseOutputLayer || flags.tieOutputLayer) {
-                if (k % outputLayerSize == givenLabelIndex) {
-                  int hiddenUnitNo = k / outputLayerSize;
-                  if (flags.softmaxOutputLayer) {
-                    UhatK[hiddenUnitNo] += yTimesAK[hiddenUnitNo] - Yk[hiddenUnitNo] * sumOfYTimesAK;
-                    deltaK *= Yk[hiddenUnitNo];
-                  } else {
-                    UhatK[hiddenUnitNo] += As[k];
-                    deltaK *= Uk[hiddenUnitNo];
-                  }
-                }
-              } else {
-                UhatK[k] += As[k];
-                if (useOutputLayer) {
-                  deltaK *= Uk[k];
+          if (flags.softmaxOutputLayer) {
+            yTimesAK = yTimesA[givenLabelIndex];
+            sumOfYTimesAK = sumOfYTimesA[givenLabelIndex];
+          }
+
+          for (int k = 0; k < inputLayerSize; k++) {
+            double deltaK = 1;
+            if (flags.sparseOutputLayer || flags.tieOutputLayer) {
+              if (k % outputLayerSize == givenLabelIndex) {
+                int hiddenUnitNo = k / outputLayerSize;
+                if (flags.softmaxOutputLayer) {
+                  UhatK[hiddenUnitNo] += yTimesAK[hiddenUnitNo] - Yk[hiddenUnitNo] * sumOfYTimesAK;
+                  deltaK *= Yk[hiddenUnitNo];
+                } else {
+                  UhatK[hiddenUnitNo] += As[k];
+                  deltaK *= Uk[hiddenUnitNo];
                 }
               }
-              if (useHiddenLayer)
-                deltaK *= fDeriv[k];
+            } else {
+              UhatK[k] += As[k];
               if (useOutputLayer) {
-                if (flags.sparseOutputLayer || flags.tieOutputLayer) {
-                  if (k % outputLayerSize == givenLabelIndex) {
-                    double[] WhatK = What[k];
-                    for (int n = 0; n < cliqueFeatures.length; n++) {
-                      double fVal = 1.0;
-                      if (featureVal3DArr != null)
-                        fVal = featureVal3DArr[i][j][n];
-                      WhatK[cliqueFeatures[n]] += deltaK * fVal;
-                    }
-                  }
-                } else {
+                deltaK *= Uk[k];
+              }
+            }
+            if (useHiddenLayer)
+              deltaK *= fDeriv[k];
+            if (useOutputLayer) {
+              if (flags.sparseOutputLayer || flags.tieOutputLayer) {
+                if (k % outputLayerSize == givenLabelIndex) {
                   double[] WhatK = What[k];
-                  double fVal = 1.0;
                   for (int n = 0; n < cliqueFeatures.length; n++) {
-                    fVal = 1.0;
+                    double fVal = 1.0;
                     if (featureVal3DArr != null)
                       fVal = featureVal3DArr[i][j][n];
                     WhatK[cliqueFeatures[n]] += deltaK * fVal;
                   }
                 }
               } else {
-                if (k == givenLabelIndex) {
-                  double[] WhatK = What[k];
-                  double fVal = 1.0;
-                  for (int n = 0; n < cliqueFeatures.length; n++) {
-                    fVal = 1.0;
-                    if (featureVal3DArr != null)
-                      fVal = featureVal3DArr[i][j][n];
-                    WhatK[cliqueFeatures[n]] += deltaK * fVal;
-                  }
+                double[] WhatK = What[k];
+                double fVal = 1.0;
+                for (int n = 0; n < cliqueFeatures.length; n++) {
+                  fVal = 1.0;
+                  if (featureVal3DArr != null)
+                    fVal = featureVal3DArr[i][j][n];
+                  WhatK[cliqueFeatures[n]] += deltaK * fVal;
+                }
+              }
+            } else {
+              if (k == givenLabelIndex) {
+                double[] WhatK = What[k];
+                double fVal = 1.0;
+                for (int n = 0; n < cliqueFeatures.length; n++) {
+                  fVal = 1.0;
+                  if (featureVal3DArr != null)
+                    fVal = featureVal3DArr[i][j][n];
+                  WhatK[cliqueFeatures[n]] += deltaK * fVal;
                 }
               }
             }
           }
+        }
 
-          // calculate expected count of features
-          for (int k = 0; k < labelIndex.size(); k++) { // labelIndex.size() == numClasses
-            int[] label = labelIndex.get(k).getLabel();
-            double p = cliqueTree.prob(i, label); // probability of these labels occurring in this clique with these features
-            if (j == 0) { // for node features
-              double[] Uk = null;
-              double[] eUK = null;
-              double[] Yk = null;
-              if (flags.tieOutputLayer) {
-                Uk = U[0];
-                eUK = eU[0];
-                if (flags.softmaxOutputLayer) {
-                  Yk = Y[0];
-                }
-              } else {
-                Uk = U[k];
-                eUK = eU[k];
-                if (flags.softmaxOutputLayer) {
-                  Yk = Y[k];
-                }
+        // calculate expected count of features
+        for (int k = 0; k < labelIndex.size(); k++) { // labelIndex.size() == numClasses
+          int[] label = labelIndex.get(k).getLabel();
+          double p = cliqueTree.prob(i, label); // probability of these labels occurring in this clique with these features
+          if (j == 0) { // for node features
+            double[] Uk = null;
+            double[] eUK = null;
+            double[] Yk = null;
+            if (flags.tieOutputLayer) {
+              Uk = U[0];
+              eUK = eU[0];
+              if (flags.softmaxOutputLayer) {
+                Yk = Y[0];
               }
-              if (useOutputLayer) {
-                for (int q = 0; q < inputLayerSize; q++) {
-                  double deltaQ = 1;
-                  if (flags.sparseOutputLayer || flags.tieOutputLayer) {
-                    if (q % outputLayerSize == k) {
-                      int hiddenUnitNo = q / outputLayerSize;
-                      if (flags.softmaxOutputLayer) {
-                        eUK[hiddenUnitNo] += (yTimesA[k][hiddenUnitNo] - Yk[hiddenUnitNo] * sumOfYTimesA[k]) * p;
-                        deltaQ = Yk[hiddenUnitNo];
-                      } else {
-                        eUK[hiddenUnitNo] += As[q] * p;
-                        deltaQ = Uk[hiddenUnitNo];
-                      }
+            } else {
+              Uk = U[k];
+              eUK = eU[k];
+              if (flags.softmaxOutputLayer) {
+                Yk = Y[k];
+              }
+            }
+            if (useOutputLayer) {
+              for (int q = 0; q < inputLayerSize; q++) {
+                double deltaQ = 1;
+                if (flags.sparseOutputLayer || flags.tieOutputLayer) {
+                  if (q % outputLayerSize == k) {
+                    int hiddenUnitNo = q / outputLayerSize;
+                    if (flags.softmaxOutputLayer) {
+                      eUK[hiddenUnitNo] += (yTimesA[k][hiddenUnitNo] - Yk[hiddenUnitNo] * sumOfYTimesA[k]) * p;
+                      deltaQ = Yk[hiddenUnitNo];
+                    } else {
+                      eUK[hiddenUnitNo] += As[q] * p;
+                      deltaQ = Uk[hiddenUnitNo];
                     }
-                  } else {
-                    eUK[q] += As[q] * p;
-                    deltaQ = Uk[q];
                   }
-                  if (useHiddenLayer)
-                    deltaQ *= fDeriv[q];
-                  if (flags.sparseOutputLayer || flags.tieOutputLayer) {
-                    if (q % outputLayerSize == k) {
-                      double[] eWq = eW[q];
-                      double fVal = 1.0;
-                      for (int n = 0; n < cliqueFeatures.length; n++) {
-                        fVal = 1.0;
-                        if (featureVal3DArr != null)
-                          fVal = featureVal3DArr[i][j][n];
-                        eWq[cliqueFeatures[n]] += deltaQ * p * fVal;
-                      }
-                    }
-                  } else {
+                } else {
+                  eUK[q] += As[q] * p;
+                  deltaQ = Uk[q];
+                }
+                if (useHiddenLayer)
+                  deltaQ *= fDeriv[q];
+                if (flags.sparseOutputLayer || flags.tieOutputLayer) {
+                  if (q % outputLayerSize == k) {
                     double[] eWq = eW[q];
                     double fVal = 1.0;
                     for (int n = 0; n < cliqueFeatures.length; n++) {
@@ -604,29 +570,90 @@ public class CRFNonLinearLogConditionalObjectiveFunction extends AbstractCaching
                       eWq[cliqueFeatures[n]] += deltaQ * p * fVal;
                     }
                   }
-                }
-              } else {
-                double deltaK = 1;
-                if (useHiddenLayer)
-                  deltaK *= fDeriv[k];
-                double[] eWK = eW[k];
-                double fVal = 1.0;
-                for (int n = 0; n < cliqueFeatures.length; n++) {
-                  fVal = 1.0;
-                  if (featureVal3DArr != null)
-                    fVal = featureVal3DArr[i][j][n];
-                  eWK[cliqueFeatures[n]] += deltaK * p * fVal;
+                } else {
+                  double[] eWq = eW[q];
+                  double fVal = 1.0;
+                  for (int n = 0; n < cliqueFeatures.length; n++) {
+                    fVal = 1.0;
+                    if (featureVal3DArr != null)
+                      fVal = featureVal3DArr[i][j][n];
+                    eWq[cliqueFeatures[n]] += deltaQ * p * fVal;
+                  }
                 }
               }
-            } else { // for edge features
-                for (int cliqueFeature : cliqueFeatures) {
-                    E[cliqueFeature][k] += p;
-                }
+            } else {
+              double deltaK = 1;
+              if (useHiddenLayer)
+                deltaK *= fDeriv[k];
+              double[] eWK = eW[k];
+              double fVal = 1.0;
+              for (int n = 0; n < cliqueFeatures.length; n++) {
+                fVal = 1.0;
+                if (featureVal3DArr != null)
+                  fVal = featureVal3DArr[i][j][n];
+                eWK[cliqueFeatures[n]] += deltaK * p * fVal;
+              }
             }
+          } else { // for edge features
+              for (int cliqueFeature : cliqueFeatures) {
+                  E[cliqueFeature][k] += p;
+              }
           }
         }
       }
     }
+    return prob;
+  }
+
+  /**
+   * Calculates both value and partial derivatives at the point x, and save them internally.
+   */
+  @Override
+  public void calculate(double... x) {
+
+    Triple<double[][], double[][], double[][]> allParams = separateWeights(x);
+    final double[][] linearWeights = allParams.first();
+    final double[][] W = allParams.second(); // inputLayerWeights 
+    final double[][] U = allParams.third(); // outputLayerWeights
+
+    final double[][] Y;
+    if (flags.softmaxOutputLayer) {
+      Y = new double[U.length][];
+      for (int i = 0; i < U.length; i++) {
+        Y[i] = ArrayMath.softmax(U[i]);
+      }
+    } else {
+      Y = null;
+    }
+
+    double[][] What = emptyW();
+    double[][] Uhat = emptyU();
+
+    // the expectations over counts
+    // first index is feature index, second index is of possible labeling
+    double[][] E = empty2D();
+    double[][] eW = emptyW();
+    double[][] eU = emptyU();
+
+    // iterate over all the documents, on multiThreadGrad threads;
+    // the buffers are E, eW, eU, What and Uhat
+    DocumentBlockCalculator<double[][][]> calculator = new DocumentBlockCalculator<double[][][]>() {
+      @Override
+      double[][][] emptyExpectations() {
+        return new double[][][] { empty2D(), emptyW(), emptyU(), emptyW(), emptyU() };
+      }
+      @Override
+      double expectedCountsAndValueForADoc(double[][][] e, int docIndex) {
+        return CRFNonLinearLogConditionalObjectiveFunction.this.expectedCountsAndValueForADoc(linearWeights, W, U, Y,
+            e[0], e[1], e[2], e[3], e[4], docIndex);
+      }
+      @Override
+      void addExpectations(double[][][] to, double[][][] from) {
+        addInPlace(to, from);
+      }
+    };
+    // the log prob of the sequence given the model, which is the negation of value at this point
+    double prob = calculator.calculate(data, flags.multiThreadGrad, new double[][][] { E, eW, eU, What, Uhat });
 
     if (Double.isNaN(prob)) { // shouldn't be the case
       throw new RuntimeException("Got NaN for prob in CRFNonLinearLogConditionalObjectiveFunction.calculate()");
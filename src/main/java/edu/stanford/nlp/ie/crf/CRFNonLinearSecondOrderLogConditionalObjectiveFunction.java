@@ -352,214 +352,175 @@ public class CRFNonLinearSecondOrderLogConditionalObjectiveFunction extends Abst
 
   // todo [cdm]: Below data[m] --> docData
   /**
-   * Calculates both value and partial derivatives at the point x, and save them internally.
+   * Adds the expected counts of document m to eW4Edge, eU4Edge, eW and eU, and its
+   * empirical counts to What4Edge, Uhat4Edge, What and Uhat, and returns its log probability.
    */
-  @Override
-  public void calculate(double... x) {
-
-    double prob = 0.0; // the log prob of the sequence given the model, which is the negation of value at this point
-    Quadruple<double[][], double[][], double[][], double[][]> allParams = separateWeights(x);
-    double[][] W4Edge = allParams.first(); // inputLayerWeights4Edge
-    double[][] U4Edge = allParams.second(); // outputLayerWeights4Edge
-    double[][] W = allParams.third(); // inputLayerWeights 
-    double[][] U = allParams.fourth(); // outputLayerWeights 
-
-    double[][] Y4Edge = null;
-    double[][] Y = null;
-    if (flags.softmaxOutputLayer) {
-      Y4Edge = new double[U4Edge.length][];
-      for (int i = 0; i < U4Edge.length; i++) {
-        Y4Edge[i] = ArrayMath.softmax(U4Edge[i]);
-      }
-      Y = new double[U.length][];
-      for (int i = 0; i < U.length; i++) {
-        Y[i] = ArrayMath.softmax(U[i]);
+  private double expectedCountsAndValueForADoc(double[][] W4Edge, double[][] U4Edge, double[][] W, double[][] U,
+      double[][] Y4Edge, double[][] Y, double[][] eW4Edge, double[][] eU4Edge, double[][] eW, double[][] eU,
+      double[][] What4Edge, double[][] Uhat4Edge, double[][] What, double[][] Uhat, int m) {
+    double prob = 0.0;
+    int[][][] docData = data[m];
+    int[] docLabels = labels[m];
+
+    // make a clique tree for this document
+    CRFCliqueTree cliqueTree = CRFCliqueTree.getCalibratedCliqueTree(docData, labelIndices, numClasses, classIndex,
+      backgroundSymbol, new NonLinearSecondOrderCliquePotentialFunction(W4Edge, U4Edge, W, U, flags), null);
+
+    // compute the log probability of the document given the model with the parameters x
+    int[] given = new int[window - 1];
+    Arrays.fill(given, classIndex.indexOf(backgroundSymbol));
+    int[] windowLabels = new int[window];
+    Arrays.fill(windowLabels, classIndex.indexOf(backgroundSymbol));
+
+    if (docLabels.length>docData.length) { // only true for self-training
+      // fill the given array with the extra docLabels
+      System.arraycopy(docLabels, 0, given, 0, given.length);
+      System.arraycopy(docLabels, 0, windowLabels, 0, windowLabels.length);
+      // shift the docLabels array left
+      int[] newDocLabels = new int[docData.length];
+      System.arraycopy(docLabels, docLabels.length-newDocLabels.length, newDocLabels, 0, newDocLabels.length);
+      docLabels = newDocLabels;
+    }
+    // iterate over the positions in this document
+    for (int i = 0; i < docData.length; i++) {
+      int label = docLabels[i];
+      double p = cliqueTree.condLogProbGivenPrevious(i, label, given);
+      if (VERBOSE) {
+        System.err.println("P(" + label + '|' + ArrayMath.toString(given) + ")=" + p);
       }
+      prob += p;
+      System.arraycopy(given, 1, given, 0, given.length - 1);
+      given[given.length - 1] = label;
     }
 
-    double[][] What4Edge = emptyW4Edge();
-    double[][] Uhat4Edge = emptyU4Edge();
-    double[][] What = emptyW();
-    double[][] Uhat = emptyU();
-
-    // the expectations over counts
-    // first index is feature index, second index is of possible labeling
-    double[][] eW4Edge = emptyW4Edge();
-    double[][] eU4Edge = emptyU4Edge();
-    double[][] eW = emptyW();
-    double[][] eU = emptyU();
+    // compute the expected counts for this document, which we will need to compute the derivative
+    // iterate over the positions in this document
+    for (int i = 0; i < docData.length; i++) {
+      // for each possible clique at this position
+      System.arraycopy(windowLabels, 1, windowLabels, 0, window - 1);
+      windowLabels[window - 1] = docLabels[i];
+      for (int j = 0; j < docData[i].length; j++) {
+        Index<CRFLabel> labelIndex = labelIndices.get(j);
+        // for each possible labeling for that clique
+        int[] cliqueFeatures = docData[i][j];
+        double[] As = null;
+        double[] fDeriv = null;
+        double[][] yTimesA = null;
+        double[] sumOfYTimesA = null;
+
+        int inputSize, outputSize = -1;
+        if (j == 0) {
+          inputSize = inputLayerSize;
+          outputSize = outputLayerSize;
+          As = NonLinearCliquePotentialFunction.hiddenLayerOutput(W, cliqueFeatures, flags, null);
+        } else {
+          inputSize = inputLayerSize4Edge;
+          outputSize = outputLayerSize4Edge;
+          As = NonLinearCliquePotentialFunction.hiddenLayerOutput(W4Edge, cliqueFeatures, flags, null);
+        }
 
-    // iterate over all the documents
-    for (int m = 0; m < data.length; m++) {
-      int[][][] docData = data[m];
-      int[] docLabels = labels[m];
-
-      // make a clique tree for this document
-      CRFCliqueTree cliqueTree = CRFCliqueTree.getCalibratedCliqueTree(docData, labelIndices, numClasses, classIndex,
-        backgroundSymbol, new NonLinearSecondOrderCliquePotentialFunction(W4Edge, U4Edge, W, U, flags), null);
-
-      // compute the log probability of the document given the model with the parameters x
-      int[] given = new int[window - 1];
-      Arrays.fill(given, classIndex.indexOf(backgroundSymbol));
-      int[] windowLabels = new int[window];
-      Arrays.fill(windowLabels, classIndex.indexOf(backgroundSymbol));
-
-      if (docLabels.length>docData.length) { // only true for self-training
-        // fill the given array with the extra docLabels
-        System.arraycopy(docLabels, 0, given, 0, given.length);
-        System.arraycopy(docLabels, 0, windowLabels, 0, windowLabels.length);
-        // shift the docLabels array left
-        int[] newDocLabels = new int[docData.length];
-        System.arraycopy(docLabels, docLabels.length-newDocLabels.length, newDocLabels, 0, newDocLabels.length);
-        docLabels = newDocLabels;
-      }
-      // iterate over the positions in this document
-      for (int i = 0; i < docData.length; i++) {
-        int label = docLabels[i];
-        double p = cliqueTree.condLogProbGivenPrevious(i, label, given);
-        if (VERBOSE) {
-          System.err.println("P(" + label + '|' + ArrayMath.toString(given) + ")=" + p);
+        fDeriv = new double[inputSize];
+        double fD = 0;
+        for (int q = 0; q < inputSize; q++) {
+            fD = useSigmoid ? As[q] * (1 - As[q]) : 1 - As[q] * As[q];
+          fDeriv[q] = fD;
         }
-        prob += p;
-        System.arraycopy(given, 1, given, 0, given.length - 1);
-        given[given.length - 1] = label;
-      }
 
-      // compute the expected counts for this document, which we will need to compute the derivative
-      // iterate over the positions in this document
-      for (int i = 0; i < docData.length; i++) {
-        // for each possible clique at this position
-        System.arraycopy(windowLabels, 1, windowLabels, 0, window - 1);
-        windowLabels[window - 1] = docLabels[i];
-        for (int j = 0; j < docData[i].length; j++) {
-          Index<CRFLabel> labelIndex = labelIndices.get(j);
-          // for each possible labeling for that clique
-          int[] cliqueFeatures = docData[i][j];
-          double[] As = null;
-          double[] fDeriv = null;
-          double[][] yTimesA = null;
-          double[] sumOfYTimesA = null;
-
-          int inputSize, outputSize = -1;
-          if (j == 0) {
-            inputSize = inputLayerSize;
-            outputSize = outputLayerSize;
-            As = NonLinearCliquePotentialFunction.hiddenLayerOutput(W, cliqueFeatures, flags, null);
-          } else {
-            inputSize = inputLayerSize4Edge;
-            outputSize = outputLayerSize4Edge;
-            As = NonLinearCliquePotentialFunction.hiddenLayerOutput(W4Edge, cliqueFeatures, flags, null);
-          }
+        // calculating yTimesA for softmax
+        if (flags.softmaxOutputLayer) {
+          double val = 0;
 
-          fDeriv = new double[inputSize];
-          double fD = 0;
-          for (int q = 0; q < inputSize; q++) {
-              fD = useSigmoid ? As[q] * (1 - As[q]) : 1 - As[q] * As[q];
-            fDeriv[q] = fD;
+          yTimesA = new double[outputSize][numHiddenUnits];
+          for (int ii = 0; ii < outputSize; ii++) {
+            yTimesA[ii] = new double[numHiddenUnits];
           }
+          sumOfYTimesA = new double[outputSize];
 
-          // calculating yTimesA for softmax
-          if (flags.softmaxOutputLayer) {
-            double val = 0;
-
-            yTimesA = new double[outputSize][numHiddenUnits];
-            for (int ii = 0; ii < outputSize; ii++) {
-              yTimesA[ii] = new double[numHiddenUnits];
+          for (int k = 0; k < outputSize; k++) {
+            double[] Yk = null;
+            if (flags.tieOutputLayer) {
+                Yk = j == 0 ? Y[0] : Y4Edge[0];
+            } else {
+                Yk = j == 0 ? Y[k] : Y4Edge[k];
             }
-            sumOfYTimesA = new double[outputSize];
-
-            for (int k = 0; k < outputSize; k++) {
-              double[] Yk = null;
-              if (flags.tieOutputLayer) {
-                  Yk = j == 0 ? Y[0] : Y4Edge[0];
-              } else {
-                  Yk = j == 0 ? Y[k] : Y4Edge[k];
+            double sum = 0;
+            for (int q = 0; q < inputSize; q++) {
+              if (q % outputSize == k) {
+                int hiddenUnitNo = q / outputSize;
+                val = As[q] * Yk[hiddenUnitNo];
+                yTimesA[k][hiddenUnitNo] = val;
+                sum += val;
               }
-              double sum = 0;
-              for (int q = 0; q < inputSize; q++) {
-                if (q % outputSize == k) {
-                  int hiddenUnitNo = q / outputSize;
-                  val = As[q] * Yk[hiddenUnitNo];
-                  yTimesA[k][hiddenUnitNo] = val;
-                  sum += val;
-                }
-              }
-              sumOfYTimesA[k] = sum;
             }
+            sumOfYTimesA[k] = sum;
           }
+        }
 
-          // calculating Uhat What
-          int[] cliqueLabel = new int[j + 1];
-          System.arraycopy(windowLabels, window - 1 - j, cliqueLabel, 0, j + 1);
+        // calculating Uhat What
+        int[] cliqueLabel = new int[j + 1];
+        System.arraycopy(windowLabels, window - 1 - j, cliqueLabel, 0, j + 1);
 
-          CRFLabel crfLabel = new CRFLabel(cliqueLabel);
-          int givenLabelIndex = labelIndex.indexOf(crfLabel);
-          double[] Uk = null;
-          double[] UhatK = null;
-          double[] Yk = null;
-          double[] yTimesAK = null;
-          double sumOfYTimesAK = 0;
+        CRFLabel crfLabel = new CRFLabel(cliqueLabel);
+        int givenLabelIndex = labelIndex.indexOf(crfLabel);
+        double[] Uk = null;
+        double[] UhatK = null;
+        double[] Yk = null;
+        double[] yTimesAK = null;
+        double sumOfYTimesAK = 0;
 
-          if (flags.tieOutputLayer) {
-            if (j == 0) {
-              Uk = U[0];
-              UhatK = Uhat[0];
-            } else {
-              Uk = U4Edge[0];
-              UhatK = Uhat4Edge[0];
-            }
-            if (flags.softmaxOutputLayer) {
-                Yk = j == 0 ? Y[0] : Y4Edge[0];
-            }
+        if (flags.tieOutputLayer) {
+          if (j == 0) {
+            Uk = U[0];
+            UhatK = Uhat[0];
           } else {
-            if (j == 0) {
-              Uk = U[givenLabelIndex];
-              UhatK = Uhat[givenLabelIndex];
-            } else {
-              Uk = U4Edge[givenLabelIndex];
-              UhatK = Uhat4Edge[givenLabelIndex];
-            }
-            if (flags.softmaxOutputLayer) {
-                Yk = j == 0 ? Y[givenLabelIndex] : Y4Edge[givenLabelIndex];
-            }
+            Uk = U4Edge[0];
+            UhatK = Uhat4Edge[0];
+          }
+          if (flags.softmaxOutputLayer) {
+              Yk = j == 0 ? Y[0] : Y4Edge[0];
+          }
+        } else {
+          if (j == 0) {
+            Uk = U[givenLabelIndex];
+            UhatK = Uhat[givenLabelIndex];
+          } else {
+            Uk = U4Edge[givenLabelIndex];
+            UhatK = Uhat4Edge[givenLabelIndex];
           }
-
           if (flags.softmaxOutputLayer) {
-            yTimesAK = yTimesA[givenLabelIndex];
-            sumOfYTimesAK = sumOfYTimesA[givenLabelIndex];
+              Yk = j == 0 ? Y[givenLabelIndex] : Y4Edge[givenLabelIndex];
           }
+        }
 
-          for (int k = 0; k < inputSize; k++) {
-            double deltaK = 1;
-            if (flags.sparseOutputLayer || flags.tieOutputLayer) {
-              if (k % outputSize == givenLabelIndex) {
-                int hiddenUnitNo = k / outputSize;
-                if (flags.softmaxOutputLayer) {
-                  UhatK[hiddenUnitNo] += yTimesAK[hiddenUnitNo] - Yk[hiddenUnitNo] * sumOfYTimesAK;
-                  deltaK *= Yk[hiddenUnitNo];
-                } else {
-                  UhatK[hiddenUnitNo] += As[k];
-                  deltaK *= Uk[hiddenUnitNo];
-                }
-              }
-            } else {
-              UhatK[k] += As[k];
-              if (useOutputLayer) {
-                deltaK *= Uk[k];
+        if (flags.softmaxOutputLayer) {
+          yTimesAK = yTimesA[givenLabelIndex];
+          sumOfYTimesAK = sumOfYTimesA[givenLabelIndex];
+        }
+
+        for (int k = 0; k < inputSize; k++) {
+          double deltaK = 1;
+          if (flags.sparseOutputLayer || flags.tieOutputLayer) {
+            if (k % outputSize == givenLabelIndex) {
+              int hiddenUnitNo = k / outputSize;
+              if (flags.softmaxOutputLayer) {
+                UhatK[hiddenUnitNo] += yTimesAK[hiddenUnitNo] - Yk[hiddenUnitNo] * sumOfYTimesAK;
+                deltaK *= Yk[hiddenUnitNo];
+              } else {
+                UhatK[hiddenUnitNo] += As[k];
+                deltaK *= Uk[hiddenUnitNo];
               }
             }
-            if (useHiddenLayer)
-              deltaK *= fDeriv[k];
+          } else {
+            UhatK[k] += As[k];
             if (useOutputLayer) {
-              if (flags.sparseOutputLayer || flags.tieOutputLayer) {
-                if (k % outputSize == givenLabelIndex) {
-                  double[] WhatK = null;
-                    WhatK = j == 0 ? What[k] : What4Edge[k];
-                    for (int cliqueFeature : cliqueFeatures) {
-                        WhatK[cliqueFeature] += deltaK;
-                    }
-                }
-              } else {
+              deltaK *= Uk[k];
+            }
+          }
+          if (useHiddenLayer)
+            deltaK *= fDeriv[k];
+          if (useOutputLayer) {
+            if (flags.sparseOutputLayer || flags.tieOutputLayer) {
+              if (k % outputSize == givenLabelIndex) {
                 double[] WhatK = null;
                   WhatK = j == 0 ? What[k] : What4Edge[k];
                   for (int cliqueFeature : cliqueFeatures) {
@@ -567,96 +528,166 @@ public class CRFNonLinearSecondOrderLogConditionalObjectiveFunction extends Abst
                   }
               }
             } else {
-              if (k == givenLabelIndex) {
-                double[] WhatK = null;
-                  WhatK = j == 0 ? What[k] : What4Edge[k];
-                  for (int cliqueFeature : cliqueFeatures) {
-                      WhatK[cliqueFeature] += deltaK;
-                  }
-              }
+              double[] WhatK = null;
+                WhatK = j == 0 ? What[k] : What4Edge[k];
+                for (int cliqueFeature : cliqueFeatures) {
+                    WhatK[cliqueFeature] += deltaK;
+                }
+            }
+          } else {
+            if (k == givenLabelIndex) {
+              double[] WhatK = null;
+                WhatK = j == 0 ? What[k] : What4Edge[k];
+                for (int cliqueFeature : cliqueFeatures) {
+                    WhatK[cliqueFeature] += deltaK;
+                }
             }
           }
-          
-          for (int k = 0; k < labelIndex.size(); k++) { // labelIndex.size() == numClasses
-            int[] label = labelIndex.get(k).getLabel();
-            double p = cliqueTree.prob(i, label); // probability of these labels occurring in this clique with these features
-            double[] Uk2 = null;
-            double[] eUK = null;
-            double[] Yk2 = null;
+        }
+        
+        for (int k = 0; k < labelIndex.size(); k++) { // labelIndex.size() == numClasses
+          int[] label = labelIndex.get(k).getLabel();
+          double p = cliqueTree.prob(i, label); // probability of these labels occurring in this clique with these features
+          double[] Uk2 = null;
+          double[] eUK = null;
+          double[] Yk2 = null;
 
-            if (flags.tieOutputLayer) {
-              if (j == 0) { // for node features
-                Uk2 = U[0];
-                eUK = eU[0];
-              } else {
-                Uk2 = U4Edge[0];
-                eUK = eU4Edge[0];
-              }
-              if (flags.softmaxOutputLayer) {
-                  Yk2 = j == 0 ? Y[0] : Y4Edge[0];
-              }
+          if (flags.tieOutputLayer) {
+            if (j == 0) { // for node features
+              Uk2 = U[0];
+              eUK = eU[0];
             } else {
-              if (j == 0) {
-                Uk2 = U[k];
-                eUK = eU[k];
-              } else {
-                Uk2 = U4Edge[k];
-                eUK = eU4Edge[k];
-              }
-              if (flags.softmaxOutputLayer) {
-                  Yk2 = j == 0 ? Y[k] : Y4Edge[k];
-              }
+              Uk2 = U4Edge[0];
+              eUK = eU4Edge[0];
             }
-            if (useOutputLayer) {
-              for (int q = 0; q < inputSize; q++) {
-                double deltaQ = 1;
-                if (flags.sparseOutputLayer || flags.tieOutputLayer) {
-                  if (q % outputSize == k) {
-                    int hiddenUnitNo = q / outputSize;
-                    if (flags.softmaxOutputLayer) {
-                      eUK[hiddenUnitNo] += (yTimesA[k][hiddenUnitNo] - Yk2[hiddenUnitNo] * sumOfYTimesA[k]) * p;
-                      deltaQ = Yk2[hiddenUnitNo];
-                    } else {
-                      eUK[hiddenUnitNo] += As[q] * p;
-                      deltaQ = Uk2[hiddenUnitNo];
-                    }
+            if (flags.softmaxOutputLayer) {
+                Yk2 = j == 0 ? Y[0] : Y4Edge[0];
+            }
+          } else {
+            if (j == 0) {
+              Uk2 = U[k];
+              eUK = eU[k];
+            } else {
+              Uk2 = U4Edge[k];
+              eUK = eU4Edge[k];
+            }
+            if (flags.softmaxOutputLayer) {
+                Yk2 = j == 0 ? Y[k] : Y4Edge[k];
+            }
+          }
+          if (useOutputLayer) {
+            for (int q = 0; q < inputSize; q++) {
+              double deltaQ = 1;
+              if (flags.sparseOutputLayer || flags.tieOutputLayer) {
+                if (q % outputSize == k) {
+                  int hiddenUnitNo = q / outputSize;
+                  if (flags.softmaxOutputLayer) {
+                    eUK[hiddenUnitNo] += (yTimesA[k][hiddenUnitNo] - Yk2[hiddenUnitNo] * sumOfYTimesA[k]) * p;
+                    deltaQ = Yk2[hiddenUnitNo];
+                  } else {
+                    eUK[hiddenUnitNo] += As[q] * p;
+                    deltaQ = Uk2[hiddenUnitNo];
                   }
-                } else {
-                  eUK[q] += As[q] * p;
-                  deltaQ = Uk2[q];
                 }
-                if (useHiddenLayer)
-                  deltaQ *= fDeriv[q];
-                if (flags.sparseOutputLayer || flags.tieOutputLayer) {
-                  if (q % outputSize == k) {
-                    double[] eWq = null;
-                      eWq = j == 0 ? eW[q] : eW4Edge[q];
-                      for (int cliqueFeature : cliqueFeatures) {
-                          eWq[cliqueFeature] += deltaQ * p;
-                      }
-                  }
-                } else {
+              } else {
+                eUK[q] += As[q] * p;
+                deltaQ = Uk2[q];
+              }
+              if (useHiddenLayer)
+                deltaQ *= fDeriv[q];
+              if (flags.sparseOutputLayer || flags.tieOutputLayer) {
+                if (q % outputSize == k) {
                   double[] eWq = null;
                     eWq = j == 0 ? eW[q] : eW4Edge[q];
                     for (int cliqueFeature : cliqueFeatures) {
                         eWq[cliqueFeature] += deltaQ * p;
                     }
                 }
+              } else {
+                double[] eWq = null;
+                  eWq = j == 0 ? eW[q] : eW4Edge[q];
+                  for (int cliqueFeature : cliqueFeatures) {
+                      eWq[cliqueFeature] += deltaQ * p;
+                  }
               }
-            } else {
-              double deltaK = 1;
-              if (useHiddenLayer)
-                deltaK *= fDeriv[k];
-              double[] eWK = null;
-                eWK = j == 0 ? eW[k] : eW4Edge[k];
-                for (int cliqueFeature : cliqueFeatures) {
-                    eWK[cliqueFeature] += deltaK * p;
-                }
             }
+          } else {
+            double deltaK = 1;
+            if (useHiddenLayer)
+              deltaK *= fDeriv[k];
+            double[] eWK = null;
+              eWK = j == 0 ? eW[k] : eW4Edge[k];
+              for (int cliqueFeature : cliqueFeatures) {
+                  eWK[cliqueFeature] += deltaK * p;
+              }
           }
         }
       }
     }
+    return prob;
+  }
+
+  /**
+   * Calculates both value and partial derivatives at the point x, and save them internally.
+   */
+  @Override
+  public void calculate(double... x) {
+
+    Quadruple<double[][], double[][], double[][], double[][]> allParams = separateWeights(x);
+    final double[][] W4Edge = allParams.first(); // inputLayerWeights4Edge
+    final double[][] U4Edge = allParams.second(); // outputLayerWeights4Edge
+    final double[][] W = allParams.third(); // inputLayerWeights 
+    final double[][] U = allParams.fourth(); // outputLayerWeights 
+
+    final double[][] Y4Edge;
+    final double[][] Y;
+    if (flags.softmaxOutputLayer) {
+      Y4Edge = new double[U4Edge.length][];
+      for (int i = 0; i < U4Edge.length; i++) {
+        Y4Edge[i] = ArrayMath.softmax(U4Edge[i]);
+      }
+      Y = new double[U.length][];
+      for (int i = 0; i < U.length; i++) {
+        Y[i] = ArrayMath.softmax(U[i]);
+      }
+    } else {
+      Y4Edge = null;
+      Y = null;
+    }
+
+    double[][] What4Edge = emptyW4Edge();
+    double[][] Uhat4Edge = emptyU4Edge();
+    double[][] What = emptyW();
+    double[][] Uhat = emptyU();
+
+    // the expectations over counts
+    // first index is feature index, second index is of possible labeling
+    double[][] eW4Edge = emptyW4Edge();
+    double[][] eU4Edge = emptyU4Edge();
+    double[][] eW = emptyW();
+    double[][] eU = emptyU();
+
+    // iterate over all the documents, on multiThreadGrad threads;
+    // the buffers are eW4Edge, eU4Edge, eW, eU, What4Edge, Uhat4Edge, What and Uhat
+    DocumentBlockCalculator<double[][][]> calculator = new DocumentBlockCalculator<double[][][]>() {
+      @Override
+      double[][][] emptyExpectations() {
+        return new double[][][] { emptyW4Edge(), emptyU4Edge(), emptyW(), emptyU(),
+                                  emptyW4Edge(), emptyU4Edge(), emptyW(), emptyU() };
+      }
+      @Override
+      double expectedCountsAndValueForADoc(double[][][] e, int docIndex) {
+        return CRFNonLinearSecondOrderLogConditionalObjectiveFunction.this.expectedCountsAndValueForADoc(W4Edge, U4Edge, W, U,
+            Y4Edge, Y, e[0], e[1], e[2], e[3], e[4], e[5], e[6], e[7], docIndex);
+      }
+      @Override
+      void addExpectations(double[][][] to, double[][][] from) {
+        addInPlace(to, from);
+      }
+    };
+    // the log prob of the sequence given the model, which is the negation of value at this point
+    double prob = calculator.calculate(data, flags.multiThreadGrad,
+        new double[][][] { eW4Edge, eU4Edge, eW, eU, What4Edge, Uhat4Edge, What, Uhat });
 
     if (Double.isNaN(prob)) { // shouldn't be the case
       throw new RuntimeException("Got NaN for prob in CRFNonLinearSecondOrderLogConditionalObjectiveFunction.calculate()");
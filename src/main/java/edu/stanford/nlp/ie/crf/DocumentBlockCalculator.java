@@ -0,0 +1,111 @@
+package edu.stanford.nlp.ie.crf;
+
+import java.util.List;
+
+import edu.stanford.nlp.util.Pair;
+import edu.stanford.nlp.util.concurrent.ContiguousBlocks;
+
+/**
+ * Computes the log probability of the training documents of a CRF objective
+ * function together with their expected feature counts, on several threads.
+ * The documents are split into one contiguous block per thread, with about the
+ * same number of tokens in each (see {@link ContiguousBlocks}), and each block adds
+ * its counts into its own buffers.  The blocks are then added up in order, so the
+ * result depends only on the number of threads and not on how the threads happen
+ * to be scheduled.
+ *
+ * @param <E> The type of the expected count buffers, such as {@code double[][]}
+ */
+abstract class DocumentBlockCalculator<E> {
+
+  /** Makes a set of expected count buffers, all zero */
+  abstract E emptyExpectations();
+
+  /**
+   * Adds the expected counts of the document to the buffers, and returns its
+   * log probability.  Called from several threads at once, each with its own buffers.
+   */
+  abstract double expectedCountsAndValueForADoc(E expectations, int docIndex);
+
+  /** Adds the counts in from to the counts in to */
+  abstract void addExpectations(E to, E from);
+
+  /**
+   * Returns the sum of the log probabilities of the documents, having added
+   * their expected counts to the given buffers.  With one thread or less this
+   * is just a loop over the documents.
+   */
+  double calculate(int[][][][] data, int numThreads, E expectations) {
+    return calculate(docLengths(data), numThreads, expectations);
+  }
+
+  /**
+   * Returns the sum of the log probabilities of the documents, having added
+   * their expected counts to the given buffers, given the number of tokens
+   * in each document.
+   */
+  double calculate(int[] docLengths, int numThreads, final E expectations) {
+    int[] blockStarts = ContiguousBlocks.weightedStarts(docLengths, numThreads);
+    List<Pair<Double, E>> results = ContiguousBlocks.process(blockStarts, new ContiguousBlocks.Job<Pair<Double, E>>() {
+      @Override
+      public Pair<Double, E> process(int block, int start, int end) {
+        // the first block adds straight into the caller's buffers
+        E blockExpectations = block == 0 ? expectations : emptyExpectations();
+        double prob = 0.0;
+        for (int m = start; m < end; m++) {
+          prob += expectedCountsAndValueForADoc(blockExpectations, m);
+        }
+        return new Pair<>(prob, blockExpectations);
+      }
+    });
+
+    double prob = 0.0;
+    for (int block = 0; block < results.size(); block++) {
+      Pair<Double, E> result = results.get(block);
+      prob += result.first();
+      if (block > 0) {
+        addExpectations(expectations, result.second());
+      }
+    }
+    return prob;
+  }
+
+  /** Returns the number of tokens in each document */
+  static int[] docLengths(int[][][][] data) {
+    int[] docLengths = new int[data.length];
+    for (int m = 0; m < data.length; m++) {
+      docLengths[m] = data[m].length;
+    }
+    return docLengths;
+  }
+
+  /** Adds the counts in from to the counts in to */
+  static void addInPlace(double[][] to, double[][] from) {
+    for (int i = 0; i < to.length; i++) {
+      double[] toI = to[i];
+      double[] fromI = from[i];
+      for (int j = 0; j < toI.length; j++) {
+        toI[j] += fromI[j];
+      }
+    }
+  }
+
+  /** Adds the counts in from to the counts in to */
+  static void addInPlace(float[][] to, float[][] from) {
+    for (int i = 0; i < to.length; i++) {
+      float[] toI = to[i];
+      float[] fromI = from[i];
+      for (int j = 0; j < toI.length; j++) {
+        toI[j] += fromI[j];
+      }
+    }
+  }
+
+  /** Adds the counts in from to the counts in to */
+  static void addInPlace(double[][][] to, double[][][] from) {
+    for (int i = 0; i < to.length; i++) {
+      addInPlace(to[i], from[i]);
+    }
+  }
+
+}
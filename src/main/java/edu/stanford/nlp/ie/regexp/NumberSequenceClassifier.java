@@ -12,6 +12,7 @@ import edu.stanford.nlp.time.TimeExpressionExtractorFactory;
 import edu.stanford.nlp.time.Timex;
 import edu.stanford.nlp.util.CoreMap;
 import edu.stanford.nlp.util.PaddedList;
+import edu.stanford.nlp.util.PropertiesUtils;
 import edu.stanford.nlp.util.StringUtils;
 import javolution.text.TextBuilder;
 
@@ -57,6 +58,16 @@ public class NumberSequenceClassifier extends AbstractSequenceClassifier<CoreLab
 
   public static final boolean USE_SUTIME_DEFAULT = TimeExpressionExtractorFactory.DEFAULT_EXTRACTOR_PRESENT;
   public static final String USE_SUTIME_PROPERTY = "ner.useSUTime";
+  /**
+   * Whether to keep the time expressions found by SUTime on each sentence, so that a
+   * TimeAnnotator with the same options later in the pipeline reuses them instead of running SUTime again.
+   * Only set this if such a TimeAnnotator runs.  The stock SUTime rules test the ner tags that NER then changes,
+   * so they are only reused for sentences in which no such tag changed; sharing pays off with rules that do
+   * not test ner.
+   */
+  public static final String SHARE_SUTIME_PROPERTY = "ner.shareSUTime";
+
+  private final boolean shareSUTime;
 
   private final TimeExpressionExtractor timexExtractor;
 
@@ -75,6 +86,7 @@ public class NumberSequenceClassifier extends AbstractSequenceClassifier<CoreLab
                                   boolean useSUTime, Properties sutimeProps) {
     super(props);
     this.useSUTime = useSUTime;
+    this.shareSUTime = PropertiesUtils.getBool(sutimeProps, SHARE_SUTIME_PROPERTY, false);
     if(this.useSUTime) {
       this.timexExtractor = TimeExpressionExtractorFactory.createExtractor();
       this.timexExtractor.init("sutime", sutimeProps);
@@ -127,7 +139,7 @@ public class NumberSequenceClassifier extends AbstractSequenceClassifier<CoreLab
     CoreMap timeSentence = sentence != null ?
         alignSentence(sentence) :
         buildSentenceFromTokens(tokenSequence);
-    List<CoreMap> timeExpressions = runSUTime(timeSentence, document);
+    List<CoreMap> timeExpressions = runSUTime(sentence, timeSentence, document);
     List<CoreMap> numbers = timeSentence.get(CoreAnnotations.NumerizedTokensAnnotation.class);
 
     //
@@ -317,10 +329,12 @@ public class NumberSequenceClassifier extends AbstractSequenceClassifier<CoreLab
 
   /**
    * Runs SUTime and converts its output into NamedEntityTagAnnotations
+   * @param origSentence The sentence being classified (null if classifying a list of tokens);
+   *                     the time expressions are kept on it if they are shared with the TimeAnnotator
    * @param sentence
    * @param document Contains document-level annotations such as DocDateAnnotation
    */
-  private List<CoreMap> runSUTime(CoreMap sentence, CoreMap document) {
+  private List<CoreMap> runSUTime(CoreMap origSentence, CoreMap sentence, CoreMap document) {
     // docDate can be null. In such situations we do not disambiguate relative dates
     String docDate = document != null ? document.get(CoreAnnotations.DocDateAnnotation.class) : null;
 
@@ -331,7 +345,9 @@ public class NumberSequenceClassifier extends AbstractSequenceClassifier<CoreLab
     }
     */
 
-    List<CoreMap> timeExpressions = timexExtractor.extractTimeExpressionCoreMaps(sentence, docDate);
+    List<CoreMap> timeExpressions = (shareSUTime && origSentence != null) ?
+        timexExtractor.extractAndKeepTimeExpressionCoreMaps(origSentence, sentence, docDate) :
+        timexExtractor.extractTimeExpressionCoreMaps(sentence, docDate);
     if(timeExpressions != null){
       if(DEBUG) System.out.println("FOUND TEMPORALS: " + timeExpressions);
     }
@@ -1,14 +1,20 @@
 package edu.stanford.nlp.ie.regexp;
 
 import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
 import java.io.ObjectInputStream;
+import java.io.PrintWriter;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
 import java.util.Set;
 import java.util.Properties;
 
@@ -21,6 +27,8 @@ import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.sequences.DocumentReaderAndWriter;
 import edu.stanford.nlp.util.CoreMap;
+import edu.stanford.nlp.util.Timing;
+import javolution.util.FastMap;
 import javolution.util.FastSet;
 
 /**
@@ -42,6 +50,14 @@ import javolution.util.FastSet;
  * separate regular expression tokens; within tokens \\s should be used instead. Genitives and commas
  * at the end of words should be tokenized in the input file.
  *
+ * Entries whose tokens contain no regular expression metacharacters are compiled into a
+ * token-level Aho-Corasick automaton, so all of their occurrences in a document are found in a
+ * single pass regardless of how many entries the mapping has. The remaining regex entries are
+ * grouped by their first token pattern, and each distinct first pattern is tested once per
+ * distinct word of the document, so a regex entry is only tried at positions where it can start.
+ * Candidate matches are then applied in the same order as before (by entry priority, then left
+ * to right), so the labels produced do not depend on which path found a match.
+ *
  * @author jtibs
  * @author Mihai
  *
@@ -50,8 +66,18 @@ public class RegexNERSequenceClassifier extends AbstractSequenceClassifier<CoreL
     private static final Pattern COMPILE = Pattern.compile("\t");
     private static final Pattern PATTERN = Pattern.compile("\\s+");
     private static final Pattern COMPILE1 = Pattern.compile(",");
+    private static final Pattern REGEX_META = Pattern.compile("[\\\\^$.|?*+()\\[\\]{}]");
     private List<Entry> entries;
 
+  /** Automaton over the literal (non-regex) entries */
+  private TrieNode literalRoot;
+
+  /** Regex entries whose first token is literal, indexed by that token */
+  private Map<String, List<Entry>> regexEntriesByFirstWord;
+
+  /** The other regex entries, grouped by the source of their first token pattern */
+  private Map<String, List<Entry>> regexEntriesByFirstPattern;
+
   /**
    * If true, it overwrites NE labels generated through this regex NER
    * This is necessary because sometimes the RegexNERSequenceClassifier is run successively over the same text (e.g., to overwrite some older annotations)
@@ -78,6 +104,7 @@ public class RegexNERSequenceClassifier extends AbstractSequenceClassifier<CoreL
       validPosPattern = validPosRegex != null && !validPosRegex.isEmpty() ? Pattern.compile(validPosRegex) : null;
     entries = readEntries(mapping, ignoreCase);
     this.ignoreCase = ignoreCase;
+    compileEntries();
     this.overwriteMyLabels = overwriteMyLabels;
       myLabels = new FastSet<>();
     if(this.overwriteMyLabels) {
@@ -89,12 +116,17 @@ public class RegexNERSequenceClassifier extends AbstractSequenceClassifier<CoreL
 
   private static class Entry implements Comparable<Entry> {
     public List<Pattern> regex; // the regex, tokenized by splitting on white space
+    public String[] literal; // the tokens if none of them contains regex syntax, otherwise null
+    public String firstWord; // the first token if it contains no regex syntax, otherwise null
     public String type; // the associated type
     public Set<String> overwritableTypes;
     public double priority;
+    public int rank; // position of this entry in the sorted entry list
 
-    private Entry(List<Pattern> regex, String type, Set<String> overwritableTypes, double priority) {
+    private Entry(List<Pattern> regex, String[] words, String type, Set<String> overwritableTypes, double priority) {
       this.regex = regex;
+      this.literal = Arrays.asList(words).contains(null) ? null : words;
+      this.firstWord = words[0];
       this.type = type.intern();
       this.overwritableTypes = overwritableTypes;
       this.priority = priority;
@@ -111,6 +143,197 @@ public class RegexNERSequenceClassifier extends AbstractSequenceClassifier<CoreL
     }
   }
 
+  /** A state of the token-level Aho-Corasick automaton built from the literal entries */
+  private static class TrieNode {
+    private Map<String, TrieNode> children; // created lazily, most nodes are leaves
+    private List<Entry> entries; // entries whose token sequence ends in this state
+    private TrieNode fail; // longest proper suffix of this state that is also a state
+    private TrieNode output; // nearest state on the fail chain which has entries
+    private final int depth;
+
+    private TrieNode(int depth) {
+      this.depth = depth;
+    }
+
+    private TrieNode child(String word) {
+      return children == null ? null : children.get(word);
+    }
+
+    private TrieNode addChild(String word) {
+      if (children == null) {
+        children = new FastMap<>();
+      }
+      TrieNode child = children.get(word);
+      if (child == null) {
+        child = new TrieNode(depth + 1);
+        children.put(word, child);
+      }
+      return child;
+    }
+  }
+
+  /**
+   * Builds the literal automaton and the first token index over the regex entries.
+   * Must be called after the entries are sorted, since candidates are ordered by rank.
+   */
+  private void compileEntries() {
+    literalRoot = new TrieNode(0);
+    regexEntriesByFirstWord = new FastMap<>();
+    regexEntriesByFirstPattern = new FastMap<>();
+    for (int i = 0; i < entries.size(); i++) {
+      Entry entry = entries.get(i);
+      entry.rank = i;
+      if (entry.literal != null) {
+        TrieNode node = literalRoot;
+        for (String word : entry.literal) {
+          node = node.addChild(word);
+        }
+        if (node.entries == null) {
+          node.entries = new ArrayList<>(1);
+        }
+        node.entries.add(entry);
+      } else if (entry.firstWord != null) {
+        addToIndex(regexEntriesByFirstWord, entry.firstWord, entry);
+      } else {
+        addToIndex(regexEntriesByFirstPattern, entry.regex.get(0).pattern(), entry);
+      }
+    }
+
+    // breadth first, so that the fail state of a node is finished before the node itself
+    Queue<TrieNode> queue = new ArrayDeque<>();
+    literalRoot.fail = literalRoot;
+    if (literalRoot.children != null) {
+      for (TrieNode child : literalRoot.children.values()) {
+        child.fail = literalRoot;
+        queue.add(child);
+      }
+    }
+    while ( ! queue.isEmpty()) {
+      TrieNode node = queue.remove();
+      node.output = node.fail.entries != null ? node.fail : node.fail.output;
+      if (node.children == null) continue;
+      for (Map.Entry<String, TrieNode> edge : node.children.entrySet()) {
+        TrieNode child = edge.getValue();
+        TrieNode fail = node.fail;
+        TrieNode next = fail.child(edge.getKey());
+        while (next == null && fail != literalRoot) {
+          fail = fail.fail;
+          next = fail.child(edge.getKey());
+        }
+        child.fail = next != null ? next : literalRoot;
+        queue.add(child);
+      }
+    }
+  }
+
+  private static void addToIndex(Map<String, List<Entry>> index, String key, Entry entry) {
+    List<Entry> group = index.get(key);
+    if (group == null) {
+      group = new ArrayList<>();
+      index.put(key, group);
+    }
+    group.add(entry);
+  }
+
+  /**
+   * Lowercases ASCII letters only, which is the folding Pattern.CASE_INSENSITIVE does
+   * without UNICODE_CASE, so literal lookups agree with the equivalent regex.
+   */
+  private static String asciiLowerCase(String str) {
+    for (int i = 0; i < str.length(); i++) {
+      char ch = str.charAt(i);
+      if (ch >= 'A' && ch <= 'Z') {
+        char[] chars = str.toCharArray();
+        for (int j = i; j < chars.length; j++) {
+          if (chars[j] >= 'A' && chars[j] <= 'Z') chars[j] += 'a' - 'A';
+        }
+        return new String(chars);
+      }
+    }
+    return str;
+  }
+
+  private static boolean isAscii(String str) {
+    for (int i = 0; i < str.length(); i++) {
+      if (str.charAt(i) > 127) return false;
+    }
+    return true;
+  }
+
+  /**
+   * Finds every position at which some entry could start, as (rank, start) pairs packed into longs.
+   * For literal entries the words are known to match; for regex entries only the first token is.
+   * Literal entries come from the automaton, regex entries from the first word index or, when
+   * their first token is itself a regex, from matching it against each distinct word once.
+   */
+  private long[] findCandidates(List<CoreLabel> document) {
+    long[] candidates = new long[16];
+    int size = 0;
+
+    TrieNode state = literalRoot;
+    for (int i = 0; i < document.size(); i++) {
+      String word = document.get(i).word();
+      if (ignoreCase) word = asciiLowerCase(word);
+      TrieNode next = state.child(word);
+      while (next == null && state != literalRoot) {
+        state = state.fail;
+        next = state.child(word);
+      }
+      state = next != null ? next : literalRoot;
+      for (TrieNode match = state.entries != null ? state : state.output; match != null; match = match.output) {
+        int start = i - match.depth + 1;
+        for (Entry entry : match.entries) {
+          if (size == candidates.length) candidates = Arrays.copyOf(candidates, size * 2);
+          candidates[size++] = ((long) entry.rank << 32) | start;
+        }
+      }
+    }
+
+    if ( ! regexEntriesByFirstWord.isEmpty()) {
+      for (int i = 0; i < document.size(); i++) {
+        String word = document.get(i).word();
+        List<Entry> group = regexEntriesByFirstWord.get(ignoreCase ? asciiLowerCase(word) : word);
+        if (group == null) continue;
+        for (Entry entry : group) {
+          if (i > document.size() - entry.regex.size()) continue;
+          if (size == candidates.length) candidates = Arrays.copyOf(candidates, size * 2);
+          candidates[size++] = ((long) entry.rank << 32) | i;
+        }
+      }
+    }
+
+    if ( ! regexEntriesByFirstPattern.isEmpty()) {
+      // each first token pattern is only matched once against each distinct word
+      Map<String, List<Integer>> positionsByWord = new FastMap<>();
+      for (int i = 0; i < document.size(); i++) {
+        String word = document.get(i).word();
+        List<Integer> positions = positionsByWord.get(word);
+        if (positions == null) {
+          positions = new ArrayList<>();
+          positionsByWord.put(word, positions);
+        }
+        positions.add(i);
+      }
+      for (List<Entry> group : regexEntriesByFirstPattern.values()) {
+        Pattern first = group.get(0).regex.get(0);
+        for (Map.Entry<String, List<Integer>> wordPositions : positionsByWord.entrySet()) {
+          if ( ! first.matcher(wordPositions.getKey()).matches()) continue;
+          for (Entry entry : group) {
+            for (int start : wordPositions.getValue()) {
+              if (start > document.size() - entry.regex.size()) continue;
+              if (size == candidates.length) candidates = Arrays.copyOf(candidates, size * 2);
+              candidates[size++] = ((long) entry.rank << 32) | start;
+            }
+          }
+        }
+      }
+    }
+
+    candidates = Arrays.copyOf(candidates, size);
+    Arrays.sort(candidates);
+    return candidates;
+  }
+
   // TODO: make this a property?
   // ms: but really this should be rewritten from scratch
   //     we should have a language to specify regexes over *tokens*, where each token could be a regular Java regex (over words, POSs, etc.)
@@ -135,24 +358,20 @@ public class RegexNERSequenceClassifier extends AbstractSequenceClassifier<CoreL
 
   @Override
   public List<CoreLabel> classify(List<CoreLabel> document) {
-    for (Entry entry : entries) {
-      int start = 0; // the index of the token from which we begin our search each iteration
-
-      while (true) {
-        // only search the part of the document that we haven't yet considered
-        // System.err.println("REGEX FIND MATCH FOR " + entry.regex.toString());
-        start = findStartIndex(entry, document, start, myLabels);
-        if (start == -1) break; // no match found
-
-        // make sure we annotate only valid POS tags
-        if (containsValidPos(document, start, start + entry.regex.size())) {
-          // annotate each matching token
-          for (int i = start; i < start + entry.regex.size(); i++) {
-            CoreLabel token = document.get(i);
-            token.set(CoreAnnotations.AnswerAnnotation.class, entry.type);
-          }
+    // candidates come sorted by entry rank and then by start, which is the order
+    // in which a scan of the document for each entry in turn would find them
+    for (long candidate : findCandidates(document)) {
+      Entry entry = entries.get((int) (candidate >>> 32));
+      int start = (int) candidate;
+      if ( ! matchesAt(entry, document, start, myLabels)) continue;
+
+      // make sure we annotate only valid POS tags
+      if (containsValidPos(document, start, start + entry.regex.size())) {
+        // annotate each matching token
+        for (int i = start; i < start + entry.regex.size(); i++) {
+          CoreLabel token = document.get(i);
+          token.set(CoreAnnotations.AnswerAnnotation.class, entry.type);
         }
-        start++;
       }
     }
     return document;
@@ -195,6 +414,7 @@ public class RegexNERSequenceClassifier extends AbstractSequenceClassifier<CoreL
         overwritableTypes.add(null);
         double priority = 0;
         List<Pattern> tokens = new ArrayList<>();
+        String[] words = new String[regexes.length];
 
         try {
           if (split.length >= 3)
@@ -202,16 +422,20 @@ public class RegexNERSequenceClassifier extends AbstractSequenceClassifier<CoreL
           if (split.length == 4)
             priority = Double.parseDouble(split[3].trim());
 
-          for (String str : regexes) {
+          for (int i = 0; i < regexes.length; i++) {
+            String str = regexes[i];
             if(ignoreCase) tokens.add(Pattern.compile(str, Pattern.CASE_INSENSITIVE));
             else tokens.add(Pattern.compile(str));
+            if ( ! REGEX_META.matcher(str).find() && ! (ignoreCase && ! isAscii(str))) {
+              words[i] = ignoreCase ? asciiLowerCase(str) : str;
+            }
           }
         } catch(NumberFormatException e) {
           System.err.println("ERROR: Invalid line " + lineCount + " in regexner file " + mapping + ": \"" + line + "\"!");
           throw e;
         }
 
-        entries.add(new Entry(tokens, type, overwritableTypes, priority));
+        entries.add(new Entry(tokens, words, type, overwritableTypes, priority));
       }
       rd.close();
     } catch (IOException e) {
@@ -223,44 +447,93 @@ public class RegexNERSequenceClassifier extends AbstractSequenceClassifier<CoreL
   }
 
   /**
-   * Checks if the entry's regex sequence is contained in the tokenized document, starting the search
-   * from index searchStart. Also requires that each token's current NER-type be overwritable,
+   * Checks if the entry's regex sequence matches the tokenized document at index start.
+   * Also requires that each token's current NER-type be overwritable,
    * and that each token has not yet been Answer-annotated.
+   * The words of literal entries are not rechecked, since the automaton only proposes
+   * starts where they match; for regex entries the first token has already been matched.
    * @param entry
    * @param document
-   * @return on success, the index of the first token in the matching sequence, otherwise -1
+   * @return true if the entry can be applied at start
    */
-  private static int findStartIndex(Entry entry, List<CoreLabel> document, int searchStart, Set<String> myLabels) {
+  private static boolean matchesAt(Entry entry, List<CoreLabel> document, int start, Set<String> myLabels) {
     List<Pattern> regex = entry.regex;
-    for (int start = searchStart; start <= document.size() - regex.size(); start++) {
-      boolean failed = false;
-      for (int i = 0; i < regex.size(); i++) {
-        Pattern pattern = regex.get(i);
-        CoreLabel token = document.get(start + i);
-        String NERType = token.get(CoreAnnotations.NamedEntityTagAnnotation.class);
-        String currentType = token.get(CoreAnnotations.AnswerAnnotation.class);
-
-        if (! pattern.matcher(token.word()).matches() ||
-            currentType != null ||
-            ! (entry.overwritableTypes.contains(NERType) ||
-               myLabels.contains(NERType) ||
-               NERType.equals("O"))) {
-          failed = true;
-          break;
-        }
-      }
-      if(! failed) {
-        //System.err.print("MATCHED REGEX:");
-        //for(int i = start; i < start + regex.size(); i ++) System.err.print(" " + document.get(i).word());
-        //System.err.println();
-        return start;
+    for (int i = 0; i < regex.size(); i++) {
+      CoreLabel token = document.get(start + i);
+      String NERType = token.get(CoreAnnotations.NamedEntityTagAnnotation.class);
+      String currentType = token.get(CoreAnnotations.AnswerAnnotation.class);
+
+      if ((entry.literal == null && i > 0 && ! regex.get(i).matcher(token.word()).matches()) ||
+          currentType != null ||
+          ! (entry.overwritableTypes.contains(NERType) ||
+             myLabels.contains(NERType) ||
+             NERType.equals("O"))) {
+        return false;
       }
     }
-    return -1;
+    //System.err.print("MATCHED REGEX:");
+    //for(int i = start; i < start + regex.size(); i ++) System.err.print(" " + document.get(i).word());
+    //System.err.println();
+    return true;
   }
 
   @Override
   public List<CoreLabel> classifyWithGlobalInformation(List<CoreLabel> tokenSeq, CoreMap doc, CoreMap sent) {
     return classify(tokenSeq);
   }
+
+  /**
+   * Times classification with synthetic mappings of the given sizes (default 10k, 100k and 1M
+   * entries, one in a hundred of them a regex) over a synthetic document, and prints tokens per second.
+   * Usage: java edu.stanford.nlp.ie.regexp.RegexNERSequenceClassifier [numEntries ...]
+   */
+  public static void main(String[] args) throws IOException {
+    int[] sizes = { 10000, 100000, 1000000 };
+    if (args.length > 0) {
+      sizes = new int[args.length];
+      for (int i = 0; i < args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+    }
+    Random random = new Random(1234);
+    String[] vocabulary = new String[50000];
+    for (int i = 0; i < vocabulary.length; i++) vocabulary[i] = "w" + Integer.toString(i, 36);
+    List<CoreLabel> document = new ArrayList<>();
+    for (int i = 0; i < 20000; i++) {
+      CoreLabel token = new CoreLabel();
+      token.setWord(vocabulary[random.nextInt(vocabulary.length)]);
+      token.setTag("NN");
+      document.add(token);
+    }
+
+    for (int numEntries : sizes) {
+      File mapping = File.createTempFile("regexner", ".tab");
+      mapping.deleteOnExit();
+      PrintWriter pw = new PrintWriter(mapping, "UTF-8");
+      for (int i = 0; i < numEntries; i++) {
+        int length = 1 + random.nextInt(3);
+        for (int j = 0; j < length; j++) {
+          if (j > 0) pw.print(' ');
+          String word = vocabulary[random.nextInt(vocabulary.length)];
+          pw.print(i % 100 == 0 && j == length - 1 ? word.substring(0, word.length() - 1) + "[a-z0-9]" : word);
+        }
+        pw.println("\tTYPE" + (i % 7) + "\tMISC\t" + (i % 3));
+      }
+      pw.close();
+
+      Timing timing = new Timing();
+      RegexNERSequenceClassifier classifier = new RegexNERSequenceClassifier(mapping.getPath(), false, true, "");
+      long load = timing.report();
+      int iterations = 5;
+      timing.start();
+      for (int iter = 0; iter < iterations; iter++) {
+        for (CoreLabel token : document) {
+          token.remove(CoreAnnotations.AnswerAnnotation.class);
+          token.set(CoreAnnotations.NamedEntityTagAnnotation.class, "O");
+        }
+        classifier.classify(document);
+      }
+      long elapsed = timing.report();
+      System.err.printf("%d entries: loaded in %s s, %.0f tokens/sec%n", numEntries,
+                        Timing.toSecondsString(load), iterations * document.size() * 1000.0 / Math.max(elapsed, 1));
+    }
+  }
 }
@@ -12,6 +12,14 @@ import java.net.InetAddress;
 import java.net.SocketTimeoutException;
 import java.net.URL;
 import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
 import java.util.*;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
@@ -704,6 +712,83 @@ public class IOUtils {
             new FileInputStream(file), encoding));
   }
 
+  /** Files at least this long are memory-mapped by {@link #slurpFileMapped}; shorter ones are read whole into a reused buffer. */
+  private static final int MAP_THRESHOLD = 1 << 20;
+  /**
+   * Mapped files are decoded through a heap buffer of this size, for which decoders have fast array loops.
+   * The bytes of a character split at the end of one pass are kept at the start of the buffer, so later
+   * passes read up to this many bytes less those from the mapped file.
+   */
+  private static final int DECODE_CHUNK = 1 << 16;
+
+  private static final ThreadLocal<byte[]> slurpBytes = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[MAP_THRESHOLD];
+    }
+  };
+
+  private static final ThreadLocal<char[]> slurpChars = new ThreadLocal<char[]>() {
+    @Override
+    protected char[] initialValue() {
+      return new char[MAP_THRESHOLD];
+    }
+  };
+
+  /**
+   * Returns all the text in the given File, like {@link #slurpFile(File, String)}.
+   * The bytes are decoded straight into a char array rather than through a Reader and a growing buffer:
+   * large files are memory-mapped and decoded a chunk at a time, and small ones are read whole into
+   * buffers reused by the calling thread, so the only per-file copy of the text is the String itself.
+   * Malformed input is replaced, as an InputStreamReader would do.
+   *
+   * @param file The file to read from
+   * @param encoding The character encoding to assume.  This may be null, and
+   *       the platform default character encoding is used.
+   */
+  public static String slurpFileMapped(File file, String encoding) throws IOException {
+    Charset charset = encoding == null ? Charset.defaultCharset() : Charset.forName(encoding);
+    CharsetDecoder decoder = charset.newDecoder()
+        .onMalformedInput(CodingErrorAction.REPLACE)
+        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    try (FileInputStream in = new FileInputStream(file)) {
+      FileChannel channel = in.getChannel();
+      long size = channel.size();
+      long maxChars = (long) (size * (double) decoder.maxCharsPerByte()) + 1;
+      if (maxChars >= Integer.MAX_VALUE) {
+        return slurpFile(file, encoding);
+      }
+      char[] chars = maxChars <= MAP_THRESHOLD ? slurpChars.get() : new char[(int) maxChars];
+      CharBuffer out = CharBuffer.wrap(chars);
+      CoderResult result;
+      if (size < MAP_THRESHOLD) {
+        byte[] bytes = slurpBytes.get();
+        int length = 0;
+        for (int read; length < bytes.length && (read = in.read(bytes, length, bytes.length - length)) >= 0; ) {
+          length += read;
+        }
+        result = decoder.decode(ByteBuffer.wrap(bytes, 0, length), out, true);
+      } else {
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        ByteBuffer chunk = ByteBuffer.wrap(slurpBytes.get(), 0, DECODE_CHUNK);
+        do {
+          int n = Math.min(chunk.remaining(), mapped.remaining());
+          mapped.get(chunk.array(), chunk.position(), n);
+          chunk.position(chunk.position() + n);
+          chunk.flip();
+          result = decoder.decode(chunk, out, !mapped.hasRemaining());
+          // moves the bytes left undecoded, at most a partial character, to the front
+          chunk.compact();
+        } while (mapped.hasRemaining() && !result.isOverflow());
+      }
+      if (result.isOverflow() || decoder.flush(out).isOverflow()) {
+        // cannot happen given maxCharsPerByte, but don't lose text if a charset misreports it
+        return slurpFile(file, encoding);
+      }
+      return new String(chars, 0, out.position());
+    }
+  }
+
   /**
    * Returns all the text in the given File.
    */
@@ -103,6 +103,45 @@ public class AnnotationLookup {
     return null;
   }
 
+  /**
+   * Keys with fixed slots, in slot order.  These are set on (almost) every token and read
+   * in inner loops, so {@link edu.stanford.nlp.util.ArrayCoreMap} keeps their values in fields.
+   */
+  private static final Class<?>[] HOT_KEYS = {
+    CoreAnnotations.TextAnnotation.class,
+    CoreAnnotations.ValueAnnotation.class,
+    CoreAnnotations.PartOfSpeechAnnotation.class,
+    CoreAnnotations.LemmaAnnotation.class,
+    CoreAnnotations.NamedEntityTagAnnotation.class,
+    CoreAnnotations.CharacterOffsetBeginAnnotation.class,
+    CoreAnnotations.CharacterOffsetEndAnnotation.class,
+    CoreAnnotations.IndexAnnotation.class,
+  };
+
+  /** Number of keys with fixed slots (slots 0 to {@code HOT_SLOTS-1}) */
+  public static final int HOT_SLOTS = HOT_KEYS.length;
+
+  /**
+   * Returns the slot id (0 to {@link #HOT_SLOTS}-1) of the key if it is one of
+   * the frequently used keys, -1 otherwise.
+   */
+  public static int getHotSlot(Class<?> key) {
+    Class<?>[] hotKeys = HOT_KEYS;
+    for (int slot = 0; slot < hotKeys.length; slot++) {
+      if (hotKeys[slot] == key) {
+        return slot;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Returns the key with the given slot id (only for the fixed slots)
+   */
+  public static Class<?> getHotKey(int slot) {
+    return HOT_KEYS[slot];
+  }
+
   private static Map<Class<CoreAnnotation<?>>,Class<?>> valueCache = new FastMap<>();
 
     /**
@@ -34,6 +34,17 @@ import java.util.logging.Logger;
  * The different stages are numbered and are applied in numeric order.
  * </p>
  *
+ * <p>Token pattern rules of a stage share a {@link SequencePatternTrigger}, which looks at the first
+ * token each rule can match and finds the positions where each rule can start in a single scan of
+ * the tokens, so a rule's pattern is only run from those positions.  This can be turned off by
+ * setting {@code ENV.defaults["stage.prefilter"] = FALSE} before the rules of the stage.</p>
+ *
+ * <p>Node patterns that only test token annotations (e.g. {@code { numcomptype:NUMBER }}) are shared by
+ * all rules compiled in one {@link Env}, and while the rules of a stage are matched against a sentence
+ * the result of each such node pattern on each token is remembered (see {@link NodePatternMemo}),
+ * so it is evaluated once no matter how many rules or match branches test it.  This can be turned off by
+ * setting {@code ENV.defaults["stage.memoize"] = FALSE}.</p>
+ *
  * @author Angel Chang
  * @see SequenceMatchRules
  */
@@ -45,6 +56,10 @@ public class CoreMapExpressionExtractor<T extends MatchedExpression> {
   boolean keepTags = true;
   Class tokensAnnotationKey;
   Map<Integer, Stage<T>> stages;
+  /* Patterns of the active rules that match over tokens */
+  List<SequencePattern<CoreMap>> tokenSequencePatterns = new ArrayList<>();
+  /* Whether some active rule matches neither a token sequence pattern nor a text pattern */
+  boolean hasOtherTokenRules;
 
   /**
    * Describes one stage of extraction
@@ -68,6 +83,13 @@ public class CoreMapExpressionExtractor<T extends MatchedExpression> {
     SequenceMatchRules.ExtractRule<List<? extends CoreMap>, T> compositeExtractRule;
     /** Filtering rule */
     Filter<T> filterRule;
+    /** Whether to only start token pattern rules at positions where they can match the first token */
+    boolean prefilter = true;
+    /** Finds where the basic and composite token pattern rules can start matching */
+    SequencePatternTrigger<CoreMap> basicTrigger;
+    SequencePatternTrigger<CoreMap> compositeTrigger;
+    /** Remembers node pattern results for the token pattern rules (null if not memoized) */
+    NodePatternMemo<CoreMap> nodePatternMemo;
 
     private static <I,O> SequenceMatchRules.ExtractRule<I,O> addRule(SequenceMatchRules.ExtractRule<I, O> origRule,
                                                                      SequenceMatchRules.ExtractRule<I, O> rule)
@@ -87,11 +109,44 @@ public class CoreMapExpressionExtractor<T extends MatchedExpression> {
     private void addCompositeRule(SequenceMatchRules.ExtractRule<List<? extends CoreMap>, T> rule)
     {
       compositeExtractRule = addRule(compositeExtractRule, rule);
+      SequenceMatchRules.SequencePatternExtractRule<CoreMap, ?> patternRule = getSequencePatternExtractRule(rule);
+      if (prefilter && patternRule != null) {
+        if (compositeTrigger == null) {
+          compositeTrigger = new SequencePatternTrigger<>();
+        }
+        patternRule.setTrigger(compositeTrigger);
+      }
+      if (nodePatternMemo != null && patternRule != null) {
+        patternRule.setNodePatternMemo(nodePatternMemo);
+      }
     }
 
     private void addBasicRule(SequenceMatchRules.ExtractRule<CoreMap, T> rule)
     {
       basicExtractRule = addRule(basicExtractRule, rule);
+      SequenceMatchRules.SequencePatternExtractRule<CoreMap, ?> patternRule = getSequencePatternExtractRule(rule);
+      if (prefilter && patternRule != null) {
+        if (basicTrigger == null) {
+          basicTrigger = new SequencePatternTrigger<>();
+        }
+        patternRule.setTrigger(basicTrigger);
+      }
+      if (nodePatternMemo != null && patternRule != null) {
+        patternRule.setNodePatternMemo(nodePatternMemo);
+      }
+    }
+
+    // Returns the rule that matches a token pattern against a sequence (null if not a token pattern rule)
+    @SuppressWarnings("unchecked") // the token pattern rules of an extractor match sequences of CoreMaps
+    private static SequenceMatchRules.SequencePatternExtractRule<CoreMap, ?> getSequencePatternExtractRule(SequenceMatchRules.ExtractRule<?, ?> rule)
+    {
+      if (rule instanceof SequenceMatchRules.AnnotationExtractRule) {
+        rule = ((SequenceMatchRules.AnnotationExtractRule<?, ?>) rule).extractRule;
+      }
+      if (rule instanceof SequenceMatchRules.CoreMapExtractRule) {
+        rule = ((SequenceMatchRules.CoreMapExtractRule<?, ?>) rule).extractRule;
+      }
+      return rule instanceof SequenceMatchRules.SequencePatternExtractRule ? (SequenceMatchRules.SequencePatternExtractRule<CoreMap, ?>) rule : null;
     }
 
     private void addFilterRule(Filter<T> rule)
@@ -161,8 +216,29 @@ public class CoreMapExpressionExtractor<T extends MatchedExpression> {
           if (limitIters != null) {
             stage.limitIters = limitIters;
           }
+          Boolean prefilter = (Boolean) env.getDefaults().get("stage.prefilter");
+          if (prefilter != null) {
+            stage.prefilter = prefilter;
+          }
+          Boolean memoize = (Boolean) env.getDefaults().get("stage.memoize");
+          if (memoize == null || memoize) {
+            stage.nodePatternMemo = env.getNodePatternMemo();
+          }
         }
         if (aer.active) {
+          SequenceMatchRules.ExtractRule<?, ?> rule = aer.extractRule;
+          if (rule instanceof SequenceMatchRules.CoreMapExtractRule) {
+            rule = ((SequenceMatchRules.CoreMapExtractRule<?, ?>) rule).extractRule;
+          } else if (rule instanceof SequenceMatchRules.CoreMapToListExtractRule) {
+            rule = ((SequenceMatchRules.CoreMapToListExtractRule<?>) rule).extractRule;
+          }
+          if (rule instanceof SequenceMatchRules.SequencePatternExtractRule) {
+            @SuppressWarnings("unchecked") // the token pattern rules of an extractor match sequences of CoreMaps
+            SequenceMatchRules.SequencePatternExtractRule<CoreMap, ?> patternRule = (SequenceMatchRules.SequencePatternExtractRule<CoreMap, ?>) rule;
+            tokenSequencePatterns.add(patternRule.getPattern());
+          } else if (!(rule instanceof SequenceMatchRules.StringPatternExtractRule)) {
+            hasOtherTokenRules = true;
+          }
           if (SequenceMatchRules.FILTER_RULE_TYPE.equals(aer.ruleType)) {
             stage.addFilterRule(aer);
           } else {
@@ -184,6 +260,22 @@ public class CoreMapExpressionExtractor<T extends MatchedExpression> {
     return env;
   }
 
+  /**
+   * Collects the node patterns that the active rules match tokens with
+   * (rules matching over text are not included)
+   * @param nodePatterns - collection to add node patterns matched against single tokens to
+   * @param chunkNodePatterns - collection to add node patterns matched against chunks merged from several tokens to
+   * @return false if some rules also compare tokens in other ways
+   */
+  public boolean collectNodePatterns(Collection<NodePattern<CoreMap>> nodePatterns, Collection<NodePattern<CoreMap>> chunkNodePatterns)
+  {
+    boolean ok = !hasOtherTokenRules;
+    for (SequencePattern<CoreMap> pattern:tokenSequencePatterns) {
+      ok &= pattern.collectNodePatterns(nodePatterns, chunkNodePatterns);
+    }
+    return ok;
+  }
+
   public void setLogger(Logger logger) {
     this.logger = logger;
   }
@@ -355,6 +447,16 @@ public class CoreMapExpressionExtractor<T extends MatchedExpression> {
           SequenceMatchRules.ExtractRule<List<? extends CoreMap>, T> compositeExtractRule,
           List<? extends CoreMap> merged,
           List<T> matchedExpressions, int limit)
+  {
+    return applyCompositeRule(compositeExtractRule, null, null, merged, matchedExpressions, limit);
+  }
+
+  private Pair<List<? extends CoreMap>, List<T>> applyCompositeRule(
+          SequenceMatchRules.ExtractRule<List<? extends CoreMap>, T> compositeExtractRule,
+          SequencePatternTrigger<CoreMap> compositeTrigger,
+          NodePatternMemo<CoreMap> nodePatternMemo,
+          List<? extends CoreMap> merged,
+          List<T> matchedExpressions, int limit)
   {
     // Apply higher order rules
     boolean done = false;
@@ -363,7 +465,14 @@ public class CoreMapExpressionExtractor<T extends MatchedExpression> {
     int iters = 0;
     while (!done) {
       List<T> newExprs = new ArrayList<>();
-      boolean extracted = compositeExtractRule.extract(merged, newExprs);
+      boolean extracted;
+      try {
+        extracted = compositeExtractRule.extract(merged, newExprs);
+      } finally {
+        // Matched expressions are annotated next, which can change the merged elements
+        if (compositeTrigger != null) compositeTrigger.clear();
+        if (nodePatternMemo != null) nodePatternMemo.clear();
+      }
       if (extracted) {
         annotateExpressions(merged, newExprs);
         newExprs = MatchedExpression.removeNullValues(newExprs);
@@ -414,7 +523,12 @@ public class CoreMapExpressionExtractor<T extends MatchedExpression> {
         matchedExpressions.clear();
       }
       if (basicExtractRule != null) {
-        basicExtractRule.extract(annotation, matchedExpressions);
+        try {
+          basicExtractRule.extract(annotation, matchedExpressions);
+        } finally {
+          if (stage.basicTrigger != null) stage.basicTrigger.clear();
+          if (stage.nodePatternMemo != null) stage.nodePatternMemo.clear();
+        }
         annotateExpressions(annotation, matchedExpressions);
         matchedExpressions = MatchedExpression.removeNullValues(matchedExpressions);
         matchedExpressions = MatchedExpression.removeNested(matchedExpressions);
@@ -425,7 +539,7 @@ public class CoreMapExpressionExtractor<T extends MatchedExpression> {
       SequenceMatchRules.ExtractRule<List<? extends CoreMap>, T> compositeExtractRule = stage.compositeExtractRule;
       if (compositeExtractRule != null) {
         Pair<List<? extends CoreMap>, List<T>> p = applyCompositeRule(
-                compositeExtractRule, merged, matchedExpressions, stage.limitIters);
+                compositeExtractRule, stage.compositeTrigger, stage.nodePatternMemo, merged, matchedExpressions, stage.limitIters);
         merged = p.first();
         matchedExpressions = p.second();
       }
@@ -21,12 +21,18 @@ public class CoreMapNodePattern extends NodePattern<CoreMap> {
   // TODO: Change/Augment from map of class to pattern to list of conditions for matching
   //       (so we can do matches over multiple fields)
   private final Map<Class, NodePattern> annotationPatterns;
-
+  // Describes what the pattern matches (null if the pattern is not interned, see Env#internNodePattern)
+  private String key;
 
   public CoreMapNodePattern(Map<Class, NodePattern> annotationPatterns) {
     this.annotationPatterns = annotationPatterns;
   }
 
+  @SuppressWarnings("unchecked") // only adds the wildcards that the raw key and value types leave out
+  public Map<Class<?>, NodePattern<?>> getAnnotationPatterns() {
+    return Collections.unmodifiableMap((Map<Class<?>, NodePattern<?>>) (Map<?, ?>) annotationPatterns);
+  }
+
   public static CoreMapNodePattern valueOf(String textAnnotationPattern) {
     return valueOf(null, textAnnotationPattern);
   }
@@ -111,9 +117,79 @@ public class CoreMapNodePattern extends NodePattern<CoreMap> {
         throw new IllegalArgumentException("Unknown annotation key: " + stringStringEntry.getKey());
       }
     }
+    if (env != null) {
+      p.key = p.computeKey();
+      if (p.key != null) {
+        p = env.internNodePattern(p);
+      }
+    }
     return p;
   }
 
+  /**
+   * Whether the result of matching this pattern against a token only depends on the token,
+   * so it can be remembered for the token (see {@link NodePatternMemo})
+   */
+  public boolean isMemoizable() {
+    return key != null;
+  }
+
+  /**
+   * Whether the node pattern only looks at the given annotations of a token
+   * (conjunctions, disjunctions and negations of patterns on these annotations)
+   * @param nodePattern - Node pattern to check
+   * @param annotationKeys - Annotations the pattern may look at
+   * @return false if the pattern may look at other annotations or is not a known kind of pattern
+   */
+  public static boolean testsOnly(NodePattern<?> nodePattern, Collection<Class<?>> annotationKeys) {
+    if (nodePattern instanceof CoreMapNodePattern) {
+      return annotationKeys.containsAll(((CoreMapNodePattern) nodePattern).annotationPatterns.keySet());
+    } else if (nodePattern instanceof NodePattern.NegateNodePattern) {
+      return testsOnly(((NodePattern.NegateNodePattern<?>) nodePattern).p, annotationKeys);
+    } else if (nodePattern instanceof NodePattern.ConjNodePattern || nodePattern instanceof NodePattern.DisjNodePattern) {
+      List<? extends NodePattern<?>> children = (nodePattern instanceof NodePattern.ConjNodePattern) ?
+              ((NodePattern.ConjNodePattern<?>) nodePattern).nodePatterns : ((NodePattern.DisjNodePattern<?>) nodePattern).nodePatterns;
+      for (NodePattern<?> child:children) {
+        if (!testsOnly(child, annotationKeys)) return false;
+      }
+      return true;
+    } else {
+      return nodePattern instanceof NodePattern.AnyNodePattern;
+    }
+  }
+
+  String getKey() {
+    return key;
+  }
+
+  // Returns a string that identifies what the annotation patterns match,
+  // or null if some annotation pattern is not one of the known (side-effect free) types
+  private String computeKey() {
+    TextBuilder sb = new TextBuilder();
+    for (Map.Entry<Class<?>, NodePattern<?>> entry : getAnnotationPatterns().entrySet()) {
+      NodePattern<?> p = entry.getValue();
+      String str;
+      if (p instanceof StringAnnotationPattern) {
+        StringAnnotationPattern sp = (StringAnnotationPattern) p;
+        str = (sp.ignoreCase ? "i\"" : "\"") + sp.target;
+      } else if (p instanceof StringAnnotationRegexPattern) {
+        Pattern regex = ((StringAnnotationRegexPattern) p).pattern;
+        str = "/" + regex.flags() + '/' + regex.pattern();
+      } else if (p instanceof NilAnnotationPattern || p instanceof NotNilAnnotationPattern) {
+        str = p.toString();
+      } else if (p instanceof NumericAnnotationPattern) {
+        NumericAnnotationPattern np = (NumericAnnotationPattern) p;
+        str = np.cmpType.name() + ' ' + np.value;
+      } else {
+        return null;
+      }
+      String annotationKey = entry.getKey().getName();
+      sb.append(annotationKey.length()).append(':').append(annotationKey);
+      sb.append(str.length()).append(':').append(str);
+    }
+    return sb.toString();
+  }
+
   @Override
   public boolean match(CoreMap token)
   {
@@ -4,6 +4,7 @@ import ca.gedge.radixtree.RadixTree;
 import edu.stanford.nlp.ling.tokensregex.types.Expressions;
 import edu.stanford.nlp.ling.tokensregex.types.Tags;
 import edu.stanford.nlp.pipeline.CoreMapAttributeAggregator;
+import edu.stanford.nlp.util.CoreMap;
 import edu.stanford.nlp.util.Function;
 import edu.stanford.nlp.util.Pair;
 
@@ -50,6 +51,16 @@ public class Env {
    */
   public RadixTree< ?> defaults = new RadixTree<>();
 
+  /**
+   * Node patterns compiled in this environment that only depend on the token they match,
+   * by what they match (see {@link CoreMapNodePattern#isMemoizable()})
+   */
+  private final RadixTree<CoreMapNodePattern> internedNodePatterns = new RadixTree<>();
+  /**
+   * Results of matching the interned node patterns against tokens
+   */
+  private final NodePatternMemo<CoreMap> nodePatternMemo = new NodePatternMemo<>();
+
     public int defaultStringPatternFlags;
   public Class sequenceMatchResultExtractor;
   public Class stringMatchResultExtractor;
@@ -285,6 +296,26 @@ public class Env {
     return null;
   }
 
+  /**
+   * Returns the node pattern compiled in this environment that matches the same tokens
+   * as the given pattern, so that rules testing the same predicate share one node pattern.
+   * @param pattern - Memoizable node pattern
+   * @return Previously interned equivalent pattern, or the given pattern
+   */
+  public synchronized CoreMapNodePattern internNodePattern(CoreMapNodePattern pattern)
+  {
+    CoreMapNodePattern interned = internedNodePatterns.get(pattern.getKey());
+    if (interned == null) {
+      internedNodePatterns.put(pattern.getKey(), pattern);
+      interned = pattern;
+    }
+    return interned;
+  }
+
+  public NodePatternMemo<CoreMap> getNodePatternMemo() {
+    return nodePatternMemo;
+  }
+
   public Object get(String name)
   {
       return variables.get(name);
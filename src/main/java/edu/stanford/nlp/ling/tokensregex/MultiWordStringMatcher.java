@@ -1,7 +1,7 @@
 package edu.stanford.nlp.ling.tokensregex;
 
-import edu.stanford.nlp.util.CacheMap;
 import edu.stanford.nlp.util.IntPair;
+import edu.stanford.nlp.util.concurrent.ConcurrentCache;
 import javolution.text.Text;
 import javolution.text.TextBuilder;
 
@@ -143,7 +143,7 @@ public class MultiWordStringMatcher {
     return offsets;
   }
 
-  private CacheMap<String, Pattern> targetStringPatternCache = new CacheMap<>(5000);
+  private final ConcurrentCache<String, Pattern> targetStringPatternCache = new ConcurrentCache<>(5000);
 
   public final static Comparator<String> LONGEST_STRING_COMPARATOR = new LongestStringComparator();
   public static class LongestStringComparator implements Comparator<String> {
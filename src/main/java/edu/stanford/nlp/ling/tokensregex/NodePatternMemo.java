@@ -0,0 +1,94 @@
+package edu.stanford.nlp.ling.tokensregex;
+
+import java.util.*;
+
+/**
+ * Remembers the result of matching node patterns against the elements of a sequence,
+ * so that node patterns shared by many rules (or visited by many branches of one rule)
+ * are evaluated at most once per element.
+ *
+ * <p>
+ * Only node patterns whose result depends solely on the element are memoized
+ * (see {@link CoreMapNodePattern#isMemoizable()}).  Such patterns are interned by the
+ * {@link Env} they are compiled in, so rules that test the same predicate share one
+ * node pattern and one row in the memo table.
+ * </p>
+ *
+ * <p>
+ * Tables are kept per thread, by sequence identity, until {@link #clear()} is called.
+ * The memo must be cleared before the elements of a sequence change.
+ * </p>
+ *
+ * @param <T> Type of the elements in the sequences
+ * @see SequenceMatcher#setNodePatternTable
+ * @see CoreMapExpressionExtractor
+ */
+public class NodePatternMemo<T> {
+  private final ThreadLocal<Map<List<?>, Table<T>>> tables = new ThreadLocal<>();
+
+  /**
+   * Match results of node patterns against the elements of one sequence
+   */
+  public static class Table<T> {
+    // For each node pattern, which elements were matched against it, and which of them matched
+    private final Map<NodePattern<T>, BitSet[]> results = new IdentityHashMap<>();
+
+    private Table() {}
+
+    /**
+     * Matches the node pattern against the element at the given index of the sequence
+     * @param pattern - Node pattern to match
+     * @param node - Element of the sequence
+     * @param index - Position of the element in the sequence
+     * @return true if the node matches the pattern
+     */
+    public boolean match(NodePattern<T> pattern, T node, int index)
+    {
+      if (!(pattern instanceof CoreMapNodePattern) || !((CoreMapNodePattern) pattern).isMemoizable()) {
+        return pattern.match(node);
+      }
+      BitSet[] bits = results.get(pattern);
+      if (bits == null) {
+        bits = new BitSet[] { new BitSet(), new BitSet() };
+        results.put(pattern, bits);
+      } else if (bits[0].get(index)) {
+        return bits[1].get(index);
+      }
+      boolean matched = pattern.match(node);
+      bits[0].set(index);
+      if (matched) {
+        bits[1].set(index);
+      }
+      return matched;
+    }
+  }
+
+  /**
+   * Returns the table for the sequence, creating it if needed
+   * @param seq - Sequence to be matched against
+   * @return Table of node pattern results for the sequence
+   */
+  public Table<T> getTable(List<? extends T> seq)
+  {
+    Map<List<?>, Table<T>> cache = tables.get();
+    if (cache == null) {
+      cache = new IdentityHashMap<>();
+      tables.set(cache);
+    }
+    Table<T> table = cache.get(seq);
+    if (table == null) {
+      table = new Table<>();
+      cache.put(seq, table);
+    }
+    return table;
+  }
+
+  /**
+   * Clears tables kept by the current thread
+   */
+  public void clear()
+  {
+    tables.remove();
+  }
+
+}
@@ -755,6 +755,8 @@ public class SequenceMatchRules {
     Function<SequenceMatchResult<T>, O> extractor;
     SequenceMatcher.FindType findType;
     boolean matchWithResult;
+    SequencePatternTrigger<T> trigger;
+    NodePatternMemo<T> nodePatternMemo;
 
     public SequencePatternExtractRule(Env env, String regex, Function<SequenceMatchResult<T>, O> extractor) {
       this.extractor = extractor;
@@ -782,6 +784,12 @@ public class SequenceMatchRules {
         m.setFindType(findType);
       }
       m.setMatchWithResult(matchWithResult);
+      if (trigger != null) {
+        m.setMatchStarts(trigger.getMatchStarts(pattern, seq));
+      }
+      if (nodePatternMemo != null) {
+        m.setNodePatternTable(nodePatternMemo.getTable(seq));
+      }
       while (m.find()) {
         out.add(extractor.apply(m));
         extracted = true;
@@ -789,6 +797,26 @@ public class SequenceMatchRules {
       return extracted;
     }
 
+    public SequencePattern<T> getPattern() {
+      return pattern;
+    }
+
+    /**
+     * Uses the trigger (shared with other rules) to find where this rule's pattern can start matching
+     * @param trigger - Trigger to add this rule's pattern to
+     */
+    public void setTrigger(SequencePatternTrigger<T> trigger) {
+      this.trigger = trigger.add(pattern) ? trigger : null;
+    }
+
+    /**
+     * Shares results of matching node patterns with other rules using the same memo
+     * @param nodePatternMemo - Memo of node pattern results (null to not remember them)
+     */
+    public void setNodePatternMemo(NodePatternMemo<T> nodePatternMemo) {
+      this.nodePatternMemo = nodePatternMemo;
+    }
+
     public O apply(List<? extends T> seq) {
       if (seq == null) return null;
       SequenceMatcher<T> m = pattern.getMatcher(seq);
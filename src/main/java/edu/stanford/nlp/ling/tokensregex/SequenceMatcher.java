@@ -69,6 +69,11 @@ public class SequenceMatcher<T> extends BasicSequenceMatchResult<T> {
   int regionStart;
   int regionEnd = -1;
 
+  // Positions at which a match can start (null if a match can start anywhere)
+  BitSet matchStarts;
+  // Remembered results of matching node patterns against the elements (null if not memoized)
+  NodePatternMemo.Table<T> nodePatternTable;
+
   // TODO: Check and fix implementation for FIND_ALL
   /**
    * Type of search to perform
@@ -300,6 +305,34 @@ public class SequenceMatcher<T> extends BasicSequenceMatchResult<T> {
     this.matchWithResult = matchWithResult;
   }
 
+  public BitSet getMatchStarts() {
+    return matchStarts;
+  }
+
+  /**
+   * Restricts the positions from which {@link #find()} will try to match the pattern.
+   * The positions must include every position at which a match can start
+   * (see {@link SequencePatternTrigger}), otherwise matches will be missed.
+   * @param matchStarts - Positions at which a match can start (null to try every position)
+   */
+  public void setMatchStarts(BitSet matchStarts) {
+    this.matchStarts = matchStarts;
+  }
+
+  public NodePatternMemo.Table<T> getNodePatternTable() {
+    return nodePatternTable;
+  }
+
+  /**
+   * Shares the results of matching node patterns against the elements of this sequence
+   * with other matchers over the same sequence.
+   * The table must have been obtained for this sequence (see {@link NodePatternMemo#getTable}).
+   * @param nodePatternTable - Table of node pattern results (null to always match node patterns)
+   */
+  public void setNodePatternTable(NodePatternMemo.Table<T> nodePatternTable) {
+    this.nodePatternTable = nodePatternTable;
+  }
+
   /**
    * Reset the matcher and then searches for pattern at the specified start index
    * @param start - Index at which to start the search
@@ -325,6 +358,11 @@ public class SequenceMatcher<T> extends BasicSequenceMatchResult<T> {
       match = findMatchStart(start, false);
     } else {
       for (int i = start; i < regionEnd; i++) {
+        if (matchStarts != null) {
+          // Skip ahead to the next position where a match can start
+          i = matchStarts.nextSetBit(i);
+          if (i < 0 || i >= regionEnd) break;
+        }
         match = findMatchStart(i, false);
         if (match) {
           break;
@@ -90,6 +90,10 @@ public class SequencePattern<T> {
   // Priority associated with pattern
   double priority;
 
+  // Node patterns one of which has to match the first element of any match
+  // (null if that cannot be determined, e.g. if the pattern can match an empty sequence)
+  private Collection<NodePattern<T>> firstNodePatterns;
+
   protected SequencePattern(SequencePattern.PatternExpr nodeSequencePattern) {
     this(null, nodeSequencePattern);
   }
@@ -111,6 +115,11 @@ public class SequencePattern<T> {
     this.root = f.start;
     varGroupBindings = new VarGroupBindings(totalGroups+1);
     nodeSequencePattern.updateBindings(varGroupBindings);
+
+    Collection<NodePattern<T>> firsts = new ArrayList<>();
+    if (collectFirstNodePatterns(patternExpr, firsts) == 0) {
+      this.firstNodePatterns = Collections.unmodifiableCollection(firsts);
+    }
   }
 
   public String pattern() {
@@ -133,6 +142,120 @@ public class SequencePattern<T> {
     return action;
   }
 
+  /**
+   * Returns node patterns such that the first element of any match of this pattern
+   * is matched by at least one of them, or null if no such set is known
+   * (e.g. when the pattern can match the empty sequence or starts with a multinode pattern).
+   * Used to avoid starting the NFA at positions where no match can begin.
+   */
+  public Collection<NodePattern<T>> getFirstNodePatterns() {
+    return firstNodePatterns;
+  }
+
+  /**
+   * Collects the node patterns that can match the first element matched by the expression
+   * @param expr - expression to analyze
+   * @param firsts - collection of node patterns to add to
+   * @return 0 if the expression always consumes at least one element,
+   *         1 if it can match the empty sequence (later expressions can then supply the first element),
+   *         -1 if the first element cannot be determined
+   */
+  @SuppressWarnings("unchecked") // the node patterns of a SequencePattern<T> match elements of type T
+  private static <T> int collectFirstNodePatterns(PatternExpr expr, Collection<NodePattern<T>> firsts)
+  {
+    if (expr instanceof NodePatternExpr) {
+      firsts.add((NodePattern<T>) ((NodePatternExpr) expr).nodePattern);
+      return 0;
+    } else if (expr instanceof GroupPatternExpr) {
+      return collectFirstNodePatterns(((GroupPatternExpr) expr).pattern, firsts);
+    } else if (expr instanceof ValuePatternExpr) {
+      return collectFirstNodePatterns(((ValuePatternExpr) expr).expr, firsts);
+    } else if (expr instanceof SequencePatternExpr) {
+      for (PatternExpr child:((SequencePatternExpr) expr).patterns) {
+        int res = collectFirstNodePatterns(child, firsts);
+        if (res != 1) return res;
+      }
+      return 1;
+    } else if (expr instanceof OrPatternExpr) {
+      List<PatternExpr> children = ((OrPatternExpr) expr).patterns;
+      int res = children.isEmpty() ? -1 : 0;
+      for (PatternExpr child:children) {
+        int childRes = collectFirstNodePatterns(child, firsts);
+        if (childRes < 0) return childRes;
+        if (childRes == 1) res = 1;
+      }
+      return res;
+    } else if (expr instanceof RepeatPatternExpr) {
+      RepeatPatternExpr repeat = (RepeatPatternExpr) expr;
+      int res = collectFirstNodePatterns(repeat.pattern, firsts);
+      return res < 0 || repeat.minMatch > 0 ? res : 1;
+    } else {
+      // Conjunctions, back references, multinode and special (sequence start/end) patterns
+      return -1;
+    }
+  }
+
+  /**
+   * Collects the node patterns that this pattern matches elements with
+   * @param nodePatterns - collection to add node patterns matched against single elements to
+   * @param chunkNodePatterns - collection to add node patterns matched against chunks merged
+   *                            from several elements to (see {@link MultiCoreMapNodePattern})
+   * @return false if the pattern also compares elements in other ways
+   *         (back references or other multinode patterns)
+   */
+  public boolean collectNodePatterns(Collection<NodePattern<T>> nodePatterns, Collection<NodePattern<CoreMap>> chunkNodePatterns) {
+    return collectNodePatterns(patternExpr, nodePatterns, chunkNodePatterns);
+  }
+
+  @SuppressWarnings("unchecked") // the node patterns of a SequencePattern<T> match elements of type T
+  private static <T> boolean collectNodePatterns(PatternExpr expr, Collection<NodePattern<T>> nodePatterns,
+                                                 Collection<NodePattern<CoreMap>> chunkNodePatterns)
+  {
+    if (expr instanceof NodePatternExpr) {
+      nodePatterns.add((NodePattern<T>) ((NodePatternExpr) expr).nodePattern);
+      return true;
+    } else if (expr instanceof MultiNodePatternExpr) {
+      MultiNodePattern<?> multiNodePattern = ((MultiNodePatternExpr) expr).multiNodePattern;
+      if (multiNodePattern instanceof MultiCoreMapNodePattern) {
+        chunkNodePatterns.add((NodePattern<CoreMap>) ((MultiCoreMapNodePattern) multiNodePattern).nodePattern);
+        return true;
+      }
+      return false;
+    } else if (expr instanceof GroupPatternExpr) {
+      return collectNodePatterns(((GroupPatternExpr) expr).pattern, nodePatterns, chunkNodePatterns);
+    } else if (expr instanceof ValuePatternExpr) {
+      return collectNodePatterns(((ValuePatternExpr) expr).expr, nodePatterns, chunkNodePatterns);
+    } else if (expr instanceof RepeatPatternExpr) {
+      return collectNodePatterns(((RepeatPatternExpr) expr).pattern, nodePatterns, chunkNodePatterns);
+    } else if (expr instanceof OrPatternExpr && isNodeDisjunction((OrPatternExpr) expr)) {
+      // A choice between single elements matches the same elements as the disjunction of its node patterns
+      List<NodePattern<T>> disjuncts = new ArrayList<>();
+      for (PatternExpr child:((OrPatternExpr) expr).patterns) {
+        disjuncts.add((NodePattern<T>) ((NodePatternExpr) child).nodePattern);
+      }
+      nodePatterns.add(new NodePattern.DisjNodePattern<>(disjuncts));
+      return true;
+    } else if (expr instanceof SequencePatternExpr || expr instanceof OrPatternExpr || expr instanceof AndPatternExpr) {
+      List<PatternExpr> children = (expr instanceof SequencePatternExpr) ? ((SequencePatternExpr) expr).patterns :
+              (expr instanceof OrPatternExpr) ? ((OrPatternExpr) expr).patterns : ((AndPatternExpr) expr).patterns;
+      for (PatternExpr child:children) {
+        if (!collectNodePatterns(child, nodePatterns, chunkNodePatterns)) return false;
+      }
+      return true;
+    } else {
+      // Sequence start/end patterns do not look at elements
+      return expr instanceof SpecialNodePatternExpr;
+    }
+  }
+
+  private static boolean isNodeDisjunction(OrPatternExpr expr)
+  {
+    for (PatternExpr child:expr.patterns) {
+      if (!(child instanceof NodePatternExpr)) return false;
+    }
+    return true;
+  }
+
   public void setAction(SequenceMatchAction<T> action) {
     this.action = action;
   }
@@ -914,7 +1037,12 @@ public class SequencePattern<T> {
             return false;
           }
         } else {
-          if (node != null && pattern.match(node)) {
+          SequenceMatcher<T> matcher = matchedStates.matcher;
+          @SuppressWarnings("unchecked") // the node patterns of a SequencePattern<T> match elements of type T
+          NodePattern<T> p = (NodePattern<T>) pattern;
+          boolean matched = (node != null) &&
+                  ((matcher.nodePatternTable != null) ? matcher.nodePatternTable.match(p, node, matchedStates.curPosition) : p.match(node));
+          if (matched) {
             // If matched, need to add next states to the queue of states to be processed
             matchedStates.addStates(bid, next);
             return true;
@@ -0,0 +1,274 @@
+package edu.stanford.nlp.ling.tokensregex;
+
+import edu.stanford.nlp.util.CoreMap;
+import edu.stanford.nlp.util.TypesafeMap;
+import javolution.util.FastMap;
+
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Finds the positions in a sequence at which each of a set of patterns can start a match,
+ * so that a {@link SequenceMatcher} does not have to run the pattern's NFA from every position
+ * (see {@link SequenceMatcher#setMatchStarts}).
+ *
+ * <p>
+ * When a pattern is added, the node patterns that can match its first element
+ * (see {@link SequencePattern#getFirstNodePatterns()}) are analyzed.
+ * Node patterns that require a string annotation (word, lemma, tag, ner, ...) to equal a literal
+ * are indexed by annotation key and value, so that one lookup per token and key finds all
+ * patterns that can start at that token.  Other first node patterns are matched directly,
+ * once per distinct node pattern and token.  Patterns whose first element cannot be
+ * determined are tried at every position, as before.
+ * </p>
+ *
+ * <p>
+ * The positions computed for a sequence are cached per thread, by sequence identity,
+ * until {@link #clear()} is called, so all patterns matched against a sequence share one scan.
+ * The trigger must be cleared before the elements of a sequence change.
+ * </p>
+ *
+ * @param <T> Type of the elements of the sequences matched
+ * @see CoreMapExpressionExtractor
+ */
+public class SequencePatternTrigger<T> {
+  // Flags with which a regex without special characters still only matches
+  // strings that are equal to it (ignoring case)
+  private static final int LITERAL_REGEX_FLAGS = Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE;
+  private static final Pattern REGEX_META = Pattern.compile("[\\\\^$.|?*+()\\[\\]{}]");
+
+  // Patterns with literal first elements, indexed by annotation key and then by value
+  private final Map<Class<?>, Map<String, List<SequencePattern<T>>>> exactIndex = new FastMap<>();
+  // Patterns with case insensitive literal first elements (values are case folded)
+  private final Map<Class<?>, Map<String, List<SequencePattern<T>>>> caseInsensitiveIndex = new FastMap<>();
+  // Patterns keyed by first node patterns that cannot be indexed
+  private final Map<NodePattern<T>, List<SequencePattern<T>>> checkedNodePatterns = new FastMap<>();
+  // Patterns for which positions are computed by this trigger
+  private final Set<SequencePattern<T>> triggeredPatterns = Collections.newSetFromMap(new IdentityHashMap<SequencePattern<T>, Boolean>());
+
+  private final ThreadLocal<Map<List<? extends T>, Map<SequencePattern<T>, BitSet>>> cachedMatchStarts = new ThreadLocal<>();
+
+  /**
+   * A literal value that an annotation has to have
+   */
+  private static class LiteralKey {
+    final Class<?> annotationKey;
+    final String value;
+    final boolean ignoreCase;
+
+    private LiteralKey(Class<?> annotationKey, String value, boolean ignoreCase) {
+      this.annotationKey = annotationKey;
+      this.value = ignoreCase ? foldCase(value) : value;
+      this.ignoreCase = ignoreCase;
+    }
+  }
+
+  /**
+   * Adds a pattern to the trigger.
+   * Patterns whose first element cannot be determined are not added.
+   * @param pattern - Pattern to add
+   * @return true if positions will be computed for the pattern
+   */
+  public boolean add(SequencePattern<T> pattern)
+  {
+    Collection<NodePattern<T>> firsts = pattern.getFirstNodePatterns();
+    if (firsts == null) return false;
+    for (NodePattern<T> first:firsts) {
+      if (first instanceof NodePattern.AnyNodePattern) return false;
+    }
+    if (!triggeredPatterns.add(pattern)) return true;
+
+    for (NodePattern<T> first:firsts) {
+      List<LiteralKey> keys = new ArrayList<>();
+      if (getLiteralKeys(first, keys)) {
+        for (LiteralKey key:keys) {
+          Map<Class<?>, Map<String, List<SequencePattern<T>>>> index = key.ignoreCase ? caseInsensitiveIndex : exactIndex;
+          Map<String, List<SequencePattern<T>>> valueIndex = index.get(key.annotationKey);
+          if (valueIndex == null) {
+            valueIndex = new FastMap<>();
+            index.put(key.annotationKey, valueIndex);
+          }
+          addToList(valueIndex, key.value, pattern);
+        }
+      } else {
+        addToList(checkedNodePatterns, first, pattern);
+      }
+    }
+    return true;
+  }
+
+  private static <K, T> void addToList(Map<K, List<SequencePattern<T>>> map, K key, SequencePattern<T> pattern)
+  {
+    List<SequencePattern<T>> list = map.get(key);
+    if (list == null) {
+      list = new ArrayList<>(1);
+      map.put(key, list);
+    }
+    if (!list.contains(pattern)) {
+      list.add(pattern);
+    }
+  }
+
+  /**
+   * Returns the positions in the sequence at which the pattern can start a match
+   * @param pattern - Pattern to be matched
+   * @param seq - Sequence to be matched against
+   * @return Positions at which a match can start, or null if the pattern can start anywhere
+   */
+  public BitSet getMatchStarts(SequencePattern<T> pattern, List<? extends T> seq)
+  {
+    if (!triggeredPatterns.contains(pattern)) return null;
+    Map<List<? extends T>, Map<SequencePattern<T>, BitSet>> cache = cachedMatchStarts.get();
+    if (cache == null) {
+      cache = new IdentityHashMap<>();
+      cachedMatchStarts.set(cache);
+    }
+    Map<SequencePattern<T>, BitSet> matchStarts = cache.get(seq);
+    if (matchStarts == null) {
+      matchStarts = computeMatchStarts(seq);
+      cache.put(seq, matchStarts);
+    }
+    BitSet starts = matchStarts.get(pattern);
+    return starts != null ? starts : new BitSet(0);
+  }
+
+  /**
+   * Clears positions cached by the current thread
+   */
+  public void clear()
+  {
+    cachedMatchStarts.remove();
+  }
+
+  private Map<SequencePattern<T>, BitSet> computeMatchStarts(List<? extends T> seq)
+  {
+    Map<SequencePattern<T>, BitSet> matchStarts = new IdentityHashMap<>();
+    for (int i = 0; i < seq.size(); i++) {
+      T node = seq.get(i);
+      if (node == null) continue;
+      if (node instanceof CoreMap) {
+        CoreMap token = (CoreMap) node;
+        for (Map.Entry<Class<?>, Map<String, List<SequencePattern<T>>>> entry:exactIndex.entrySet()) {
+          Object value = getAnnotation(token, entry.getKey());
+          if (value instanceof String) {
+            setMatchStart(matchStarts, entry.getValue().get(value), i);
+          }
+        }
+        for (Map.Entry<Class<?>, Map<String, List<SequencePattern<T>>>> entry:caseInsensitiveIndex.entrySet()) {
+          Object value = getAnnotation(token, entry.getKey());
+          if (value instanceof String) {
+            setMatchStart(matchStarts, entry.getValue().get(foldCase((String) value)), i);
+          }
+        }
+      }
+      for (Map.Entry<NodePattern<T>, List<SequencePattern<T>>> entry:checkedNodePatterns.entrySet()) {
+        boolean matched;
+        try {
+          matched = entry.getKey().match(node);
+        } catch (RuntimeException ex) {
+          // Let the matcher run into the same problem
+          matched = true;
+        }
+        if (matched) {
+          setMatchStart(matchStarts, entry.getValue(), i);
+        }
+      }
+    }
+    return matchStarts;
+  }
+
+  // The annotation keys are the classes of annotation patterns, so they are annotation keys
+  @SuppressWarnings("unchecked")
+  private static Object getAnnotation(CoreMap token, Class<?> annotationKey)
+  {
+    return token.get((Class<? extends TypesafeMap.Key<Object>>) annotationKey);
+  }
+
+  private static <T> void setMatchStart(Map<SequencePattern<T>, BitSet> matchStarts, List<SequencePattern<T>> patterns, int i)
+  {
+    if (patterns == null) return;
+    for (SequencePattern<T> pattern:patterns) {
+      BitSet starts = matchStarts.get(pattern);
+      if (starts == null) {
+        starts = new BitSet();
+        matchStarts.put(pattern, starts);
+      }
+      starts.set(i);
+    }
+  }
+
+  /**
+   * Gets literal annotation values such that the node pattern can only match a token
+   * with at least one of them
+   * @param nodePattern - Node pattern to analyze
+   * @param keys - List of literal keys to add to
+   * @return false if no such set of literal values is known
+   */
+  private static boolean getLiteralKeys(NodePattern<?> nodePattern, List<LiteralKey> keys)
+  {
+    if (nodePattern instanceof CoreMapNodePattern) {
+      // All annotation patterns have to match, any literal one will do
+      Map<Class<?>, NodePattern<?>> annotationPatterns = ((CoreMapNodePattern) nodePattern).getAnnotationPatterns();
+      for (Map.Entry<Class<?>, NodePattern<?>> entry:annotationPatterns.entrySet()) {
+        LiteralKey key = getLiteralKey(entry.getKey(), entry.getValue());
+        if (key != null) {
+          keys.add(key);
+          return true;
+        }
+      }
+      return false;
+    } else if (nodePattern instanceof NodePattern.ConjNodePattern) {
+      for (NodePattern<?> child:((NodePattern.ConjNodePattern<?>) nodePattern).nodePatterns) {
+        List<LiteralKey> childKeys = new ArrayList<>();
+        if (getLiteralKeys(child, childKeys)) {
+          keys.addAll(childKeys);
+          return true;
+        }
+      }
+      return false;
+    } else if (nodePattern instanceof NodePattern.DisjNodePattern) {
+      List<LiteralKey> disjKeys = new ArrayList<>();
+      for (NodePattern<?> child:((NodePattern.DisjNodePattern<?>) nodePattern).nodePatterns) {
+        if (!getLiteralKeys(child, disjKeys)) {
+          return false;
+        }
+      }
+      keys.addAll(disjKeys);
+      return true;
+    }
+    return false;
+  }
+
+  private static LiteralKey getLiteralKey(Class<?> annotationKey, NodePattern<?> annotationPattern)
+  {
+    if (annotationPattern instanceof CoreMapNodePattern.StringAnnotationPattern) {
+      CoreMapNodePattern.StringAnnotationPattern p = (CoreMapNodePattern.StringAnnotationPattern) annotationPattern;
+      return new LiteralKey(annotationKey, p.target, p.ignoreCase);
+    } else if (annotationPattern instanceof CoreMapNodePattern.StringAnnotationRegexPattern) {
+      Pattern regex = ((CoreMapNodePattern.StringAnnotationRegexPattern) annotationPattern).getPattern();
+      if ((regex.flags() & ~LITERAL_REGEX_FLAGS) == 0 && !REGEX_META.matcher(regex.pattern()).find()) {
+        return new LiteralKey(annotationKey, regex.pattern(), (regex.flags() & Pattern.CASE_INSENSITIVE) != 0);
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Folds the case of each character so that strings that are equal ignoring case
+   * (either by {@link String#equalsIgnoreCase} or by a case insensitive regex) have the same folded form
+   */
+  private static String foldCase(String str)
+  {
+    char[] chars = null;
+    for (int i = 0; i < str.length(); i++) {
+      char ch = str.charAt(i);
+      char folded = Character.toLowerCase(Character.toUpperCase(ch));
+      if (folded != ch) {
+        if (chars == null) chars = str.toCharArray();
+        chars[i] = folded;
+      }
+    }
+    return chars != null ? new String(chars) : str;
+  }
+
+}
@@ -962,6 +962,61 @@ public class ArrayMath {
       return haveTerms ? max + Math.log(1.0 + intermediate) : max;
   }
 
+  /**
+   * Returns an approximation to {@link #logSum(double...)}, which is faster
+   * since it takes the exponents with {@link SloppyMath#fastExp}.  The
+   * result differs from logSum by less than 1e-8, whatever the inputs,
+   * since the relative error of each exponent is less than 1e-8 and so
+   * then is that of the sum.
+   *
+   * @param logInputs An array of numbers [log(x1), ..., log(xn)]
+   * @return log(x1 + ... + xn), to within 1e-8
+   */
+  public static double fastLogSum(double... logInputs) {
+    return fastLogSum(logInputs, 0, logInputs.length);
+  }
+
+  /**
+   * Returns an approximation to {@link #logSum(double[], int, int)}, to
+   * within 1e-8, as {@link #fastLogSum(double...)} does.
+   *
+   * @param logInputs An array of numbers [log(x1), ..., log(xn)]
+   * @param fromIndex The array index to start the sum from
+   * @param toIndex The array index after the last element to be summed
+   * @return log(x1 + ... + xn), to within 1e-8
+   */
+  public static double fastLogSum(double[] logInputs, int fromIndex, int toIndex) {
+    if (logInputs.length == 0)
+      throw new IllegalArgumentException();
+    if (fromIndex >= 0 && toIndex < logInputs.length && fromIndex >= toIndex)
+      return Double.NEGATIVE_INFINITY;
+    double max = logInputs[fromIndex];
+    for (int i = fromIndex + 1; i < toIndex; i++) {
+      if (logInputs[i] > max) {
+        max = logInputs[i];
+      }
+    }
+    if (Double.isInfinite(max)) {
+      return max;
+    }
+    // the max itself adds exactly 1.0, and two partial sums keep two exponents going at once
+    double s0 = 0.0, s1 = 0.0;
+    double cutoff = max - SloppyMath.LOGTOLERANCE;
+    int i = fromIndex;
+    for (; i + 1 < toIndex; i += 2) {
+      if (logInputs[i] > cutoff) {
+        s0 += SloppyMath.fastExp(logInputs[i] - max);
+      }
+      if (logInputs[i + 1] > cutoff) {
+        s1 += SloppyMath.fastExp(logInputs[i + 1] - max);
+      }
+    }
+    if (i < toIndex && logInputs[i] > cutoff) {
+      s0 += SloppyMath.fastExp(logInputs[i] - max);
+    }
+    return max + Math.log(s0 + s1);
+  }
+
   public static double logSum(List<Double> logInputs) {
     return logSum(logInputs, 0, logInputs.size());
   }
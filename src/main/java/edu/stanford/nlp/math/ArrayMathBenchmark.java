@@ -0,0 +1,184 @@
+package edu.stanford.nlp.math;
+
+import java.util.Random;
+
+/**
+ * Times the {@link ArrayMath} and {@link SloppyMath} kernels which the
+ * CRF, the factor tables and the optimizers spend their inner loops in, at
+ * the array lengths they use them at, and checks the precision of the fast
+ * approximate exp, log and logSum against the exact ones, and times them
+ * against them.
+ * <br>
+ * Each kernel is run for a warm up period so that it is compiled, and then
+ * timed over a fixed number of calls, several times, of which the fastest
+ * is reported.  The calls go round several arrays, and their results are
+ * added into a sink which is printed, so that the compiler cannot work any
+ * of them out once and for all.
+ * Usage: ArrayMathBenchmark [millisPerKernel]
+ */
+public class ArrayMathBenchmark {
+
+  /** The array lengths timed: CRF label sets, a tag set, a feature vector, a weight vector */
+  private static final int[] LENGTHS = { 9, 45, 500, 10000 };
+
+  /** The number of arrays of each length the calls go round */
+  private static final int NUM_ARRAYS = 16;
+
+  private static double sink;
+  private static int next;
+
+  private ArrayMathBenchmark() { } // just a main method
+
+  private abstract static class Kernel {
+    final String name;
+
+    Kernel(String name) {
+      this.name = name;
+    }
+
+    /** Runs the kernel on the kth arrays */
+    abstract double run(int k);
+  }
+
+  /** Returns the fewest nanoseconds a call to the kernel took, over several timings */
+  private static double time(Kernel kernel, long millis) {
+    // warm up, and find how many calls take about a tenth of the time
+    int calls = 1;
+    long start = System.nanoTime();
+    while (System.nanoTime() - start < millis * 1000000L / 2) {
+      for (int i = 0; i < calls; i++) {
+        sink += kernel.run(next++ & (NUM_ARRAYS - 1));
+      }
+      calls *= 2;
+    }
+    long elapsed = System.nanoTime() - start;
+    calls = (int) Math.max(1, calls * (millis * 100000L) / Math.max(1, elapsed));
+    double best = Double.POSITIVE_INFINITY;
+    for (int rep = 0; rep < 5; rep++) {
+      long t0 = System.nanoTime();
+      for (int i = 0; i < calls; i++) {
+        sink += kernel.run(next++ & (NUM_ARRAYS - 1));
+      }
+      best = Math.min(best, (System.nanoTime() - t0) / (double) calls);
+    }
+    return best;
+  }
+
+  private static void report(int length, long millis, Kernel kernel, Kernel baseline) {
+    double nanos = time(kernel, millis);
+    if (baseline == null) {
+      System.out.printf("%6d  %-28s %10.1f ns%n", length, kernel.name, nanos);
+    } else {
+      double baseNanos = time(baseline, millis);
+      System.out.printf("%6d  %-28s %10.1f ns  (%s %.1f ns, %.2fx)%n",
+          length, kernel.name, nanos, baseline.name, baseNanos, baseNanos / nanos);
+    }
+  }
+
+  /** Reports the largest errors of the approximate functions over random arguments */
+  private static void checkPrecision() {
+    Random random = new Random(1);
+    double expError = 0.0;
+    double logError = 0.0;
+    double logSumError = 0.0;
+    for (int i = 0; i < 1000000; i++) {
+      double x = -708.0 + 1417.0 * random.nextDouble();
+      double exact = Math.exp(x);
+      expError = Math.max(expError, Math.abs(SloppyMath.fastExp(x) - exact) / exact);
+      double y = Math.exp(-700.0 + 1400.0 * random.nextDouble());
+      logError = Math.max(logError, Math.abs(SloppyMath.fastLog(y) - Math.log(y)));
+    }
+    for (int i = 0; i < 100000; i++) {
+      double[] logInputs = new double[1 + random.nextInt(50)];
+      double scale = Math.pow(10.0, random.nextInt(4));
+      for (int j = 0; j < logInputs.length; j++) {
+        logInputs[j] = scale * random.nextGaussian();
+      }
+      logSumError = Math.max(logSumError, Math.abs(ArrayMath.fastLogSum(logInputs) - ArrayMath.logSum(logInputs)));
+    }
+    System.out.printf("Largest errors: fastExp %.2g (relative), fastLog %.2g, fastLogSum %.2g%n",
+        expError, logError, logSumError);
+  }
+
+  public static void main(String[] args) {
+    long millis = args.length > 0 ? Long.parseLong(args[0]) : 300;
+    checkPrecision();
+
+    Random random = new Random(2);
+    for (int length : LENGTHS) {
+      final double[][] a = new double[NUM_ARRAYS][length];
+      final double[][] b = new double[NUM_ARRAYS][length];
+      final double[][] logs = new double[NUM_ARRAYS][length];
+      final double[][] to = new double[NUM_ARRAYS][length];
+      for (int k = 0; k < NUM_ARRAYS; k++) {
+        for (int i = 0; i < length; i++) {
+          a[k][i] = random.nextDouble();
+          b[k][i] = random.nextGaussian();
+          logs[k][i] = -10.0 * random.nextDouble();
+        }
+      }
+
+      report(length, millis, new Kernel("sum") {
+        @Override double run(int k) { return ArrayMath.sum(a[k]); }
+      }, null);
+      report(length, millis, new Kernel("innerProduct") {
+        @Override double run(int k) { return ArrayMath.innerProduct(a[k], b[k]); }
+      }, null);
+      report(length, millis, new Kernel("pairwiseAdd") {
+        @Override double run(int k) { return ArrayMath.pairwiseAdd(a[k], b[k])[0]; }
+      }, null);
+      report(length, millis, new Kernel("pairwiseAddInPlace") {
+        @Override double run(int k) { ArrayMath.pairwiseAddInPlace(to[k], b[k]); return to[k][0]; }
+      }, null);
+      report(length, millis, new Kernel("addMultInPlace") {
+        @Override double run(int k) { ArrayMath.addMultInPlace(to[k], b[k], -0.5); return to[k][0]; }
+      }, null);
+      report(length, millis, new Kernel("normalize") {
+        @Override double run(int k) { System.arraycopy(a[k], 0, to[k], 0, to[k].length); ArrayMath.normalize(to[k]); return to[k][0]; }
+      }, null);
+      report(length, millis, new Kernel("logNormalize") {
+        @Override double run(int k) { System.arraycopy(logs[k], 0, to[k], 0, to[k].length); ArrayMath.logNormalize(to[k]); return to[k][0]; }
+      }, null);
+      report(length, millis, new Kernel("fastLogSum") {
+        @Override double run(int k) { return ArrayMath.fastLogSum(logs[k]); }
+      }, new Kernel("logSum") {
+        @Override double run(int k) { return ArrayMath.logSum(logs[k]); }
+      });
+      report(length, millis, new Kernel("fastExp, each") {
+        @Override double run(int k) {
+          double s = 0.0;
+          for (double d : logs[k]) { s += SloppyMath.fastExp(d); }
+          return s;
+        }
+      }, new Kernel("Math.exp") {
+        @Override double run(int k) {
+          double s = 0.0;
+          for (double d : logs[k]) { s += Math.exp(d); }
+          return s;
+        }
+      });
+      report(length, millis, new Kernel("fastLog, each") {
+        @Override double run(int k) {
+          double s = 0.0;
+          for (double d : a[k]) { s += SloppyMath.fastLog(d); }
+          return s;
+        }
+      }, new Kernel("Math.log") {
+        @Override double run(int k) {
+          double s = 0.0;
+          for (double d : a[k]) { s += Math.log(d); }
+          return s;
+        }
+      });
+      report(length, millis, new Kernel("logAdd, running") {
+        @Override double run(int k) {
+          double s = Double.NEGATIVE_INFINITY;
+          for (double d : logs[k]) { s = SloppyMath.logAdd(s, d); }
+          return s;
+        }
+      }, null);
+    }
+    System.out.println("(sink " + sink + ")");
+  }
+
+}
@@ -13,6 +13,7 @@ import edu.stanford.nlp.io.PrintFile;
 import edu.stanford.nlp.io.RuntimeIOException;
 import edu.stanford.nlp.math.ArrayMath;
 import edu.stanford.nlp.maxent.*;
+import edu.stanford.nlp.util.concurrent.ContiguousBlocks;
 
 
 import java.text.NumberFormat;
@@ -81,6 +82,22 @@ public class LambdaSolve {
   public boolean weightRanks;
   public boolean convertValues;
 
+  /**
+   * The number of threads logLikelihoodScratch and getDerivatives run on.
+   */
+  private int numThreads = 1;
+
+  /**
+   * The occurrences of the features grouped by x, for computing probConds
+   * on several threads: the occurrences of x are xStarts[x] up to
+   * xStarts[x + 1], each with its feature number, y and value, in feature
+   * number order.  Built the first time it is needed.
+   */
+  private int[] xStarts;
+  private int[] xFeatures;
+  private int[] xYs;
+  private double[] xVals;
+
 
   public LambdaSolve(Problem p1, double eps1, double nerr1) {
     p = p1;
@@ -917,6 +934,9 @@ public class LambdaSolve {
    * @return The log likelihood of the data
    */
   public double logLikelihoodScratch() {
+    if (numThreads > 1) {
+      return logLikelihoodScratchThreaded();
+    }
     // zero all the variables
     double s = 0;
     for (int i = 0; i < probConds.length; i++) {
@@ -985,9 +1005,19 @@ public class LambdaSolve {
   public double[] getDerivatives() {
 
     double[] drvs = new double[lambda.length];
+    if (numThreads > 1) {
+      getDerivativesThreaded(drvs);
+      return drvs;
+    }
+    getDerivatives(drvs, 0, drvs.length);
+    return drvs;
+  }
+
+  /** Sets the derivatives of features start up to end */
+  private void getDerivatives(double[] drvs, int start, int end) {
     Experiments exp = p.data;
 
-    for (int fNo = 0; fNo < drvs.length; fNo++) {  // cpu samples #2,#10,#12: 27.3%
+    for (int fNo = start; fNo < end; fNo++) {  // cpu samples #2,#10,#12: 27.3%
       Feature f = p.functions.get(fNo);
       double sum = ftildeArr[fNo] * exp.getNumber();
       drvs[fNo] = -sum;
@@ -1003,7 +1033,133 @@ public class LambdaSolve {
       }//for
       //if(sum==0){drvs[fNo]=0;}
     }
-    return drvs;
+  }
+
+
+  /**
+   * Sets the number of threads that logLikelihoodScratch and getDerivatives
+   * run on.  The results do not depend on it: each x and each feature is
+   * computed just as it is on one thread, and the log likelihood is added up
+   * in the same order.
+   */
+  public void setNumThreads(int numThreads) {
+    this.numThreads = numThreads;
+  }
+
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  /** Groups the occurrences of the features by x, keeping them in feature number order */
+  private void indexOccurrencesByX() {
+    int xSize = probConds.length;
+    int fSize = p.fSize;
+    xStarts = new int[xSize + 1];
+    for (int fNo = 0; fNo < fSize; fNo++) {
+      Feature f = p.functions.get(fNo);
+      for (int i = 0, length = f.len(); i < length; i++) {
+        xStarts[f.getX(i) + 1]++;
+      }
+    }
+    for (int x = 0; x < xSize; x++) {
+      xStarts[x + 1] += xStarts[x];
+    }
+    int[] next = new int[xSize];
+    System.arraycopy(xStarts, 0, next, 0, xSize);
+    xFeatures = new int[xStarts[xSize]];
+    xYs = new int[xStarts[xSize]];
+    xVals = ASSUME_BINARY ? null : new double[xStarts[xSize]];
+    for (int fNo = 0; fNo < fSize; fNo++) {
+      Feature f = p.functions.get(fNo);
+      for (int i = 0, length = f.len(); i < length; i++) {
+        int occurrence = next[f.getX(i)]++;
+        xFeatures[occurrence] = fNo;
+        xYs[occurrence] = f.getY(i);
+        if (xVals != null) {
+          xVals[occurrence] = f.getVal(i);
+        }
+      }
+    }
+  }
+
+  /**
+   * logLikelihoodScratch on several threads.  Rather than adding each
+   * feature's lambda into probConds, each x adds up the lambdas of its own
+   * features, so that blocks of x can be done at once.
+   */
+  private double logLikelihoodScratchThreaded() {
+    if (xStarts == null) {
+      indexOccurrencesByX();
+    }
+    final Experiments exp = p.data;
+    double s = 0;
+    for (int fNo = 0, fSize = p.fSize; fNo < fSize; fNo++) {
+      double fLambda = lambda[fNo];
+      double sum = ftildeArr[fNo];
+      sum *= exp.getNumber();
+      s -= sum * fLambda;
+
+      if (Math.abs(fLambda) > 200) {   // was 50
+        System.out.println("lambda " + fNo + " too big: " + fLambda);
+      }
+    }
+
+    final double[] xLikelihoods = new double[probConds.length];
+    int[] xSizes = new int[probConds.length];
+    for (int x = 0; x < xSizes.length; x++) {
+      xSizes[x] = xStarts[x + 1] - xStarts[x];
+    }
+    ContiguousBlocks.process(ContiguousBlocks.weightedStarts(xSizes, numThreads), new ContiguousBlocks.Job<Void>() {
+      @Override
+      public Void process(int block, int start, int end) {
+        for (int x = start; x < end; x++) {
+          double[] probCondsX = probConds[x];
+          for (int y = 0; y < probCondsX.length; y++) {
+            probCondsX[y] = 0;
+          }
+          for (int occurrence = xStarts[x]; occurrence < xStarts[x + 1]; occurrence++) {
+            double fLambda = lambda[xFeatures[occurrence]];
+            if (xVals == null) {
+              probCondsX[xYs[occurrence]] += fLambda;
+            } else {
+              probCondsX[xYs[occurrence]] += xVals[occurrence] * fLambda;
+            }
+          }
+          zlambda[x] = ArrayMath.logSum(probCondsX);
+          xLikelihoods[x] = zlambda[x] * exp.ptildeX(x) * exp.getNumber();
+          for (int y = 0; y < probCondsX.length; y++) {
+            probCondsX[y] = divide(probCondsX[y], zlambda[x]);
+          }
+        }
+        return null;
+      }
+    });
+    // added up in x order, as on one thread
+    for (double xLikelihood : xLikelihoods) {
+      s += xLikelihood;
+    }
+
+    if (s < 0) {
+      System.out.println("neg log lik smaller than 0 " + s);
+      System.exit(0);
+    }
+
+    return s;
+  }
+
+  /** getDerivatives on several threads, each doing a block of features */
+  private void getDerivativesThreaded(final double[] drvs) {
+    int[] featureSizes = new int[drvs.length];
+    for (int fNo = 0; fNo < drvs.length; fNo++) {
+      featureSizes[fNo] = p.functions.get(fNo).len();
+    }
+    ContiguousBlocks.process(ContiguousBlocks.weightedStarts(featureSizes, numThreads), new ContiguousBlocks.Job<Void>() {
+      @Override
+      public Void process(int block, int start, int end) {
+        getDerivatives(drvs, start, end);
+        return null;
+      }
+    });
   }
 
 
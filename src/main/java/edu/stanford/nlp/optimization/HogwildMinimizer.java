@@ -0,0 +1,203 @@
+package edu.stanford.nlp.optimization;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.stanford.nlp.classify.LogConditionalObjectiveFunction;
+import edu.stanford.nlp.classify.LogPrior;
+import edu.stanford.nlp.util.Timing;
+import edu.stanford.nlp.util.concurrent.MulticoreWrapper;
+import edu.stanford.nlp.util.concurrent.ThreadsafeProcessor;
+
+/**
+ * Lock-free parallel version of {@link StochasticInPlaceMinimizer}, after
+ * Hogwild! (Niu, Recht, R&eacute;, and Wright 2011).
+ * <ul>
+ * <li> Each pass, the data is shuffled and split between the threads, which go through
+ *   their share in minibatches, all updating the same weights with no locking.  An update
+ *   only reads and writes the weights of the features in its minibatch, so with sparse
+ *   features the threads seldom touch the same weights, and an update lost to a race
+ *   costs little.
+ * <li> The learning rate and the weight decay are shared, as in the sequential minimizer:
+ *   the step count is an atomic counter, and the scale of the weights is changed
+ *   atomically after each minibatch.
+ * <li> The learning rate is tuned on one thread before training, as in the sequential minimizer.
+ * <li> Requires an objective function whose calculateStochasticUpdate(x, xscale, batch, gain)
+ *   may be called from several threads at once, such as
+ *   {@link LogConditionalObjectiveFunction} or
+ *   {@link edu.stanford.nlp.ie.crf.CRFLogConditionalObjectiveFunction}.
+ * </ul>
+ * The result depends on how the threads happen to be scheduled, so unlike the other
+ * minimizers two runs will not give exactly the same weights.  With one thread this
+ * is plain SGD over shuffled passes of the data.
+ *
+ * @param <T> The type of function minimized
+ */
+public class HogwildMinimizer<T extends Function> extends StochasticInPlaceMinimizer<T> {
+
+  private final int numThreads;
+  // the order of the data in the current pass, and where each thread's stripe of it starts
+  private int[] order;
+  private int[] stripeStarts;
+
+  public HogwildMinimizer(double sigma, int numPasses, int tuningSamples, int batchSize, int numThreads) {
+    super(sigma, numPasses, tuningSamples, batchSize);
+    this.numThreads = Math.max(1, numThreads);
+  }
+
+  public HogwildMinimizer(LogPrior prior, int numPasses, int batchSize, int tuningSamples, int numThreads) {
+    super(prior, numPasses, batchSize, tuningSamples);
+    this.numThreads = Math.max(1, numThreads);
+  }
+
+  @Override
+  protected String getName() {
+    return "Hogwild_t" + numThreads + '_' + super.getName();
+  }
+
+  /** Multiplies the shared scale of the weights by factor, and returns the new scale */
+  private static double scaleBy(AtomicLong scale, double factor) {
+    while (true) {
+      long bits = scale.get();
+      double newScale = Double.longBitsToDouble(bits) * factor;
+      if (scale.compareAndSet(bits, Double.doubleToRawLongBits(newScale))) {
+        return newScale;
+      }
+    }
+  }
+
+  @Override
+  protected void init(AbstractStochasticCachingDiffUpdateFunction function) {
+    int totalSamples = function.dataDimension();
+    order = new int[totalSamples];
+    for (int i = 0; i < totalSamples; i++) {
+      order[i] = i;
+    }
+    int numWorkers = Math.min(numThreads, totalSamples);
+    stripeStarts = new int[numWorkers + 1];
+    for (int w = 0; w <= numWorkers; w++) {
+      stripeStarts[w] = (int) ((long) w * totalSamples / numWorkers);
+    }
+    sayln("       Threads: " + numWorkers);
+  }
+
+  /**
+   * Shuffles the data, and has each thread go through its stripe of it in
+   * batches, all updating x at once.
+   */
+  @Override
+  protected double doPass(final AbstractStochasticCachingDiffUpdateFunction function, int numBatches) {
+    for (int i = order.length - 1; i > 0; i--) {
+      int j = gen.nextInt(i + 1);
+      int tmp = order[i];
+      order[i] = order[j];
+      order[j] = tmp;
+    }
+
+    // the step count and the scale of x, shared by the threads
+    final AtomicLong sharedT = new AtomicLong(t);
+    final AtomicLong sharedScale = new AtomicLong(Double.doubleToRawLongBits(xscale));
+    // each worker returns the sum of the values of its batches and the value of its last batch
+    ThreadsafeProcessor<Integer, double[]> worker = new ThreadsafeProcessor<Integer, double[]>() {
+      @Override
+      public double[] process(Integer w) {
+        double[] values = new double[2];
+        for (int start = stripeStarts[w]; start < stripeStarts[w + 1]; start += bSize) {
+          int[] batch = new int[Math.min(bSize, stripeStarts[w + 1] - start)];
+          System.arraycopy(order, start, batch, 0, batch.length);
+          values[1] = update(function, batch, sharedT, sharedScale);
+          values[0] += values[1];
+        }
+        return values;
+      }
+      @Override
+      public ThreadsafeProcessor<Integer, double[]> newInstance() {
+        return this;
+      }
+    };
+    int numWorkers = stripeStarts.length - 1;
+    MulticoreWrapper<Integer, double[]> wrapper = new MulticoreWrapper<>(numWorkers, worker);
+    for (int w = 0; w < numWorkers; w++) {
+      wrapper.put(w);
+    }
+    wrapper.join();
+    double totalValue = 0;
+    while (wrapper.peek()) {
+      double[] values = wrapper.poll();
+      totalValue += values[0];
+      lastValue = values[1];
+    }
+    t = (int) sharedT.get();
+    xscale = Double.longBitsToDouble(sharedScale.get());
+    return totalValue;
+  }
+
+  /**
+   * Updates x for one batch, with the shared step count and scale of x, and
+   * returns the value of the batch
+   */
+  private double update(AbstractStochasticCachingDiffUpdateFunction function, int[] batch,
+                        AtomicLong sharedT, AtomicLong sharedScale) {
+    double eta = 1/(lambda*sharedT.getAndAdd(batch.length));
+    double scale = Double.longBitsToDouble(sharedScale.get());
+    double value = function.calculateStochasticUpdate(x, scale, batch, eta/scale);
+    // weight decay (for L2 regularization)
+    scaleBy(sharedScale, 1 - eta * lambda*batch.length);
+    return value;
+  }
+
+
+  /**
+   * Trains a logistic regression on random sparse data with {@link SGDMinimizer},
+   * {@link StochasticInPlaceMinimizer}, and this minimizer at 1, 4 and 16 threads,
+   * all for the same number of passes.  Each minimizer prints the loss after each
+   * pass, which gives its convergence curve, and the regularized objective over all
+   * the data at the end is reported for each, with the time taken.
+   * Usage: HogwildMinimizer [numDatums [numFeatures [passes]]]
+   */
+  public static void main(String[] args) {
+    int numDatums = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+    int numFeatures = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+    int passes = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+    int numClasses = 4;
+    int featuresPerDatum = 20;
+    int batchSize = 10;
+    // each label is mostly decided by the first feature of the datum
+    Random random = new Random(1);
+    int[][] data = new int[numDatums][featuresPerDatum];
+    int[] labels = new int[numDatums];
+    for (int d = 0; d < numDatums; d++) {
+      for (int n = 0; n < featuresPerDatum; n++) {
+        data[d][n] = random.nextInt(numFeatures);
+      }
+      labels[d] = random.nextInt(5) == 0 ? random.nextInt(numClasses) : data[d][0] % numClasses;
+    }
+    // with sigma 1 the prior of the objective is the regularization of the in place minimizers
+    double sigma = 1.0;
+    LogPrior prior = new LogPrior(LogPrior.LogPriorType.QUADRATIC, sigma, 0.1);
+
+    String[] names = { "SGDMinimizer", "StochasticInPlaceMinimizer", "HogwildMinimizer 1", "HogwildMinimizer 4", "HogwildMinimizer 16" };
+    double[] objectives = new double[names.length];
+    double[] seconds = new double[names.length];
+    for (int m = 0; m < names.length; m++) {
+      System.err.println("Training with " + names[m]);
+      LogConditionalObjectiveFunction<Integer, Integer> function = new LogConditionalObjectiveFunction<>(numFeatures, numClasses, data, labels, prior);
+      Minimizer<DiffFunction> minimizer;
+      if (m == 0) {
+        minimizer = new SGDMinimizer<>(0.1, batchSize, passes);
+      } else if (m == 1) {
+        minimizer = new StochasticInPlaceMinimizer<>(sigma, passes, -1, batchSize);
+      } else {
+        minimizer = new HogwildMinimizer<>(sigma, passes, -1, batchSize, Integer.parseInt(names[m].substring(names[m].indexOf(' ') + 1)));
+      }
+      Timing timing = new Timing();
+      double[] weights = minimizer.minimize(function, 1e-4, function.initial());
+      seconds[m] = timing.stop() / 1000.0;
+      objectives[m] = function.valueAt(weights);
+    }
+    for (int m = 0; m < names.length; m++) {
+      System.err.printf("%-28s objective %.4f in %.2f sec.%n", names[m], objectives[m], seconds[m]);
+    }
+  }
+
+}
@@ -1132,6 +1132,7 @@ public class QNMinimizer implements Minimizer<DiffFunction>, HasEvaluators {
     }
 
     double completionTime = rec.howLong();
+    sayln("Iterations: " + its + ", function evaluations: " + fevals);
     sayln("Total time spent in optimization: " + nfsec.format(completionTime) + 's');
 
     if (outputToFile) {
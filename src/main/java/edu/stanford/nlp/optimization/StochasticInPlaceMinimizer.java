@@ -25,6 +25,8 @@ public class StochasticInPlaceMinimizer<T extends Function> implements Minimizer
   protected double xscale, xnorm;
   protected double[] x;
   protected int t0;  // Initial stochastic iteration count
+  protected int t;   // Stochastic iteration count, which sets the learning rate
+  protected double lastValue;  // Value of the last batch
   protected final double sigma;
   protected double lambda;
   protected boolean quiet;
@@ -38,8 +40,8 @@ public class StochasticInPlaceMinimizer<T extends Function> implements Minimizer
   protected Random gen = new Random(1);
   protected long maxTime = Long.MAX_VALUE;
 
-  private int evaluateIters;    // Evaluate every x iterations (0 = no evaluation)
-  private Evaluator[] evaluators;  // separate set of evaluators to check how optimization is going
+  protected int evaluateIters;    // Evaluate every x iterations (0 = no evaluation)
+  protected Evaluator[] evaluators;  // separate set of evaluators to check how optimization is going
 
 
   public StochasticInPlaceMinimizer(double sigma, int numPasses)
@@ -197,7 +199,7 @@ public class StochasticInPlaceMinimizer<T extends Function> implements Minimizer
   }
 
   // really this is the square of the L2 norm....
-  private static double getNorm(double... w)
+  protected static double getNorm(double... w)
   {
     double norm = 0;
       for (double aW : w) {
@@ -206,7 +208,7 @@ public class StochasticInPlaceMinimizer<T extends Function> implements Minimizer
     return norm;
   }
 
-  private void rescale()
+  protected void rescale()
   {
     if (xscale == 1) return;
     for (int i = 0; i < x.length; i++) {
@@ -215,7 +217,7 @@ public class StochasticInPlaceMinimizer<T extends Function> implements Minimizer
     xscale = 1;
   }
 
-  private void doEvaluation(double... x) {
+  protected void doEvaluation(double... x) {
     // Evaluate solution
     if (evaluators == null) return;
     for (Evaluator eval:evaluators) {
@@ -276,7 +278,7 @@ public class StochasticInPlaceMinimizer<T extends Function> implements Minimizer
     Timing current = new Timing();
     total.start();
     current.start();
-    int t=t0;
+    t = t0;
     int iters = 0;
     for (int pass = 0; pass < numPasses; pass++)  {
       boolean doEval = pass > 0 && evaluateIters > 0 && pass % evaluateIters == 0;
@@ -285,21 +287,9 @@ public class StochasticInPlaceMinimizer<T extends Function> implements Minimizer
         doEvaluation(x);
       }
 
-      double totalValue = 0;
-      double lastValue = 0;
       say("Iter: " + iters + " pass " + pass + " batch 1 ... ");
-      for (int batch = 0; batch < numBatches; batch++) {
-        iters++;
-
-        //Get the next X
-        double eta = 1/(lambda*t);
-        double gain = eta/xscale;
-        lastValue = function.calculateStochasticUpdate(x, xscale, bSize, gain);
-        totalValue += lastValue;
-        // weight decay (for L2 regularization)
-        xscale *= 1 - eta * lambda*bSize;
-        t+=bSize;
-      }
+      double totalValue = doPass(function, numBatches);
+      iters += numBatches;
       if (xscale < 1.0e-6) {
         rescale();
       }
@@ -341,6 +331,25 @@ public class StochasticInPlaceMinimizer<T extends Function> implements Minimizer
     return x;
   }
 
+  /**
+   * Goes through the data once in numBatches batches, updating x, xscale and t,
+   * and returns the sum of the values of the batches.  Also sets lastValue.
+   */
+  protected double doPass(AbstractStochasticCachingDiffUpdateFunction function, int numBatches) {
+    double totalValue = 0;
+    for (int batch = 0; batch < numBatches; batch++) {
+      //Get the next X
+      double eta = 1/(lambda*t);
+      double gain = eta/xscale;
+      lastValue = function.calculateStochasticUpdate(x, xscale, bSize, gain);
+      totalValue += lastValue;
+      // weight decay (for L2 regularization)
+      xscale *= 1 - eta * lambda*bSize;
+      t+=bSize;
+    }
+    return totalValue;
+  }
+
   protected void sayln(String s) {
     if (!quiet) {
       System.err.println(s);
@@ -7,11 +7,9 @@ import java.util.Collections;
 import java.util.Comparator;
 import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
-import ca.gedge.radixtree.RadixTree;
 import edu.stanford.nlp.io.RuntimeIOException;
 import edu.stanford.nlp.ling.TaggedWord;
 import edu.stanford.nlp.math.SloppyMath;
@@ -24,10 +22,9 @@ import edu.stanford.nlp.util.Index;
 import edu.stanford.nlp.util.MapFactory;
 
 import edu.stanford.nlp.util.Pair;
-import edu.stanford.nlp.util.ThreeDimensionalMap;
+import edu.stanford.nlp.util.Timing;
 import edu.stanford.nlp.util.Triple;
-import edu.stanford.nlp.util.TwoDimensionalMap;
-import javolution.util.FastMap;
+import edu.stanford.nlp.util.concurrent.ContiguousBlocks;
 import javolution.util.FastSet;
 
 
@@ -38,7 +35,7 @@ import java.io.*;
  * grammar.  This work is experimental and still in progress.  There
  * are several extremely important pieces to implement:
  * <ol>
- * <li> this code should use log probabilities throughout instead of 
+ * <li> this code should use log probabilities throughout instead of
  *      multiplying tiny numbers
  * <li> time efficiency of the training code is fawful
  * <li> there are better ways to extract parses using this grammar than
@@ -49,6 +46,12 @@ import java.io.*;
  * <li> when looping, we should short circuit if we go too many loops
  * <li> ought to smooth as per page 436
  * </ol>
+ * <br>
+ * The labels of the trees and the rules between them are given int
+ * ids, and the trees are turned into arrays of those ids, so that the
+ * passes over the trees look nothing up by string.  Each pass splits
+ * the trees into one block per training thread (-trainingThreads),
+ * and each block sums its counts separately before they are added up.
  *
  * @author John Bauer
  */
@@ -62,7 +65,7 @@ public class SplittingGrammarExtractor {
   boolean DEBUG() {
     return iteration >= MIN_DEBUG_ITERATION && iteration < MAX_DEBUG_ITERATION;
   }
-  
+
   Options op;
   /**
    * These objects are created and filled in here.  The caller can get
@@ -104,16 +107,45 @@ public class SplittingGrammarExtractor {
    */
   IntCounter<String> stateSplitCounts = new IntCounter<>();
 
+  /**
+   * The labels in the trees, that is, the original states.  Labels
+   * are referred to by their index here everywhere else.
+   */
+  Index<String> labelIndex = new HashIndex<>();
+
+  /**
+   * Whether each label is ever the label of a preterminal
+   */
+  boolean[] labelIsTag;
+
+  /**
+   * The unary transitions A to B found in the trees, as rules between
+   * label ids.  The index of a rule is its id.
+   */
+  Index<UnaryRule> unaryRules = new HashIndex<>();
+
+  /**
+   * The binary transitions A to B, C found in the trees, as rules
+   * between label ids.  The index of a rule is its id.
+   */
+  Index<BinaryRule> binaryRules = new HashIndex<>();
+
   /**
    * The binary betas are weights to go from Ax to By, Cz.  This maps
-   * from (A, B, C) to (x, y, z) to beta(Ax, By, Cz).
+   * from the id of the rule A to B, C to (x, y, z) to beta(Ax, By, Cz).
+   */
+  double[][][][] binaryBetas;
+  /**
+   * The unary betas are weights to go from Ax to By.  This maps
+   * from the id of the rule A to B to (x, y) to beta(Ax, By).
    */
-  ThreeDimensionalMap<String, String, String, double[][][]> binaryBetas = new ThreeDimensionalMap<>();
+  double[][][] unaryBetas;
+
   /**
-   * The unary betas are weights to go from Ax to By.  This maps 
-   * from (A, B) to (x, y) to beta(Ax, By).
+   * The trees in the training set as arrays of label and rule ids,
+   * in the same order as trees.
    */
-  TwoDimensionalMap<String, String, double[][]> unaryBetas = new TwoDimensionalMap<>();
+  List<IndexedTree> indexedTrees = new ArrayList<>();
 
   /**
    * The latest lexicon we trained.  At the end of the process, this
@@ -123,7 +155,7 @@ public class SplittingGrammarExtractor {
 
   transient Index<String> tempWordIndex;
   transient Index<String> tempTagIndex;
-  
+
   /**
    * The lexicon we are in the process of building in each iteration.
    */
@@ -152,87 +184,162 @@ public class SplittingGrammarExtractor {
     return result;
   }
 
-  public void outputTransitions(Tree tree, 
-                                IdentityHashMap<Tree, double[][]> unaryTransitions,
-                                IdentityHashMap<Tree, double[][][]> binaryTransitions) {
-    outputTransitions(tree, 0, unaryTransitions, binaryTransitions);
+
+  /**
+   * A binarized training tree, as arrays indexed by node.  The nodes
+   * are the nonterminals of the tree numbered in preorder, so each
+   * node comes before its children and the preterminals come in the
+   * order of their words.
+   */
+  static class IndexedTree {
+    final double weight;
+    /** The label id of each node */
+    final int[] labels;
+    /** The unary or binary rule id of each node, or -1 for a preterminal */
+    final int[] rules;
+    /** The first child of each node, or -1 for a preterminal */
+    final int[] left;
+    /** The second child of each node, or -1 for a preterminal or a unary node */
+    final int[] right;
+    /** The word of each preterminal, or null for other nodes */
+    final String[] words;
+    /** The position in the sentence of the word of each preterminal */
+    final int[] positions;
+
+    IndexedTree(int size, double weight) {
+      this.weight = weight;
+      labels = new int[size];
+      rules = new int[size];
+      left = new int[size];
+      right = new int[size];
+      words = new String[size];
+      positions = new int[size];
+    }
+
+    int size() {
+      return labels.length;
+    }
+
+    boolean isPreTerminal(int node) {
+      return rules[node] < 0;
+    }
+
+    boolean isUnary(int node) {
+      return rules[node] >= 0 && right[node] < 0;
+    }
   }
 
-  public static void outputTransitions(Tree tree, int depth,
-                                       IdentityHashMap<Tree, double[][]> unaryTransitions,
-                                       IdentityHashMap<Tree, double[][][]> binaryTransitions) {
-    for (int i = 0; i < depth; ++i) {
-      System.out.print(" ");
+  /**
+   * Turns the tree into an IndexedTree, adding its labels and rules
+   * to labelIndex, unaryRules and binaryRules.
+   */
+  IndexedTree indexTree(Tree tree, double weight) {
+    List<Tree> nodes = new ArrayList<>();
+    if (!tree.isLeaf()) {
+      // a training tree which is just one leaf has no nodes
+      preorderNodes(tree, nodes);
+    }
+    IdentityHashMap<Tree, Integer> nodeIds = new IdentityHashMap<>();
+    for (int node = 0; node < nodes.size(); ++node) {
+      nodeIds.put(nodes.get(node), node);
+    }
+
+    IndexedTree indexed = new IndexedTree(nodes.size(), weight);
+    int position = 0;
+    for (int node = 0; node < nodes.size(); ++node) {
+      Tree subtree = nodes.get(node);
+      int label = labelIndex.indexOf(subtree.label().value(), true);
+      indexed.labels[node] = label;
+      if (subtree.isPreTerminal()) {
+        indexed.rules[node] = -1;
+        indexed.left[node] = -1;
+        indexed.right[node] = -1;
+        indexed.words[node] = subtree.children()[0].label().value();
+        indexed.positions[node] = position++;
+      } else if (subtree.children().length == 1) {
+        Tree child = subtree.children()[0];
+        int childLabel = labelIndex.indexOf(child.label().value(), true);
+        indexed.rules[node] = unaryRules.indexOf(new UnaryRule(label, childLabel), true);
+        indexed.left[node] = nodeIds.get(child);
+        indexed.right[node] = -1;
+      } else if (subtree.children().length == 2) {
+        Tree leftChild = subtree.children()[0];
+        Tree rightChild = subtree.children()[1];
+        int leftLabel = labelIndex.indexOf(leftChild.label().value(), true);
+        int rightLabel = labelIndex.indexOf(rightChild.label().value(), true);
+        indexed.rules[node] = binaryRules.indexOf(new BinaryRule(label, leftLabel, rightLabel), true);
+        indexed.left[node] = nodeIds.get(leftChild);
+        indexed.right[node] = nodeIds.get(rightChild);
+      } else {
+        // should have been binarized
+        throw new RuntimeException("Trees should have been binarized, expected 1 or 2 children");
+      }
     }
-    if (tree.isLeaf()) {
-      System.out.println(tree.label().value());
+    return indexed;
+  }
+
+  private static void preorderNodes(Tree tree, List<Tree> nodes) {
+    nodes.add(tree);
+    if (tree.isPreTerminal()) {
       return;
     }
-    if (tree.children().length == 1) {
-      System.out.println(tree.label().value() + " -> " + tree.children()[0].label().value());
-      if (!tree.isPreTerminal()) {
-        double[][] transitions = unaryTransitions.get(tree);
+    for (Tree child : tree.children()) {
+      preorderNodes(child, nodes);
+    }
+  }
+
+  public void outputTransitions(IndexedTree tree, TreeScores scores) {
+    for (int node = 0; node < tree.size(); ++node) {
+      if (tree.isPreTerminal(node)) {
+        System.out.println(labelIndex.get(tree.labels[node]) + " -> " + tree.words[node]);
+      } else if (tree.isUnary(node)) {
+        System.out.println(labelIndex.get(tree.labels[node]) + " -> " + labelIndex.get(tree.labels[tree.left[node]]));
+        double[][] transitions = scores.unaryTransitions[node];
         for (int i = 0; i < transitions.length; ++i) {
           for (int j = 0; j < transitions[0].length; ++j) {
-            for (int z = 0; z < depth; ++z) {
-              System.out.print(" ");
-            }
             System.out.println("  " + i + ',' + j + ": " + transitions[i][j] + " | " + Math.exp(transitions[i][j]));
           }
         }
-      }
-    } else {
-      System.out.println(tree.label().value() + " -> " + tree.children()[0].label().value() + ' ' + tree.children()[1].label().value());
-      double[][][] transitions = binaryTransitions.get(tree);
-      for (int i = 0; i < transitions.length; ++i) {
-        for (int j = 0; j < transitions[0].length; ++j) {
-          for (int k = 0; k < transitions[0][0].length; ++k) {
-            for (int z = 0; z < depth; ++z) {
-              System.out.print(" ");
+      } else {
+        System.out.println(labelIndex.get(tree.labels[node]) + " -> " + labelIndex.get(tree.labels[tree.left[node]]) + ' ' + labelIndex.get(tree.labels[tree.right[node]]));
+        double[][][] transitions = scores.binaryTransitions[node];
+        for (int i = 0; i < transitions.length; ++i) {
+          for (int j = 0; j < transitions[0].length; ++j) {
+            for (int k = 0; k < transitions[0][0].length; ++k) {
+              System.out.println("  " + i + ',' + j + ',' + k + ": " + transitions[i][j][k] + " | " + Math.exp(transitions[i][j][k]));
             }
-            System.out.println("  " + i + ',' + j + ',' + k + ": " + transitions[i][j][k] + " | " + Math.exp(transitions[i][j][k]));
           }
         }
       }
     }
-    if (tree.isPreTerminal()) {
-      return;
-    }
-    for (Tree child : tree.children()) {
-      outputTransitions(child, depth + 1, unaryTransitions, binaryTransitions);
-    }
   }
 
   public void outputBetas() {
     System.out.println("UNARY:");
-    for (String parent : unaryBetas.firstKeySet()) { 
-      for (String child : unaryBetas.get(parent).keySet()) {
-        System.out.println("  " + parent + "->" + child);
-        double[][] betas = unaryBetas.get(parent).get(child);
-        int parentStates = betas.length;
-        int childStates = betas[0].length;
-        for (int i = 0; i < parentStates; ++i) {
-          for (int j = 0; j < childStates; ++j) {
-            System.out.println("    " + i + "->" + j + ' ' + betas[i][j] + " | " + Math.exp(betas[i][j]));
-          }
+    for (int rule = 0; rule < unaryRules.size(); ++rule) {
+      UnaryRule ur = unaryRules.get(rule);
+      System.out.println("  " + labelIndex.get(ur.parent) + "->" + labelIndex.get(ur.child));
+      double[][] betas = unaryBetas[rule];
+      int parentStates = betas.length;
+      int childStates = betas[0].length;
+      for (int i = 0; i < parentStates; ++i) {
+        for (int j = 0; j < childStates; ++j) {
+          System.out.println("    " + i + "->" + j + ' ' + betas[i][j] + " | " + Math.exp(betas[i][j]));
         }
       }
     }
     System.out.println("BINARY:");
-    for (String parent : binaryBetas.firstKeySet()) { 
-      for (String left : binaryBetas.get(parent).firstKeySet()) {
-        for (String right : binaryBetas.get(parent).get(left).keySet()) {
-          System.out.println("  " + parent + "->" + left + ',' + right);
-          double[][][] betas = binaryBetas.get(parent).get(left).get(right);
-          int parentStates = betas.length;
-          int leftStates = betas[0].length;
-          int rightStates = betas[0][0].length;
-          for (int i = 0; i < parentStates; ++i) {
-            for (int j = 0; j < leftStates; ++j) {
-              for (int k = 0; k < rightStates; ++k) {
-                System.out.println("    " + i + "->" + j + ',' + k + ' ' + betas[i][j][k] + " | " + Math.exp(betas[i][j][k]));
-              }
-            }
+    for (int rule = 0; rule < binaryRules.size(); ++rule) {
+      BinaryRule br = binaryRules.get(rule);
+      System.out.println("  " + labelIndex.get(br.parent) + "->" + labelIndex.get(br.leftChild) + ',' + labelIndex.get(br.rightChild));
+      double[][][] betas = binaryBetas[rule];
+      int parentStates = betas.length;
+      int leftStates = betas[0].length;
+      int rightStates = betas[0][0].length;
+      for (int i = 0; i < parentStates; ++i) {
+        for (int j = 0; j < leftStates; ++j) {
+          for (int k = 0; k < rightStates; ++k) {
+            System.out.println("    " + i + "->" + j + ',' + k + ' ' + betas[i][j][k] + " | " + Math.exp(betas[i][j][k]));
           }
         }
       }
@@ -254,6 +361,17 @@ public class SplittingGrammarExtractor {
     return stateSplitCounts.getIntCount(label);
   }
 
+  /**
+   * The current number of states of each label, by label id
+   */
+  int[] labelStates() {
+    int[] states = new int[labelIndex.size()];
+    for (int label = 0; label < states.length; ++label) {
+      states[label] = getStateSplitCount(labelIndex.get(label));
+    }
+    return states;
+  }
+
 
   /**
    * Count all the internal labels in all the trees, and set their
@@ -292,56 +410,35 @@ public class SplittingGrammarExtractor {
     lex = op.tlpParams.lex(op, wordIndex, tagIndex);
     lex.initializeTraining(trainSize);
 
+    indexedTrees.clear();
     for (Tree tree : trees) {
       double weight = treeWeights.get(tree);
+      IndexedTree indexed = indexTree(tree, weight);
+      indexedTrees.add(indexed);
       lex.incrementTreesRead(weight);
-      initialBetasAndLexicon(tree, 0, weight);
+      for (int node = 0; node < indexed.size(); ++node) {
+        if (indexed.isPreTerminal(node)) {
+          // fill in initial lexicon here
+          String tag = labelIndex.get(indexed.labels[node]);
+          TaggedWord tw = new TaggedWord(indexed.words[node], state(tag, 0));
+          lex.train(tw, indexed.positions[node], weight);
+        }
+      }
     }
 
     lex.finishTraining();
-  }
 
-  private int initialBetasAndLexicon(Tree tree, int position, double weight) {
-    if (tree.isLeaf()) {
-      // should never get here, unless a training tree is just one leaf
-      return position;
-    }
-
-    if (tree.isPreTerminal()) {
-      // fill in initial lexicon here
-      String tag = tree.label().value();
-      String word = tree.children()[0].label().value();
-      TaggedWord tw = new TaggedWord(word, state(tag, 0));
-      lex.train(tw, position, weight);
-      return position + 1;
-    } 
-
-    if (tree.children().length == 2) {
-      String label = tree.label().value();
-      String leftLabel = tree.getChild(0).label().value();
-      String rightLabel = tree.getChild(1).label().value();
-      if (!binaryBetas.contains(label, leftLabel, rightLabel)) {
-        double[][][] map = new double[1][1][1];
-        map[0][0][0] = 0.0;
-        binaryBetas.put(label, leftLabel, rightLabel, map);
-      }
-    } else if (tree.children().length == 1) {
-      String label = tree.label().value();
-      String childLabel = tree.getChild(0).label().value();
-      if (!unaryBetas.contains(label, childLabel)) {
-        double[][] map = new double[1][1];
-        map[0][0] = 0.0;
-        unaryBetas.put(label, childLabel, map);
+    labelIsTag = new boolean[labelIndex.size()];
+    for (IndexedTree tree : indexedTrees) {
+      for (int node = 0; node < tree.size(); ++node) {
+        if (tree.isPreTerminal(node)) {
+          labelIsTag[tree.labels[node]] = true;
+        }
       }
-    } else {
-      // should have been binarized
-      throw new RuntimeException("Trees should have been binarized, expected 1 or 2 children");
     }
 
-    for (Tree child : tree.children()) {
-      position = initialBetasAndLexicon(child, position, weight);
-    }
-    return position;
+    unaryBetas = new double[unaryRules.size()][1][1];
+    binaryBetas = new double[binaryRules.size()][1][1][1];
   }
 
 
@@ -369,7 +466,7 @@ public class SplittingGrammarExtractor {
 
     stateSplitCounts = newStateSplitCounts;
   }
-  
+
 
   static final double EPSILON = 0.0001;
 
@@ -381,98 +478,125 @@ public class SplittingGrammarExtractor {
    * variation between child states.
    */
   public void splitBetas() {
-    TwoDimensionalMap<String, String, double[][]> tempUnaryBetas = new TwoDimensionalMap<>();
-    ThreeDimensionalMap<String, String, String, double[][][]> tempBinaryBetas = new ThreeDimensionalMap<>();
+    double[][][] tempUnaryBetas = new double[unaryRules.size()][][];
+    double[][][][] tempBinaryBetas = new double[binaryRules.size()][][][];
+
+    for (int rule = 0; rule < unaryRules.size(); ++rule) {
+      UnaryRule ur = unaryRules.get(rule);
+      String parent = labelIndex.get(ur.parent);
+      String child = labelIndex.get(ur.child);
+      double[][] betas = unaryBetas[rule];
+      int parentStates = betas.length;
+      int childStates = betas[0].length;
 
-    for (String parent : unaryBetas.firstKeySet()) {
-      for (String child : unaryBetas.get(parent).keySet()) {
-        double[][] betas = unaryBetas.get(parent, child);
-        int parentStates = betas.length;
-        int childStates = betas[0].length;
-        
-        double[][] newBetas;
-        if (!startSymbols.contains(parent)) {
-          newBetas = new double[(parentStates << 1)][childStates];
-          for (int i = 0; i < parentStates; ++i) {
-            for (int j = 0; j < childStates; ++j) {
-              newBetas[(i << 1)][j] = betas[i][j];
-              newBetas[(i << 1) + 1][j] = betas[i][j];
-            }
+      double[][] newBetas;
+      if (!startSymbols.contains(parent)) {
+        newBetas = new double[(parentStates << 1)][childStates];
+        for (int i = 0; i < parentStates; ++i) {
+          for (int j = 0; j < childStates; ++j) {
+            newBetas[(i << 1)][j] = betas[i][j];
+            newBetas[(i << 1) + 1][j] = betas[i][j];
           }
-            parentStates <<= 1;
-          betas = newBetas;
         }
-        if (!child.equals(Lexicon.BOUNDARY_TAG)) {
-          newBetas = new double[parentStates][(childStates << 1)];
-          for (int i = 0; i < parentStates; ++i) {
-            for (int j = 0; j < childStates; ++j) {
-              double childWeight = 0.45 + random.nextDouble() * 0.1;
-              newBetas[i][(j << 1)] = betas[i][j] + Math.log(childWeight);
-              newBetas[i][(j << 1) + 1] = betas[i][j] + Math.log(1.0 - childWeight);
-            }
+          parentStates <<= 1;
+        betas = newBetas;
+      }
+      if (!child.equals(Lexicon.BOUNDARY_TAG)) {
+        newBetas = new double[parentStates][(childStates << 1)];
+        for (int i = 0; i < parentStates; ++i) {
+          for (int j = 0; j < childStates; ++j) {
+            double childWeight = 0.45 + random.nextDouble() * 0.1;
+            newBetas[i][(j << 1)] = betas[i][j] + Math.log(childWeight);
+            newBetas[i][(j << 1) + 1] = betas[i][j] + Math.log(1.0 - childWeight);
           }
-          betas = newBetas;
         }
-        tempUnaryBetas.put(parent, child, betas);
+        betas = newBetas;
       }
+      tempUnaryBetas[rule] = betas;
     }
 
-    for (String parent : binaryBetas.firstKeySet()) {
-      for (String left : binaryBetas.get(parent).firstKeySet()) {
-        for (String right : binaryBetas.get(parent).get(left).keySet()) {
-          double[][][] betas = binaryBetas.get(parent, left, right);
-          int parentStates = betas.length;
-          int leftStates = betas[0].length;
-          int rightStates = betas[0][0].length;
-        
-          double[][][] newBetas;
-          if (!startSymbols.contains(parent)) {
-            newBetas = new double[(parentStates << 1)][leftStates][rightStates];
-            for (int i = 0; i < parentStates; ++i) {
-              for (int j = 0; j < leftStates; ++j) {
-                for (int k = 0; k < rightStates; ++k) {
-                  newBetas[(i << 1)][j][k] = betas[i][j][k];
-                  newBetas[(i << 1) + 1][j][k] = betas[i][j][k];
-                }
-              }
+    for (int rule = 0; rule < binaryRules.size(); ++rule) {
+      BinaryRule br = binaryRules.get(rule);
+      String parent = labelIndex.get(br.parent);
+      String right = labelIndex.get(br.rightChild);
+      double[][][] betas = binaryBetas[rule];
+      int parentStates = betas.length;
+      int leftStates = betas[0].length;
+      int rightStates = betas[0][0].length;
+
+      double[][][] newBetas;
+      if (!startSymbols.contains(parent)) {
+        newBetas = new double[(parentStates << 1)][leftStates][rightStates];
+        for (int i = 0; i < parentStates; ++i) {
+          for (int j = 0; j < leftStates; ++j) {
+            for (int k = 0; k < rightStates; ++k) {
+              newBetas[(i << 1)][j][k] = betas[i][j][k];
+              newBetas[(i << 1) + 1][j][k] = betas[i][j][k];
             }
-              parentStates <<= 1;
-            betas = newBetas;
           }
+        }
+          parentStates <<= 1;
+        betas = newBetas;
+      }
 
-          newBetas = new double[parentStates][(leftStates << 1)][rightStates];
-          for (int i = 0; i < parentStates; ++i) {
-            for (int j = 0; j < leftStates; ++j) {
-              for (int k = 0; k < rightStates; ++k) {
-                double leftWeight = 0.45 + random.nextDouble() * 0.1;
-                newBetas[i][(j << 1)][k] = betas[i][j][k] + Math.log(leftWeight);
-                newBetas[i][(j << 1) + 1][k] = betas[i][j][k] + Math.log(1 - leftWeight);
-              }
-            }
+      newBetas = new double[parentStates][(leftStates << 1)][rightStates];
+      for (int i = 0; i < parentStates; ++i) {
+        for (int j = 0; j < leftStates; ++j) {
+          for (int k = 0; k < rightStates; ++k) {
+            double leftWeight = 0.45 + random.nextDouble() * 0.1;
+            newBetas[i][(j << 1)][k] = betas[i][j][k] + Math.log(leftWeight);
+            newBetas[i][(j << 1) + 1][k] = betas[i][j][k] + Math.log(1 - leftWeight);
           }
-            leftStates <<= 1;
-          betas = newBetas;
-
-          if (!right.equals(Lexicon.BOUNDARY_TAG)) {
-            newBetas = new double[parentStates][leftStates][(rightStates << 1)];
-            for (int i = 0; i < parentStates; ++i) {
-              for (int j = 0; j < leftStates; ++j) {
-                for (int k = 0; k < rightStates; ++k) {
-                  double rightWeight = 0.45 + random.nextDouble() * 0.1;
-                  newBetas[i][j][(k << 1)] = betas[i][j][k] + Math.log(rightWeight);
-                  newBetas[i][j][(k << 1) + 1] = betas[i][j][k] + Math.log(1 - rightWeight);
-                }
-              }
+        }
+      }
+        leftStates <<= 1;
+      betas = newBetas;
+
+      if (!right.equals(Lexicon.BOUNDARY_TAG)) {
+        newBetas = new double[parentStates][leftStates][(rightStates << 1)];
+        for (int i = 0; i < parentStates; ++i) {
+          for (int j = 0; j < leftStates; ++j) {
+            for (int k = 0; k < rightStates; ++k) {
+              double rightWeight = 0.45 + random.nextDouble() * 0.1;
+              newBetas[i][j][(k << 1)] = betas[i][j][k] + Math.log(rightWeight);
+              newBetas[i][j][(k << 1) + 1] = betas[i][j][k] + Math.log(1 - rightWeight);
             }
           }
-          tempBinaryBetas.put(parent, left, right, newBetas);
         }
       }
+      tempBinaryBetas[rule] = newBetas;
     }
     unaryBetas = tempUnaryBetas;
     binaryBetas = tempBinaryBetas;
   }
 
+  /**
+   * When the states have just been split, the words of the
+   * preterminals are split between the new states with some random
+   * variation too.  This draws those variations for each preterminal
+   * of each tree, in order, before the trees are counted on however
+   * many threads.
+   */
+  double[][][] splitWordWeights() {
+    int[] states = labelStates();
+    double[][][] splitWeights = new double[indexedTrees.size()][][];
+    for (int t = 0; t < indexedTrees.size(); ++t) {
+      IndexedTree tree = indexedTrees.get(t);
+      splitWeights[t] = new double[tree.size()][];
+      for (int node = 0; node < tree.size(); ++node) {
+        if (!tree.isPreTerminal(node) || labelIndex.get(tree.labels[node]).equals(Lexicon.BOUNDARY_TAG)) {
+          continue;
+        }
+        double[] wordWeights = new double[states[tree.labels[node]] / 2];
+        for (int i = 0; i < wordWeights.length; ++i) {
+          wordWeights[i] = 0.45 + random.nextDouble() * 0.1;
+        }
+        splitWeights[t][node] = wordWeights;
+      }
+    }
+    return splitWeights;
+  }
+
 
   /**
    * Recalculates the betas for all known transitions.  The current
@@ -489,6 +613,7 @@ public class SplittingGrammarExtractor {
    * EPSILON.
    */
   public boolean recalculateBetas(boolean splitStates) {
+    double[][][] splitWeights = null;
     if (splitStates) {
       if (DEBUG()) {
         System.out.println("Pre-split betas");
@@ -499,13 +624,12 @@ public class SplittingGrammarExtractor {
         System.out.println("Post-split betas");
         outputBetas();
       }
+      splitWeights = splitWordWeights();
     }
 
-    TwoDimensionalMap<String, String, double[][]> tempUnaryBetas = new TwoDimensionalMap<>();
-    ThreeDimensionalMap<String, String, String, double[][][]> tempBinaryBetas = new ThreeDimensionalMap<>();
-
-    recalculateTemporaryBetas(splitStates, null, tempUnaryBetas, tempBinaryBetas);
-    boolean converged = useNewBetas(!splitStates, tempUnaryBetas, tempBinaryBetas);
+    Counts counts = recalculateTemporaryBetas(splitStates, splitWeights, false, true);
+    trainTemporaryLexicon(counts.lexiconWeights);
+    boolean converged = useNewBetas(!splitStates, counts.unaryBetas, counts.binaryBetas);
 
     if (DEBUG()) {
       outputBetas();
@@ -515,8 +639,8 @@ public class SplittingGrammarExtractor {
   }
 
   public boolean useNewBetas(boolean testConverged,
-                             TwoDimensionalMap<String, String, double[][]> tempUnaryBetas,
-                             ThreeDimensionalMap<String, String, String, double[][][]> tempBinaryBetas) {
+                             double[][][] tempUnaryBetas,
+                             double[][][][] tempBinaryBetas) {
     rescaleTemporaryBetas(tempUnaryBetas, tempBinaryBetas);
 
     // if we just split states, we have obviously not converged
@@ -545,545 +669,714 @@ public class SplittingGrammarExtractor {
     return converged;
   }
 
+
   /**
-   * Creates temporary beta data structures and fills them in by
-   * iterating over the trees.
+   * The sums over a block of trees which a pass over the trees
+   * collects: the temporary betas for each rule, as log weights, and
+   * if asked for, the total mass in each state of each label, the
+   * effect of merging each pair of states of each label, and the log
+   * weights of the states of each preterminal, in order, for training
+   * the new lexicon.  Sums which are not asked for are null.
    */
-  public void recalculateTemporaryBetas(boolean splitStates, RadixTree< double[]> totalStateMass,
-                                        TwoDimensionalMap<String, String, double[][]> tempUnaryBetas,
-                                        ThreeDimensionalMap<String, String, String, double[][][]> tempBinaryBetas) {
-    tempWordIndex = new HashIndex<>();
-    tempTagIndex = new HashIndex<>();
-    tempLex = op.tlpParams.lex(op, tempWordIndex, tempTagIndex);
-    tempLex.initializeTraining(trainSize);
-
-    for (Tree tree : trees) {
-      double weight = treeWeights.get(tree);
-      if (DEBUG()) {
-        System.out.println("Incrementing trees read: " + weight);
+  static class Counts {
+    final double[][][] unaryBetas;
+    final double[][][][] binaryBetas;
+    final double[][] stateMass;
+    final double[][] mergeDeltas;
+    final List<double[]> lexiconWeights;
+
+    Counts(int numUnaryRules, int numBinaryRules, int numLabels,
+           boolean countMass, boolean countMergeDeltas, boolean keepLexiconWeights) {
+      unaryBetas = new double[numUnaryRules][][];
+      binaryBetas = new double[numBinaryRules][][][];
+      stateMass = countMass ? new double[numLabels][] : null;
+      mergeDeltas = countMergeDeltas ? new double[numLabels][] : null;
+      lexiconWeights = keepLexiconWeights ? new ArrayList<double[]>() : null;
+    }
+
+    /** The betas of the unary rule, all log 0 to begin with */
+    double[][] unaryBetas(int rule, int parentStates, int childStates) {
+      double[][] betas = unaryBetas[rule];
+      if (betas == null) {
+        betas = new double[parentStates][];
+        for (int i = 0; i < parentStates; ++i) {
+          betas[i] = neginfDoubles(childStates);
+        }
+        unaryBetas[rule] = betas;
       }
-      tempLex.incrementTreesRead(weight);
-      recalculateTemporaryBetas(tree, splitStates, totalStateMass, tempUnaryBetas, tempBinaryBetas);
+      return betas;
     }
 
-    tempLex.finishTraining();
-  }
-
-  public boolean testConvergence(TwoDimensionalMap<String, String, double[][]> tempUnaryBetas,
-                                 ThreeDimensionalMap<String, String, String, double[][][]> tempBinaryBetas) {
-
-    // now, we check each of the new betas to see if it's close to the
-    // old value for the same transition.  if not, we have not yet
-    // converged.  if all of them are, we have converged.
-    for (String parentLabel : unaryBetas.firstKeySet()) {
-      for (String childLabel : unaryBetas.get(parentLabel).keySet()) {
-        double[][] betas = unaryBetas.get(parentLabel, childLabel);
-        double[][] newBetas = tempUnaryBetas.get(parentLabel, childLabel);
-        int parentStates = betas.length;
-        int childStates = betas[0].length;
+    /** The betas of the binary rule, all log 0 to begin with */
+    double[][][] binaryBetas(int rule, int parentStates, int leftStates, int rightStates) {
+      double[][][] betas = binaryBetas[rule];
+      if (betas == null) {
+        betas = new double[parentStates][leftStates][];
         for (int i = 0; i < parentStates; ++i) {
-          for (int j = 0; j < childStates; ++j) {
-            double oldValue = betas[i][j];
-            double newValue = newBetas[i][j];
-            if (Math.abs(newValue - oldValue) > EPSILON) {
-              return false;
-            }
+          for (int j = 0; j < leftStates; ++j) {
+            betas[i][j] = neginfDoubles(rightStates);
           }
         }
+        binaryBetas[rule] = betas;
       }
+      return betas;
     }
-    for (String parentLabel : binaryBetas.firstKeySet()) {
-      for (String leftLabel : binaryBetas.get(parentLabel).firstKeySet()) {
-        for (String rightLabel : binaryBetas.get(parentLabel).get(leftLabel).keySet()) {
-          double[][][] betas = binaryBetas.get(parentLabel, leftLabel, rightLabel);
-          double[][][] newBetas = tempBinaryBetas.get(parentLabel, leftLabel, rightLabel);
-          int parentStates = betas.length;
-          int leftStates = betas[0].length;
-          int rightStates = betas[0][0].length;
-          for (int i = 0; i < parentStates; ++i) {
-            for (int j = 0; j < leftStates; ++j) {
-              for (int k = 0; k < rightStates; ++k) {
-                double oldValue = betas[i][j][k];
-                double newValue = newBetas[i][j][k];
-                if (Math.abs(newValue - oldValue) > EPSILON) {
-                  return false;
-                }
-              }
+
+    /**
+     * Adds the sums of the following block of trees to these sums
+     */
+    void add(Counts other) {
+      for (int rule = 0; rule < unaryBetas.length; ++rule) {
+        double[][] from = other.unaryBetas[rule];
+        if (from == null) {
+          continue;
+        }
+        double[][] to = unaryBetas[rule];
+        if (to == null) {
+          unaryBetas[rule] = from;
+          continue;
+        }
+        for (int i = 0; i < to.length; ++i) {
+          for (int j = 0; j < to[i].length; ++j) {
+            to[i][j] = SloppyMath.logAdd(to[i][j], from[i][j]);
+          }
+        }
+      }
+      for (int rule = 0; rule < binaryBetas.length; ++rule) {
+        double[][][] from = other.binaryBetas[rule];
+        if (from == null) {
+          continue;
+        }
+        double[][][] to = binaryBetas[rule];
+        if (to == null) {
+          binaryBetas[rule] = from;
+          continue;
+        }
+        for (int i = 0; i < to.length; ++i) {
+          for (int j = 0; j < to[i].length; ++j) {
+            for (int k = 0; k < to[i][j].length; ++k) {
+              to[i][j][k] = SloppyMath.logAdd(to[i][j][k], from[i][j][k]);
             }
           }
         }
       }
+      if (stateMass != null) {
+        addSums(stateMass, other.stateMass);
+      }
+      if (mergeDeltas != null) {
+        addSums(mergeDeltas, other.mergeDeltas);
+      }
+      if (lexiconWeights != null) {
+        lexiconWeights.addAll(other.lexiconWeights);
+      }
     }
 
-    return true;
+    private static void addSums(double[][] to, double[][] from) {
+      for (int label = 0; label < to.length; ++label) {
+        if (from[label] == null) {
+          continue;
+        }
+        if (to[label] == null) {
+          to[label] = from[label];
+          continue;
+        }
+        for (int i = 0; i < to[label].length; ++i) {
+          to[label][i] += from[label][i];
+        }
+      }
+    }
   }
 
-  public void recalculateTemporaryBetas(Tree tree, boolean splitStates,
-                                        RadixTree< double[]> totalStateMass,
-                                        TwoDimensionalMap<String, String, double[][]> tempUnaryBetas,
-                                        ThreeDimensionalMap<String, String, String, double[][][]> tempBinaryBetas) {
-    if (DEBUG()) {
-      System.out.println("Recalculating temporary betas for tree " + tree);
-    }
-    double[] stateWeights = { Math.log(treeWeights.get(tree)) };
+  /**
+   * Something counted over each of the trees
+   */
+  abstract static class TreeCounter {
+    /** Makes a new set of sums for a block of trees */
+    abstract Counts newCounts();
+
+    /**
+     * Adds the counts of one tree to the sums of its block.  Called
+     * from several threads at once, each with its own Counts.
+     */
+    abstract void count(int treeIndex, Counts counts);
+  }
 
-    IdentityHashMap<Tree, double[][]> unaryTransitions = new IdentityHashMap<>();
-    IdentityHashMap<Tree, double[][][]> binaryTransitions = new IdentityHashMap<>();
-    recountTree(tree, splitStates, unaryTransitions, binaryTransitions);
+  Counts newCounts(boolean countMass, boolean countMergeDeltas, boolean keepLexiconWeights) {
+    return new Counts(unaryRules.size(), binaryRules.size(), labelIndex.size(),
+                      countMass, countMergeDeltas, keepLexiconWeights);
+  }
 
-    if (DEBUG()) {
-      System.out.println("  Transitions:");
-      outputTransitions(tree, unaryTransitions, binaryTransitions);
-    }
+  /**
+   * Counts over every tree.  The trees are split into one contiguous
+   * block per training thread, with about the same number of nodes in
+   * each, and each block counts into its own Counts.  The blocks are
+   * then added up in order, so the result depends on the number of
+   * threads but not on how they happen to be scheduled.
+   */
+  Counts countTrees(final TreeCounter counter) {
+    int numThreads = Math.max(1, op.trainOptions.trainingThreads);
+    int[] treeSizes = new int[indexedTrees.size()];
+    for (int t = 0; t < treeSizes.length; ++t) {
+      treeSizes[t] = indexedTrees.get(t).size();
+    }
+    List<Counts> blockCounts = ContiguousBlocks.process(ContiguousBlocks.weightedStarts(treeSizes, numThreads), new ContiguousBlocks.Job<Counts>() {
+      @Override
+      public Counts process(int block, int start, int end) {
+        Counts counts = counter.newCounts();
+        for (int t = start; t < end; ++t) {
+          counter.count(t, counts);
+        }
+        return counts;
+      }
+    });
 
-    recalculateTemporaryBetas(tree, stateWeights, 0, unaryTransitions, binaryTransitions, 
-                              totalStateMass, tempUnaryBetas, tempBinaryBetas);
+    Counts counts = blockCounts.get(0);
+    for (int block = 1; block < blockCounts.size(); ++block) {
+      counts.add(blockCounts.get(block));
+    }
+    return counts;
   }
 
-  public int recalculateTemporaryBetas(Tree tree, double[] stateWeights, int position,
-                                       IdentityHashMap<Tree, double[][]> unaryTransitions,
-                                       IdentityHashMap<Tree, double[][][]> binaryTransitions,
-                                       RadixTree< double[]> totalStateMass,
-                                       TwoDimensionalMap<String, String, double[][]> tempUnaryBetas,
-                                       ThreeDimensionalMap<String, String, String, double[][][]> tempBinaryBetas) {
-    if (tree.isLeaf()) {
-      // possible to get here if we have a tree with no structure
-      return position;
+
+  /**
+   * What the inside pass needs to score the words of the trees with
+   * the current lexicon: the number of states of each label, and the
+   * ids in the lexicon's indices of the states of each tag and of the
+   * word of each preterminal of each tree.  These are looked up before
+   * the trees are counted, since the indices are looked up by string
+   * and may be added to.
+   */
+  static class LexiconIds {
+    final int[] labelStates;
+    final int[][] tagIds;
+    final int[][] wordIds;
+
+    LexiconIds(int[] labelStates, int[][] tagIds, int[][] wordIds) {
+      this.labelStates = labelStates;
+      this.tagIds = tagIds;
+      this.wordIds = wordIds;
     }
+  }
 
-    if (totalStateMass != null) {
-      double[] stateTotal = totalStateMass.get(tree.label().value());
-      if (stateTotal == null) {
-        stateTotal = new double[stateWeights.length];
-        totalStateMass.put(tree.label().value(), stateTotal);
+  /**
+   * Looks up the ids of the states and words in the current lexicon.
+   * If splitStates is true, the states have just been split and the
+   * lexicon only knows the first half of them.
+   */
+  LexiconIds lexiconIds(boolean splitStates) {
+    int[] states = labelStates();
+    int[][] tagIds = new int[labelIndex.size()][];
+    for (int label = 0; label < tagIds.length; ++label) {
+      if (!labelIsTag[label]) {
+        continue;
       }
-      for (int i = 0; i < stateWeights.length; ++i) {
-        stateTotal[i] += Math.exp(stateWeights[i]);
+      String tag = labelIndex.get(label);
+      int scored = (splitStates && !tag.equals(Lexicon.BOUNDARY_TAG)) ? states[label] / 2 : states[label];
+      tagIds[label] = new int[scored];
+      for (int i = 0; i < scored; ++i) {
+        tagIds[label][i] = tagIndex.indexOf(state(tag, i), true);
       }
     }
-
-    if (tree.isPreTerminal()) {
-      // fill in our new lexicon here.
-      String tag = tree.label().value();
-      String word = tree.children()[0].label().value();
-      // We smooth by LEX_SMOOTH, if relevant.  We rescale so that sum
-      // of the weights being added to the lexicon stays the same.
-      double total = 0.0;
-        for (double stateWeight : stateWeights) {
-            total += Math.exp(stateWeight);
-        }
-      if (total <= 0.0) {
-        return position + 1;
-      }
-      double scale = 1.0 / (1.0 + LEX_SMOOTH);
-      double smoothing = total * LEX_SMOOTH / stateWeights.length;
-      for (int state = 0; state < stateWeights.length; ++state) {
-        // TODO: maybe optimize all this TaggedWord creation
-        TaggedWord tw = new TaggedWord(word, state(tag, state));
-        tempLex.train(tw, position, (Math.exp(stateWeights[state]) + smoothing) * scale);
+    int[][] wordIds = new int[indexedTrees.size()][];
+    for (int t = 0; t < wordIds.length; ++t) {
+      IndexedTree tree = indexedTrees.get(t);
+      wordIds[t] = new int[tree.size()];
+      for (int node = 0; node < tree.size(); ++node) {
+        if (tree.isPreTerminal(node)) {
+          wordIds[t][node] = wordIndex.indexOf(tree.words[node], true);
+        }
       }
-      return position + 1;
     }
+    return new LexiconIds(states, tagIds, wordIds);
+  }
 
-    if (tree.children().length == 1) {
-      String parentLabel = tree.label().value();
-      String childLabel = tree.children()[0].label().value();
-      double[][] transitions = unaryTransitions.get(tree);
-      int parentStates = transitions.length;
-      int childStates = transitions[0].length;
-      double[][] betas = tempUnaryBetas.get(parentLabel, childLabel);
-      if (betas == null) {
-        betas = new double[parentStates][childStates];
-        for (int i = 0; i < parentStates; ++i) {
-          for (int j = 0; j < childStates; ++j) {
-            betas[i][j] = Double.NEGATIVE_INFINITY;
-          }
+  /**
+   * Counts the temporary betas over all the trees with the current
+   * betas and lexicon.  If splitStates is true, the states have just
+   * been split, and the words are split between the new states of
+   * each preterminal by splitWeights.  The total mass in each state
+   * is counted if countMass is true, and the weights for training a
+   * new lexicon are kept if keepLexiconWeights is true.
+   */
+  public Counts recalculateTemporaryBetas(boolean splitStates, final double[][][] splitWeights,
+                                          final boolean countMass, final boolean keepLexiconWeights) {
+    final LexiconIds ids = lexiconIds(splitStates);
+    return countTrees(new TreeCounter() {
+      @Override
+      Counts newCounts() {
+        return SplittingGrammarExtractor.this.newCounts(countMass, false, keepLexiconWeights);
+      }
+
+      @Override
+      void count(int treeIndex, Counts counts) {
+        IndexedTree tree = indexedTrees.get(treeIndex);
+        TreeScores scores = recountTree(tree, ids.wordIds[treeIndex], ids,
+                                        splitWeights == null ? null : splitWeights[treeIndex]);
+        if (DEBUG()) {
+          System.out.println("  Transitions:");
+          outputTransitions(tree, scores);
         }
-        tempUnaryBetas.put(parentLabel, childLabel, betas);
+        double[] stateWeights = { Math.log(tree.weight) };
+        recalculateTemporaryBetas(tree, stateWeights, scores.unaryTransitions, scores.binaryTransitions, counts);
       }
-      double[] childWeights = neginfDoubles(childStates);
+    });
+  }
+
+  public boolean testConvergence(double[][][] tempUnaryBetas,
+                                 double[][][][] tempBinaryBetas) {
+
+    // now, we check each of the new betas to see if it's close to the
+    // old value for the same transition.  if not, we have not yet
+    // converged.  if all of them are, we have converged.
+    for (int rule = 0; rule < unaryBetas.length; ++rule) {
+      double[][] betas = unaryBetas[rule];
+      double[][] newBetas = tempUnaryBetas[rule];
+      int parentStates = betas.length;
+      int childStates = betas[0].length;
       for (int i = 0; i < parentStates; ++i) {
         for (int j = 0; j < childStates; ++j) {
-          double weight = transitions[i][j];
-          betas[i][j] = SloppyMath.logAdd(betas[i][j], weight + stateWeights[i]);
-          childWeights[j] = SloppyMath.logAdd(childWeights[j], weight + stateWeights[i]);
-        }
-      }
-      position = recalculateTemporaryBetas(tree.children()[0], childWeights, position, unaryTransitions, binaryTransitions, totalStateMass, tempUnaryBetas, tempBinaryBetas);
-    } else { // length == 2
-      String parentLabel = tree.label().value();
-      String leftLabel = tree.children()[0].label().value();
-      String rightLabel = tree.children()[1].label().value();
-      double[][][] transitions = binaryTransitions.get(tree);
-      int parentStates = transitions.length;
-      int leftStates = transitions[0].length;
-      int rightStates = transitions[0][0].length;
-
-      double[][][] betas = tempBinaryBetas.get(parentLabel, leftLabel, rightLabel);
-      if (betas == null) {
-        betas = new double[parentStates][leftStates][rightStates];
-        for (int i = 0; i < parentStates; ++i) {
-          for (int j = 0; j < leftStates; ++j) {
-            for (int k = 0; k < rightStates; ++k) {
-              betas[i][j][k] = Double.NEGATIVE_INFINITY;
-            }
+          double oldValue = betas[i][j];
+          double newValue = newBetas[i][j];
+          if (Math.abs(newValue - oldValue) > EPSILON) {
+            return false;
           }
         }
-        tempBinaryBetas.put(parentLabel, leftLabel, rightLabel, betas);
       }
-      double[] leftWeights = neginfDoubles(leftStates);
-      double[] rightWeights = neginfDoubles(rightStates);
+    }
+    for (int rule = 0; rule < binaryBetas.length; ++rule) {
+      double[][][] betas = binaryBetas[rule];
+      double[][][] newBetas = tempBinaryBetas[rule];
+      int parentStates = betas.length;
+      int leftStates = betas[0].length;
+      int rightStates = betas[0][0].length;
       for (int i = 0; i < parentStates; ++i) {
         for (int j = 0; j < leftStates; ++j) {
           for (int k = 0; k < rightStates; ++k) {
-            double weight = transitions[i][j][k];
-            betas[i][j][k] = SloppyMath.logAdd(betas[i][j][k], weight + stateWeights[i]);
-            leftWeights[j] = SloppyMath.logAdd(leftWeights[j], weight + stateWeights[i]);
-            rightWeights[k] = SloppyMath.logAdd(rightWeights[k], weight + stateWeights[i]);
+            double oldValue = betas[i][j][k];
+            double newValue = newBetas[i][j][k];
+            if (Math.abs(newValue - oldValue) > EPSILON) {
+              return false;
+            }
           }
         }
       }
-      position = recalculateTemporaryBetas(tree.children()[0], leftWeights, position, unaryTransitions, binaryTransitions, totalStateMass, tempUnaryBetas, tempBinaryBetas);
-      position = recalculateTemporaryBetas(tree.children()[1], rightWeights, position, unaryTransitions, binaryTransitions, totalStateMass, tempUnaryBetas, tempBinaryBetas);
     }
-    return position;
+
+    return true;
   }
 
-  public static void rescaleTemporaryBetas(TwoDimensionalMap<String, String, double[][]> tempUnaryBetas,
-                                           ThreeDimensionalMap<String, String, String, double[][][]> tempBinaryBetas) {
-    for (String parent : tempUnaryBetas.firstKeySet()) {
-      for (String child : tempUnaryBetas.get(parent).keySet()) {
-        double[][] betas = tempUnaryBetas.get(parent).get(child);
-        int parentStates = betas.length;
-        int childStates = betas[0].length;
+  /**
+   * Adds the weights of the transitions of each node of the tree to
+   * the temporary betas of its rule, going down from the root, whose
+   * states have the given weights.
+   */
+  public void recalculateTemporaryBetas(IndexedTree tree, double[] rootWeights,
+                                        double[][][] unaryTransitions,
+                                        double[][][][] binaryTransitions,
+                                        Counts counts) {
+    if (tree.size() == 0) {
+      // possible to get here if we have a tree with no structure
+      return;
+    }
+
+    double[][] nodeWeights = new double[tree.size()][];
+    nodeWeights[0] = rootWeights;
+    for (int node = 0; node < tree.size(); ++node) {
+      double[] stateWeights = nodeWeights[node];
+
+      if (counts.stateMass != null) {
+        int label = tree.labels[node];
+        double[] stateTotal = counts.stateMass[label];
+        if (stateTotal == null) {
+          stateTotal = new double[stateWeights.length];
+          counts.stateMass[label] = stateTotal;
+        }
+        for (int i = 0; i < stateWeights.length; ++i) {
+          stateTotal[i] += Math.exp(stateWeights[i]);
+        }
+      }
+
+      if (tree.isPreTerminal(node)) {
+        // the new lexicon is filled in from these later
+        if (counts.lexiconWeights != null) {
+          counts.lexiconWeights.add(stateWeights);
+        }
+      } else if (tree.isUnary(node)) {
+        double[][] transitions = unaryTransitions[node];
+        int parentStates = transitions.length;
+        int childStates = transitions[0].length;
+        double[][] betas = counts.unaryBetas(tree.rules[node], parentStates, childStates);
+        double[] childWeights = neginfDoubles(childStates);
         for (int i = 0; i < parentStates; ++i) {
-          double sum = Double.NEGATIVE_INFINITY;
           for (int j = 0; j < childStates; ++j) {
-            sum = SloppyMath.logAdd(sum, betas[i][j]);
+            double weight = transitions[i][j];
+            betas[i][j] = SloppyMath.logAdd(betas[i][j], weight + stateWeights[i]);
+            childWeights[j] = SloppyMath.logAdd(childWeights[j], weight + stateWeights[i]);
           }
-          if (Double.isInfinite(sum)) {
-            for (int j = 0; j < childStates; ++j) {
-              betas[i][j] = -Math.log(childStates);
-            }
-          } else {
-            for (int j = 0; j < childStates; ++j) {
-              betas[i][j] -= sum;
+        }
+        nodeWeights[tree.left[node]] = childWeights;
+      } else {
+        double[][][] transitions = binaryTransitions[node];
+        int parentStates = transitions.length;
+        int leftStates = transitions[0].length;
+        int rightStates = transitions[0][0].length;
+        double[][][] betas = counts.binaryBetas(tree.rules[node], parentStates, leftStates, rightStates);
+        double[] leftWeights = neginfDoubles(leftStates);
+        double[] rightWeights = neginfDoubles(rightStates);
+        for (int i = 0; i < parentStates; ++i) {
+          for (int j = 0; j < leftStates; ++j) {
+            for (int k = 0; k < rightStates; ++k) {
+              double weight = transitions[i][j][k];
+              betas[i][j][k] = SloppyMath.logAdd(betas[i][j][k], weight + stateWeights[i]);
+              leftWeights[j] = SloppyMath.logAdd(leftWeights[j], weight + stateWeights[i]);
+              rightWeights[k] = SloppyMath.logAdd(rightWeights[k], weight + stateWeights[i]);
             }
           }
         }
+        nodeWeights[tree.left[node]] = leftWeights;
+        nodeWeights[tree.right[node]] = rightWeights;
       }
     }
+  }
 
-    for (String parent : tempBinaryBetas.firstKeySet()) {
-      for (String left : tempBinaryBetas.get(parent).firstKeySet()) {
-        for (String right : tempBinaryBetas.get(parent).get(left).keySet()) {
-          double[][][] betas = tempBinaryBetas.get(parent).get(left).get(right);
-          int parentStates = betas.length;
-          int leftStates = betas[0].length;
-          int rightStates = betas[0][0].length;
-          for (int i = 0; i < parentStates; ++i) {
-            double sum = Double.NEGATIVE_INFINITY;
-            for (int j = 0; j < leftStates; ++j) {
-              for (int k = 0; k < rightStates; ++k) {
-                sum = SloppyMath.logAdd(sum, betas[i][j][k]);
-              }
-            }
-            if (Double.isInfinite(sum)) {
-              for (int j = 0; j < leftStates; ++j) {
-                for (int k = 0; k < rightStates; ++k) {
-                  betas[i][j][k] = -Math.log(leftStates * rightStates);
-                }
-              }
-            } else {
-              for (int j = 0; j < leftStates; ++j) {
-                for (int k = 0; k < rightStates; ++k) {
-                  betas[i][j][k] -= sum;
-                }
-              }
-            }
+  /**
+   * Trains a new lexicon, tempLex, from the log weights of the states
+   * of each preterminal of each tree, in the order of the trees and
+   * their words.
+   */
+  void trainTemporaryLexicon(List<double[]> lexiconWeights) {
+    tempWordIndex = new HashIndex<>();
+    tempTagIndex = new HashIndex<>();
+    tempLex = op.tlpParams.lex(op, tempWordIndex, tempTagIndex);
+    tempLex.initializeTraining(trainSize);
+
+    int next = 0;
+    for (IndexedTree tree : indexedTrees) {
+      if (DEBUG()) {
+        System.out.println("Incrementing trees read: " + tree.weight);
+      }
+      tempLex.incrementTreesRead(tree.weight);
+      for (int node = 0; node < tree.size(); ++node) {
+        if (!tree.isPreTerminal(node)) {
+          continue;
+        }
+        double[] stateWeights = lexiconWeights.get(next);
+        // let the weights be collected as we go
+        lexiconWeights.set(next, null);
+        ++next;
+
+        String tag = labelIndex.get(tree.labels[node]);
+        String word = tree.words[node];
+        // We smooth by LEX_SMOOTH, if relevant.  We rescale so that sum
+        // of the weights being added to the lexicon stays the same.
+        double total = 0.0;
+          for (double stateWeight : stateWeights) {
+              total += Math.exp(stateWeight);
           }
+        if (total <= 0.0) {
+          continue;
+        }
+        double scale = 1.0 / (1.0 + LEX_SMOOTH);
+        double smoothing = total * LEX_SMOOTH / stateWeights.length;
+        for (int state = 0; state < stateWeights.length; ++state) {
+          // TODO: maybe optimize all this TaggedWord creation
+          TaggedWord tw = new TaggedWord(word, state(tag, state));
+          tempLex.train(tw, tree.positions[node], (Math.exp(stateWeights[state]) + smoothing) * scale);
         }
       }
     }
-  }
-
-  public void recountTree(Tree tree, boolean splitStates,
-                          IdentityHashMap<Tree, double[][]> unaryTransitions,
-                          IdentityHashMap<Tree, double[][][]> binaryTransitions) {
-    IdentityHashMap<Tree, double[]> probIn = new IdentityHashMap<>();
-    IdentityHashMap<Tree, double[]> probOut = new IdentityHashMap<>();
-    recountTree(tree, splitStates, probIn, probOut, unaryTransitions, binaryTransitions);
-  }
 
-  public void recountTree(Tree tree, boolean splitStates,
-                          IdentityHashMap<Tree, double[]> probIn,
-                          IdentityHashMap<Tree, double[]> probOut,
-                          IdentityHashMap<Tree, double[][]> unaryTransitions,
-                          IdentityHashMap<Tree, double[][][]> binaryTransitions) {
-    recountInside(tree, splitStates, 0, probIn);
-    if (DEBUG()) {
-      System.out.println("ROOT PROBABILITY: " + probIn.get(tree)[0]);
-    }
-    recountOutside(tree, probIn, probOut);
-    recountWeights(tree, probIn, probOut, unaryTransitions, binaryTransitions);
+    tempLex.finishTraining();
   }
 
-  public void recountWeights(Tree tree, 
-                             IdentityHashMap<Tree, double[]> probIn,
-                             IdentityHashMap<Tree, double[]> probOut,
-                             IdentityHashMap<Tree, double[][]> unaryTransitions,
-                             IdentityHashMap<Tree, double[][][]> binaryTransitions) {
-    if (tree.isLeaf() || tree.isPreTerminal()) {
-      return;
-    }
-    if (tree.children().length == 1) {
-      Tree child = tree.children()[0];
-      String parentLabel = tree.label().value();
-      String childLabel = child.label().value();
-      double[][] betas = unaryBetas.get(parentLabel, childLabel);
-      double[] childInside = probIn.get(child);
-      double[] parentOutside = probOut.get(tree);
+  public static void rescaleTemporaryBetas(double[][][] tempUnaryBetas,
+                                           double[][][][] tempBinaryBetas) {
+    for (double[][] betas : tempUnaryBetas) {
       int parentStates = betas.length;
       int childStates = betas[0].length;
-      double[][] transitions = new double[parentStates][childStates];
-      unaryTransitions.put(tree, transitions);
-      for (int i = 0; i < parentStates; ++i) {
-        for (int j = 0; j < childStates; ++j) {
-          transitions[i][j] = parentOutside[i] + childInside[j] + betas[i][j];
-        }
-      }
-      // Renormalize.  Note that we renormalize to 1, regardless of
-      // the original total.  
-      // TODO: smoothing?
       for (int i = 0; i < parentStates; ++i) {
-        double total = Double.NEGATIVE_INFINITY;
+        double sum = Double.NEGATIVE_INFINITY;
         for (int j = 0; j < childStates; ++j) {
-          total = SloppyMath.logAdd(total, transitions[i][j]);
+          sum = SloppyMath.logAdd(sum, betas[i][j]);
         }
-        // By subtracting off the log total, we make it so the log sum
-        // of the transitions is 0, meaning the sum of the actual
-        // transitions is 1.  It works if you do the math...
-        if (Double.isInfinite(total)) {
-          double transition = -Math.log(childStates);
+        if (Double.isInfinite(sum)) {
           for (int j = 0; j < childStates; ++j) {
-            transitions[i][j] = transition;
+            betas[i][j] = -Math.log(childStates);
           }
         } else {
           for (int j = 0; j < childStates; ++j) {
-            transitions[i][j] = transitions[i][j] - total;
+            betas[i][j] -= sum;
           }
         }
       }
-      recountWeights(child, probIn, probOut, unaryTransitions, binaryTransitions);
-    } else { // length == 2
-      Tree left = tree.children()[0];
-      Tree right = tree.children()[1];
-      String parentLabel = tree.label().value();
-      String leftLabel = left.label().value();
-      String rightLabel = right.label().value();
-      double[][][] betas = binaryBetas.get(parentLabel, leftLabel, rightLabel);
-      double[] leftInside = probIn.get(left);
-      double[] rightInside = probIn.get(right);
-      double[] parentOutside = probOut.get(tree);
+    }
+
+    for (double[][][] betas : tempBinaryBetas) {
       int parentStates = betas.length;
       int leftStates = betas[0].length;
       int rightStates = betas[0][0].length;
-      double[][][] transitions = new double[parentStates][leftStates][rightStates];
-      binaryTransitions.put(tree, transitions);
       for (int i = 0; i < parentStates; ++i) {
+        double sum = Double.NEGATIVE_INFINITY;
         for (int j = 0; j < leftStates; ++j) {
           for (int k = 0; k < rightStates; ++k) {
-            transitions[i][j][k] = parentOutside[i] + leftInside[j] + rightInside[k] + betas[i][j][k];
+            sum = SloppyMath.logAdd(sum, betas[i][j][k]);
           }
         }
-      }
-      // Renormalize.  Note that we renormalize to 1, regardless of
-      // the original total.
-      // TODO: smoothing?
-      for (int i = 0; i < parentStates; ++i) {
-        double total = Double.NEGATIVE_INFINITY;
-        for (int j = 0; j < leftStates; ++j) {
-          for (int k = 0; k < rightStates; ++k) {
-            total = SloppyMath.logAdd(total, transitions[i][j][k]);
-          }
-        }
-        // By subtracting off the log total, we make it so the log sum
-        // of the transitions is 0, meaning the sum of the actual
-        // transitions is 1.  It works if you do the math...
-        if (Double.isInfinite(total)) {
-          double transition = -Math.log(leftStates * rightStates);
+        if (Double.isInfinite(sum)) {
           for (int j = 0; j < leftStates; ++j) {
             for (int k = 0; k < rightStates; ++k) {
-              transitions[i][j][k] = transition;
+              betas[i][j][k] = -Math.log(leftStates * rightStates);
             }
           }
         } else {
           for (int j = 0; j < leftStates; ++j) {
             for (int k = 0; k < rightStates; ++k) {
-              transitions[i][j][k] = transitions[i][j][k] - total;
+              betas[i][j][k] -= sum;
             }
           }
         }
       }
-      recountWeights(left, probIn, probOut, unaryTransitions, binaryTransitions);
-      recountWeights(right, probIn, probOut, unaryTransitions, binaryTransitions);
     }
   }
 
-  public void recountOutside(Tree tree, 
-                             IdentityHashMap<Tree, double[]> probIn,
-                             IdentityHashMap<Tree, double[]> probOut) {
-    double[] rootScores = { 0.0 };
-    probOut.put(tree, rootScores);
-    recurseOutside(tree, probIn, probOut);
+
+  /**
+   * The inside and outside scores and the transition weights of each
+   * node of a tree, indexed by node
+   */
+  static class TreeScores {
+    final double[][] probIn;
+    final double[][] probOut;
+    final double[][][] unaryTransitions;
+    final double[][][][] binaryTransitions;
+
+    TreeScores(int size) {
+      probIn = new double[size][];
+      probOut = new double[size][];
+      unaryTransitions = new double[size][][];
+      binaryTransitions = new double[size][][][];
+    }
   }
 
-  public void recurseOutside(Tree tree,
-                             IdentityHashMap<Tree, double[]> probIn,
-                             IdentityHashMap<Tree, double[]> probOut) {
-    if (tree.isLeaf() || tree.isPreTerminal()) {
-      return;
+  /**
+   * Computes the inside and outside scores of each node of the tree
+   * with the current betas and lexicon, and from those the weights of
+   * the transitions from each node to its children.  splitWeights are
+   * the random splits of the words of each preterminal between its
+   * new states, if the states have just been split, or null.
+   */
+  public TreeScores recountTree(IndexedTree tree, int[] wordIds, LexiconIds ids,
+                                double[][] splitWeights) {
+    TreeScores scores = new TreeScores(tree.size());
+    if (tree.size() == 0) {
+      return scores;
     }
-    if (tree.children().length == 1) {
-      recountOutside(tree.children()[0], tree, probIn, probOut);
-    } else { // length == 2
-      recountOutside(tree.children()[0], tree.children()[1], tree, 
-                     probIn, probOut);
+    recountInside(tree, wordIds, ids, splitWeights, scores.probIn);
+    if (DEBUG()) {
+      System.out.println("ROOT PROBABILITY: " + scores.probIn[0][0]);
     }
+    recountOutside(tree, scores.probIn, scores.probOut);
+    recountWeights(tree, scores);
+    return scores;
   }
 
-  public void recountOutside(Tree child, Tree parent,
-                             IdentityHashMap<Tree, double[]> probIn,
-                             IdentityHashMap<Tree, double[]> probOut) {
-    String parentLabel = parent.label().value();
-    String childLabel = child.label().value();
-    double[] parentScores = probOut.get(parent);
-    double[][] betas = unaryBetas.get(parentLabel, childLabel);
-    int parentStates = betas.length;
-    int childStates = betas[0].length;
-
-    double[] scores = neginfDoubles(childStates);
-    probOut.put(child, scores);
-
-    for (int i = 0; i < parentStates; ++i) {
-      for (int j = 0; j < childStates; ++j) {
-        // TODO: no inside scores here, right?
-        scores[j] = SloppyMath.logAdd(scores[j], betas[i][j] + parentScores[i]);
+  public void recountWeights(IndexedTree tree, TreeScores scores) {
+    double[][] probIn = scores.probIn;
+    double[][] probOut = scores.probOut;
+    for (int node = 0; node < tree.size(); ++node) {
+      if (tree.isPreTerminal(node)) {
+        continue;
+      }
+      if (tree.isUnary(node)) {
+        double[][] betas = unaryBetas[tree.rules[node]];
+        double[] childInside = probIn[tree.left[node]];
+        double[] parentOutside = probOut[node];
+        int parentStates = betas.length;
+        int childStates = betas[0].length;
+        double[][] transitions = new double[parentStates][childStates];
+        scores.unaryTransitions[node] = transitions;
+        for (int i = 0; i < parentStates; ++i) {
+          for (int j = 0; j < childStates; ++j) {
+            transitions[i][j] = parentOutside[i] + childInside[j] + betas[i][j];
+          }
+        }
+        // Renormalize.  Note that we renormalize to 1, regardless of
+        // the original total.
+        // TODO: smoothing?
+        for (int i = 0; i < parentStates; ++i) {
+          double total = Double.NEGATIVE_INFINITY;
+          for (int j = 0; j < childStates; ++j) {
+            total = SloppyMath.logAdd(total, transitions[i][j]);
+          }
+          // By subtracting off the log total, we make it so the log sum
+          // of the transitions is 0, meaning the sum of the actual
+          // transitions is 1.  It works if you do the math...
+          if (Double.isInfinite(total)) {
+            double transition = -Math.log(childStates);
+            for (int j = 0; j < childStates; ++j) {
+              transitions[i][j] = transition;
+            }
+          } else {
+            for (int j = 0; j < childStates; ++j) {
+              transitions[i][j] = transitions[i][j] - total;
+            }
+          }
+        }
+      } else { // binary
+        double[][][] betas = binaryBetas[tree.rules[node]];
+        double[] leftInside = probIn[tree.left[node]];
+        double[] rightInside = probIn[tree.right[node]];
+        double[] parentOutside = probOut[node];
+        int parentStates = betas.length;
+        int leftStates = betas[0].length;
+        int rightStates = betas[0][0].length;
+        double[][][] transitions = new double[parentStates][leftStates][rightStates];
+        scores.binaryTransitions[node] = transitions;
+        for (int i = 0; i < parentStates; ++i) {
+          for (int j = 0; j < leftStates; ++j) {
+            for (int k = 0; k < rightStates; ++k) {
+              transitions[i][j][k] = parentOutside[i] + leftInside[j] + rightInside[k] + betas[i][j][k];
+            }
+          }
+        }
+        // Renormalize.  Note that we renormalize to 1, regardless of
+        // the original total.
+        // TODO: smoothing?
+        for (int i = 0; i < parentStates; ++i) {
+          double total = Double.NEGATIVE_INFINITY;
+          for (int j = 0; j < leftStates; ++j) {
+            for (int k = 0; k < rightStates; ++k) {
+              total = SloppyMath.logAdd(total, transitions[i][j][k]);
+            }
+          }
+          // By subtracting off the log total, we make it so the log sum
+          // of the transitions is 0, meaning the sum of the actual
+          // transitions is 1.  It works if you do the math...
+          if (Double.isInfinite(total)) {
+            double transition = -Math.log(leftStates * rightStates);
+            for (int j = 0; j < leftStates; ++j) {
+              for (int k = 0; k < rightStates; ++k) {
+                transitions[i][j][k] = transition;
+              }
+            }
+          } else {
+            for (int j = 0; j < leftStates; ++j) {
+              for (int k = 0; k < rightStates; ++k) {
+                transitions[i][j][k] = transitions[i][j][k] - total;
+              }
+            }
+          }
+        }
       }
     }
-
-    recurseOutside(child, probIn, probOut);
   }
 
-  public void recountOutside(Tree left, Tree right, Tree parent,
-                             IdentityHashMap<Tree, double[]> probIn,
-                             IdentityHashMap<Tree, double[]> probOut) {
-    String parentLabel = parent.label().value();
-    String leftLabel = left.label().value();
-    String rightLabel = right.label().value();
-    double[] leftInsideScores = probIn.get(left);
-    double[] rightInsideScores = probIn.get(right);
-    double[] parentScores = probOut.get(parent);
-    double[][][] betas = binaryBetas.get(parentLabel, leftLabel, rightLabel);
-    int parentStates = betas.length;
-    int leftStates = betas[0].length;
-    int rightStates = betas[0][0].length;
-
-    double[] leftScores = neginfDoubles(leftStates);
-    probOut.put(left, leftScores);
-    double[] rightScores = neginfDoubles(rightStates);
-    probOut.put(right, rightScores);
-
-    for (int i = 0; i < parentStates; ++i) {
-      for (int j = 0; j < leftStates; ++j) {
-        for (int k = 0; k < rightStates; ++k) {
-          leftScores[j] = SloppyMath.logAdd(leftScores[j], betas[i][j][k] + parentScores[i] + rightInsideScores[k]);
-          rightScores[k] = SloppyMath.logAdd(rightScores[k], betas[i][j][k] + parentScores[i] + leftInsideScores[j]);
+  /**
+   * Computes the outside scores of the nodes, going down from the
+   * root, whose one state has score 1.
+   */
+  public void recountOutside(IndexedTree tree, double[][] probIn, double[][] probOut) {
+    probOut[0] = new double[] { 0.0 };
+    for (int node = 0; node < tree.size(); ++node) {
+      if (tree.isPreTerminal(node)) {
+        continue;
+      }
+      double[] parentScores = probOut[node];
+      if (tree.isUnary(node)) {
+        double[][] betas = unaryBetas[tree.rules[node]];
+        int parentStates = betas.length;
+        int childStates = betas[0].length;
+
+        double[] scores = neginfDoubles(childStates);
+        probOut[tree.left[node]] = scores;
+
+        for (int i = 0; i < parentStates; ++i) {
+          for (int j = 0; j < childStates; ++j) {
+            // TODO: no inside scores here, right?
+            scores[j] = SloppyMath.logAdd(scores[j], betas[i][j] + parentScores[i]);
+          }
+        }
+      } else { // binary
+        double[] leftInsideScores = probIn[tree.left[node]];
+        double[] rightInsideScores = probIn[tree.right[node]];
+        double[][][] betas = binaryBetas[tree.rules[node]];
+        int parentStates = betas.length;
+        int leftStates = betas[0].length;
+        int rightStates = betas[0][0].length;
+
+        double[] leftScores = neginfDoubles(leftStates);
+        probOut[tree.left[node]] = leftScores;
+        double[] rightScores = neginfDoubles(rightStates);
+        probOut[tree.right[node]] = rightScores;
+
+        for (int i = 0; i < parentStates; ++i) {
+          for (int j = 0; j < leftStates; ++j) {
+            for (int k = 0; k < rightStates; ++k) {
+              leftScores[j] = SloppyMath.logAdd(leftScores[j], betas[i][j][k] + parentScores[i] + rightInsideScores[k]);
+              rightScores[k] = SloppyMath.logAdd(rightScores[k], betas[i][j][k] + parentScores[i] + leftInsideScores[j]);
+            }
+          }
         }
       }
     }
-
-    recurseOutside(left, probIn, probOut);
-    recurseOutside(right, probIn, probOut);
   }
 
-  public int recountInside(Tree tree, boolean splitStates, int loc,
-                           IdentityHashMap<Tree, double[]> probIn) {
-    if (tree.isLeaf()) {
-      throw new RuntimeException();
-    }
-      if (tree.isPreTerminal()) {
-        int stateCount = getStateSplitCount(tree);
-        String word = tree.children()[0].label().value();
-        String tag = tree.label().value();
+  /**
+   * Computes the inside scores of the nodes, going up from the words.
+   * Since the nodes are in preorder, going backwards through them
+   * reaches every child before its parent.
+   */
+  public void recountInside(IndexedTree tree, int[] wordIds, LexiconIds ids,
+                            double[][] splitWeights, double[][] probIn) {
+    for (int node = tree.size() - 1; node >= 0; --node) {
+      int label = tree.labels[node];
+      if (tree.isPreTerminal(node)) {
+        int stateCount = ids.labelStates[label];
+        int[] tagIds = ids.tagIds[label];
+        String word = tree.words[node];
+        int loc = tree.positions[node];
 
         double[] scores = new double[stateCount];
-        probIn.put(tree, scores);
+        probIn[node] = scores;
 
-        if (splitStates && !tag.equals(Lexicon.BOUNDARY_TAG)) {
-          for (int i = 0; i < stateCount / 2; ++i) {
-            IntTaggedWord tw = new IntTaggedWord(word, state(tag, i), wordIndex, tagIndex);
+        if (splitWeights != null && splitWeights[node] != null) {
+          double[] wordWeights = splitWeights[node];
+          for (int i = 0; i < wordWeights.length; ++i) {
+            IntTaggedWord tw = new IntTaggedWord(wordIds[node], tagIds[i]);
             double logProb = lex.score(tw, loc, word, null);
-            double wordWeight = 0.45 + random.nextDouble() * 0.1;
-            scores[(i << 1)] = logProb + Math.log(wordWeight);
-            scores[(i << 1) + 1] = logProb + Math.log(1.0 - wordWeight);
-            if (DEBUG()) {
-              System.out.println("Lexicon log prob " + state(tag, i) + '-' + word + ": " + logProb);
-              System.out.println("  Log Split -> " + scores[(i << 1)] + ',' + scores[(i << 1) + 1]);
-            }
+            scores[(i << 1)] = logProb + Math.log(wordWeights[i]);
+            scores[(i << 1) + 1] = logProb + Math.log(1.0 - wordWeights[i]);
           }
         } else {
           for (int i = 0; i < stateCount; ++i) {
-            IntTaggedWord tw = new IntTaggedWord(word, state(tag, i), wordIndex, tagIndex);
-            double prob = lex.score(tw, loc, word, null);
-            if (DEBUG()) {
-              System.out.println("Lexicon log prob " + state(tag, i) + '-' + word + ": " + prob);
-            }
-            scores[i] = prob;
+            IntTaggedWord tw = new IntTaggedWord(wordIds[node], tagIds[i]);
+            scores[i] = lex.score(tw, loc, word, null);
           }
         }
-        loc = loc + 1;
-      } else if (tree.children().length == 1) {
-        loc = recountInside(tree.children()[0], splitStates, loc, probIn);
-        double[] childScores = probIn.get(tree.children()[0]);
-        String parentLabel = tree.label().value();
-        String childLabel = tree.children()[0].label().value();
-        double[][] betas = unaryBetas.get(parentLabel, childLabel);
+      } else if (tree.isUnary(node)) {
+        double[] childScores = probIn[tree.left[node]];
+        double[][] betas = unaryBetas[tree.rules[node]];
         int parentStates = betas.length; // size of the first key
         int childStates = betas[0].length;
 
         double[] scores = neginfDoubles(parentStates);
-        probIn.put(tree, scores);
+        probIn[node] = scores;
 
         for (int i = 0; i < parentStates; ++i) {
           for (int j = 0; j < childStates; ++j) {
             scores[i] = SloppyMath.logAdd(scores[i], childScores[j] + betas[i][j]);
           }
         }
-        if (DEBUG()) {
-          System.out.println(parentLabel + " -> " + childLabel);
-          for (int i = 0; i < parentStates; ++i) {
-            System.out.println("  " + i + ':' + scores[i]);
-            for (int j = 0; j < childStates; ++j) {
-              System.out.println("    " + i + ',' + j + ": " + betas[i][j] + " | " + Math.exp(betas[i][j]));
-            }
-          }
-        }
-      } else { // length == 2
-        loc = recountInside(tree.children()[0], splitStates, loc, probIn);
-        loc = recountInside(tree.children()[1], splitStates, loc, probIn);
-        double[] leftScores = probIn.get(tree.children()[0]);
-        double[] rightScores = probIn.get(tree.children()[1]);
-        String parentLabel = tree.label().value();
-        String leftLabel = tree.children()[0].label().value();
-        String rightLabel = tree.children()[1].label().value();
-        double[][][] betas = binaryBetas.get(parentLabel, leftLabel, rightLabel);
+      } else { // binary
+        double[] leftScores = probIn[tree.left[node]];
+        double[] rightScores = probIn[tree.right[node]];
+        double[][][] betas = binaryBetas[tree.rules[node]];
         int parentStates = betas.length;
         int leftStates = betas[0].length;
         int rightStates = betas[0][0].length;
 
         double[] scores = neginfDoubles(parentStates);
-        probIn.put(tree, scores);
+        probIn[node] = scores;
 
         for (int i = 0; i < parentStates; ++i) {
           for (int j = 0; j < leftStates; ++j) {
@@ -1092,19 +1385,8 @@ public class SplittingGrammarExtractor {
             }
           }
         }
-        if (DEBUG()) {
-          System.out.println(parentLabel + " -> " + leftLabel + ',' + rightLabel);
-          for (int i = 0; i < parentStates; ++i) {
-            System.out.println("  " + i + ':' + scores[i]);
-            for (int j = 0; j < leftStates; ++j) {
-              for (int k = 0; k < rightStates; ++k) {
-                System.out.println("    " + i + ',' + j + ',' + k + ": " + betas[i][j][k] + " | " + Math.exp(betas[i][j][k]));
-              }
-            }
-          }
-        }
       }
-      return loc;
+    }
   }
 
   public void mergeStates() {
@@ -1114,28 +1396,38 @@ public class SplittingGrammarExtractor {
 
     // we go through the machinery to sum up the temporary betas,
     // counting the total mass
-    TwoDimensionalMap<String, String, double[][]> tempUnaryBetas = new TwoDimensionalMap<>();
-    ThreeDimensionalMap<String, String, String, double[][][]> tempBinaryBetas = new ThreeDimensionalMap<>();
-      RadixTree< double[]> totalStateMass = new RadixTree<>();
-    recalculateTemporaryBetas(false, totalStateMass, tempUnaryBetas, tempBinaryBetas);
+    final double[][] totalStateMass = recalculateTemporaryBetas(false, null, true, false).stateMass;
 
     // Next, for each tree we count the effect of merging its
     // annotations.  We only consider the most recently split
     // annotations as candidates for merging.
-      RadixTree< double[]> deltaAnnotations = new RadixTree<>();
-    for (Tree tree : trees) {
-      countMergeEffects(tree, totalStateMass, deltaAnnotations);
-    }
+    final LexiconIds ids = lexiconIds(false);
+    double[][] deltaAnnotations = countTrees(new TreeCounter() {
+      @Override
+      Counts newCounts() {
+        return SplittingGrammarExtractor.this.newCounts(false, true, false);
+      }
+
+      @Override
+      void count(int treeIndex, Counts counts) {
+        IndexedTree tree = indexedTrees.get(treeIndex);
+        TreeScores scores = recountTree(tree, ids.wordIds[treeIndex], ids, null);
+        countMergeEffects(tree, totalStateMass, counts.mergeDeltas, scores.probIn, scores.probOut);
+      }
+    }).mergeDeltas;
 
     // Now we have a map of the (approximate) likelihood loss from
     // merging each state.  We merge the ones that provide the least
     // benefit, up to the splitRecombineRate
-    List<Triple<String, Integer, Double>> sortedDeltas = 
+    List<Triple<String, Integer, Double>> sortedDeltas =
       new ArrayList<>();
-    for (Map.Entry<String, double[]> stringEntry : deltaAnnotations.entrySet()) {
-      double[] scores = stringEntry.getValue();
+    for (int label = 0; label < deltaAnnotations.length; ++label) {
+      double[] scores = deltaAnnotations[label];
+      if (scores == null) {
+        continue;
+      }
       for (int i = 0; i < scores.length; ++i) {
-        sortedDeltas.add(new Triple<>(stringEntry.getKey(), i << 1, scores[i]));
+        sortedDeltas.add(new Triple<>(labelIndex.get(label), i << 1, scores[i]));
       }
     }
     Collections.sort(sortedDeltas, new Comparator<Triple<String, Integer, Double>>() {
@@ -1165,7 +1457,7 @@ public class SplittingGrammarExtractor {
     System.out.println();
     System.out.println(sortedDeltas);
 
-    RadixTree< int[]> mergeCorrespondence = buildMergeCorrespondence(sortedDeltas);
+    int[][] mergeCorrespondence = buildMergeCorrespondence(sortedDeltas);
 
     recalculateMergedBetas(mergeCorrespondence);
 
@@ -1174,34 +1466,29 @@ public class SplittingGrammarExtractor {
     }
   }
 
-  public void recalculateMergedBetas(RadixTree< int[]> mergeCorrespondence) {
-    TwoDimensionalMap<String, String, double[][]> tempUnaryBetas = new TwoDimensionalMap<>();
-    ThreeDimensionalMap<String, String, String, double[][][]> tempBinaryBetas = new ThreeDimensionalMap<>();
-
-    tempWordIndex = new HashIndex<>();
-    tempTagIndex = new HashIndex<>();
-    tempLex = op.tlpParams.lex(op, tempWordIndex, tempTagIndex);
-    tempLex.initializeTraining(trainSize);
-
-    for (Tree tree : trees) {
-      double treeWeight = treeWeights.get(tree);
-      double[] stateWeights = { Math.log(treeWeight) };
-      tempLex.incrementTreesRead(treeWeight);
+  public void recalculateMergedBetas(final int[][] mergeCorrespondence) {
+    final LexiconIds ids = lexiconIds(false);
+    Counts counts = countTrees(new TreeCounter() {
+      @Override
+      Counts newCounts() {
+        return SplittingGrammarExtractor.this.newCounts(false, false, true);
+      }
 
-      IdentityHashMap<Tree, double[][]> oldUnaryTransitions = new IdentityHashMap<>();
-      IdentityHashMap<Tree, double[][][]> oldBinaryTransitions = new IdentityHashMap<>();
-      recountTree(tree, false, oldUnaryTransitions, oldBinaryTransitions);
+      @Override
+      void count(int treeIndex, Counts counts) {
+        IndexedTree tree = indexedTrees.get(treeIndex);
+        double[] stateWeights = { Math.log(tree.weight) };
+        TreeScores oldScores = recountTree(tree, ids.wordIds[treeIndex], ids, null);
 
-      IdentityHashMap<Tree, double[][]> unaryTransitions = new IdentityHashMap<>();
-      IdentityHashMap<Tree, double[][][]> binaryTransitions = new IdentityHashMap<>();
-      mergeTransitions(tree, oldUnaryTransitions, oldBinaryTransitions, unaryTransitions, binaryTransitions, stateWeights, mergeCorrespondence);
+        TreeScores merged = new TreeScores(tree.size());
+        mergeTransitions(tree, oldScores, merged, stateWeights, mergeCorrespondence);
 
-      recalculateTemporaryBetas(tree, stateWeights, 0, unaryTransitions, binaryTransitions, 
-                                null, tempUnaryBetas, tempBinaryBetas);
-    }
+        recalculateTemporaryBetas(tree, stateWeights, merged.unaryTransitions, merged.binaryTransitions, counts);
+      }
+    });
 
-    tempLex.finishTraining();
-    useNewBetas(false, tempUnaryBetas, tempBinaryBetas);
+    trainTemporaryLexicon(counts.lexiconWeights);
+    useNewBetas(false, counts.unaryBetas, counts.binaryBetas);
   }
 
   /**
@@ -1209,174 +1496,160 @@ public class SplittingGrammarExtractor {
    * from one state to the next in the tree, along with a list of the
    * weights in the tree and a count of the mass in each substate at
    * the current node, this method merges the probabilities as
-   * necessary.  The results go into newUnaryTransitions and
-   * newBinaryTransitions.
+   * necessary.  The results go into the transitions of newScores.
    */
-  public void mergeTransitions(Tree parent, 
-                               IdentityHashMap<Tree, double[][]> oldUnaryTransitions,
-                               IdentityHashMap<Tree, double[][][]> oldBinaryTransitions,
-                               IdentityHashMap<Tree, double[][]> newUnaryTransitions,
-                               IdentityHashMap<Tree, double[][][]> newBinaryTransitions,
-                               double[] stateWeights, 
-                               RadixTree< int[]> mergeCorrespondence) {
-    if (parent.isPreTerminal() || parent.isLeaf()) {
+  public void mergeTransitions(IndexedTree tree, TreeScores oldScores, TreeScores newScores,
+                               double[] rootWeights, int[][] mergeCorrespondence) {
+    if (tree.size() == 0) {
       return;
     }
-    if (parent.children().length == 1) {
-      double[][] oldTransitions = oldUnaryTransitions.get(parent);
-
-      String parentLabel = parent.label().value();
-      int[] parentCorrespondence = mergeCorrespondence.get(parentLabel);
+    double[][] nodeWeights = new double[tree.size()][];
+    nodeWeights[0] = rootWeights;
+    for (int node = 0; node < tree.size(); ++node) {
+      if (tree.isPreTerminal(node)) {
+        continue;
+      }
+      double[] stateWeights = nodeWeights[node];
+      int[] parentCorrespondence = mergeCorrespondence[tree.labels[node]];
       int parentStates = parentCorrespondence[parentCorrespondence.length - 1] + 1;
 
-      String childLabel = parent.children()[0].label().value();
-      int[] childCorrespondence = mergeCorrespondence.get(childLabel);
-      int childStates = childCorrespondence[childCorrespondence.length - 1] + 1;
+      if (tree.isUnary(node)) {
+        double[][] oldTransitions = oldScores.unaryTransitions[node];
 
-      // System.out.println("P: " + parentLabel + " " + parentStates + 
-      //                    " C: " + childLabel + " " + childStates);
+        int[] childCorrespondence = mergeCorrespondence[tree.labels[tree.left[node]]];
+        int childStates = childCorrespondence[childCorrespondence.length - 1] + 1;
 
-
-      // Add up the probabilities of transitioning to each state,
-      // scaled by the probability of being in a given state to begin
-      // with.  This accounts for when two states in the parent are
-      // collapsed into one state.
-      double[][] newTransitions = new double[parentStates][childStates];
-      for (int i = 0; i < parentStates; ++i) {
-        for (int j = 0; j < childStates; ++j) {
-          newTransitions[i][j] = Double.NEGATIVE_INFINITY;
+        // Add up the probabilities of transitioning to each state,
+        // scaled by the probability of being in a given state to begin
+        // with.  This accounts for when two states in the parent are
+        // collapsed into one state.
+        double[][] newTransitions = new double[parentStates][childStates];
+        for (int i = 0; i < parentStates; ++i) {
+          for (int j = 0; j < childStates; ++j) {
+            newTransitions[i][j] = Double.NEGATIVE_INFINITY;
+          }
         }
-      }
-      newUnaryTransitions.put(parent, newTransitions);
-      for (int i = 0; i < oldTransitions.length; ++i) {
-        int ti = parentCorrespondence[i];
-        for (int j = 0; j < oldTransitions[0].length; ++j) {
-          int tj = childCorrespondence[j];
-          // System.out.println(i + " " + ti + " " + j + " " + tj);
-          newTransitions[ti][tj] = SloppyMath.logAdd(newTransitions[ti][tj], oldTransitions[i][j] + stateWeights[i]);
+        newScores.unaryTransitions[node] = newTransitions;
+        for (int i = 0; i < oldTransitions.length; ++i) {
+          int ti = parentCorrespondence[i];
+          for (int j = 0; j < oldTransitions[0].length; ++j) {
+            int tj = childCorrespondence[j];
+            newTransitions[ti][tj] = SloppyMath.logAdd(newTransitions[ti][tj], oldTransitions[i][j] + stateWeights[i]);
+          }
         }
-      }
 
-      // renormalize
-      for (int i = 0; i < parentStates; ++i) {
-        double total = Double.NEGATIVE_INFINITY;
-        for (int j = 0; j < childStates; ++j) {
-          total = SloppyMath.logAdd(total, newTransitions[i][j]);
-        }
-        if (Double.isInfinite(total)) {
+        // renormalize
+        for (int i = 0; i < parentStates; ++i) {
+          double total = Double.NEGATIVE_INFINITY;
           for (int j = 0; j < childStates; ++j) {
-            newTransitions[i][j] = -Math.log(childStates);
+            total = SloppyMath.logAdd(total, newTransitions[i][j]);
           }
-        } else {
-          for (int j = 0; j < childStates; ++j) {
-            newTransitions[i][j] -= total;
+          if (Double.isInfinite(total)) {
+            for (int j = 0; j < childStates; ++j) {
+              newTransitions[i][j] = -Math.log(childStates);
+            }
+          } else {
+            for (int j = 0; j < childStates; ++j) {
+              newTransitions[i][j] -= total;
+            }
           }
         }
-      }
 
-      double[] childWeights = neginfDoubles(oldTransitions[0].length);
-      for (int i = 0; i < oldTransitions.length; ++i) {
-        for (int j = 0; j < oldTransitions[0].length; ++j) {
-          double weight = oldTransitions[i][j];
-          childWeights[j] = SloppyMath.logAdd(childWeights[j], weight + stateWeights[i]);
+        double[] childWeights = neginfDoubles(oldTransitions[0].length);
+        for (int i = 0; i < oldTransitions.length; ++i) {
+          for (int j = 0; j < oldTransitions[0].length; ++j) {
+            double weight = oldTransitions[i][j];
+            childWeights[j] = SloppyMath.logAdd(childWeights[j], weight + stateWeights[i]);
+          }
         }
-      }
-
-      mergeTransitions(parent.children()[0], oldUnaryTransitions, oldBinaryTransitions, newUnaryTransitions, newBinaryTransitions, childWeights, mergeCorrespondence);
-    } else {
-      double[][][] oldTransitions = oldBinaryTransitions.get(parent);
+        nodeWeights[tree.left[node]] = childWeights;
+      } else {
+        double[][][] oldTransitions = oldScores.binaryTransitions[node];
 
-      String parentLabel = parent.label().value();
-      int[] parentCorrespondence = mergeCorrespondence.get(parentLabel);
-      int parentStates = parentCorrespondence[parentCorrespondence.length - 1] + 1;
-
-      String leftLabel = parent.children()[0].label().value();
-      int[] leftCorrespondence = mergeCorrespondence.get(leftLabel);
-      int leftStates = leftCorrespondence[leftCorrespondence.length - 1] + 1;
+        int[] leftCorrespondence = mergeCorrespondence[tree.labels[tree.left[node]]];
+        int leftStates = leftCorrespondence[leftCorrespondence.length - 1] + 1;
 
-      String rightLabel = parent.children()[1].label().value();
-      int[] rightCorrespondence = mergeCorrespondence.get(rightLabel);
-      int rightStates = rightCorrespondence[rightCorrespondence.length - 1] + 1;
+        int[] rightCorrespondence = mergeCorrespondence[tree.labels[tree.right[node]]];
+        int rightStates = rightCorrespondence[rightCorrespondence.length - 1] + 1;
 
-      // System.out.println("P: " + parentLabel + " " + parentStates + 
-      //                    " L: " + leftLabel + " " + leftStates +
-      //                    " R: " + rightLabel + " " + rightStates);
-
-      double[][][] newTransitions = new double[parentStates][leftStates][rightStates];
-      for (int i = 0; i < parentStates; ++i) {
-        for (int j = 0; j < leftStates; ++j) {
-          for (int k = 0; k < rightStates; ++k) {
-            newTransitions[i][j][k] = Double.NEGATIVE_INFINITY;
+        double[][][] newTransitions = new double[parentStates][leftStates][rightStates];
+        for (int i = 0; i < parentStates; ++i) {
+          for (int j = 0; j < leftStates; ++j) {
+            for (int k = 0; k < rightStates; ++k) {
+              newTransitions[i][j][k] = Double.NEGATIVE_INFINITY;
+            }
           }
         }
-      }
-      newBinaryTransitions.put(parent, newTransitions);
-      for (int i = 0; i < oldTransitions.length; ++i) {
-        int ti = parentCorrespondence[i];
-        for (int j = 0; j < oldTransitions[0].length; ++j) {
-          int tj = leftCorrespondence[j];
-          for (int k = 0; k < oldTransitions[0][0].length; ++k) {
-            int tk = rightCorrespondence[k];
-            // System.out.println(i + " " + ti + " " + j + " " + tj + " " + k + " " + tk);
-            newTransitions[ti][tj][tk] = SloppyMath.logAdd(newTransitions[ti][tj][tk], oldTransitions[i][j][k] + stateWeights[i]);
+        newScores.binaryTransitions[node] = newTransitions;
+        for (int i = 0; i < oldTransitions.length; ++i) {
+          int ti = parentCorrespondence[i];
+          for (int j = 0; j < oldTransitions[0].length; ++j) {
+            int tj = leftCorrespondence[j];
+            for (int k = 0; k < oldTransitions[0][0].length; ++k) {
+              int tk = rightCorrespondence[k];
+              newTransitions[ti][tj][tk] = SloppyMath.logAdd(newTransitions[ti][tj][tk], oldTransitions[i][j][k] + stateWeights[i]);
+            }
           }
         }
-      }
 
-      // renormalize
-      for (int i = 0; i < parentStates; ++i) {
-        double total = Double.NEGATIVE_INFINITY;
-        for (int j = 0; j < leftStates; ++j) {
-          for (int k = 0; k < rightStates; ++k) {
-            total = SloppyMath.logAdd(total, newTransitions[i][j][k]);
-          }
-        }
-        if (Double.isInfinite(total)) {
+        // renormalize
+        for (int i = 0; i < parentStates; ++i) {
+          double total = Double.NEGATIVE_INFINITY;
           for (int j = 0; j < leftStates; ++j) {
             for (int k = 0; k < rightStates; ++k) {
-              newTransitions[i][j][k] = -Math.log(leftStates * rightStates);
+              total = SloppyMath.logAdd(total, newTransitions[i][j][k]);
             }
           }
-        } else {
-          for (int j = 0; j < leftStates; ++j) {
-            for (int k = 0; k < rightStates; ++k) {
-              newTransitions[i][j][k] -= total;
+          if (Double.isInfinite(total)) {
+            for (int j = 0; j < leftStates; ++j) {
+              for (int k = 0; k < rightStates; ++k) {
+                newTransitions[i][j][k] = -Math.log(leftStates * rightStates);
+              }
+            }
+          } else {
+            for (int j = 0; j < leftStates; ++j) {
+              for (int k = 0; k < rightStates; ++k) {
+                newTransitions[i][j][k] -= total;
+              }
             }
           }
         }
-      }
 
-      double[] leftWeights = neginfDoubles(oldTransitions[0].length);
-      double[] rightWeights = neginfDoubles(oldTransitions[0][0].length);
-      for (int i = 0; i < oldTransitions.length; ++i) {
-        for (int j = 0; j < oldTransitions[0].length; ++j) {
-          for (int k = 0; k < oldTransitions[0][0].length; ++k) {
-            double weight = oldTransitions[i][j][k];
-            leftWeights[j] = SloppyMath.logAdd(leftWeights[j], weight + stateWeights[i]);
-            rightWeights[k] = SloppyMath.logAdd(rightWeights[k], weight + stateWeights[i]);
+        double[] leftWeights = neginfDoubles(oldTransitions[0].length);
+        double[] rightWeights = neginfDoubles(oldTransitions[0][0].length);
+        for (int i = 0; i < oldTransitions.length; ++i) {
+          for (int j = 0; j < oldTransitions[0].length; ++j) {
+            for (int k = 0; k < oldTransitions[0][0].length; ++k) {
+              double weight = oldTransitions[i][j][k];
+              leftWeights[j] = SloppyMath.logAdd(leftWeights[j], weight + stateWeights[i]);
+              rightWeights[k] = SloppyMath.logAdd(rightWeights[k], weight + stateWeights[i]);
+            }
           }
         }
+        nodeWeights[tree.left[node]] = leftWeights;
+        nodeWeights[tree.right[node]] = rightWeights;
       }
-
-      mergeTransitions(parent.children()[0], oldUnaryTransitions, oldBinaryTransitions, newUnaryTransitions, newBinaryTransitions, leftWeights, mergeCorrespondence);
-      mergeTransitions(parent.children()[1], oldUnaryTransitions, oldBinaryTransitions, newUnaryTransitions, newBinaryTransitions, rightWeights, mergeCorrespondence);
     }
   }
 
-  RadixTree< int[]> buildMergeCorrespondence(List<Triple<String, Integer, Double>> deltas) {
-      RadixTree< int[]> mergeCorrespondence = new RadixTree<>();
-    for (String state : originalStates) {
-      int states = getStateSplitCount(state);
+  /**
+   * For each label, maps each of its current states to the state it
+   * becomes once the given splits are merged
+   */
+  int[][] buildMergeCorrespondence(List<Triple<String, Integer, Double>> deltas) {
+    int[][] mergeCorrespondence = new int[labelIndex.size()][];
+    for (int label = 0; label < mergeCorrespondence.length; ++label) {
+      int states = getStateSplitCount(labelIndex.get(label));
       int[] correspondence = new int[states];
       for (int i = 0; i < states; ++i) {
         correspondence[i] = i;
       }
-      mergeCorrespondence.put(state, correspondence);
+      mergeCorrespondence[label] = correspondence;
     }
     for (Triple<String, Integer, Double> merge : deltas) {
       int states = getStateSplitCount(merge.first());
       int split = merge.second();
-      int[] correspondence = mergeCorrespondence.get(merge.first());
+      int[] correspondence = mergeCorrespondence[labelIndex.indexOf(merge.first())];
       for (int i = split + 1; i < states; ++i) {
         correspondence[i] = correspondence[i] - 1;
       }
@@ -1384,62 +1657,44 @@ public class SplittingGrammarExtractor {
     return mergeCorrespondence;
   }
 
-  public void countMergeEffects(Tree tree, RadixTree< double[]> totalStateMass,
-                                RadixTree< double[]> deltaAnnotations) {
-    IdentityHashMap<Tree, double[]> probIn = new IdentityHashMap<>();
-    IdentityHashMap<Tree, double[]> probOut = new IdentityHashMap<>();
-    IdentityHashMap<Tree, double[][]> unaryTransitions = new IdentityHashMap<>();
-    IdentityHashMap<Tree, double[][][]> binaryTransitions = new IdentityHashMap<>();
-    recountTree(tree, false, probIn, probOut, unaryTransitions, binaryTransitions);
-
+  /**
+   * Adds the effect on the likelihood of merging each pair of states
+   * of each node of the tree but the root to deltaAnnotations.
+   */
+  public void countMergeEffects(IndexedTree tree, double[][] totalStateMass,
+                                double[][] deltaAnnotations,
+                                double[][] probIn, double[][] probOut) {
     // no need to count the root
-    for (Tree child : tree.children()) {
-      countMergeEffects(child, totalStateMass, deltaAnnotations, probIn, probOut);
-    }
-  }
-
-  public static void countMergeEffects(Tree tree, RadixTree< double[]> totalStateMass,
-                                       RadixTree< double[]> deltaAnnotations,
-                                       IdentityHashMap<Tree, double[]> probIn,
-                                       IdentityHashMap<Tree, double[]> probOut) {
-    if (tree.isLeaf()) {
-      return;
-    }
-    if (tree.label().value().equals(Lexicon.BOUNDARY_TAG)) {
-      return;
-    }
+    for (int node = 1; node < tree.size(); ++node) {
+      int label = tree.labels[node];
+      if (labelIndex.get(label).equals(Lexicon.BOUNDARY_TAG)) {
+        continue;
+      }
 
-    String label = tree.label().value();
-    double totalMass = 0.0;
-    double[] stateMass = totalStateMass.get(label);
-    for (double mass : stateMass) {
-      totalMass += mass;
-    }
-    
-    double[] nodeProbIn = probIn.get(tree);
-    double[] nodeProbOut = probOut.get(tree);
+      double totalMass = 0.0;
+      double[] stateMass = totalStateMass[label];
+      for (double mass : stateMass) {
+        totalMass += mass;
+      }
 
-    double[] nodeDelta = deltaAnnotations.get(label);
-    if (nodeDelta == null) {
-      nodeDelta = new double[nodeProbIn.length / 2];
-      deltaAnnotations.put(label, nodeDelta);
-    }
+      double[] nodeProbIn = probIn[node];
+      double[] nodeProbOut = probOut[node];
 
-    for (int i = 0; i < nodeProbIn.length / 2; ++i) {
-      double probInMerged = SloppyMath.logAdd(Math.log(stateMass[(i << 1)] / totalMass) + nodeProbIn[(i << 1)],
-                                              Math.log(stateMass[(i << 1) + 1] / totalMass) + nodeProbIn[(i << 1) + 1]);
-      double probOutMerged = SloppyMath.logAdd(nodeProbOut[(i << 1)], nodeProbOut[(i << 1) + 1]);
-      double probMerged = probInMerged + probOutMerged;
-      double probUnmerged = SloppyMath.logAdd(nodeProbIn[(i << 1)] + nodeProbOut[(i << 1)],
-                                              nodeProbIn[(i << 1) + 1] + nodeProbOut[(i << 1) + 1]);
-      nodeDelta[i] = nodeDelta[i] + probMerged - probUnmerged;
-    }
+      double[] nodeDelta = deltaAnnotations[label];
+      if (nodeDelta == null) {
+        nodeDelta = new double[nodeProbIn.length / 2];
+        deltaAnnotations[label] = nodeDelta;
+      }
 
-    if (tree.isPreTerminal()) {
-      return;
-    }
-    for (Tree child : tree.children()) {
-      countMergeEffects(child, totalStateMass, deltaAnnotations, probIn, probOut);
+      for (int i = 0; i < nodeProbIn.length / 2; ++i) {
+        double probInMerged = SloppyMath.logAdd(Math.log(stateMass[(i << 1)] / totalMass) + nodeProbIn[(i << 1)],
+                                                Math.log(stateMass[(i << 1) + 1] / totalMass) + nodeProbIn[(i << 1) + 1]);
+        double probOutMerged = SloppyMath.logAdd(nodeProbOut[(i << 1)], nodeProbOut[(i << 1) + 1]);
+        double probMerged = probInMerged + probOutMerged;
+        double probUnmerged = SloppyMath.logAdd(nodeProbIn[(i << 1)] + nodeProbOut[(i << 1)],
+                                                nodeProbIn[(i << 1) + 1] + nodeProbOut[(i << 1) + 1]);
+        nodeDelta[i] = nodeDelta[i] + probMerged - probUnmerged;
+      }
     }
   }
 
@@ -1460,10 +1715,10 @@ public class SplittingGrammarExtractor {
 
     // we go through the machinery to sum up the temporary betas,
     // counting the total mass...
-    TwoDimensionalMap<String, String, double[][]> tempUnaryBetas = new TwoDimensionalMap<>();
-    ThreeDimensionalMap<String, String, String, double[][][]> tempBinaryBetas = new ThreeDimensionalMap<>();
-      RadixTree< double[]> totalStateMass = new RadixTree<>();
-    recalculateTemporaryBetas(false, totalStateMass, tempUnaryBetas, tempBinaryBetas);
+    Counts counts = recalculateTemporaryBetas(false, null, true, false);
+    double[][][] tempUnaryBetas = counts.unaryBetas;
+    double[][][][] tempBinaryBetas = counts.binaryBetas;
+    double[][] totalStateMass = counts.stateMass;
 
     // ... but note we don't actually rescale the betas.
     // instead we use the temporary betas and the total mass in each
@@ -1473,28 +1728,28 @@ public class SplittingGrammarExtractor {
     // The score for each rule will be the Beta scores found earlier,
     // scaled by the total weight of a transition between unsplit states
     BinaryGrammar bg = new BinaryGrammar(stateIndex);
-    for (String parent : tempBinaryBetas.firstKeySet()) {
+    for (int rule = 0; rule < binaryRules.size(); ++rule) {
+      BinaryRule transition = binaryRules.get(rule);
+      String parent = labelIndex.get(transition.parent);
+      String left = labelIndex.get(transition.leftChild);
+      String right = labelIndex.get(transition.rightChild);
       int parentStates = getStateSplitCount(parent);
-      double[] stateTotal = totalStateMass.get(parent);
-      for (String left : tempBinaryBetas.get(parent).firstKeySet()) {
-        int leftStates = getStateSplitCount(left);
-        for (String right : tempBinaryBetas.get(parent).get(left).keySet()) {
-          int rightStates = getStateSplitCount(right);
-          double[][][] betas = tempBinaryBetas.get(parent, left, right);
-          for (int i = 0; i < parentStates; ++i) {
-            if (stateTotal[i] < EPSILON) {
-              continue;
-            }
-            for (int j = 0; j < leftStates; ++j) {
-              for (int k = 0; k < rightStates; ++k) {
-                int parentIndex = stateIndex.indexOf(state(parent, i));
-                int leftIndex = stateIndex.indexOf(state(left, j));
-                int rightIndex = stateIndex.indexOf(state(right, k));
-                double score = betas[i][j][k] - Math.log(stateTotal[i]);
-                BinaryRule br = new BinaryRule(parentIndex, leftIndex, rightIndex, score);
-                bg.addRule(br);
-              }
-            }
+      int leftStates = getStateSplitCount(left);
+      int rightStates = getStateSplitCount(right);
+      double[] stateTotal = totalStateMass[transition.parent];
+      double[][][] betas = tempBinaryBetas[rule];
+      for (int i = 0; i < parentStates; ++i) {
+        if (stateTotal[i] < EPSILON) {
+          continue;
+        }
+        for (int j = 0; j < leftStates; ++j) {
+          for (int k = 0; k < rightStates; ++k) {
+            int parentIndex = stateIndex.indexOf(state(parent, i));
+            int leftIndex = stateIndex.indexOf(state(left, j));
+            int rightIndex = stateIndex.indexOf(state(right, k));
+            double score = betas[i][j][k] - Math.log(stateTotal[i]);
+            BinaryRule br = new BinaryRule(parentIndex, leftIndex, rightIndex, score);
+            bg.addRule(br);
           }
         }
       }
@@ -1502,23 +1757,24 @@ public class SplittingGrammarExtractor {
 
     // Now build up a UnaryGrammar
     UnaryGrammar ug = new UnaryGrammar(stateIndex);
-    for (String parent : tempUnaryBetas.firstKeySet()) {
+    for (int rule = 0; rule < unaryRules.size(); ++rule) {
+      UnaryRule transition = unaryRules.get(rule);
+      String parent = labelIndex.get(transition.parent);
+      String child = labelIndex.get(transition.child);
       int parentStates = getStateSplitCount(parent);
-      double[] stateTotal = totalStateMass.get(parent);
-      for (String child : tempUnaryBetas.get(parent).keySet()) {
-        int childStates = getStateSplitCount(child);
-        double[][] betas = tempUnaryBetas.get(parent, child);
-        for (int i = 0; i < parentStates; ++i) {
-          if (stateTotal[i] < EPSILON) {
-            continue;
-          }
-          for (int j = 0; j < childStates; ++j) {
-            int parentIndex = stateIndex.indexOf(state(parent, i));
-            int childIndex = stateIndex.indexOf(state(child, j));
-            double score = betas[i][j] - Math.log(stateTotal[i]);
-            UnaryRule ur = new UnaryRule(parentIndex, childIndex, score);
-            ug.addRule(ur);
-          }
+      int childStates = getStateSplitCount(child);
+      double[] stateTotal = totalStateMass[transition.parent];
+      double[][] betas = tempUnaryBetas[rule];
+      for (int i = 0; i < parentStates; ++i) {
+        if (stateTotal[i] < EPSILON) {
+          continue;
+        }
+        for (int j = 0; j < childStates; ++j) {
+          int parentIndex = stateIndex.indexOf(state(parent, i));
+          int childIndex = stateIndex.indexOf(state(child, j));
+          double score = betas[i][j] - Math.log(stateTotal[i]);
+          UnaryRule ur = new UnaryRule(parentIndex, childIndex, score);
+          ug.addRule(ur);
         }
       }
     }
@@ -1547,7 +1803,7 @@ public class SplittingGrammarExtractor {
       }
       treeCount += trees2.size();
     }
-    System.err.println("Found " + treeCount + 
+    System.err.println("Found " + treeCount +
                        " trees with total weight " + trainSize);
   }
 
@@ -1568,17 +1824,18 @@ public class SplittingGrammarExtractor {
    * <br>
    * We then repeatedly recalculate the betas and reannotate the
    * weights, going until we converge, which is defined as no betas
-   * move more then epsilon.
+   * move more then epsilon.  The time each iteration takes is
+   * reported as we go.
    * <br>
-   * java -mx4g edu.stanford.nlp.parser.lexparser.LexicalizedParser  -PCFG -saveToSerializedFile englishSplit.ser.gz -saveToTextFile englishSplit.txt -maxLength 40 -train ../data/wsj/wsjtwentytrees.mrg    -testTreebank ../data/wsj/wsjtwentytrees.mrg   -evals "factDA,tsv" -uwm 0  -hMarkov 0 -vMarkov 0 -simpleBinarizedLabels -noRebinarization -predictSplits -splitTrainingThreads 1 -splitCount 1 -splitRecombineRate 0.5
+   * java -mx4g edu.stanford.nlp.parser.lexparser.LexicalizedParser  -PCFG -saveToSerializedFile englishSplit.ser.gz -saveToTextFile englishSplit.txt -maxLength 40 -train ../data/wsj/wsjtwentytrees.mrg    -testTreebank ../data/wsj/wsjtwentytrees.mrg   -evals "factDA,tsv" -uwm 0  -hMarkov 0 -vMarkov 0 -simpleBinarizedLabels -noRebinarization -predictSplits -trainingThreads 1 -splitCount 1 -splitRecombineRate 0.5
    * <br>
    * may also need
    * <br>
    *  -smoothTagsThresh 0
    * <br>
-   * java -mx8g edu.stanford.nlp.parser.lexparser.LexicalizedParser -evals "factDA,tsv" -PCFG -vMarkov 0 -hMarkov 0 -uwm 0 -saveToSerializedFile wsjS1.ser.gz -maxLength 40 -train /afs/ir/data/linguistic-data/Treebank/3/parsed/mrg/wsj 200-2199 -testTreebank /afs/ir/data/linguistic-data/Treebank/3/parsed/mrg/wsj 2200-2219 -compactGrammar 0 -simpleBinarizedLabels -predictSplits -smoothTagsThresh 0 -splitCount 1 -noRebinarization
+   * java -mx8g edu.stanford.nlp.parser.lexparser.LexicalizedParser -evals "factDA,tsv" -PCFG -vMarkov 0 -hMarkov 0 -uwm 0 -saveToSerializedFile wsjS1.ser.gz -maxLength 40 -train /afs/ir/data/linguistic-data/Treebank/3/parsed/mrg/wsj 200-2199 -testTreebank /afs/ir/data/linguistic-data/Treebank/3/parsed/mrg/wsj 2200-2219 -compactGrammar 0 -simpleBinarizedLabels -predictSplits -smoothTagsThresh 0 -splitCount 1 -noRebinarization -trainingThreads 8
    */
-  public void extract(Collection<Tree> trees1, double weight1, 
+  public void extract(Collection<Tree> trees1, double weight1,
                       Collection<Tree> trees2, double weight2) {
     saveTrees(trees1, weight1, trees2, weight2);
 
@@ -1588,18 +1845,25 @@ public class SplittingGrammarExtractor {
     // transitions in our treebank
     initialBetasAndLexicon();
 
+    System.err.println("Training on " + Math.max(1, op.trainOptions.trainingThreads) + " threads, " +
+                       labelIndex.size() + " labels, " + unaryRules.size() + " unary and " +
+                       binaryRules.size() + " binary rules");
+    Timing total = new Timing();
     for (int cycle = 0; cycle < op.trainOptions.splitCount; ++cycle) {
       // All states except the root state get split into 2
       splitStateCounts();
 
       // first, recalculate the betas and the lexicon for having split
       // the transitions
+      Timing timing = new Timing();
       recalculateBetas(true);
+      System.err.println("Cycle " + cycle + " split: " + Timing.toSecondsString(timing.restart()) + " s");
 
       // now, loop until we converge while recalculating betas
       // TODO: add a loop counter, stop after X iterations
       iteration = 0;
       boolean converged = false;
+      Timing iterationTiming = new Timing();
       while (!converged && iteration < MAX_ITERATIONS) {
         if (DEBUG()) {
           System.out.println();
@@ -1609,19 +1873,26 @@ public class SplittingGrammarExtractor {
         }
 
         converged = recalculateBetas(false);
+        if (op.testOptions.verbose) {
+          System.err.println("Cycle " + cycle + " iteration " + iteration + ": " +
+                             Timing.toSecondsString(iterationTiming.restart()) + " s");
+        }
         ++iteration;
       }
 
-      System.err.println("Converged for cycle " + cycle + 
-                         " in " + iteration + " iterations");
+      System.err.println("Converged for cycle " + cycle +
+                         " in " + iteration + " iterations: " +
+                         Timing.toSecondsString(timing.restart()) + " s");
 
       mergeStates();
+      System.err.println("Cycle " + cycle + " merge: " + Timing.toSecondsString(timing.restart()) + " s");
     }
+    System.err.println("Split-merge training took " + Timing.toSecondsString(total.report()) + " s");
 
     // Build up the state index.  The BG & UG both expect a set count
     // of states.
     buildStateIndex();
 
     buildGrammars();
-  }  
+  }
 }
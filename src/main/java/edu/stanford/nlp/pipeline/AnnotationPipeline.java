@@ -8,6 +8,7 @@ import javolution.text.TextBuilder;
 import javolution.util.FastSet;
 
 import java.io.IOException;
+import java.io.Reader;
 import java.util.*;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -60,20 +61,77 @@ public class AnnotationPipeline implements Annotator {
    * @param annotation The input annotation, usually a raw document
    */
   public void annotate(Annotation annotation) {
-    Iterator<AtomicInteger> it = accumulatedTime.iterator();
-    Timing t = new Timing();
-      for (int i = 0, annotatorsSize = annotators.size(); i < annotatorsSize; i++) {
-          Annotator annotator = annotators.get(i);
-          if (TIME) {
-              t.start();
-          }
-          annotator.annotate(annotation);
-          if (TIME) {
-              int elapsed = (int) t.stop();
-              AtomicInteger m = it.next();
-              m.getAndAdd(elapsed);
-          }
+    long[] elapsed = new long[annotators.size()];
+    annotate(annotation, 0, elapsed);
+    addTimes(elapsed);
+  }
+
+  /**
+   * Runs the annotators of the pipeline from the given one on,
+   * adding the nanoseconds each takes to elapsed
+   */
+  private void annotate(Annotation annotation, int first, long[] elapsed) {
+    for (int i = first, annotatorsSize = annotators.size(); i < annotatorsSize; i++) {
+      long start = TIME ? System.nanoTime() : 0;
+      annotators.get(i).annotate(annotation);
+      if (TIME) {
+        elapsed[i] += System.nanoTime() - start;
+      }
+    }
+  }
+
+  /** Adds the given nanoseconds for each annotator to its accumulated time */
+  private void addTimes(long[] elapsed) {
+    if (TIME) {
+      for (int i = 0; i < elapsed.length; i++) {
+        accumulatedTime.get(i).getAndAdd((int) (elapsed[i] / 1000000));
+      }
+    }
+  }
+
+  /**
+   * Run the pipeline on text read from a Reader, a sentence at a time, so that
+   * neither the whole text nor all its tokens have to be in memory.
+   * The pipeline must begin with a tokenizer and a sentence splitter, which are run
+   * incrementally by a {@link SentenceStream}; the other annotators are run on each
+   * sentence as soon as it is split, so they must only need one sentence at a time
+   * (coreference, for instance, does not work this way).
+   *
+   * @param input The text to annotate
+   * @param callback A function called with each sentence once it is annotated, as a
+   *                 one-sentence document (see {@link SentenceStream}).
+   *                 The return value of the callback is ignored.
+   */
+  public void annotateSentences(Reader input, Function<Annotation,Object> callback) {
+    if (annotators.size() < 2 || ! (annotators.get(0) instanceof TokenizerAnnotator) ||
+        ! (annotators.get(1) instanceof WordsToSentencesAnnotator)) {
+      throw new UnsupportedOperationException("Annotating sentences needs a pipeline beginning with tokenize, ssplit");
+    }
+    for (Annotator annotator : annotators) {
+      if (annotator.requirementsSatisfied().contains(DETERMINISTIC_COREF_REQUIREMENT)) {
+        throw new UnsupportedOperationException("Cannot annotate sentences separately for " + annotator);
+      }
+    }
+    SentenceStream sentences = new SentenceStream(input, (TokenizerAnnotator) annotators.get(0),
+                                                  (WordsToSentencesAnnotator) annotators.get(1));
+    long[] elapsed = new long[annotators.size()];
+    try {
+      while (true) {
+        // (tokenizing and splitting are interleaved, so their time is all counted as tokenizing)
+        long start = TIME ? System.nanoTime() : 0;
+        if ( ! sentences.hasNext()) {
+          break;
+        }
+        Annotation sentence = sentences.next();
+        if (TIME) {
+          elapsed[0] += System.nanoTime() - start;
+        }
+        annotate(sentence, 2, elapsed);
+        callback.apply(sentence);
       }
+    } finally {
+      addTimes(elapsed);
+    }
   }
 
   /**
@@ -117,12 +175,14 @@ public class AnnotationPipeline implements Annotator {
    */
   public void annotate(final List<Annotation> annotations, int numThreads, final Function<Annotation,Object> callback){
     // case: single thread (no point in spawning threads)
-    if(numThreads == 1)
-        for (int i = 0, annotationsSize = annotations.size(); i < annotationsSize; i++) {
-            Annotation ann = annotations.get(i);
-            annotate(ann);
-            callback.apply(ann);
-        }
+    if(numThreads == 1) {
+      for (int i = 0, annotationsSize = annotations.size(); i < annotationsSize; i++) {
+        Annotation ann = annotations.get(i);
+        annotate(ann);
+        callback.apply(ann);
+      }
+      return;
+    }
     // Java's equivalent to ".map{ lambda(annotation) => annotate(annotation) }
     Iterable<Runnable> threads = new Iterable<Runnable>(){
       public Iterator<Runnable> iterator() {
@@ -137,14 +197,15 @@ public class AnnotationPipeline implements Annotator {
               public void run(){
                 //Jesus Christ, finally the body of the code
                 //(logging)
-                String beginningOfDocument = input.toString().substring(0,Math.min(50,input.toString().length()));
-                Redwood.startTrack("Annotating \"" + beginningOfDocument + "...\"");
+                String text = input.toString();
+                String title = "Annotating \"" + text.substring(0, Math.min(50, text.length())) + "...\"";
+                Redwood.startTrack(title);
                 //(annotate)
                 annotate(input);
                 //(callback)
                 callback.apply(input);
                 //(logging again)
-                Redwood.endTrack("Annotating \"" + beginningOfDocument + "...\"");
+                Redwood.endTrack(title);
               }
             };
           }
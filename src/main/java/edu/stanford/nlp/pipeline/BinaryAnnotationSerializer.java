@@ -0,0 +1,620 @@
+package edu.stanford.nlp.pipeline;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import edu.stanford.nlp.dcoref.CorefChain;
+import edu.stanford.nlp.dcoref.CorefCoreAnnotations;
+import edu.stanford.nlp.dcoref.Dictionaries;
+import edu.stanford.nlp.io.RuntimeIOException;
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.ling.HasIndex;
+import edu.stanford.nlp.ling.HasWord;
+import edu.stanford.nlp.ling.IndexedWord;
+import edu.stanford.nlp.semgraph.SemanticGraph;
+import edu.stanford.nlp.semgraph.SemanticGraphCoreAnnotations;
+import edu.stanford.nlp.semgraph.SemanticGraphEdge;
+import edu.stanford.nlp.trees.GrammaticalRelation;
+import edu.stanford.nlp.trees.LabeledScoredTreeFactory;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeCoreAnnotations;
+import edu.stanford.nlp.trees.TreeFactory;
+import edu.stanford.nlp.util.*;
+import javolution.util.FastMap;
+import javolution.util.FastSet;
+
+/**
+ * Serializes Annotation objects in a compact binary format.
+ * It stores the same annotations as {@link CustomAnnotationSerializer}
+ * (coref chains and graph, parse trees, the three dependency graphs and
+ * the word, lemma, tag, NE tag, normalized NE tag and character offsets of the tokens),
+ * but nothing is printed or parsed as text:
+ * <ul>
+ * <li> all strings are stored once, in a string table, and referred to by their index,
+ * <li> tokens are stored column by column (all words of a sentence, then all lemmas, ...),
+ * <li> trees are stored as their node labels and the index of the parent of each node, in preorder,
+ * <li> dependency graphs are stored as arrays of nodes and edges (relation, source, target),
+ * <li> coref mentions are stored as tuples of ints,
+ * </ul>
+ * with all ints written as variable length integers.
+ * The document is written as one block, which is deflated if compression is on.
+ * The format starts with a magic number and a version, so it can be extended.
+ */
+public class BinaryAnnotationSerializer implements AnnotationSerializer {
+
+  private static final int MAGIC = 0x434e4c42; // "CNLB"
+  private static final int VERSION = 1;
+
+  private final boolean compress;
+
+  /**
+   * If true, it means we store/load also AntecedentAnnotation
+   * (see {@link CustomAnnotationSerializer}).
+   */
+  private final boolean haveExplicitAntecedent;
+
+  public BinaryAnnotationSerializer() {
+    this(true, false);
+  }
+
+  public BinaryAnnotationSerializer(boolean compress, boolean haveAnte) {
+    this.compress = compress;
+    this.haveExplicitAntecedent = haveAnte;
+  }
+
+  public void save(Annotation corpus, OutputStream os) throws IOException {
+    Writer writer = new Writer();
+    writer.writeDocument(corpus, haveExplicitAntecedent);
+
+    // the string table comes first, so the reader can resolve strings as it goes
+    ByteArrayOutputStream block = new ByteArrayOutputStream(writer.body.size() + 16 * writer.strings.size() + 16);
+    DataOutputStream out = new DataOutputStream(block);
+    writeInt(out, writer.strings.size());
+    for (String s : writer.strings) {
+      writeString(out, s);
+    }
+    writer.body.writeTo(block);
+    byte[] bytes = block.toByteArray();
+    int length = bytes.length;
+    if (compress) {
+      Deflater deflater = new Deflater();
+      deflater.setInput(bytes);
+      deflater.finish();
+      byte[] deflated = new byte[Math.max(64, length + length / 1000 + 64)];
+      int deflatedLength = 0;
+      while (!deflater.finished()) {
+        if (deflatedLength == deflated.length) {
+          deflated = Arrays.copyOf(deflated, 2 * deflated.length);
+        }
+        deflatedLength += deflater.deflate(deflated, deflatedLength, deflated.length - deflatedLength);
+      }
+      deflater.end();
+      bytes = deflated;
+      length = deflatedLength;
+    }
+
+    DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(os));
+    dos.writeInt(MAGIC);
+    dos.writeByte(VERSION);
+    dos.writeBoolean(compress);
+    dos.writeBoolean(haveExplicitAntecedent);
+    dos.writeInt(block.size());
+    dos.writeInt(length);
+    dos.write(bytes, 0, length);
+    dos.flush();
+  }
+
+  public Annotation load(InputStream is) throws IOException, ClassNotFoundException, ClassCastException {
+    DataInputStream dis = new DataInputStream(new BufferedInputStream(is));
+    if (dis.readInt() != MAGIC) {
+      throw new RuntimeIOException("ERROR: Not a binary serialized annotation");
+    }
+    int version = dis.readByte();
+    if (version != VERSION) {
+      throw new RuntimeIOException("ERROR: Unsupported version of binary serialized annotation: " + version);
+    }
+    boolean compressed = dis.readBoolean();
+    boolean haveAnte = dis.readBoolean();
+    int length = dis.readInt();
+    int storedLength = dis.readInt();
+    byte[] bytes = new byte[storedLength];
+    dis.readFully(bytes);
+    if (compressed) {
+      Inflater inflater = new Inflater();
+      inflater.setInput(bytes);
+      byte[] inflated = new byte[length];
+      try {
+        int n = 0;
+        while (n < length && !inflater.finished()) {
+          int k = inflater.inflate(inflated, n, length - n);
+          if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) break;
+          n += k;
+        }
+        if (n != length) {
+          throw new RuntimeIOException("ERROR: Truncated binary serialized annotation");
+        }
+      } catch (DataFormatException e) {
+        throw new RuntimeIOException("ERROR: Corrupt binary serialized annotation", e);
+      } finally {
+        inflater.end();
+      }
+      bytes = inflated;
+    }
+
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+    String[] strings = new String[readInt(in)];
+    for (int i = 0; i < strings.length; i++) {
+      strings[i] = readString(in);
+    }
+    return new Reader(in, strings).readDocument(haveAnte);
+  }
+
+  /**
+   * Writes the document body, collecting the strings in a table
+   */
+  private static class Writer {
+    final List<String> strings = new ArrayList<>();
+    final Map<String, Integer> stringIds = new FastMap<>();
+    final ByteArrayOutputStream body = new ByteArrayOutputStream(4096);
+    final DataOutputStream out = new DataOutputStream(body);
+
+    // 0 is null, other strings are their index in the table + 1
+    private void writeStringId(String s) throws IOException {
+      if (s == null) {
+        writeInt(out, 0);
+        return;
+      }
+      Integer id = stringIds.get(s);
+      if (id == null) {
+        id = strings.size() + 1;
+        strings.add(s);
+        stringIds.put(s, id);
+      }
+      writeInt(out, id);
+    }
+
+    // null is written as 0, other values are shifted by one
+    private void writeInteger(Integer i) throws IOException {
+      writeInt(out, i == null ? 0 : i + 1);
+    }
+
+    void writeDocument(Annotation doc, boolean haveExplicitAntecedent) throws IOException {
+      writeCorefChains(doc.get(CorefCoreAnnotations.CorefChainAnnotation.class));
+
+      // the old coref graph format
+      List<Pair<IntTuple, IntTuple>> corefGraph = doc.get(CorefCoreAnnotations.CorefGraphAnnotation.class);
+      if (corefGraph == null) {
+        writeInt(out, 0);
+      } else {
+        writeInt(out, corefGraph.size() + 1);
+        for (Pair<IntTuple, IntTuple> arc : corefGraph) {
+          writeInt(out, arc.first.get(0));
+          writeInt(out, arc.first.get(1));
+          writeInt(out, arc.second.get(0));
+          writeInt(out, arc.second.get(1));
+        }
+      }
+
+      List<CoreMap> sentences = doc.get(CoreAnnotations.SentencesAnnotation.class);
+      writeInt(out, sentences.size());
+      for (CoreMap sent : sentences) {
+        // tokens first, so the reader can build the graph nodes right away
+        writeTokens(sent.get(CoreAnnotations.TokensAnnotation.class), haveExplicitAntecedent);
+        writeTree(sent.get(TreeCoreAnnotations.TreeAnnotation.class));
+        writeDependencyGraph(sent.get(SemanticGraphCoreAnnotations.CollapsedDependenciesAnnotation.class));
+        writeDependencyGraph(sent.get(SemanticGraphCoreAnnotations.BasicDependenciesAnnotation.class));
+        writeDependencyGraph(sent.get(SemanticGraphCoreAnnotations.CollapsedCCProcessedDependenciesAnnotation.class));
+      }
+    }
+
+    private void writeTokens(List<CoreLabel> tokens, boolean haveExplicitAntecedent) throws IOException {
+      if (tokens == null) {
+        tokens = Collections.emptyList();
+      }
+      writeInt(out, tokens.size());
+      for (CoreLabel token : tokens) writeStringId(token.get(CoreAnnotations.TextAnnotation.class));
+      for (CoreLabel token : tokens) writeStringId(token.get(CoreAnnotations.LemmaAnnotation.class));
+      for (CoreLabel token : tokens) writeStringId(token.get(CoreAnnotations.PartOfSpeechAnnotation.class));
+      for (CoreLabel token : tokens) writeStringId(token.get(CoreAnnotations.NamedEntityTagAnnotation.class));
+      for (CoreLabel token : tokens) writeStringId(token.get(CoreAnnotations.NormalizedNamedEntityTagAnnotation.class));
+      for (CoreLabel token : tokens) writeInteger(token.get(CoreAnnotations.CharacterOffsetBeginAnnotation.class));
+      for (CoreLabel token : tokens) writeInteger(token.get(CoreAnnotations.CharacterOffsetEndAnnotation.class));
+      if (haveExplicitAntecedent) {
+        for (CoreLabel token : tokens) writeStringId(token.get(CoreAnnotations.AntecedentAnnotation.class));
+      }
+    }
+
+    // Writes the number of nodes (0 if there is no tree), then the parent and label of each node in preorder
+    private void writeTree(Tree tree) throws IOException {
+      if (tree == null) {
+        writeInt(out, 0);
+        return;
+      }
+      writeInt(out, tree.size());
+      writeTreeNode(tree, -1, 0);
+    }
+
+    // Writes the subtree whose root has the given preorder index, returning the index after the subtree
+    private int writeTreeNode(Tree node, int parent, int index) throws IOException {
+      // parent index + 1, so the root has 0, and a low bit of 1 for leaves
+      writeInt(out, ((parent + 1) << 1) | (node.isLeaf() ? 1 : 0));
+      writeStringId(node.value());
+      int next = index + 1;
+      for (Tree child : node.children()) {
+        next = writeTreeNode(child, index, next);
+      }
+      return next;
+    }
+
+    private void writeDependencyGraph(SemanticGraph graph) throws IOException {
+      if (graph == null) {
+        writeInt(out, 0);
+        return;
+      }
+      Set<IndexedWord> vertices = graph.vertexSet();
+      writeInt(out, vertices.size() + 1);
+      if (!vertices.isEmpty()) {
+        IndexedWord first = vertices.iterator().next();
+        String docId = first.get(CoreAnnotations.DocIDAnnotation.class);
+        writeStringId(docId != null ? docId : "");
+        writeInteger(first.get(CoreAnnotations.SentenceIndexAnnotation.class));
+      }
+      for (IndexedWord node : vertices) {
+        writeInt(out, node.index());
+        writeInteger(node.get(CoreAnnotations.CopyAnnotation.class));
+      }
+
+      List<SemanticGraphEdge> edges = new ArrayList<>();
+      for (SemanticGraphEdge edge : graph.edgeIterable()) {
+        edges.add(edge);
+      }
+      writeInt(out, edges.size());
+      for (SemanticGraphEdge edge : edges) {
+        // no spaces allowed in the relation name, as in CustomAnnotationSerializer
+        writeStringId(edge.getRelation().toString().replaceAll("\\s+", ""));
+        writeInt(out, edge.getSource().index());
+        writeInt(out, edge.getTarget().index());
+        out.writeBoolean(edge.isExtra());
+      }
+    }
+
+    private void writeCorefChains(Map<Integer, CorefChain> chains) throws IOException {
+      if (chains == null) {
+        writeInt(out, 0);
+        return;
+      }
+      writeInt(out, chains.size() + 1);
+      for (Map.Entry<Integer, CorefChain> entry : chains.entrySet()) {
+        CorefChain cluster = entry.getValue();
+        Map<IntPair, Set<CorefChain.CorefMention>> mentionMap = cluster.getMentionMap();
+        writeInt(out, entry.getKey());
+        writeInt(out, mentionMap.size());
+        for (Map.Entry<IntPair, Set<CorefChain.CorefMention>> mentions : mentionMap.entrySet()) {
+          writeInt(out, mentions.getKey().getSource());
+          writeInt(out, mentions.getKey().getTarget());
+          writeInt(out, mentions.getValue().size());
+          for (CorefChain.CorefMention mention : mentions.getValue()) {
+            out.writeBoolean(mention == cluster.getRepresentativeMention());
+            out.writeByte(mention.mentionType.ordinal());
+            out.writeByte(mention.number.ordinal());
+            out.writeByte(mention.gender.ordinal());
+            out.writeByte(mention.animacy.ordinal());
+            writeInt(out, mention.startIndex);
+            writeInt(out, mention.endIndex);
+            writeInt(out, mention.headIndex);
+            writeInt(out, mention.corefClusterID);
+            writeInt(out, mention.mentionID);
+            writeInt(out, mention.sentNum);
+            writeInt(out, mention.position.length());
+            for (int i = 0; i < mention.position.length(); i++) {
+              writeInt(out, mention.position.get(i));
+            }
+            writeStringId(mention.mentionSpan);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the document body, given the string table
+   */
+  private static class Reader {
+    final DataInputStream in;
+    final String[] strings;
+    // relations resolved so far, by string id
+    final GrammaticalRelation[] relations;
+
+    Reader(DataInputStream in, String[] strings) {
+      this.in = in;
+      this.strings = strings;
+      this.relations = new GrammaticalRelation[strings.length + 1];
+    }
+
+    private String readStringId() throws IOException {
+      int id = readInt(in);
+      return id == 0 ? null : strings[id - 1];
+    }
+
+    private Integer readInteger() throws IOException {
+      int i = readInt(in);
+      return i == 0 ? null : i - 1;
+    }
+
+    Annotation readDocument(boolean haveExplicitAntecedent) throws IOException {
+      Annotation doc = new Annotation("");
+      Map<Integer, CorefChain> chains = readCorefChains();
+      if (chains != null) doc.set(CorefCoreAnnotations.CorefChainAnnotation.class, chains);
+
+      int arcs = readInt(in) - 1;
+      if (arcs >= 0) {
+        List<Pair<IntTuple, IntTuple>> corefGraph = new ArrayList<>(arcs);
+        for (int i = 0; i < arcs; i++) {
+          IntTuple src = new IntTuple(2);
+          IntTuple dst = new IntTuple(2);
+          src.set(0, readInt(in));
+          src.set(1, readInt(in));
+          dst.set(0, readInt(in));
+          dst.set(1, readInt(in));
+          corefGraph.add(new Pair<>(src, dst));
+        }
+        doc.set(CorefCoreAnnotations.CorefGraphAnnotation.class, corefGraph);
+      }
+
+      int sentenceCount = readInt(in);
+      List<CoreMap> sentences = new ArrayList<>(sentenceCount);
+      for (int s = 0; s < sentenceCount; s++) {
+        CoreMap sentence = new Annotation("");
+        List<CoreLabel> tokens = readTokens(haveExplicitAntecedent);
+        sentence.set(CoreAnnotations.TokensAnnotation.class, tokens);
+
+        Tree tree = readTree();
+        if (tree != null) sentence.set(TreeCoreAnnotations.TreeAnnotation.class, tree);
+
+        SemanticGraph collapsedDeps = readDependencyGraph(tokens);
+        if (collapsedDeps != null) sentence.set(SemanticGraphCoreAnnotations.CollapsedDependenciesAnnotation.class, collapsedDeps);
+        SemanticGraph uncollapsedDeps = readDependencyGraph(tokens);
+        if (uncollapsedDeps != null) sentence.set(SemanticGraphCoreAnnotations.BasicDependenciesAnnotation.class, uncollapsedDeps);
+        SemanticGraph ccDeps = readDependencyGraph(tokens);
+        if (ccDeps != null) sentence.set(SemanticGraphCoreAnnotations.CollapsedCCProcessedDependenciesAnnotation.class, ccDeps);
+        sentences.add(sentence);
+      }
+      doc.set(CoreAnnotations.SentencesAnnotation.class, sentences);
+      return doc;
+    }
+
+    private List<CoreLabel> readTokens(boolean haveExplicitAntecedent) throws IOException {
+      int n = readInt(in);
+      List<CoreLabel> tokens = new ArrayList<>(n);
+      for (int i = 0; i < n; i++) {
+        CoreLabel token = new CoreLabel();
+        token.set(CoreAnnotations.TextAnnotation.class, readStringId());
+        tokens.add(token);
+      }
+      for (CoreLabel token : tokens) {
+        String lemma = readStringId();
+        if (lemma != null) token.set(CoreAnnotations.LemmaAnnotation.class, lemma);
+      }
+      for (CoreLabel token : tokens) {
+        String pos = readStringId();
+        if (pos != null) token.set(CoreAnnotations.PartOfSpeechAnnotation.class, pos);
+      }
+      for (CoreLabel token : tokens) {
+        String ner = readStringId();
+        if (ner != null) token.set(CoreAnnotations.NamedEntityTagAnnotation.class, ner);
+      }
+      for (CoreLabel token : tokens) {
+        String normNer = readStringId();
+        if (normNer != null) token.set(CoreAnnotations.NormalizedNamedEntityTagAnnotation.class, normNer);
+      }
+      for (CoreLabel token : tokens) {
+        Integer begin = readInteger();
+        if (begin != null) token.set(CoreAnnotations.CharacterOffsetBeginAnnotation.class, begin);
+      }
+      for (CoreLabel token : tokens) {
+        Integer end = readInteger();
+        if (end != null) token.set(CoreAnnotations.CharacterOffsetEndAnnotation.class, end);
+      }
+      if (haveExplicitAntecedent) {
+        for (CoreLabel token : tokens) {
+          String aa = readStringId();
+          if (aa != null) token.set(CoreAnnotations.AntecedentAnnotation.class, aa);
+        }
+      }
+      return tokens;
+    }
+
+    // Builds the tree like PennTreeReader does when reading it with CoreLabels
+    private Tree readTree() throws IOException {
+      int n = readInt(in);
+      if (n == 0) return null;
+      TreeFactory tf = new LabeledScoredTreeFactory(CoreLabel.factory());
+      Tree[] nodes = new Tree[n];
+      int wordIndex = 1;
+      for (int i = 0; i < n; i++) {
+        int parentAndLeaf = readInt(in);
+        String label = readStringId();
+        Tree node;
+        if ((parentAndLeaf & 1) != 0) {
+          node = tf.newLeaf(label);
+          if (node.label() instanceof HasIndex) {
+            ((HasIndex) node.label()).setIndex(wordIndex);
+          }
+          if (node.label() instanceof HasWord) {
+            ((HasWord) node.label()).setWord(node.label().value());
+          }
+          wordIndex++;
+        } else {
+          node = tf.newTreeNode(label, null);
+        }
+        nodes[i] = node;
+        int parent = (parentAndLeaf >>> 1) - 1;
+        if (parent >= 0) {
+          nodes[parent].addChild(node);
+        }
+      }
+      return nodes[0];
+    }
+
+    // Builds the graph like CustomAnnotationSerializer does
+    private SemanticGraph readDependencyGraph(List<CoreLabel> tokens) throws IOException {
+      int n = readInt(in) - 1;
+      if (n < 0) return null;
+      SemanticGraph graph = new SemanticGraph();
+      String docId = null;
+      int sentIndex = 0;
+      if (n > 0) {
+        docId = readStringId();
+        Integer si = readInteger();
+        sentIndex = si != null ? si : 0;
+      }
+      Map<Integer, IndexedWord> nodes = new FastMap<>();
+      for (int i = 0; i < n; i++) {
+        int index = readInt(in);
+        Integer copy = readInteger();
+        CoreLabel token = tokens.get(index - 1); // index starts at 1!
+        IndexedWord word = new IndexedWord(docId, sentIndex, index, token);
+        word.set(CoreAnnotations.ValueAnnotation.class, word.get(CoreAnnotations.TextAnnotation.class));
+        if (copy != null) {
+          word.set(CoreAnnotations.CopyAnnotation.class, copy);
+        }
+        nodes.put(index, word);
+      }
+      for (IndexedWord node : nodes.values()) {
+        graph.addVertex(node);
+      }
+
+      int edges = readInt(in);
+      for (int i = 0; i < edges; i++) {
+        GrammaticalRelation rel = getRelation(readInt(in));
+        IndexedWord source = nodes.get(readInt(in));
+        IndexedWord target = nodes.get(readInt(in));
+        boolean isExtra = in.readBoolean();
+        graph.addEdge(source, target, rel, 1.0, isExtra);
+      }
+
+      if (!graph.isEmpty()) {
+        graph.resetRoots();
+      }
+      return graph;
+    }
+
+    // GrammaticalRelation.valueOf scans all known relations, so each relation name is only looked up once per document
+    private GrammaticalRelation getRelation(int stringId) {
+      GrammaticalRelation rel = relations[stringId];
+      if (rel == null) {
+        synchronized (CustomAnnotationSerializer.LOCK) {
+          // this is not thread-safe: there are static fields in GrammaticalRelation
+          rel = GrammaticalRelation.valueOf(strings[stringId - 1]);
+        }
+        relations[stringId] = rel;
+      }
+      return rel;
+    }
+
+    private Map<Integer, CorefChain> readCorefChains() throws IOException {
+      int clusterCount = readInt(in) - 1;
+      if (clusterCount < 0) return null;
+      Map<Integer, CorefChain> chains = new FastMap<>();
+      for (int c = 0; c < clusterCount; c++) {
+        int cid = readInt(in);
+        int keys = readInt(in);
+        Map<IntPair, Set<CorefChain.CorefMention>> mentionMap = new FastMap<>();
+        CorefChain.CorefMention representative = null;
+        for (int k = 0; k < keys; k++) {
+          IntPair key = new IntPair(readInt(in), readInt(in));
+          int mentionCount = readInt(in);
+          Set<CorefChain.CorefMention> mentionsWithThisHead = new FastSet<>();
+          for (int m = 0; m < mentionCount; m++) {
+            boolean rep = in.readBoolean();
+            Dictionaries.MentionType mentionType = Dictionaries.MentionType.values()[in.readByte()];
+            Dictionaries.Number number = Dictionaries.Number.values()[in.readByte()];
+            Dictionaries.Gender gender = Dictionaries.Gender.values()[in.readByte()];
+            Dictionaries.Animacy animacy = Dictionaries.Animacy.values()[in.readByte()];
+            int startIndex = readInt(in);
+            int endIndex = readInt(in);
+            int headIndex = readInt(in);
+            int clusterID = readInt(in);
+            int mentionID = readInt(in);
+            int sentNum = readInt(in);
+            int[] posElems = new int[readInt(in)];
+            for (int i = 0; i < posElems.length; i++) {
+              posElems[i] = readInt(in);
+            }
+            String span = readStringId();
+            CorefChain.CorefMention mention = new CorefChain.CorefMention(
+                    mentionType, number, gender, animacy, startIndex, endIndex, headIndex,
+                    clusterID, mentionID, sentNum, new IntTuple(posElems), span);
+            mentionsWithThisHead.add(mention);
+            if (rep) representative = mention;
+          }
+          mentionMap.put(key, mentionsWithThisHead);
+        }
+        chains.put(cid, new CorefChain(cid, mentionMap, representative));
+      }
+      return chains;
+    }
+  }
+
+  /** Writes an int in 7-bit groups, low group first (negative ints take 5 bytes) */
+  private static void writeInt(DataOutputStream out, int i) throws IOException {
+    while ((i & ~0x7f) != 0) {
+      out.writeByte((i & 0x7f) | 0x80);
+      i >>>= 7;
+    }
+    out.writeByte(i);
+  }
+
+  private static int readInt(DataInputStream in) throws IOException {
+    int i = 0;
+    for (int shift = 0; ; shift += 7) {
+      int b = in.readUnsignedByte();
+      i |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) return i;
+    }
+  }
+
+  /** Writes the UTF-8 bytes of the string, preceded by their number (no length limit unlike writeUTF) */
+  private static void writeString(DataOutputStream out, String s) throws IOException {
+    byte[] bytes = s.getBytes("UTF-8");
+    writeInt(out, bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[readInt(in)];
+    in.readFully(bytes);
+    return new String(bytes, "UTF-8");
+  }
+
+  public static void main(String... args) throws Exception {
+    Properties props = StringUtils.argsToProperties(args);
+    String file = props.getProperty("file");
+    String loadFile = props.getProperty("loadFile");
+    if (loadFile != null && !loadFile.isEmpty()) {
+      BinaryAnnotationSerializer ser = new BinaryAnnotationSerializer();
+      InputStream is = new FileInputStream(loadFile);
+      Annotation anno = ser.load(is);
+      System.out.println(anno.toShorterString(new String[0]));
+      is.close();
+    } else if (file != null && !file.isEmpty()) {
+      StanfordCoreNLP pipeline = new StanfordCoreNLP(props);
+      String text = edu.stanford.nlp.io.IOUtils.slurpFile(file);
+      Annotation doc = new Annotation(text);
+      pipeline.annotate(doc);
+
+      BinaryAnnotationSerializer ser = new BinaryAnnotationSerializer();
+      OutputStream os = new FileOutputStream(file + ".bser");
+      ser.save(doc, os);
+      os.close();
+      System.err.println("Serialized annotation saved in " + file + ".bser");
+    } else {
+      System.err.println("usage: BinaryAnnotationSerializer [-file file] [-loadFile file]");
+    }
+  }
+
+}
@@ -120,7 +120,7 @@ public class CustomAnnotationSerializer implements AnnotationSerializer {
     return doc;
   }
 
-  private static final Object LOCK = new Object();
+  static final Object LOCK = new Object();
 
   static SemanticGraph convertIntermediateGraph(IntermediateSemanticGraph ig, List<CoreLabel> sentence) {
     SemanticGraph graph = new SemanticGraph();
@@ -0,0 +1,423 @@
+package edu.stanford.nlp.pipeline;
+
+import java.io.*;
+import java.util.*;
+import java.util.regex.Pattern;
+
+import edu.stanford.nlp.dcoref.CorefChain;
+import edu.stanford.nlp.dcoref.CorefCoreAnnotations;
+import edu.stanford.nlp.io.IOUtils;
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.ling.IndexedWord;
+import edu.stanford.nlp.semgraph.SemanticGraph;
+import edu.stanford.nlp.semgraph.SemanticGraphCoreAnnotations;
+import edu.stanford.nlp.semgraph.SemanticGraphEdge;
+import edu.stanford.nlp.time.TimeAnnotations;
+import edu.stanford.nlp.time.Timex;
+import edu.stanford.nlp.trees.GrammaticalRelation;
+import edu.stanford.nlp.trees.Tree;
+import edu.stanford.nlp.trees.TreeCoreAnnotations;
+import edu.stanford.nlp.trees.TreePrint;
+import edu.stanford.nlp.util.CoreMap;
+import edu.stanford.nlp.util.StringUtils;
+import edu.stanford.nlp.util.Timing;
+
+/**
+ * Writes an annotation as JSON.
+ * The document has the same content as the output of {@link XMLOutputter}
+ * (tokens, parse trees, the three dependency graphs, timexes and coreference chains),
+ * with the names of the XML elements and attributes as keys:
+ * <pre>
+ * {
+ *   "docId": "...",
+ *   "sentences": [
+ *     {
+ *       "id": 1,
+ *       "tokens": [
+ *         { "id": 1, "word": "...", "lemma": "...", "CharacterOffsetBegin": 0, "CharacterOffsetEnd": 8,
+ *           "POS": "...", "NER": "...", "NormalizedNER": "...",
+ *           "Timex": { "tid": "...", "type": "...", "value": "..." } },
+ *         ...
+ *       ],
+ *       "parse": "(ROOT ...)",
+ *       "basic-dependencies": [
+ *         { "type": "nsubj", "governor": 2, "governorWord": "...", "dependent": 1, "dependentWord": "..." },
+ *         ...
+ *       ],
+ *       "collapsed-dependencies": [ ... ],
+ *       "collapsed-ccprocessed-dependencies": [ ... ]
+ *     },
+ *     ...
+ *   ],
+ *   "coreference": [
+ *     [ { "representative": true, "sentence": 1, "start": 1, "end": 3, "head": 2, "text": "..." }, ... ],
+ *     ...
+ *   ]
+ * }
+ * </pre>
+ * Keys are only present if the annotation has the corresponding value.
+ * Dependencies carry "extra", "governorCopy" and "dependentCopy" when set.
+ * The JSON is written while the annotation is traversed, without building a tree of objects first.
+ */
+public class JSONOutputter {
+  private static final Pattern WHITESPACE = Pattern.compile("\\s+");
+
+  /**
+   * Writes the annotation as JSON in the encoding of the pipeline
+   */
+  public static void jsonPrint(Annotation annotation, OutputStream os, StanfordCoreNLP pipeline) throws IOException {
+    Writer w = IOUtils.encodedOutputStreamWriter(os, pipeline.getEncoding());
+    jsonPrint(annotation, w, pipeline);
+  }
+
+  /**
+   * Writes the annotation as JSON. The writer is flushed but not closed.
+   */
+  public static void jsonPrint(Annotation annotation, Writer w, StanfordCoreNLP pipeline) throws IOException {
+    JSONWriter json = new JSONWriter(new BufferedWriter(w));
+    writeAnnotation(json, annotation, pipeline.getConstituentTreePrinter());
+    json.flush();
+  }
+
+  private static void writeAnnotation(JSONWriter json, Annotation annotation, TreePrint constituentTreePrinter) throws IOException {
+    json.beginObject();
+    json.field("docId", annotation.get(CoreAnnotations.DocIDAnnotation.class));
+    json.field("docDate", annotation.get(CoreAnnotations.DocDateAnnotation.class));
+
+    json.name("sentences");
+    json.beginArray();
+    List<CoreMap> sentences = annotation.get(CoreAnnotations.SentencesAnnotation.class);
+    if (sentences != null) {
+      int sentCount = 1;
+      for (CoreMap sentence : sentences) {
+        json.beginObject();
+        json.field("id", sentCount++);
+
+        List<CoreLabel> tokens = sentence.get(CoreAnnotations.TokensAnnotation.class);
+        json.name("tokens");
+        json.beginArray();
+        for (int j = 0; j < tokens.size(); j++) {
+          writeWordInfo(json, tokens.get(j), j + 1);
+        }
+        json.endArray();
+
+        Tree tree = sentence.get(TreeCoreAnnotations.TreeAnnotation.class);
+        if (tree != null) {
+          StringWriter treeStrWriter = new StringWriter();
+          constituentTreePrinter.printTree(tree, new PrintWriter(treeStrWriter, true));
+          json.field("parse", treeStrWriter.toString().trim());
+
+          writeDependencies(json, "basic-dependencies", sentence.get(SemanticGraphCoreAnnotations.BasicDependenciesAnnotation.class), tokens);
+          writeDependencies(json, "collapsed-dependencies", sentence.get(SemanticGraphCoreAnnotations.CollapsedDependenciesAnnotation.class), tokens);
+          writeDependencies(json, "collapsed-ccprocessed-dependencies", sentence.get(SemanticGraphCoreAnnotations.CollapsedCCProcessedDependenciesAnnotation.class), tokens);
+        }
+        json.endObject();
+      }
+    }
+    json.endArray();
+
+    Map<Integer, CorefChain> corefChains = annotation.get(CorefCoreAnnotations.CorefChainAnnotation.class);
+    if (corefChains != null) {
+      writeCorefChains(json, corefChains);
+    }
+    json.endObject();
+  }
+
+  private static void writeWordInfo(JSONWriter json, CoreLabel token, int id) throws IOException {
+    json.beginInlineObject();
+    json.field("id", id);
+    json.field("word", token.get(CoreAnnotations.TextAnnotation.class));
+    json.field("lemma", token.get(CoreAnnotations.LemmaAnnotation.class));
+    if (token.containsKey(CoreAnnotations.CharacterOffsetBeginAnnotation.class) && token.containsKey(CoreAnnotations.CharacterOffsetEndAnnotation.class)) {
+      json.field("CharacterOffsetBegin", token.get(CoreAnnotations.CharacterOffsetBeginAnnotation.class));
+      json.field("CharacterOffsetEnd", token.get(CoreAnnotations.CharacterOffsetEndAnnotation.class));
+    }
+    json.field("POS", token.get(CoreAnnotations.PartOfSpeechAnnotation.class));
+    json.field("NER", token.get(CoreAnnotations.NamedEntityTagAnnotation.class));
+    json.field("NormalizedNER", token.get(CoreAnnotations.NormalizedNamedEntityTagAnnotation.class));
+    Timex timex = token.get(TimeAnnotations.TimexAnnotation.class);
+    if (timex != null) {
+      json.name("Timex");
+      json.beginInlineObject();
+      json.field("tid", timex.tid());
+      json.field("type", timex.timexType());
+      json.field("value", timex.value());
+      json.endObject();
+    }
+    json.field("TrueCase", token.get(CoreAnnotations.TrueCaseAnnotation.class));
+    json.field("TrueCaseText", token.get(CoreAnnotations.TrueCaseTextAnnotation.class));
+    json.endObject();
+  }
+
+  private static void writeDependencies(JSONWriter json, String dependencyType, SemanticGraph graph, List<CoreLabel> tokens) throws IOException {
+    if (graph == null) return;
+    json.name(dependencyType);
+    json.beginArray();
+    // The SemanticGraph doesn't explicitly encode the ROOT node,
+    // so we print that out ourselves
+    for (IndexedWord root : graph.getRoots()) {
+      writeDependency(json, GrammaticalRelation.ROOT.getLongName(), false, 0, "ROOT", null, root.index(), tokens.get(root.index() - 1).word(), null);
+    }
+    for (SemanticGraphEdge edge : graph.edgeListSorted()) {
+      int source = edge.getSource().index();
+      int target = edge.getTarget().index();
+      writeDependency(json, edge.getRelation().toString(), edge.isExtra(),
+              source, tokens.get(source - 1).word(), edge.getSource().get(CoreAnnotations.CopyAnnotation.class),
+              target, tokens.get(target - 1).word(), edge.getTarget().get(CoreAnnotations.CopyAnnotation.class));
+    }
+    json.endArray();
+  }
+
+  private static void writeDependency(JSONWriter json, String rel, boolean isExtra, int source, String sourceWord, Integer sourceCopy, int target, String targetWord, Integer targetCopy) throws IOException {
+    json.beginInlineObject();
+    json.field("type", WHITESPACE.matcher(rel).replaceAll(""));
+    if (isExtra) {
+      json.field("extra", true);
+    }
+    json.field("governor", source);
+    json.field("governorWord", sourceWord);
+    json.field("governorCopy", sourceCopy);
+    json.field("dependent", target);
+    json.field("dependentWord", targetWord);
+    json.field("dependentCopy", targetCopy);
+    json.endObject();
+  }
+
+  /**
+   * Writes the chains with more than one mention, each as a list of mentions
+   * starting with the representative one
+   */
+  private static void writeCorefChains(JSONWriter json, Map<Integer, CorefChain> corefChains) throws IOException {
+    json.name("coreference");
+    json.beginArray();
+    for (CorefChain chain : corefChains.values()) {
+      List<CorefChain.CorefMention> mentions = chain.getMentionsInTextualOrder();
+      if (mentions.size() <= 1) continue;
+      json.beginArray();
+      CorefChain.CorefMention source = chain.getRepresentativeMention();
+      writeCorefMention(json, source, true);
+      for (CorefChain.CorefMention mention : mentions) {
+        if (mention == source) continue;
+        writeCorefMention(json, mention, false);
+      }
+      json.endArray();
+    }
+    json.endArray();
+  }
+
+  private static void writeCorefMention(JSONWriter json, CorefChain.CorefMention mention, boolean representative) throws IOException {
+    json.beginInlineObject();
+    if (representative) {
+      json.field("representative", true);
+    }
+    json.field("sentence", mention.sentNum);
+    json.field("start", mention.startIndex);
+    json.field("end", mention.endIndex);
+    json.field("head", mention.headIndex);
+    json.field("text", mention.mentionSpan);
+    json.endObject();
+  }
+
+  /**
+   * Writes JSON values one at a time, keeping track of the commas between them.
+   * Each value in an object or array goes on its own line, indented by two spaces,
+   * except in inline objects, which are written on one line.
+   */
+  private static class JSONWriter {
+    private static final String INDENT = "  ";
+
+    private final Writer out;
+    // for each open object or array: whether it has values yet
+    private final BitSet hasValues = new BitSet();
+    // for each open object: whether it is written on one line
+    private final BitSet inline = new BitSet();
+    private int depth = 0;
+    private boolean afterName = false;
+
+    JSONWriter(Writer out) {
+      this.out = out;
+    }
+
+    void beginObject() throws IOException {
+      beforeValue();
+      out.write('{');
+      open(false);
+    }
+
+    /** Begins an object that is written on one line */
+    void beginInlineObject() throws IOException {
+      beforeValue();
+      out.write('{');
+      open(true);
+    }
+
+    void endObject() throws IOException {
+      close('}');
+    }
+
+    void beginArray() throws IOException {
+      beforeValue();
+      out.write('[');
+      open(false);
+    }
+
+    void endArray() throws IOException {
+      close(']');
+    }
+
+    void name(String name) throws IOException {
+      beforeValue();
+      writeString(name);
+      out.write(": ");
+      afterName = true;
+    }
+
+    /** Writes the field unless the value is null */
+    void field(String name, String value) throws IOException {
+      if (value == null) return;
+      name(name);
+      beforeValue();
+      writeString(value);
+    }
+
+    /** Writes the field unless the value is null */
+    void field(String name, Integer value) throws IOException {
+      if (value == null) return;
+      name(name);
+      beforeValue();
+      out.write(Integer.toString(value));
+    }
+
+    void field(String name, int value) throws IOException {
+      name(name);
+      beforeValue();
+      out.write(Integer.toString(value));
+    }
+
+    void field(String name, boolean value) throws IOException {
+      name(name);
+      beforeValue();
+      out.write(value ? "true" : "false");
+    }
+
+    void flush() throws IOException {
+      out.write('\n');
+      out.flush();
+    }
+
+    private void open(boolean oneLine) {
+      depth++;
+      hasValues.clear(depth);
+      inline.set(depth, oneLine);
+    }
+
+    private void close(char bracket) throws IOException {
+      boolean empty = !hasValues.get(depth);
+      boolean oneLine = inline.get(depth);
+      depth--;
+      if (!empty) {
+        if (oneLine) {
+          out.write(' ');
+        } else {
+          newLine();
+        }
+      }
+      out.write(bracket);
+    }
+
+    // Writes the comma and line break that go before a value or name
+    private void beforeValue() throws IOException {
+      if (afterName) {
+        afterName = false;
+        return;
+      }
+      if (depth == 0) return;
+      if (hasValues.get(depth)) {
+        out.write(',');
+      }
+      hasValues.set(depth);
+      if (inline.get(depth)) {
+        out.write(' ');
+      } else {
+        newLine();
+      }
+    }
+
+    private void newLine() throws IOException {
+      out.write('\n');
+      for (int i = 0; i < depth; i++) {
+        out.write(INDENT);
+      }
+    }
+
+    private void writeString(String s) throws IOException {
+      out.write('"');
+      int start = 0;
+      for (int i = 0; i < s.length(); i++) {
+        char c = s.charAt(i);
+        String escape;
+        switch (c) {
+          case '"': escape = "\\\""; break;
+          case '\\': escape = "\\\\"; break;
+          case '\n': escape = "\\n"; break;
+          case '\r': escape = "\\r"; break;
+          case '\t': escape = "\\t"; break;
+          case '\b': escape = "\\b"; break;
+          case '\f': escape = "\\f"; break;
+          default:
+            // control characters, and the line separators that JavaScript does not allow in strings
+            if (c < 0x20 || c == '\u2028' || c == '\u2029') {
+              escape = String.format("\\u%04x", (int) c);
+            } else {
+              continue;
+            }
+        }
+        out.write(s, start, i - start);
+        out.write(escape);
+        start = i + 1;
+      }
+      out.write(s, start, s.length() - start);
+      out.write('"');
+    }
+  }
+
+  /**
+   * Annotates a file and writes it both as JSON and as XML, reporting the size of the output
+   * and the time each takes.
+   * Usage: JSONOutputter -file file [-annotators ...] [-iterations n]
+   */
+  public static void main(String[] args) throws IOException {
+    Properties props = StringUtils.argsToProperties(args);
+    String file = props.getProperty("file");
+    if (file == null) {
+      System.err.println("usage: JSONOutputter -file file [-annotators ...] [-iterations n]");
+      return;
+    }
+    int iterations = Integer.parseInt(props.getProperty("iterations", "10"));
+    StanfordCoreNLP pipeline = new StanfordCoreNLP(props);
+    Annotation annotation = new Annotation(IOUtils.slurpFile(file));
+    pipeline.annotate(annotation);
+
+    ByteArrayOutputStream json = new ByteArrayOutputStream();
+    jsonPrint(annotation, json, pipeline);
+    System.err.println("JSON: " + json.size() + " bytes");
+    Timing timing = new Timing();
+    for (int i = 0; i < iterations; i++) {
+      jsonPrint(annotation, new ByteArrayOutputStream(json.size()), pipeline);
+    }
+    System.err.println("jsonPrint: " + timing.report() / iterations + " ms per document");
+
+    if (StanfordCoreNLP.isXMLOutputPresent()) {
+      ByteArrayOutputStream xml = new ByteArrayOutputStream();
+      pipeline.xmlPrint(annotation, xml);
+      System.err.println("XML: " + xml.size() + " bytes");
+      timing.start();
+      for (int i = 0; i < iterations; i++) {
+        pipeline.xmlPrint(annotation, new ByteArrayOutputStream(xml.size()));
+      }
+      System.err.println("xmlPrint: " + timing.report() / iterations + " ms per document");
+    }
+  }
+
+}
@@ -4,6 +4,7 @@ import edu.stanford.nlp.ling.CoreAnnotation;
 import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.ling.Word;
+import edu.stanford.nlp.process.LemmaCache;
 import edu.stanford.nlp.process.Morphology;
 import edu.stanford.nlp.util.CoreMap;
 
@@ -31,6 +32,9 @@ public class MorphaAnnotator implements Annotator{
   private static final String[] prep = {"abroad", "across", "after", "ahead", "along", "aside", "away", "around", "back", "down", "forward", "in", "off", "on", "over", "out", "round", "together", "through", "up"};
   private static final List<String> particles = Arrays.asList(prep);
 
+  /** Lemmas of (word, tag) pairs, shared by all threads and annotators */
+  private static final LemmaCache lemmas = new LemmaCache();
+
   public MorphaAnnotator() {
     this(true);
   }
@@ -43,7 +47,7 @@ public class MorphaAnnotator implements Annotator{
     if (VERBOSE) {
       System.err.print("Finding lemmas ...");
     }
-    Morphology morphology = new Morphology();
+    Morphology morphology = null;
     if (annotation.has(CoreAnnotations.SentencesAnnotation.class)) {
       for (CoreMap sentence :
            annotation.get(CoreAnnotations.SentencesAnnotation.class)) {
@@ -53,6 +57,10 @@ public class MorphaAnnotator implements Annotator{
         for (CoreLabel token : tokens) {
           String text = token.get(CoreAnnotations.TextAnnotation.class);
           String posTag = token.get(CoreAnnotations.PartOfSpeechAnnotation.class);
+          if (morphology == null && posTag.isEmpty()) {
+            // untagged words are stemmed rather than looked up in the cache
+            morphology = new Morphology();
+          }
           addLemma(morphology, CoreAnnotations.LemmaAnnotation.class, token, text, posTag);
         }
       }
@@ -69,9 +77,9 @@ public class MorphaAnnotator implements Annotator{
       if (tag.isEmpty()) {
           map.set(ann, morpha.stem(word));
       } else {
-          String phrasalVerb = phrasalVerb(morpha, word, tag);
+          String phrasalVerb = phrasalVerb(word, tag);
           if (phrasalVerb == null) {
-              map.set(ann, morpha.lemma(word, tag));
+              map.set(ann, lemmas.lemma(word, tag));
           } else {
               map.set(ann, phrasalVerb);
           }
@@ -82,7 +90,7 @@ public class MorphaAnnotator implements Annotator{
   /** If a token is a phrasal verb with an underscore between a verb and a
    *  particle, return the phrasal verb lemmatized. If not, return null
    */
-  private static String phrasalVerb(Morphology morpha, String word, String tag) {
+  private static String phrasalVerb(String word, String tag) {
 
     // must be a verb and contain an underscore
     assert word != null;
@@ -95,7 +103,7 @@ public class MorphaAnnotator implements Annotator{
     String particle = verb[1];
     if(particles.contains(particle)) {
       String base = verb[0];
-      String lemma = morpha.lemma(base, tag);
+      String lemma = lemmas.lemma(base, tag);
       return lemma + '_' + particle;
     }
 
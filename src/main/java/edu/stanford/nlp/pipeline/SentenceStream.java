@@ -0,0 +1,143 @@
+package edu.stanford.nlp.pipeline;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+
+import edu.stanford.nlp.io.IOUtils;
+import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.ling.CoreLabel;
+import edu.stanford.nlp.util.AbstractIterator;
+import edu.stanford.nlp.util.CoreMap;
+import edu.stanford.nlp.util.StringUtils;
+import edu.stanford.nlp.util.Timing;
+
+/**
+ * Tokenizes and sentence splits text as it is read from a Reader, returning each
+ * sentence as soon as it is complete.  Only the current sentence and the tokenizer's
+ * read-ahead are kept in memory, so this works for texts too large to annotate as
+ * one document.
+ * <br>
+ * Each sentence is returned as a one-sentence document, whose text, tokens and
+ * {@code SentencesAnnotation} are those of the sentence, so that the annotators
+ * which work sentence by sentence can be run on it.  The character offsets of the
+ * document, the sentence and its tokens, and the sentence index, are those in the
+ * whole input; the token offsets of the sentence are within its document.
+ */
+public class SentenceStream extends AbstractIterator<Annotation> {
+
+  private final WindowReader reader;
+  private final Iterator<List<CoreLabel>> sentences;
+  private int sentenceIndex;
+
+  public SentenceStream(Reader input, TokenizerAnnotator tokenizer, WordsToSentencesAnnotator splitter) {
+    reader = new WindowReader(input);
+    sentences = splitter.sentences(tokenizer.getTokenizer(reader));
+  }
+
+  @Override
+  public boolean hasNext() {
+    return sentences.hasNext();
+  }
+
+  @Override
+  public Annotation next() {
+    if ( ! hasNext()) {
+      throw new NoSuchElementException();
+    }
+    List<CoreLabel> tokens = sentences.next();
+    if (tokens.isEmpty()) {
+      throw new RuntimeException("unexpected empty sentence: " + tokens);
+    }
+    Annotation sentence = WordsToSentencesAnnotator.makeSentence(reader.window, reader.windowBegin, tokens, 0, sentenceIndex++);
+    int end = sentence.get(CoreAnnotations.CharacterOffsetEndAnnotation.class);
+    reader.release(end);
+
+    Annotation document = new Annotation(sentence.get(CoreAnnotations.TextAnnotation.class));
+    document.set(CoreAnnotations.CharacterOffsetBeginAnnotation.class, sentence.get(CoreAnnotations.CharacterOffsetBeginAnnotation.class));
+    document.set(CoreAnnotations.CharacterOffsetEndAnnotation.class, end);
+    document.set(CoreAnnotations.TokensAnnotation.class, tokens);
+    List<CoreMap> documentSentences = new ArrayList<>(1);
+    documentSentences.add(sentence);
+    document.set(CoreAnnotations.SentencesAnnotation.class, documentSentences);
+    return document;
+  }
+
+  /**
+   * Keeps the characters read from the input since the end of the last
+   * sentence returned, so that the text of the next one can be found.
+   */
+  private static class WindowReader extends Reader {
+
+    private final Reader in;
+    private final StringBuilder window = new StringBuilder();
+    /** The offset in the input of the first character in the window */
+    private int windowBegin;
+
+    WindowReader(Reader in) {
+      this.in = in;
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+      int read = in.read(cbuf, off, len);
+      if (read > 0) {
+        window.append(cbuf, off, read);
+      }
+      return read;
+    }
+
+    /** Forgets the characters before the given offset */
+    void release(int offset) {
+      int released = offset - windowBegin;
+      // only shift the window once the released part is as long as the rest,
+      // so that each character is copied at most once on average
+      if (released > 0 && 2 * released >= window.length()) {
+        window.delete(0, released);
+        windowBegin = offset;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /**
+   * Tokenizes and splits a file as a stream, reporting the number of sentences
+   * and tokens, the time taken, and the most memory used at any point.
+   * Usage: SentenceStream -file file [-encoding enc] [-tokenize.options ...]
+   */
+  public static void main(String[] args) throws IOException {
+    Properties props = StringUtils.argsToProperties(args);
+    String file = props.getProperty("file");
+    if (file == null) {
+      System.err.println("usage: SentenceStream -file file [-encoding enc] [-tokenize.options ...]");
+      return;
+    }
+    String options = props.getProperty("tokenize.options");
+    TokenizerAnnotator tokenizer = options == null ? new PTBTokenizerAnnotator(false) : new PTBTokenizerAnnotator(false, options);
+    WordsToSentencesAnnotator splitter = new WordsToSentencesAnnotator(false);
+    Runtime runtime = Runtime.getRuntime();
+    long sentenceCount = 0;
+    long tokenCount = 0;
+    long maxUsed = 0;
+    Timing timing = new Timing();
+    try (Reader input = IOUtils.readerFromString(file, props.getProperty("encoding", "UTF-8"))) {
+      for (SentenceStream stream = new SentenceStream(input, tokenizer, splitter); stream.hasNext(); ) {
+        tokenCount += stream.next().get(CoreAnnotations.TokensAnnotation.class).size();
+        if (++sentenceCount % 10000 == 0) {
+          maxUsed = Math.max(maxUsed, runtime.totalMemory() - runtime.freeMemory());
+        }
+      }
+    }
+    System.err.println(sentenceCount + " sentences, " + tokenCount + " tokens in " + timing.toSecondsString() +
+            " sec.; at most " + maxUsed / (1024 * 1024) + " MB used of " + runtime.maxMemory() / (1024 * 1024) + " MB");
+  }
+
+}
@@ -47,6 +47,7 @@ import javolution.util.FastSet;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.util.regex.Pattern;
@@ -87,7 +88,7 @@ public class StanfordCoreNLP extends AnnotationPipeline {
     public static final Pattern COMPILE3 = Pattern.compile(",");
     private static final Pattern COMPILE2 = Pattern.compile("[, \t]+");
 
-    enum OutputFormat { TEXT, XML, SERIALIZED }
+    enum OutputFormat { TEXT, XML, JSON, SERIALIZED }
 
     // other constants
   public static final String CUSTOM_ANNOTATOR_PREFIX = "customAnnotatorClass.";
@@ -106,6 +107,10 @@ public class StanfordCoreNLP extends AnnotationPipeline {
   /** Stores the overall number of words processed */
   private int numWords;
 
+  /** Stores the number of input bytes read by processFiles, and the time spent reading them in nanoseconds */
+  private final AtomicLong inputBytes = new AtomicLong();
+  private final AtomicLong inputTime = new AtomicLong();
+
   /** Maintains the shared pool of annotators */
   private static AnnotatorPool pool;
 
@@ -564,7 +569,9 @@ public class StanfordCoreNLP extends AnnotationPipeline {
                         Boolean.toString(NERClassifierCombiner.APPLY_NUMERIC_CLASSIFIERS_DEFAULT)) +
                 NumberSequenceClassifier.USE_SUTIME_PROPERTY + ':' +
                 properties.getProperty(NumberSequenceClassifier.USE_SUTIME_PROPERTY,
-                        Boolean.toString(NumberSequenceClassifier.USE_SUTIME_DEFAULT));
+                        Boolean.toString(NumberSequenceClassifier.USE_SUTIME_DEFAULT)) +
+                NumberSequenceClassifier.SHARE_SUTIME_PROPERTY + ':' +
+                properties.getProperty(NumberSequenceClassifier.SHARE_SUTIME_PROPERTY, "false");
       }
     });
 
@@ -842,6 +849,17 @@ public class StanfordCoreNLP extends AnnotationPipeline {
     }
   }
 
+  @Override
+  public void annotateSentences(Reader input, final Function<Annotation,Object> callback) {
+    super.annotateSentences(input, new Function<Annotation, Object>() {
+      @Override
+      public Object apply(Annotation sentence) {
+        numWords += sentence.get(CoreAnnotations.TokensAnnotation.class).size();
+        return callback.apply(sentence);
+      }
+    });
+  }
+
   /**
    * Runs the entire pipeline on the content of the given text passed in.
    * @param text The text to process
@@ -905,6 +923,26 @@ public class StanfordCoreNLP extends AnnotationPipeline {
     }
   }
 
+  /**
+   * Displays the output of all annotators in JSON format.
+   * @param annotation Contains the output of all annotators
+   * @param os The output stream
+   * @throws java.io.IOException
+   */
+  public void jsonPrint(Annotation annotation, OutputStream os) throws IOException {
+    JSONOutputter.jsonPrint(annotation, os, this);
+  }
+
+  /**
+   * Displays the output of all annotators in JSON format.
+   * @param annotation Contains the output of all annotators
+   * @param w The Writer to send the output to
+   * @throws java.io.IOException
+   */
+  public void jsonPrint(Annotation annotation, Writer w) throws IOException {
+    JSONOutputter.jsonPrint(annotation, w, this);
+  }
+
   //
   // runtime, shell-specific, and help menu methods
   //
@@ -1002,8 +1040,8 @@ public class StanfordCoreNLP extends AnnotationPipeline {
     os.println("\t\"filelist\" - run the pipeline on the list of files given in this file");
     os.println("\t             output is generated for every input file as file.outputExtension");
     os.println("\t\"outputDirectory\" - where to put output (defaults to the current directory)");
-    os.println("\t\"outputExtension\" - extension to use for the output file (defaults to \".xml\" for XML, \".ser.gz\" for serialized).  Don't forget the dot!");
-    os.println("\t\"outputFormat\" - \"xml\" to output XML (default), \"serialized\" to output serialized Java objects, \"text\" to output text");
+    os.println("\t\"outputExtension\" - extension to use for the output file (defaults to \".xml\" for XML, \".json\" for JSON, \".ser.gz\" for serialized).  Don't forget the dot!");
+    os.println("\t\"outputFormat\" - \"xml\" to output XML (default), \"json\" to output JSON, \"serialized\" to output serialized Java objects, \"text\" to output text");
     os.println("\t\"replaceExtension\" - flag to chop off the last extension before adding outputExtension to file");
     os.println("\t\"noClobber\" - don't automatically override (clobber) output files that already exist");
 		os.println("\t\"threads\" - multithread on this number of threads");
@@ -1028,11 +1066,20 @@ public class StanfordCoreNLP extends AnnotationPipeline {
       sb.append(String.format("%.1f", numWords / ((double) total /1000)));
       sb.append( " tokens/sec.");
     }
+    long bytes = inputBytes.get();
+    if (bytes > 0) {
+      long nanos = Math.max(1, inputTime.get());
+      sb.append("\nInput reading: ").append(Timing.toSecondsString(nanos / 1000000));
+      sb.append(" sec. for ").append(bytes).append(" bytes at ");
+      sb.append(String.format("%.1f", bytes / (nanos / 1e9)));
+      sb.append(" bytes/sec.");
+    }
     return sb.toString();
   }
 
   /**
    * Runs an interactive shell where input text is processed with the given pipeline.
+   * The output is printed as text, or as JSON if the outputFormat property is "json".
    *
    * @param pipeline The pipeline to be used
    * @throws java.io.IOException If IO problem with stdin
@@ -1040,6 +1087,7 @@ public class StanfordCoreNLP extends AnnotationPipeline {
   private static void shell(StanfordCoreNLP pipeline) throws IOException {
     String encoding = pipeline.getEncoding();
     BufferedReader r = new BufferedReader(IOUtils.encodedInputStreamReader(System.in, encoding));
+    boolean json = "json".equalsIgnoreCase(pipeline.getProperties().getProperty("outputFormat"));
     System.err.println("Entering interactive shell. Type q RETURN or EOF to quit.");
     while (true) {
       System.err.print("NLP> ");
@@ -1049,7 +1097,11 @@ public class StanfordCoreNLP extends AnnotationPipeline {
       }
       if (!line.isEmpty()) {
         Annotation anno = pipeline.process(line);
-        pipeline.prettyPrint(anno, System.out);
+        if (json) {
+          pipeline.jsonPrint(anno, System.out);
+        } else {
+          pipeline.prettyPrint(anno, System.out);
+        }
       }
     }
   }
@@ -1086,6 +1138,7 @@ public class StanfordCoreNLP extends AnnotationPipeline {
             String defaultExtension;
             switch (outputFormat) {
             case XML: defaultExtension = ".xml"; break;
+            case JSON: defaultExtension = ".json"; break;
             case TEXT: defaultExtension = ".out"; break;
             case SERIALIZED: defaultExtension = ".ser.gz"; break;
             default: throw new IllegalArgumentException("Unknown output format " + outputFormat);
@@ -1129,7 +1182,10 @@ public class StanfordCoreNLP extends AnnotationPipeline {
             //(read file)
             if (annotation == null) {
               String encoding = getEncoding();
-              String text = IOUtils.slurpFile(file, encoding);
+              long start = System.nanoTime();
+              String text = IOUtils.slurpFileMapped(file, encoding);
+              inputTime.addAndGet(System.nanoTime() - start);
+              inputBytes.addAndGet(file.length());
               annotation = new Annotation(text);
             }
 
@@ -1145,6 +1201,12 @@ public class StanfordCoreNLP extends AnnotationPipeline {
               fos.close();
               break;
             }
+            case JSON: {
+              OutputStream fos = new BufferedOutputStream(new FileOutputStream(outputFilename));
+              jsonPrint(annotation, fos);
+              fos.close();
+              break;
+            }
             case TEXT:
                 OutputStream fos = new BufferedOutputStream(new FileOutputStream(outputFilename));
                 prettyPrint(annotation, fos);
@@ -22,7 +22,8 @@ import edu.stanford.nlp.util.Timing;
  * <br>
  * In order to maintain thread safety, getTokenizer should return
  * a thread-safe tokenizer.  In the case of tokenizers built from
- * .flex files, that will mean new tokenizers for each call.
+ * .flex files, that will mean new tokenizers for each call,
+ * though tokenize may instead reuse a tokenizer kept per thread.
  *
  * @author Jenny Finkel
  * @author John Bauer
@@ -40,6 +41,15 @@ abstract public class TokenizerAnnotator implements Annotator {
    */
   abstract Tokenizer<CoreLabel> getTokenizer(Reader r);
 
+  /**
+   * Tokenizes the whole of the given text.  Subclasses whose tokenizers
+   * can be reused may override this to avoid making one for each text.
+   */
+  List<CoreLabel> tokenize(String text) {
+    Reader r = new StringReader(text);  // don't wrap in BufferedReader.  It gives you nothing for in memory String unless you need the readLine() method!
+    return getTokenizer(r).tokenize();
+  }
+
   /**
    * Does the actual work of splitting TextAnnotation into CoreLabels,
    * which are then attached to the TokensAnnotation.
@@ -55,8 +65,7 @@ abstract public class TokenizerAnnotator implements Annotator {
 
     if (annotation.has(CoreAnnotations.TextAnnotation.class)) {
       String text = annotation.get(CoreAnnotations.TextAnnotation.class);
-      Reader r = new StringReader(text);  // don't wrap in BufferedReader.  It gives you nothing for in memory String unless you need the readLine() method!
-      List<CoreLabel> tokens = getTokenizer(r).tokenize();
+      List<CoreLabel> tokens = tokenize(text);
       // cdm 2010-05-15: This is now unnecessary, as it is done in CoreLabelTokenFactory
       // for (CoreLabel token: tokens) {
       //   token.set(CoreAnnotations.TextAnnotation.class, token.get(CoreAnnotations.TextAnnotation.class));
@@ -3,6 +3,7 @@ package edu.stanford.nlp.pipeline;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 
@@ -100,21 +101,8 @@ public class WordsToSentencesAnnotator implements Annotator {
           throw new RuntimeException("unexpected empty sentence: " + sentenceTokens);
         }
 
-        // get the sentence text from the first and last character offsets
-        int begin = sentenceTokens.get(0).get(CoreAnnotations.CharacterOffsetBeginAnnotation.class);
-        int last = sentenceTokens.size() - 1;
-        int end = sentenceTokens.get(last).get(CoreAnnotations.CharacterOffsetEndAnnotation.class);
-        String sentenceText = text.substring(begin, end);
-
-        // create a sentence annotation with text and token offsets
-        Annotation sentence = new Annotation(sentenceText);
-        sentence.set(CoreAnnotations.CharacterOffsetBeginAnnotation.class, begin);
-        sentence.set(CoreAnnotations.CharacterOffsetEndAnnotation.class, end);
-        sentence.set(CoreAnnotations.TokensAnnotation.class, sentenceTokens);
-        sentence.set(CoreAnnotations.TokenBeginAnnotation.class, tokenOffset);
+        Annotation sentence = makeSentence(text, 0, sentenceTokens, tokenOffset, sentences.size());
         tokenOffset += sentenceTokens.size();
-        sentence.set(CoreAnnotations.TokenEndAnnotation.class, tokenOffset);
-        sentence.set(CoreAnnotations.SentenceIndexAnnotation.class, sentences.size());
 
         // add the sentence to the list
         sentences.add(sentence);
@@ -136,6 +124,42 @@ public class WordsToSentencesAnnotator implements Annotator {
   }
 
 
+  /**
+   * Returns the sentences of the given tokens as they are completed, reading no further
+   * ahead in the tokens than needed; see {@link WordToSentenceProcessor#sentences}.
+   */
+  Iterator<List<CoreLabel>> sentences(Iterator<CoreLabel> tokens) {
+    return wts.sentences(tokens);
+  }
+
+  /**
+   * Creates the annotation of a sentence with the given tokens.
+   *
+   * @param text The document text, or the part of it which includes the sentence
+   * @param textOffset The character offset in the document at which text begins
+   * @param sentenceTokens The tokens of the sentence
+   * @param tokenOffset The index in the document of the first token of the sentence
+   * @param index The index of the sentence in the document
+   */
+  static Annotation makeSentence(CharSequence text, int textOffset, List<CoreLabel> sentenceTokens,
+                                 int tokenOffset, int index) {
+    // get the sentence text from the first and last character offsets
+    int begin = sentenceTokens.get(0).get(CoreAnnotations.CharacterOffsetBeginAnnotation.class);
+    int last = sentenceTokens.size() - 1;
+    int end = sentenceTokens.get(last).get(CoreAnnotations.CharacterOffsetEndAnnotation.class);
+    String sentenceText = text.subSequence(begin - textOffset, end - textOffset).toString();
+
+    // create a sentence annotation with text and token offsets
+    Annotation sentence = new Annotation(sentenceText);
+    sentence.set(CoreAnnotations.CharacterOffsetBeginAnnotation.class, begin);
+    sentence.set(CoreAnnotations.CharacterOffsetEndAnnotation.class, end);
+    sentence.set(CoreAnnotations.TokensAnnotation.class, sentenceTokens);
+    sentence.set(CoreAnnotations.TokenBeginAnnotation.class, tokenOffset);
+    sentence.set(CoreAnnotations.TokenEndAnnotation.class, tokenOffset + sentenceTokens.size());
+    sentence.set(CoreAnnotations.SentenceIndexAnnotation.class, index);
+    return sentence;
+  }
+
   @Override
   public Set<Requirement> requires() {
     return Collections.singleton(TOKENIZE_REQUIREMENT);
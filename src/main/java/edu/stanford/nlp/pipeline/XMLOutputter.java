@@ -1,11 +1,9 @@
 package edu.stanford.nlp.pipeline;
 
-import java.io.IOException;
-import java.io.OutputStream;
-import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.util.List;
-import java.util.Map;
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.util.*;
 import java.util.regex.Pattern;
 
 import edu.stanford.nlp.dcoref.CorefChain;
@@ -14,6 +12,7 @@ import edu.stanford.nlp.ie.machinereading.structure.EntityMention;
 import edu.stanford.nlp.ie.machinereading.structure.ExtractionObject;
 import edu.stanford.nlp.ie.machinereading.structure.MachineReadingAnnotations;
 import edu.stanford.nlp.ie.machinereading.structure.RelationMention;
+import edu.stanford.nlp.io.IOUtils;
 import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.CoreLabel;
 import edu.stanford.nlp.ling.IndexedWord;
@@ -29,6 +28,8 @@ import edu.stanford.nlp.semgraph.SemanticGraphCoreAnnotations;
 import edu.stanford.nlp.semgraph.SemanticGraphEdge;
 import edu.stanford.nlp.util.CoreMap;
 import edu.stanford.nlp.util.Pair;
+import edu.stanford.nlp.util.StringUtils;
+import edu.stanford.nlp.util.Timing;
 import nu.xom.*;
 
 
@@ -40,7 +41,21 @@ public class XMLOutputter {
     private static final Pattern PATTERN = Pattern.compile("\\s+");
 
 
-    public static void xmlPrint(Annotation annotation, OutputStream os, StanfordCoreNLP pipeline) throws IOException {
+  /**
+   * Writes the annotation as XML.
+   * The XML is written while the annotation is traversed, without building a {@link Document} first;
+   * the output is the same as that of {@link #domPrint}.
+   */
+  public static void xmlPrint(Annotation annotation, OutputStream os, StanfordCoreNLP pipeline) throws IOException {
+    XMLWriter xml = new XMLWriter(os, pipeline.getEncoding());
+    writeAnnotation(xml, annotation, pipeline);
+    xml.flush();
+  }
+
+  /**
+   * Writes the annotation as XML by building the {@link Document} with {@link #annotationToDoc} and serializing it
+   */
+  public static void domPrint(Annotation annotation, OutputStream os, StanfordCoreNLP pipeline) throws IOException {
     Document xmlDoc = annotationToDoc(annotation, pipeline);
     Serializer ser = new Serializer(os, pipeline.getEncoding());
     ser.setIndent(2);
@@ -49,6 +64,491 @@ public class XMLOutputter {
     ser.flush();
   }
 
+
+  /**
+   * Writes the given annotation as an XML document, in the same way as {@link #annotationToDoc}
+   */
+  private static void writeAnnotation(XMLWriter xml, Annotation annotation, StanfordCoreNLP pipeline) throws IOException {
+    double beam = pipeline.getBeamPrintingOption();
+    TreePrint constituentTreePrinter = pipeline.getConstituentTreePrinter();
+
+    xml.processingInstruction("xml-stylesheet", "href=\"" + STYLESHEET_NAME + "\" type=\"text/xsl\"");
+    xml.startElement("root");
+    xml.startElement("document");
+
+    String docId =  annotation.get(CoreAnnotations.DocIDAnnotation.class);
+    if (docId != null) {
+      writeSingleElement(xml, "docId", docId);
+    }
+
+    String docDate = annotation.get(CoreAnnotations.DocDateAnnotation.class);
+    if(docDate != null){
+      writeSingleElement(xml, "docDate", docDate);
+    }
+
+    xml.startElement("sentences");
+
+    //
+    // write the info for each sentence in this doc
+    //
+    if(annotation.get(CoreAnnotations.SentencesAnnotation.class) != null){
+      int sentCount = 1;
+      for (CoreMap sentence: annotation.get(CoreAnnotations.SentencesAnnotation.class)) {
+        xml.startElement("sentence");
+        xml.attribute("id", Integer.toString(sentCount));
+        sentCount ++;
+
+        // write the word table with all token-level annotations
+        xml.startElement("tokens");
+        List<CoreLabel> tokens = sentence.get(CoreAnnotations.TokensAnnotation.class);
+        for(int j = 0; j < tokens.size(); j ++){
+          xml.startElement("token");
+          writeWordInfo(xml, tokens.get(j), j + 1);
+          xml.endElement();
+        }
+        xml.endElement();
+
+        // write tree info
+        Tree tree = sentence.get(TreeCoreAnnotations.TreeAnnotation.class);
+
+        if(tree != null){
+          // write the constituent tree for this sentence
+          xml.startElement("parse");
+          StringWriter treeStrWriter = new StringWriter();
+          constituentTreePrinter.printTree(tree, new PrintWriter(treeStrWriter, true));
+          xml.text(treeStrWriter.toString());
+          xml.endElement();
+
+          // write the dependencies for this sentence
+          writeDependencyTreeInfo(xml, "basic-dependencies", sentence.get(SemanticGraphCoreAnnotations.BasicDependenciesAnnotation.class), tokens);
+          writeDependencyTreeInfo(xml, "collapsed-dependencies", sentence.get(SemanticGraphCoreAnnotations.CollapsedDependenciesAnnotation.class), tokens);
+          writeDependencyTreeInfo(xml, "collapsed-ccprocessed-dependencies", sentence.get(SemanticGraphCoreAnnotations.CollapsedCCProcessedDependenciesAnnotation.class), tokens);
+        }
+
+        // write the MR entities and relations
+        List<EntityMention> entities = sentence.get(MachineReadingAnnotations.EntityMentionsAnnotation.class);
+        List<RelationMention> relations = sentence.get(MachineReadingAnnotations.RelationMentionsAnnotation.class);
+        if (entities != null && !entities.isEmpty()){
+          xml.startElement("MachineReading");
+          xml.startElement("entities");
+          for (EntityMention e: entities) {
+            writeEntity(xml, e);
+          }
+          xml.endElement();
+
+          if(relations != null){
+            xml.startElement("relations");
+            for(RelationMention r: relations){
+              if(r.printableObject(beam)) {
+                writeRelation(xml, r);
+              }
+            }
+            xml.endElement();
+          }
+
+          xml.endElement();
+        }
+
+        xml.endElement();
+      }
+    }
+    xml.endElement();
+
+    //
+    // write the coref graph
+    //
+    Map<Integer, CorefChain> corefChains =
+      annotation.get(CorefCoreAnnotations.CorefChainAnnotation.class);
+    if (corefChains != null) {
+      writeCorefGraphInfo(xml, corefChains);
+    }
+
+    xml.endElement();
+    xml.endElement();
+  }
+
+  private static void writeDependencyTreeInfo(XMLWriter xml, String dependencyType, SemanticGraph graph, List<CoreLabel> tokens) throws IOException {
+    if(graph != null) {
+      xml.startElement("dependencies");
+      xml.attribute("type", dependencyType);
+      // The SemanticGraph doesn't explicitely encode the ROOT node,
+      // so we print that out ourselves
+      for (IndexedWord root : graph.getRoots()) {
+        String rel = GrammaticalRelation.ROOT.getLongName();
+        rel = COMPILE.matcher(rel).replaceAll(""); // future proofing
+        int target = root.index();
+        writeDependencyInfo(xml, rel, false, 0, "ROOT", null, target, tokens.get(target - 1).word(), null);
+      }
+      for (SemanticGraphEdge edge : graph.edgeListSorted()) {
+        String rel = edge.getRelation().toString();
+        rel = PATTERN.matcher(rel).replaceAll("");
+        int source = edge.getSource().index();
+        int target = edge.getTarget().index();
+        writeDependencyInfo(xml, rel, edge.isExtra(),
+                source, tokens.get(source - 1).word(), edge.getSource().get(CoreAnnotations.CopyAnnotation.class),
+                target, tokens.get(target - 1).word(), edge.getTarget().get(CoreAnnotations.CopyAnnotation.class));
+      }
+      xml.endElement();
+    }
+  }
+
+  private static void writeDependencyInfo(XMLWriter xml, String rel, boolean isExtra, int source, String sourceWord, Integer sourceCopy, int target, String targetWord, Integer targetCopy) throws IOException {
+    xml.startElement("dep");
+    xml.attribute("type", rel);
+    if (isExtra) {
+      xml.attribute("extra", "true");
+    }
+
+    xml.startElement("governor");
+    xml.attribute("idx", Integer.toString(source));
+    if (sourceCopy != null) {
+      xml.attribute("copy", Integer.toString(sourceCopy));
+    }
+    xml.text(sourceWord);
+    xml.endElement();
+
+    xml.startElement("dependent");
+    xml.attribute("idx", Integer.toString(target));
+    if (targetCopy != null) {
+      xml.attribute("copy", Integer.toString(targetCopy));
+    }
+    xml.text(targetWord);
+    xml.endElement();
+
+    xml.endElement();
+  }
+
+  private static void writeCorefGraphInfo(XMLWriter xml, Map<Integer, CorefChain> corefChains) throws IOException {
+    boolean foundCoref = false;
+    for (CorefChain chain : corefChains.values()) {
+      if (chain.getMentionsInTextualOrder().size() <= 1)
+        continue;
+      if (!foundCoref) {
+        // the element is only written if there is a chain with more than one mention
+        xml.startElement("coreference");
+        foundCoref = true;
+      }
+      xml.startElement("coreference");
+      CorefChain.CorefMention source = chain.getRepresentativeMention();
+      writeCorefMention(xml, source, true);
+      for (CorefChain.CorefMention mention : chain.getMentionsInTextualOrder()) {
+        if (mention == source)
+          continue;
+        writeCorefMention(xml, mention, false);
+      }
+      xml.endElement();
+    }
+    if (foundCoref) {
+      xml.endElement();
+    }
+  }
+
+  private static void writeCorefMention(XMLWriter xml, CorefChain.CorefMention mention, boolean representative) throws IOException {
+    xml.startElement("mention");
+    if (representative) {
+      xml.attribute("representative", "true");
+    }
+    writeSingleElement(xml, "sentence", Integer.toString(mention.sentNum));
+    writeSingleElement(xml, "start", Integer.toString(mention.startIndex));
+    writeSingleElement(xml, "end", Integer.toString(mention.endIndex));
+    writeSingleElement(xml, "head", Integer.toString(mention.headIndex));
+    xml.endElement();
+  }
+
+  private static void writeWordInfo(XMLWriter xml, CoreMap token, int id) throws IOException {
+    // store the position of this word in the sentence
+    xml.attribute("id", Integer.toString(id));
+
+    writeSingleElement(xml, "word", token.get(CoreAnnotations.TextAnnotation.class));
+    writeSingleElement(xml, "lemma", token.get(CoreAnnotations.LemmaAnnotation.class));
+
+    if (token.containsKey(CoreAnnotations.CharacterOffsetBeginAnnotation.class) && token.containsKey(CoreAnnotations.CharacterOffsetEndAnnotation.class)) {
+      writeSingleElement(xml, "CharacterOffsetBegin", Integer.toString(token.get(CoreAnnotations.CharacterOffsetBeginAnnotation.class)));
+      writeSingleElement(xml, "CharacterOffsetEnd", Integer.toString(token.get(CoreAnnotations.CharacterOffsetEndAnnotation.class)));
+    }
+
+    if (token.containsKey(CoreAnnotations.PartOfSpeechAnnotation.class)) {
+      writeSingleElement(xml, "POS", token.get(CoreAnnotations.PartOfSpeechAnnotation.class));
+    }
+
+    if (token.containsKey(CoreAnnotations.NamedEntityTagAnnotation.class)) {
+      writeSingleElement(xml, "NER", token.get(CoreAnnotations.NamedEntityTagAnnotation.class));
+    }
+
+    if (token.containsKey(CoreAnnotations.NormalizedNamedEntityTagAnnotation.class)) {
+      writeSingleElement(xml, "NormalizedNER", token.get(CoreAnnotations.NormalizedNamedEntityTagAnnotation.class));
+    }
+
+    if (token.containsKey(TimeAnnotations.TimexAnnotation.class)) {
+      Timex timex = token.get(TimeAnnotations.TimexAnnotation.class);
+      xml.startElement("Timex");
+      xml.attribute("tid", timex.tid());
+      xml.attribute("type", timex.timexType());
+      xml.text(timex.value());
+      xml.endElement();
+    }
+
+    if (token.containsKey(CoreAnnotations.TrueCaseAnnotation.class)) {
+      xml.startElement("TrueCase");
+      xml.text(token.get(CoreAnnotations.TrueCaseAnnotation.class));
+      xml.endElement();
+    }
+    if (token.containsKey(CoreAnnotations.TrueCaseTextAnnotation.class)) {
+      xml.startElement("TrueCaseText");
+      xml.text(token.get(CoreAnnotations.TrueCaseTextAnnotation.class));
+      xml.endElement();
+    }
+  }
+
+  /**
+   * Streaming version of {@link #setSingleElement}
+   */
+  private static void writeSingleElement(XMLWriter xml, String elemName, String value) throws IOException {
+    if (value != null) {
+      xml.startElement(elemName);
+      xml.text(value);
+      xml.endElement();
+    }
+  }
+
+  private static void writeEntity(XMLWriter xml, EntityMention entity) throws IOException {
+    xml.startElement("entity");
+    xml.attribute("id", entity.getObjectId());
+    // the type is written as text, as annotationToDoc does
+    xml.text(entity.getType());
+    if (entity.getNormalizedName() != null){
+      writeSingleElement(xml, "normalized", entity.getNormalizedName());
+    }
+    if (entity.getSubType() != null){
+      writeSingleElement(xml, "subtype", entity.getSubType());
+    }
+    xml.startElement("span");
+    xml.attribute("start", Integer.toString(entity.getHeadTokenStart()));
+    xml.attribute("end", Integer.toString(entity.getHeadTokenEnd()));
+    xml.endElement();
+
+    writeProbabilities(xml, entity);
+    xml.endElement();
+  }
+
+  private static void writeRelation(XMLWriter xml, RelationMention relation) throws IOException {
+    xml.startElement("relation");
+    xml.attribute("id", relation.getObjectId());
+    // the type and subtype are written as text, as annotationToDoc does
+    xml.text(relation.getType());
+    if (relation.getSubType() != null){
+      xml.text(relation.getSubType());
+    }
+
+    xml.startElement("arguments");
+    for (EntityMention e : relation.getEntityMentionArgs()) {
+      writeEntity(xml, e);
+    }
+    xml.endElement();
+
+    writeProbabilities(xml, relation);
+    xml.endElement();
+  }
+
+  private static void writeProbabilities(XMLWriter xml, ExtractionObject object) throws IOException {
+    xml.startElement("probabilities");
+    if (object.getTypeProbabilities() != null){
+      List<Pair<String, Double>> sorted = Counters.toDescendingMagnitudeSortedListWithCounts(object.getTypeProbabilities());
+      for(Pair<String, Double> lv: sorted) {
+        xml.startElement("probability");
+        xml.startElement("label");
+        xml.text(lv.first);
+        xml.endElement();
+        xml.startElement("value");
+        xml.text(lv.second.toString());
+        xml.endElement();
+        xml.endElement();
+      }
+    }
+    xml.endElement();
+  }
+
+  /**
+   * Writes XML the way {@link Serializer} does with an indent of 2 and no maximum line length:
+   * <ul>
+   * <li> each start tag goes on a new line unless it directly follows a line break,
+   * <li> end tags go on a new line unless the last child of the element is text,
+   * <li> elements without content are written as empty-element tags,
+   * <li> runs of white space in text are collapsed to one space,
+   * <li> lines are separated by "\r\n", and the document ends with one.
+   * </ul>
+   * Start tags are completed lazily, so attributes can be added until the first child is written.
+   */
+  private static class XMLWriter {
+    private static final String LINE_SEPARATOR = "\r\n";
+    private static final String INDENT = "  ";
+
+    private final Writer out;
+    // null if any character can be written as is
+    private final CharsetEncoder encoder;
+    private final List<String> openElements = new ArrayList<>();
+    private boolean startTagOpen = false;
+    private boolean justBroke = false;
+    private boolean lastCharacterWasSpace = false;
+    private boolean lastChildWasText = false;
+
+    XMLWriter(OutputStream os, String encoding) throws IOException {
+      encoding = encoding.toUpperCase(Locale.ENGLISH);
+      this.out = new BufferedWriter(new OutputStreamWriter(os, encoding));
+      Charset charset = Charset.forName(encoding);
+      this.encoder = charset.name().startsWith("UTF-") ? null : charset.newEncoder();
+      out.write("<?xml version=\"1.0\" encoding=\"");
+      out.write(encoding);
+      out.write("\"?>");
+      breakLine();
+    }
+
+    void processingInstruction(String target, String data) throws IOException {
+      out.write("<?");
+      out.write(target);
+      out.write(' ');
+      out.write(data);
+      out.write("?>");
+      markupWritten();
+      // a line break follows each child of the document
+      breakLine();
+    }
+
+    void startElement(String name) throws IOException {
+      closeStartTag();
+      if (!justBroke) {
+        breakLine();
+      }
+      out.write('<');
+      out.write(name);
+      markupWritten();
+      openElements.add(name);
+      startTagOpen = true;
+    }
+
+    void attribute(String name, String value) throws IOException {
+      assert startTagOpen;
+      out.write(' ');
+      out.write(name);
+      out.write("=\"");
+      for (int i = 0; i < value.length(); i++) {
+        char c = value.charAt(i);
+        switch (c) {
+          case '\t': out.write("&#x09;"); break;
+          case '\n': out.write("&#x0A;"); break;
+          case '\r': out.write("&#x0D;"); break;
+          case '"': out.write("&quot;"); break;
+          case '&': out.write("&amp;"); break;
+          case '<': out.write("&lt;"); break;
+          case '>': out.write("&gt;"); break;
+          default: i = writeChar(value, i);
+        }
+      }
+      out.write('"');
+      markupWritten();
+    }
+
+    /** Writes text content; null or empty text adds nothing */
+    void text(String text) throws IOException {
+      if (text == null || text.isEmpty()) return;
+      closeStartTag();
+      for (int i = 0; i < text.length(); i++) {
+        char c = text.charAt(i);
+        switch (c) {
+          case ' ': case '\t': case '\n': case '\r':
+            if (!lastCharacterWasSpace) {
+              out.write(' ');
+              lastCharacterWasSpace = true;
+            }
+            continue;
+          case '&': out.write("&amp;"); break;
+          case '<': out.write("&lt;"); break;
+          case '>': out.write("&gt;"); break;
+          default: i = writeChar(text, i);
+        }
+        lastCharacterWasSpace = false;
+      }
+      justBroke = false;
+      lastChildWasText = true;
+    }
+
+    void endElement() throws IOException {
+      String name = openElements.remove(openElements.size() - 1);
+      if (startTagOpen) {
+        out.write("/>");
+        startTagOpen = false;
+      } else {
+        if (!lastChildWasText) {
+          breakLine();
+        }
+        out.write("</");
+        out.write(name);
+        out.write('>');
+      }
+      markupWritten();
+      lastChildWasText = false;
+      if (openElements.isEmpty()) {
+        breakLine();
+      }
+    }
+
+    void flush() throws IOException {
+      out.flush();
+    }
+
+    private void closeStartTag() throws IOException {
+      if (startTagOpen) {
+        out.write('>');
+        markupWritten();
+        startTagOpen = false;
+      }
+    }
+
+    private void markupWritten() {
+      justBroke = false;
+      lastCharacterWasSpace = false;
+    }
+
+    private void breakLine() throws IOException {
+      out.write(LINE_SEPARATOR);
+      for (int i = 0; i < openElements.size(); i++) {
+        out.write(INDENT);
+      }
+      justBroke = true;
+      lastCharacterWasSpace = true;
+    }
+
+    /**
+     * Writes the character at the given index, as a character reference if it cannot be encoded
+     * @return The index of the last char written (surrogate pairs take two)
+     */
+    private int writeChar(String s, int i) throws IOException {
+      char c = s.charAt(i);
+      int codePoint = s.codePointAt(i);
+      int end = i + Character.charCount(codePoint);
+      if (!isXMLCharacter(codePoint)) {
+        throw new IllegalArgumentException("0x" + Integer.toHexString(codePoint) + " is not allowed in XML content");
+      }
+      if (encoder == null || encoder.canEncode(s.subSequence(i, end))) {
+        if (end > i + 1) {
+          out.write(s, i, 2);
+        } else {
+          out.write(c);
+        }
+      } else {
+        out.write("&#x");
+        out.write(Integer.toHexString(codePoint).toUpperCase(Locale.ENGLISH));
+        out.write(';');
+      }
+      return end - 1;
+    }
+
+    private static boolean isXMLCharacter(int c) {
+      if (c >= 0x20) return c <= 0xD7FF || (c >= 0xE000 && c <= 0xFFFD) || (c >= 0x10000 && c <= 0x10FFFF);
+      return c == '\n' || c == '\r' || c == '\t';
+    }
+  }
+
   /**
    * Converts the given annotation to an XML document
    */
@@ -443,8 +943,49 @@ public class XMLOutputter {
     }
     return probs;
   }
-  
 
+  /**
+   * Annotates a file and writes it both with {@link #xmlPrint} and with {@link #domPrint},
+   * checking that the output is identical and reporting the time and memory each takes.
+   * Usage: XMLOutputter -file file [-annotators ...] [-iterations n]
+   */
+  public static void main(String[] args) throws IOException {
+    Properties props = StringUtils.argsToProperties(args);
+    String file = props.getProperty("file");
+    if (file == null) {
+      System.err.println("usage: XMLOutputter -file file [-annotators ...] [-iterations n]");
+      return;
+    }
+    int iterations = Integer.parseInt(props.getProperty("iterations", "10"));
+    StanfordCoreNLP pipeline = new StanfordCoreNLP(props);
+    Annotation annotation = new Annotation(IOUtils.slurpFile(file));
+    pipeline.annotate(annotation);
+
+    ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+    xmlPrint(annotation, streamed, pipeline);
+    ByteArrayOutputStream serialized = new ByteArrayOutputStream();
+    domPrint(annotation, serialized, pipeline);
+    System.err.println("Output identical: " + Arrays.equals(streamed.toByteArray(), serialized.toByteArray()) +
+            " (" + streamed.size() + " bytes)");
+
+    Runtime runtime = Runtime.getRuntime();
+    System.gc();
+    long before = runtime.totalMemory() - runtime.freeMemory();
+    Document xmlDoc = annotationToDoc(annotation, pipeline);
+    System.gc();
+    System.err.println("Document retained: " + (runtime.totalMemory() - runtime.freeMemory() - before) / 1024 + " KB" +
+            " for " + xmlDoc.getRootElement().getLocalName());
+
+    Timing timing = new Timing();
+    for (int i = 0; i < iterations; i++) {
+      xmlPrint(annotation, new ByteArrayOutputStream(streamed.size()), pipeline);
+    }
+    System.err.println("xmlPrint: " + timing.report() / iterations + " ms per document");
+    timing.start();
+    for (int i = 0; i < iterations; i++) {
+      domPrint(annotation, new ByteArrayOutputStream(serialized.size()), pipeline);
+    }
+    System.err.println("domPrint: " + timing.report() / iterations + " ms per document");
+  }
 
 }
-
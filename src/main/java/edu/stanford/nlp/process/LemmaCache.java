@@ -0,0 +1,155 @@
+package edu.stanford.nlp.process;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import edu.stanford.nlp.ling.WordTag;
+import edu.stanford.nlp.util.concurrent.ConcurrentCache;
+
+
+/**
+ * A cache of the lemmas which {@link Morphology#lemma(String, String)} gives
+ * (word, tag) pairs, which can be shared by any number of threads.
+ * Word and tag pairs are very repetitive in real text, so most lemmas are
+ * found in the cache rather than by running the Morpha lexer.
+ * <br>
+ * The lemmas are kept in a {@link ConcurrentCache}, which has no global lock
+ * and evicts the least recently used pairs once it is full, and the pairs not
+ * cached are lemmatized with a Morphology kept by each thread.
+ */
+public class LemmaCache {
+
+  public static final int DEFAULT_MAX_SIZE = 500000;
+
+  private final int maxSize;
+  private final ConcurrentCache<WordTag, String> lemmas;
+
+  private final ThreadLocal<Morphology> morphology = new ThreadLocal<Morphology>() {
+    @Override
+    protected Morphology initialValue() {
+      return new Morphology();
+    }
+  };
+
+  public LemmaCache() {
+    this(DEFAULT_MAX_SIZE);
+  }
+
+  /**
+   * @param maxSize The most (word, tag) pairs to keep lemmas for
+   */
+  public LemmaCache(int maxSize) {
+    this.maxSize = maxSize;
+    this.lemmas = new ConcurrentCache<>(maxSize, null, 64);
+  }
+
+  /**
+   * Returns the lemma of the word with the given tag, as
+   * {@link Morphology#lemma(String, String)} would.
+   */
+  public String lemma(String word, String tag) {
+    WordTag key = new WordTag(word, tag);
+    String lemma = lemmas.get(key);
+    if (lemma == null) {
+      lemma = morphology.get().lemma(word, tag);
+      lemmas.put(key, lemma);
+    }
+    return lemma;
+  }
+
+  /** Returns the number of (word, tag) pairs cached */
+  public int size() {
+    return lemmas.size();
+  }
+
+  /** Returns the number of lemmas asked for */
+  public long lookups() {
+    return lemmas.hits() + lemmas.misses();
+  }
+
+  /** Returns the number of lemmas which were not cached, and so were found with Morpha */
+  public long misses() {
+    return lemmas.misses();
+  }
+
+  /** Returns the fraction of lookups found in the cache */
+  public double hitRate() {
+    return lemmas.hitRate();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("LemmaCache: %d of at most %d pairs cached, %.1f%% of %d lookups hit, %d evicted",
+            size(), maxSize, 100 * hitRate(), lookups(), lemmas.evictions());
+  }
+
+
+  /**
+   * Measures lemmas per second at 1 and 16 threads with this cache, with a
+   * Morphology for each thread, and with the synchronized static method,
+   * over a Zipf-distributed stream of (word, tag) pairs.
+   * Usage: LemmaCache [lemmasPerThread]
+   */
+  public static void main(String[] args) throws InterruptedException {
+    final int perThread = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+    String[] stems = { "walk", "talk", "run", "cat", "dog", "house", "box", "study", "city", "go",
+                       "make", "take", "see", "child", "man", "woman", "mouse", "leaf", "try", "fly" };
+    String[][] forms = { { "", "NN" }, { "s", "NNS" }, { "ed", "VBD" }, { "ing", "VBG" }, { "s", "VBZ" },
+                         { "", "VB" }, { "er", "JJR" }, { "", "NNP" } };
+    // a vocabulary of real and made up words, drawn with Zipf frequencies
+    final List<String[]> pairs = new ArrayList<>();
+    for (int i = 0; pairs.size() < 200000; i++) {
+      String stem = stems[i % stems.length] + (i < stems.length ? "" : Integer.toString(i / stems.length));
+      String[] form = forms[(i / 7) % forms.length];
+      pairs.add(new String[] { stem + form[0], form[1] });
+    }
+    final int[] stream = new int[1 << 20];
+    Random random = new Random(1);
+    double norm = 0.0;
+    for (int i = 1; i <= pairs.size(); i++) {
+      norm += 1.0 / i;
+    }
+    for (int i = 0; i < stream.length; i++) {
+      double target = random.nextDouble() * norm;
+      int rank = 1;
+      for (double sum = 1.0; sum < target && rank < pairs.size(); sum += 1.0 / ++rank) { }
+      stream[i] = rank - 1;
+    }
+
+    for (int threads : new int[] { 1, 16 }) {
+      for (final String method : new String[] { "cache", "perThread", "staticSynchronized" }) {
+        final LemmaCache cache = new LemmaCache();
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+          final int offset = t * 7919;
+          workers.add(new Thread() {
+            @Override
+            public void run() {
+              Morphology morpha = new Morphology();
+              for (int i = 0; i < perThread; i++) {
+                String[] pair = pairs.get(stream[(offset + i) & (stream.length - 1)]);
+                switch (method) {
+                  case "cache": cache.lemma(pair[0], pair[1]); break;
+                  case "perThread": morpha.lemma(pair[0], pair[1]); break;
+                  default: Morphology.lemmaStaticSynchronized(pair[0], pair[1], true); break;
+                }
+              }
+            }
+          });
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+          worker.start();
+        }
+        for (Thread worker : workers) {
+          worker.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.printf("%2d threads, %-18s %,12.0f lemmas/sec%s%n", threads, method, threads * perThread / seconds,
+                method.equals("cache") ? "  (" + cache + ')' : "");
+      }
+    }
+  }
+
+}
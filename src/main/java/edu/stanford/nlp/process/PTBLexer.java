@@ -11912,6 +11912,64 @@ class PTBLexer {
     }
   }
 
+  /** Buffers which have grown larger than this for a long input are not kept when the lexer is reset */
+  private static final int MAX_KEPT_BUFFERSIZE = ZZ_BUFFERSIZE << 6;
+
+  /** Used as the Reader of text put straight into the buffer */
+  private static final Reader EMPTY_READER = new Reader() {
+    @Override
+    public int read(char[] cbuf, int off, int len) { return -1; }
+    @Override
+    public void close() { }
+  };
+
+  /**
+   * Starts tokenizing a new input with the same options, as a new PTBLexer
+   * would, but keeping the buffers of this one.
+   *
+   * @param r The Reader to tokenize text from
+   */
+  public void reset(Reader r) {
+    yyreset(r);
+    if (zzBuffer.length > MAX_KEPT_BUFFERSIZE) {
+      zzBuffer = new char[ZZ_BUFFERSIZE];
+      zzFin = new boolean[ZZ_BUFFERSIZE + 1];
+    }
+    seenUntokenizableCharacter = false;
+    if (invertible) {
+      prevWord = (CoreLabel) tokenFactory.makeToken("", 0, 0);
+      prevWordAfter.setLength(0);
+    }
+    if (strictTreebank3) {
+      yybegin(YyStrictlyTreebank3);
+    } else {
+      yybegin(YyTraditionalTreebank3);
+    }
+  }
+
+  /**
+   * Starts tokenizing the given text with the same options, as a new PTBLexer
+   * would.  The text is copied straight into the lexer's buffer rather than
+   * being read through a Reader.
+   *
+   * @param text The text to tokenize
+   */
+  public void reset(CharSequence text) {
+    reset(EMPTY_READER);
+    int length = text.length();
+    if (zzBuffer.length < length) {
+      zzBuffer = new char[length];
+    }
+    if (text instanceof String) {
+      ((String) text).getChars(0, length, zzBuffer, 0);
+    } else {
+      for (int i = 0; i < length; i++) {
+        zzBuffer[i] = text.charAt(i);
+      }
+    }
+    zzEndRead = length;
+  }
+
 
   private static final Logger LOGGER = Logger.getLogger(PTBLexer.class.getName());
 
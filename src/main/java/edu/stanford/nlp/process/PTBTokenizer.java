@@ -251,6 +251,29 @@ public class PTBTokenizer<T extends HasWord> extends AbstractTokenizer<T> {
   }
 
 
+  /**
+   * Starts tokenizing a new Reader with the same options.  The lexer and its
+   * buffers are reused rather than made anew, which matters when tokenizing
+   * many short texts.  Any tokens not yet read from the old input are dropped.
+   *
+   * @param r The Reader to read tokens from
+   */
+  public void reset(Reader r) {
+    nextToken = null;
+    lexer.reset(r);
+  }
+
+  /**
+   * Starts tokenizing the given text with the same options, reusing the lexer.
+   * The text is put directly into the lexer's buffer.
+   *
+   * @param text The text to tokenize
+   */
+  public void reset(CharSequence text) {
+    nextToken = null;
+    lexer.reset(text);
+  }
+
   /**
    * Internally fetches the next token.
    *
@@ -511,6 +534,9 @@ public class PTBTokenizer<T extends HasWord> extends AbstractTokenizer<T> {
     protected final LexedTokenFactory<T> factory;
     protected String options;
 
+    /** The tokenizers vended by {@link #getThreadTokenizer}; replaced when the options change */
+    private ThreadLocal<PTBTokenizer<T>> threadTokenizers = new ThreadLocal<>();
+
 
     /**
      * Constructs a new TokenizerFactory that returns Word objects and
@@ -613,9 +639,28 @@ public class PTBTokenizer<T extends HasWord> extends AbstractTokenizer<T> {
         return options == null || options.isEmpty() ? new PTBTokenizer<>(r, factory, extraOptions) : new PTBTokenizer<>(r, factory, options + ',' + extraOptions);
     }
 
+    /**
+     * Returns a tokenizer of the given text which belongs to the calling thread,
+     * and is reset onto each new text rather than made anew with a new PTBLexer.
+     * This saves the lexer construction and its buffer allocation for short texts.
+     * The tokenizer must not be used again once the same thread asks for another.
+     *
+     * @param text The text to tokenize
+     */
+    public PTBTokenizer<T> getThreadTokenizer(CharSequence text) {
+      PTBTokenizer<T> tokenizer = threadTokenizers.get();
+      if (tokenizer == null) {
+        tokenizer = new PTBTokenizer<>(new StringReader(""), factory, options);
+        threadTokenizers.set(tokenizer);
+      }
+      tokenizer.reset(text);
+      return tokenizer;
+    }
+
     @Override
     public void setOptions(String options) {
       this.options = options;
+      threadTokenizers = new ThreadLocal<>();
     }
   } // end static class PTBTokenizerFactory
 
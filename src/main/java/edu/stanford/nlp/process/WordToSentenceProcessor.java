@@ -8,6 +8,7 @@ import edu.stanford.nlp.io.EncodingPrintWriter;
 import edu.stanford.nlp.ling.Document;
 import edu.stanford.nlp.ling.HasWord;
 import edu.stanford.nlp.ling.CoreAnnotations;
+import edu.stanford.nlp.util.AbstractIterator;
 import edu.stanford.nlp.util.CoreMap;
 import javolution.util.FastSet;
 
@@ -142,11 +143,89 @@ public class WordToSentenceProcessor<IN> implements ListProcessor<IN, List<IN>>
    * @see #WordToSentenceProcessor(String, Set, Set, Pattern, Pattern)
    */
   public List<List<IN>> wordsToSentences(List<? extends IN> words) {
-      List<List<IN>> sentences = new ArrayList<>();
-    List<IN> currentSentence = new ArrayList<>();
-    List<IN> lastSentence = null;
-    boolean insideRegion = false;
-    for (IN o: words) {
+    List<List<IN>> sentences = new ArrayList<>();
+    for (Iterator<List<IN>> it = new SentenceIterator(words.iterator()); it.hasNext(); ) {
+      sentences.add(it.next());
+    }
+    return sentences;
+  }
+
+  /**
+   * Returns the sentences that {@link #process} would make from the given words, but lazily:
+   * words are only read from the iterator as far as is needed to complete the next sentence.
+   * This lets the words come from an incremental tokenizer, without holding them all in memory.
+   * A sentence is complete once a word of the following sentence (or the end of the words)
+   * has been read, since sentence boundary followers are still added to it until then.
+   *
+   * @param words An iterator over already tokenized words (must implement HasWord or be a String)
+   * @return An iterator over the sentences
+   */
+  public Iterator<List<IN>> sentences(Iterator<? extends IN> words) {
+    if (isOneSentence) {
+      List<IN> sentence = new ArrayList<>();
+      while (words.hasNext()) {
+        sentence.add(words.next());
+      }
+      return Collections.singletonList(sentence).iterator();
+    }
+    return new SentenceIterator(words);
+  }
+
+  /**
+   * Breaks off a sentence after finding a valid sentence boundary token or the end of the words;
+   * see {@link #wordsToSentences}.
+   */
+  private class SentenceIterator extends AbstractIterator<List<IN>> {
+
+    private final Iterator<? extends IN> words;
+    private final Queue<List<IN>> ready = new ArrayDeque<>();
+    private List<IN> currentSentence = new ArrayList<>();
+    /** The last sentence broken off, while it can still get boundary followers */
+    private List<IN> lastSentence = null;
+    private boolean insideRegion = false;
+
+    private SentenceIterator(Iterator<? extends IN> words) {
+      this.words = words;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (ready.isEmpty() && words.hasNext()) {
+        add(words.next());
+      }
+      if (ready.isEmpty() && ! words.hasNext()) {
+        // add any words at the end, even if there isn't a sentence
+        // terminator at the end of file
+        if (lastSentence != null) {
+          ready.add(lastSentence);
+          lastSentence = null;
+        }
+        if ( ! currentSentence.isEmpty()) {
+          ready.add(currentSentence); // adds last sentence
+          currentSentence = new ArrayList<>();
+        }
+      }
+      return ! ready.isEmpty();
+    }
+
+    @Override
+    public List<IN> next() {
+      if ( ! hasNext()) {
+        throw new NoSuchElementException();
+      }
+      return ready.remove();
+    }
+
+    private void addToCurrent(IN o) {
+      if (currentSentence.isEmpty() && lastSentence != null) {
+        // the last sentence can't get any more followers
+        ready.add(lastSentence);
+        lastSentence = null;
+      }
+      currentSentence.add(o);
+    }
+
+    private void add(IN o) {
       String word;
       if (o instanceof HasWord) {
         HasWord h = (HasWord) o;
@@ -177,7 +256,7 @@ public class WordToSentenceProcessor<IN> implements ListProcessor<IN, List<IN>>
         if (DEBUG) {
           System.err.println("  outside region");
         }
-        continue;
+        return;
       }
       if (sentenceBoundaryFollowers.contains(word) && lastSentence != null && currentSentence.isEmpty()) {
         lastSentence.add(o);
@@ -192,19 +271,19 @@ public class WordToSentenceProcessor<IN> implements ListProcessor<IN, List<IN>>
           insideRegion = false;
           newSent = true;
         } else if (sentenceBoundaryTokenPattern.matcher(word).matches()) {
-          currentSentence.add(o);
+          addToCurrent(o);
           if (DEBUG) {
             System.err.println("  is sentence boundary; added to current");
           }
           newSent = true;
         } else if (forcedEnd) {
-          currentSentence.add(o);
+          addToCurrent(o);
           newSent = true;
           if (DEBUG) {
             System.err.println("  annotated to be the end of a sentence");
           }
         } else {
-          currentSentence.add(o);
+          addToCurrent(o);
           if (DEBUG) {
             System.err.println("  added to current");
           }
@@ -213,20 +292,12 @@ public class WordToSentenceProcessor<IN> implements ListProcessor<IN, List<IN>>
           if (DEBUG) {
             System.err.println("  beginning new sentence");
           }
-          sentences.add(currentSentence);
-          // adds this sentence now that it's complete
+          // this sentence is complete, but may still get boundary followers
           lastSentence = currentSentence;
           currentSentence = new ArrayList<>(); // clears the current sentence
         }
       }
     }
-
-    // add any words at the end, even if there isn't a sentence
-    // terminator at the end of file
-    if ( ! currentSentence.isEmpty()) {
-      sentences.add(currentSentence); // adds last sentence
-    }
-    return sentences;
   }
 
 
@@ -57,6 +57,41 @@ import java.util.regex.Pattern;
  * features, after the first iteration - the first iteration is with QNSize).</td>
  * </tr>
  * <tr>
+ * <td>multiThreadGrad</td>
+ * <td>int</td>
+ * <td>1</td>
+ * <td>Number of threads to compute the CRF objective function value and gradient
+ * on, each taking a contiguous block of the training documents.</td>
+ * </tr>
+ * <tr>
+ * <td>saveTrainingDataToDisk</td>
+ * <td>boolean</td>
+ * <td>false</td>
+ * <td>Write the features of the CRF training documents to a temporary file as
+ * they are made, and read them from it, memory-mapped, each time the objective
+ * function is evaluated, rather than keeping them all in memory.  Only for a
+ * linear CRF with double weights.</td>
+ * </tr>
+ * <tr>
+ * <td>featureCountThreshold</td>
+ * <td>int</td>
+ * <td>0</td>
+ * <td>For CRFClassifier, if more than 1, only features which occur at least this
+ * many times in the training data are used.  The features are first counted
+ * approximately, in a count-min sketch of featureCountSketchWidth (default 2^21, also used if 0)
+ * counters a row, so that the others are never indexed.</td>
+ * </tr>
+ * <tr>
+ * <td>warmStartClassifier</td>
+ * <td>String</td>
+ * <td>null</td>
+ * <td>Start training a linear CRF with double weights from the weights of this
+ * previously trained CRFClassifier, such as one trained on part of the same
+ * data, rather than from zero.  All of its features, classes and weights are
+ * kept, even those the new training data does not have, and the new ones start
+ * at zero.  It cannot be used with initialWeights.</td>
+ * </tr>
+ * <tr>
  * <td>useInPlaceSGD</td>
  * <td>boolean</td>
  * <td>false</td>
@@ -66,6 +101,13 @@ import java.util.regex.Pattern;
  * </td>
  * </tr>
  * <tr>
+ * <td>hogwildThreads</td>
+ * <td>int</td>
+ * <td>1</td>
+ * <td>With useInPlaceSGD, if more than 1, the number of threads to run SGD on at
+ * once, all updating the same weights without locking (Hogwild!).</td>
+ * </tr>
+ * <tr>
  * <td>tuneSampleSize</td>
  * <td>int</td>
  * <td>-1</td>
@@ -934,6 +976,13 @@ public class SeqClassifierFlags implements Serializable {
   
   public String splitWordRegex;
   
+  public int multiThreadGrad = 1;
+  public int hogwildThreads = 1;
+  public boolean saveTrainingDataToDisk;
+  public static final int DEFAULT_FEATURE_COUNT_SKETCH_WIDTH = 1 << 21;
+  public int featureCountSketchWidth = DEFAULT_FEATURE_COUNT_SKETCH_WIDTH;
+  public transient String warmStartClassifier;
+
   // "ADD VARIABLES ABOVE HERE"
 
   public transient List<String> phraseGazettes;
@@ -1439,6 +1488,8 @@ public class SeqClassifierFlags implements Serializable {
         readStdin = Boolean.parseBoolean(val);
       } else if (key.equalsIgnoreCase("initialWeights")) {
         initialWeights = val;
+      } else if (key.equalsIgnoreCase("warmStartClassifier")) {
+        warmStartClassifier = val;
       } else if (key.equalsIgnoreCase("interimOutputFreq")) {
         interimOutputFreq = Integer.parseInt(val);
       } else if (key.equalsIgnoreCase("inputEncoding")) {
@@ -1526,6 +1577,8 @@ public class SeqClassifierFlags implements Serializable {
         splitOnHead = Boolean.parseBoolean(val);
       } else if (key.equalsIgnoreCase("featureCountThreshold")) {
         featureCountThreshold = Integer.parseInt(val);
+      } else if (key.equalsIgnoreCase("featureCountSketchWidth")) {
+        featureCountSketchWidth = Integer.parseInt(val);
       } else if (key.equalsIgnoreCase("useWord")) {
         useWord = Boolean.parseBoolean(val);
       } else if (key.equalsIgnoreCase("memoryThrift")) {
@@ -1768,6 +1821,8 @@ public class SeqClassifierFlags implements Serializable {
         printFirstOrderProbs = Boolean.parseBoolean(val);
       } else if (key.equalsIgnoreCase("saveFeatureIndexToDisk")) {
         saveFeatureIndexToDisk = Boolean.parseBoolean(val);
+      } else if (key.equalsIgnoreCase("saveTrainingDataToDisk")) {
+        saveTrainingDataToDisk = Boolean.parseBoolean(val);
       } else if (key.equalsIgnoreCase("removeBackgroundSingletonFeatures")) {
         removeBackgroundSingletonFeatures = Boolean.parseBoolean(val);
       } else if (key.equalsIgnoreCase("doGibbs")) {
@@ -1944,6 +1999,8 @@ public class SeqClassifierFlags implements Serializable {
         useSGD = Boolean.parseBoolean(val);
       } else if (key.equalsIgnoreCase("useInPlaceSGD")) {
         useInPlaceSGD = Boolean.parseBoolean(val);
+      } else if (key.equalsIgnoreCase("hogwildThreads")) {
+        hogwildThreads = Integer.parseInt(val);
       } else if (key.equalsIgnoreCase("useSGDtoQN")) {
         useSGDtoQN = Boolean.parseBoolean(val);
       } else if (key.equalsIgnoreCase("SGDPasses")) {
@@ -2246,6 +2303,8 @@ public class SeqClassifierFlags implements Serializable {
         entityMatrix = val;
       } else if (key.equalsIgnoreCase("multiThreadClassifier")) {
         multiThreadClassifier = Integer.parseInt(val);
+      } else if (key.equalsIgnoreCase("multiThreadGrad")) {
+        multiThreadGrad = Integer.parseInt(val);
       } else if (key.equalsIgnoreCase("useGenericFeatures")) {
         useGenericFeatures = Boolean.parseBoolean(val);
       } else if (key.equalsIgnoreCase("splitWordRegex")){
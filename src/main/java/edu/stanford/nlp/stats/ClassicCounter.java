@@ -385,7 +385,7 @@ public class ClassicCounter<E> implements Serializable, Counter<E>, Iterable<E>
 
               @Override
               public Double setValue(Double value) {
-                return setValue(value );
+                return setValue(value.doubleValue());
               }
             };
           }
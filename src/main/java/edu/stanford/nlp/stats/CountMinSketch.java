@@ -0,0 +1,202 @@
+package edu.stanford.nlp.stats;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Approximate counts of a stream of items in a fixed amount of memory, whatever
+ * the number of distinct items (Cormode and Muthukrishnan 2005).  The items are
+ * not stored; each is counted in one cell of each of several rows of counters,
+ * chosen by a different hash of it in each row, and its count is the least of those
+ * cells.  A count is thus never less than the true count, and is more only when every
+ * row has a collision.  Adds are conservative: only the cells at the least count are
+ * incremented, which makes such collisions count for less.
+ * <br>
+ * This is meant for thresholding, such as finding the features which occur at
+ * least some number of times before any of them are indexed: no item over the
+ * threshold is missed, and a few under it may be let through.
+ * <br>
+ * The row hashes are made from the hashCode of the item and, for strings (and other
+ * CharSequences), a second hash of its characters, so that strings with the same
+ * hashCode still fall in different cells.  Other items only have their hashCode,
+ * so items with the same hashCode always share all their cells.
+ *
+ * @param <E> The type of the items counted, which must have a good hashCode
+ */
+public class CountMinSketch<E> {
+
+  private final int[][] counts;
+  private final int[] seeds;
+  private final int mask;
+  private long totalCount;
+
+  /**
+   * Makes a sketch of depth rows of width counters each.
+   *
+   * @param depth The number of rows, each with its own hash
+   * @param width The number of counters in each row, which is rounded up to a power of 2
+   */
+  public CountMinSketch(int depth, int width) {
+    int size = 1;
+    while (size < width) {
+      size <<= 1;
+    }
+    counts = new int[depth][size];
+    mask = size - 1;
+    seeds = new int[depth];
+    Random random = new Random(depth * 31L + size);
+    for (int i = 0; i < depth; i++) {
+      seeds[i] = random.nextInt() | 1;
+    }
+  }
+
+  /** Returns a second hash of the item: FNV-1a of its characters, or 0 if it is not a CharSequence */
+  private static int secondHash(Object item) {
+    if ( ! (item instanceof CharSequence)) {
+      return 0;
+    }
+    CharSequence chars = (CharSequence) item;
+    int h = 0x811c9dc5;
+    for (int j = 0, length = chars.length(); j < length; j++) {
+      h ^= chars.charAt(j);
+      h *= 0x01000193;
+    }
+    return h;
+  }
+
+  /** The cell of the two hashes in row i */
+  private int cell(int hash, int hash2, int i) {
+    // the murmur3 finalizer, on the hash times the row's seed plus the second hash
+    int h = hash * seeds[i] + hash2;
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h & mask;
+  }
+
+  /** Counts one more of the item */
+  public void add(E item) {
+    int hash = item.hashCode();
+    int hash2 = secondHash(item);
+    int min = Integer.MAX_VALUE;
+    for (int i = 0; i < counts.length; i++) {
+      min = Math.min(min, counts[i][cell(hash, hash2, i)]);
+    }
+    if (min == Integer.MAX_VALUE) {
+      return;
+    }
+    for (int i = 0; i < counts.length; i++) {
+      int c = cell(hash, hash2, i);
+      if (counts[i][c] == min) {
+        counts[i][c] = min + 1;
+      }
+    }
+    totalCount++;
+  }
+
+  /** Returns the count of the item, which is at least the number of times it was added */
+  public int count(E item) {
+    int hash = item.hashCode();
+    int hash2 = secondHash(item);
+    int min = Integer.MAX_VALUE;
+    for (int i = 0; i < counts.length; i++) {
+      min = Math.min(min, counts[i][cell(hash, hash2, i)]);
+    }
+    return min;
+  }
+
+  /** Returns the number of items added */
+  public long totalCount() {
+    return totalCount;
+  }
+
+  /** Returns the memory used by the counters, in bytes */
+  public long sizeInBytes() {
+    return 4L * counts.length * counts[0].length;
+  }
+
+  @Override
+  public String toString() {
+    return "CountMinSketch of " + counts.length + " x " + counts[0].length + " counters (" +
+            (sizeInBytes() >> 20) + " MB), " + totalCount + " items counted";
+  }
+
+
+  /**
+   * Finds the features of a Zipf-distributed stream which occur at least a
+   * threshold number of times, for a few thresholds, both by counting every
+   * feature exactly, as when every feature is indexed before the threshold is
+   * applied, and with a sketch.  Reports the most memory each holds onto (the
+   * counts, or the sketch and the features kept), and the number
+   * of features kept, which is the size of the model, and how many of those the
+   * sketch keeps which are really under the threshold.
+   * Usage: CountMinSketch [occurrences [vocabulary [sketchWidth]]]
+   */
+  public static void main(String[] args) {
+    int occurrences = args.length > 0 ? Integer.parseInt(args[0]) : 5000000;
+    int vocabulary = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+    int width = args.length > 2 ? Integer.parseInt(args[2]) : 1 << 20;
+    int[] stream = new int[occurrences];
+    Random random = new Random(1);
+    // Zipf's law, by inverting its cumulative distribution (approximately)
+    double logV = Math.log(vocabulary);
+    for (int i = 0; i < occurrences; i++) {
+      stream[i] = Math.min(vocabulary - 1, (int) Math.exp(random.nextDouble() * logV) - 1);
+    }
+
+    Runtime runtime = Runtime.getRuntime();
+    for (int threshold : new int[] { 1, 2, 5, 10 }) {
+      // exact: count every distinct feature string, then threshold
+      System.gc();
+      long before = runtime.totalMemory() - runtime.freeMemory();
+      Map<String, Integer> exactCounts = new HashMap<>();
+      for (int f : stream) {
+        String feature = "WORD-" + f + "|C";
+        Integer count = exactCounts.get(feature);
+        exactCounts.put(feature, count == null ? 1 : count + 1);
+      }
+      System.gc();
+      long exactMemory = runtime.totalMemory() - runtime.freeMemory() - before;
+      Set<String> exactKept = new HashSet<>();
+      for (Map.Entry<String, Integer> entry : exactCounts.entrySet()) {
+        if (entry.getValue() >= threshold) {
+          exactKept.add(entry.getKey());
+        }
+      }
+      int distinct = exactCounts.size();
+      exactCounts = null;
+
+      // two passes: count in a sketch, then only store the features over the threshold
+      System.gc();
+      before = runtime.totalMemory() - runtime.freeMemory();
+      CountMinSketch<String> sketch = new CountMinSketch<>(4, width);
+      for (int f : stream) {
+        sketch.add("WORD-" + f + "|C");
+      }
+      Set<String> kept = new HashSet<>();
+      for (int f : stream) {
+        String feature = "WORD-" + f + "|C";
+        if (sketch.count(feature) >= threshold) {
+          kept.add(feature);
+        }
+      }
+      System.gc();
+      long sketchMemory = runtime.totalMemory() - runtime.freeMemory() - before;
+      int falseKeeps = 0;
+      for (String feature : kept) {
+        if ( ! exactKept.contains(feature)) {
+          falseKeeps++;
+        }
+      }
+      System.err.printf("threshold %2d: %,d distinct features; exact counting %,d MB, %,d features kept; " +
+          "sketch %,d MB, %,d features kept (%,d under the threshold)%n",
+          threshold, distinct, exactMemory >> 20, exactKept.size(), sketchMemory >> 20, kept.size(), falseKeeps);
+    }
+  }
+
+}
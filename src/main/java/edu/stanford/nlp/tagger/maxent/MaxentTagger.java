@@ -199,7 +199,7 @@ import java.text.DecimalFormat;
  * <tr><td>veryCommonWordThresh</td><td>int</td><td>250</td><td>Train</td><td>Words that occur more than this number of times form an equivalence class by themselves.  Ignored unless you are using ambiguity classes.</td></tr>
  * <tr><td>debug</td><td>boolean</td><td>boolean</td><td>All</td><td>Whether to write debugging information (words, top words, unknown words).  Useful for error analysis.</td></tr>
  * <tr><td>debugPrefix</td><td>String</td><td>N/A</td><td>All</td><td>File (path) prefix for where to write out the debugging information (relevant only if debug=true).</td></tr>
- * <tr><td>nthreads</td><td>int</td><td>1</td><td>Test,Text</td><td>Number of threads to use when processing text.</td></tr>
+ * <tr><td>nthreads</td><td>int</td><td>1</td><td>Train,Test,Text</td><td>Number of threads to use when processing text, or when featurizing the training data and computing the objective function and its gradient in training.</td></tr>
  * </table>
  * <p/>
  *
@@ -974,12 +974,16 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
 
     // Allow clobbering.  You want it all the time when running experiments.
 
+    Timing phase = new Timing();
     TaggerExperiments samples = new TaggerExperiments(config, maxentTagger);
     TaggerFeatures feats = samples.getTaggerFeatures();
     System.err.println("Samples from " + config.getFile());
     System.err.println("Number of features: " + feats.size());
+    phase.done("Featurizing training data with " + config.getNThreads() + " threads");
+    phase.start();
     Problem p = new Problem(samples, feats);
     LambdaSolveTagger prob = new LambdaSolveTagger(p, 0.0001, 0.00001, maxentTagger.fnumArr);
+    prob.setNumThreads(config.getNThreads());
     maxentTagger.prob = prob;
 
     if (config.getSearch().equals("owlqn")) {
@@ -997,6 +1001,7 @@ public class MaxentTagger implements Function<List<? extends HasWord>,ArrayList<
     } else {
       prob.improvedIterative(config.getIterations());
     }
+    phase.done("Optimizing " + config.getSearch() + " objective with " + config.getNThreads() + " threads");
 
     if (prob.checkCorrectness()) {
       System.err.println("Model is correct [empirical expec = model expec]");
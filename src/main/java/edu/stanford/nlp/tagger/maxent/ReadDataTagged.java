@@ -13,7 +13,6 @@ import edu.stanford.nlp.stats.IntCounter;
 import edu.stanford.nlp.tagger.common.TaggerConstants;
 import edu.stanford.nlp.tagger.io.TaggedFileReader;
 import edu.stanford.nlp.tagger.io.TaggedFileRecord;
-import javolution.util.FastMap;
 import javolution.util.FastSet;
 
 import java.io.IOException;
@@ -101,7 +100,7 @@ public class ReadDataTagged {
           words.add(tw.word());
           tags.add(tw.tag());
           if (!maxentTagger.tagTokens.containsKey(tw.tag())) {
-              maxentTagger.tagTokens.put(tw.tag(), (Set<String>) new FastMap<>());
+              maxentTagger.tagTokens.put(tw.tag(), new FastSet<String>());
           }
           maxentTagger.tagTokens.get(tw.tag()).add(tw.word());
         }
@@ -29,14 +29,15 @@ package edu.stanford.nlp.tagger.maxent;
 
 import ca.gedge.radixtree.RadixTree;
 import edu.stanford.nlp.maxent.Experiments;
-import edu.stanford.nlp.util.Pair;
-import javolution.util.FastMap;
+import edu.stanford.nlp.util.concurrent.MulticoreWrapper;
+import edu.stanford.nlp.util.concurrent.ThreadsafeProcessor;
 import javolution.util.FastSet;
 
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.Arrays;
 
@@ -53,6 +54,9 @@ public class TaggerExperiments extends Experiments {
   private static final boolean DEBUG = true;
   private static final String zeroSt = "0";
 
+  /** The number of tokens or histories featurized at a time, on one thread */
+  private static final int BLOCK_SIZE = 2000;
+
   private final TaggerFeatures feats;
   private final Set<FeatureKey> sTemplates = new FastSet<>();
     private final HistoryTable tHistories = new HistoryTable();
@@ -64,6 +68,8 @@ public class TaggerExperiments extends Experiments {
 
   private final TemplateHash tFeature;
 
+  private int numThreads = 1;
+
   // This constructor is only used by unit tests.
   TaggerExperiments(MaxentTagger maxentTagger) {
     this.maxentTagger = maxentTagger;
@@ -77,27 +83,50 @@ public class TaggerExperiments extends Experiments {
     this(maxentTagger);
 
     System.err.println("TaggerExperiments: adding word/tags");
+    numThreads = config.getNThreads();
     PairsHolder pairs = new PairsHolder();
-    ReadDataTagged c = new ReadDataTagged(config, maxentTagger, pairs);
+    final ReadDataTagged c = new ReadDataTagged(config, maxentTagger, pairs);
     vArray = new int[c.getSize()][2];
 
     initTemplatesNew();
     System.err.println("Featurizing tagged data tokens...");
-    for (int i = 0, size = c.getSize(); i < size; i++) {
-
-      DataWordTag d = c.get(i);
-      String yS = d.getY();
-      History h = d.getHistory();
-      int indX = tHistories.add(h);
-      int indY = d.getYInd();
-      addTemplatesNew(h, yS);
-      addRareTemplatesNew(h, yS);
-      vArray[i][0] = indX;
-      vArray[i][1] = indY;
-
-      if (i > 0 && i % 10000 == 0) {
-        System.err.printf("%d ",i);
-        if (i % 100000 == 0) { System.err.println(); }
+    // the feature keys of blocks of tokens are found on several threads, and
+    // added in token order, so features are numbered as they are on one thread
+    final int size = c.getSize();
+    ThreadsafeProcessor<Integer, List<FeatureKey>> featurizer = new ThreadsafeProcessor<Integer, List<FeatureKey>>() {
+      @Override
+      public List<FeatureKey> process(Integer start) {
+        List<FeatureKey> keys = new ArrayList<>();
+        for (int i = start, end = Math.min(start + BLOCK_SIZE, size); i < end; i++) {
+          DataWordTag d = c.get(i);
+          addTemplatesNew(d.getHistory(), d.getY(), keys);
+          addRareTemplatesNew(d.getHistory(), d.getY(), keys);
+        }
+        return keys;
+      }
+      @Override
+      public ThreadsafeProcessor<Integer, List<FeatureKey>> newInstance() {
+        return this;
+      }
+    };
+    if (numThreads > 1) {
+      MulticoreWrapper<Integer, List<FeatureKey>> wrapper = new MulticoreWrapper<>(numThreads, featurizer);
+      int next = 0;
+      for (int start = 0; start < size; start += BLOCK_SIZE) {
+        wrapper.put(start);
+        while (wrapper.peek()) {
+          addFeaturized(c, next, wrapper.poll());
+          next += BLOCK_SIZE;
+        }
+      }
+      wrapper.join();
+      while (wrapper.peek()) {
+        addFeaturized(c, next, wrapper.poll());
+        next += BLOCK_SIZE;
+      }
+    } else {
+      for (int start = 0; start < size; start += BLOCK_SIZE) {
+        addFeaturized(c, start, featurizer.process(start));
       }
     }
     System.err.println();
@@ -138,6 +167,26 @@ public class TaggerExperiments extends Experiments {
     return true;
   }
 
+  /**
+   * Adds the histories of the block of tokens starting at start, and the
+   * feature keys found in them.
+   */
+  private void addFeaturized(ReadDataTagged c, int start, List<FeatureKey> keys) {
+    for (int i = start, end = Math.min(start + BLOCK_SIZE, c.getSize()); i < end; i++) {
+      DataWordTag d = c.get(i);
+      vArray[i][0] = tHistories.add(d.getHistory());
+      vArray[i][1] = d.getYInd();
+
+      if (i > 0 && i % 10000 == 0) {
+        System.err.printf("%d ",i);
+        if (i % 100000 == 0) { System.err.println(); }
+      }
+    }
+    for (FeatureKey key : keys) {
+      add(key);
+    }
+  }
+
   /** This method uses and deletes a file tempXXXXXX.x in the current directory! */
   private void getFeaturesNew() {
     // todo: Change to rethrow a RuntimeIOException.
@@ -154,9 +203,7 @@ public class TaggerExperiments extends Experiments {
       boolean VERBOSE = false;
       for (FeatureKey fK : sTemplates) {
         int numF = fK.num;
-        int[] xValues;
-        Pair<Integer, String> wT = new Pair<>(numF, fK.val);
-        xValues = tFeature.getXValues(wT);
+        int[] xValues = tFeature.getXValues(numF, fK.val);
         if (xValues == null) {
           System.err.println("  xValues is null: " + fK.toString()); //  + " " + i
           continue;
@@ -307,37 +354,68 @@ public class TaggerExperiments extends Experiments {
 
 
   private void hashHistories() {
-    int fAll = maxentTagger.extractors.getSize() + maxentTagger.extractorsRare.getSize();
-    int fGeneral = maxentTagger.extractors.getSize();
+    final int fAll = maxentTagger.extractors.getSize() + maxentTagger.extractorsRare.getSize();
+    final int fGeneral = maxentTagger.extractors.getSize();
     System.err.println("Hashing histories ...");
-    for (int x = 0; x < xSize; x++) {
-      History h = tHistories.getHistory(x);
-      if (x > 0 && x % 10000 == 0) {
-        System.err.printf("%d ",x);
-        if (x % 100000 == 0) { System.err.println(); }
+    // the feature values of blocks of histories are extracted on several
+    // threads, and hashed in history order
+    ThreadsafeProcessor<Integer, String[][]> extractor = new ThreadsafeProcessor<Integer, String[][]>() {
+      @Override
+      public String[][] process(Integer start) {
+        String[][] values = new String[Math.min(BLOCK_SIZE, xSize - start)][];
+        for (int j = 0; j < values.length; j++) {
+          History h = tHistories.getHistory(start + j);
+          int fSize = maxentTagger.isRare(ExtractorFrames.cWord.extract(h)) ? fAll : fGeneral;
+          values[j] = new String[fSize];
+          for (int i = 0; i < fSize; i++) {
+            values[j][i] = i < fGeneral ? maxentTagger.extractors.extract(i, h) : maxentTagger.extractorsRare.extract(i - fGeneral, h);
+          }
+        }
+        return values;
       }
-      int fSize = maxentTagger.isRare(ExtractorFrames.cWord.extract(h)) ? fAll : fGeneral;
-      for (int i = 0; i < fSize; i++) {
-        tFeature.addPrev(i, h);
+      @Override
+      public ThreadsafeProcessor<Integer, String[][]> newInstance() {
+        return this;
       }
-    } // for x
-    // now for the populated ones
+    };
+    if (numThreads > 1) {
+      MulticoreWrapper<Integer, String[][]> wrapper = new MulticoreWrapper<>(numThreads, extractor);
+      int next = 0;
+      for (int start = 0; start < xSize; start += BLOCK_SIZE) {
+        wrapper.put(start);
+        while (wrapper.peek()) {
+          addHashed(next, wrapper.poll());
+          next += BLOCK_SIZE;
+        }
+      }
+      wrapper.join();
+      while (wrapper.peek()) {
+        addHashed(next, wrapper.poll());
+        next += BLOCK_SIZE;
+      }
+    } else {
+      for (int start = 0; start < xSize; start += BLOCK_SIZE) {
+        addHashed(start, extractor.process(start));
+      }
+    }
+    // now only keep the populated ones
+    tFeature.removeUnpopulated();
     System.err.println();
     System.err.println("Hashed " + xSize + " histories.");
-    System.err.println("Hashing populated histories ...");
-    for (int x = 0; x < xSize; x++) {
-      History h = tHistories.getHistory(x);
+  }
+
+  /** Hashes the feature values of the block of histories starting at start */
+  private void addHashed(int start, String[][] values) {
+    for (int j = 0; j < values.length; j++) {
+      int x = start + j;
       if (x > 0 && x % 10000 == 0) {
-        System.err.print(x + " ");
+        System.err.printf("%d ",x);
         if (x % 100000 == 0) { System.err.println(); }
       }
-      int fSize = maxentTagger.isRare(ExtractorFrames.cWord.extract(h)) ? fAll : fGeneral;
-      for (int i = 0; i < fSize; i++) {
-        tFeature.add(i, h, x); // write this to check whether to add
+      for (int i = 0; i < values[j].length; i++) {
+        tFeature.add(i, values[j][i], x);
       }
-    } // for x
-    System.err.println();
-    System.err.println("Hashed populated histories.");
+    }
   }
 
 
@@ -359,7 +437,7 @@ public class TaggerExperiments extends Experiments {
 
 
   // Add a new feature key in a hashtable of feature templates
-  private void addTemplatesNew(History h, String tag) {
+  private void addTemplatesNew(History h, String tag, List<FeatureKey> keys) {
     // Feature templates general
 
     for (int i = 0; i < numFeatsGeneral; i++) {
@@ -380,7 +458,7 @@ public class TaggerExperiments extends Experiments {
             continue;
           }
 
-          add(key);
+          keys.add(key);
         }
       } else {
         //only this tag
@@ -390,13 +468,13 @@ public class TaggerExperiments extends Experiments {
           continue;
         }
 
-        add(key);
+        keys.add(key);
       }
     }
   }
 
 
-  private void addRareTemplatesNew(History h, String tag) {
+  private void addRareTemplatesNew(History h, String tag, List<FeatureKey> keys) {
     // Feature templates rare
 
     if (!maxentTagger.isRare(ExtractorFrames.cWord.extract(h))) {
@@ -421,7 +499,7 @@ public class TaggerExperiments extends Experiments {
             continue;
           }
 
-          add(key);
+          keys.add(key);
         }
       } else {
         //only this tag
@@ -431,7 +509,7 @@ public class TaggerExperiments extends Experiments {
           continue;
         }
 
-        add(key);
+        keys.add(key);
       }
     }
   }
@@ -7,10 +7,11 @@
 
 package edu.stanford.nlp.tagger.maxent;
 
-import edu.stanford.nlp.util.Pair;
 import javolution.util.FastMap;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 
@@ -22,12 +23,18 @@ import java.util.Map;
  */
 class ListInstances {
 
-  private final ArrayList<Integer> v = new ArrayList<>();
+  private static final int[] EMPTY = new int[0];
+
+  private int[] v = new int[1];
+  private int size;
   private int[] positions;
   private int num;
 
-    protected void add(int x) {
-    v.add(x);
+  protected void add(int x) {
+    if (size == v.length) {
+      v = Arrays.copyOf(v, size * 2);
+    }
+    v[size++] = x;
   }
 
   protected void addPositions(int s, int e) {
@@ -50,15 +57,15 @@ class ListInstances {
     return num;
   }
 
+  /** Forgets the instances, as for a feature value which is not populated */
+  protected void clear() {
+    v = EMPTY;
+    size = 0;
+  }
+
 
   public int[] getInstances() {
-    int[] arr = new int[v.size()];
-    Integer[] arr1 = new Integer[v.size()];
-    v.toArray(arr1);
-    for (int i = 0; i < v.size(); i++) {
-      arr[i] = arr1[i];
-    }
-    return arr;
+    return Arrays.copyOf(v, size);
   }
 
   /*
@@ -93,8 +100,8 @@ class ListInstances {
 
 public class TemplateHash {
 
-  // the positions of the feature extractors
-  private final Map<Pair<Integer, String>, ListInstances> tempHash = new FastMap<>();
+  // the instances of each value of each feature extractor, indexed by extractor number
+  private final List<Map<String, ListInstances>> tempHash = new ArrayList<>();
 
     private final MaxentTagger maxentTagger;
 
@@ -102,13 +109,19 @@ public class TemplateHash {
     this.maxentTagger = maxentTagger;
   }
 
+  private Map<String, ListInstances> values(int nFeatFrame) {
+    while (tempHash.size() <= nFeatFrame) {
+      tempHash.add(new FastMap<String, ListInstances>());
+    }
+    return tempHash.get(nFeatFrame);
+  }
+
   protected void addPositions(int start, int end, FeatureKey fK) {
-      tempHash.get(new Pair<>(fK.num, fK.val)).addPositions(start, end);
+    values(fK.num).get(fK.val).addPositions(start, end);
   }
 
   protected int[] getPositions(FeatureKey s) {
-    Pair<Integer, String> p = new Pair<>(s.num, s.val);
-    return tempHash.get(p).getPositions();
+    return values(s.num).get(s.val).getPositions();
   }
 
   //public void init() {
@@ -125,46 +138,44 @@ public class TemplateHash {
     tempHash.clear();
   }
 
-  protected void add(int nFeatFrame, History history, int number) {
-    Pair<Integer, String> wT;
-    int general = maxentTagger.extractors.getSize();
-
-      wT = new Pair<>(nFeatFrame, nFeatFrame < general ? maxentTagger.extractors.extract(nFeatFrame, history) : maxentTagger.extractorsRare.extract(nFeatFrame - general, history));
-
-    if (tempHash.containsKey(wT)) {
-      ListInstances li = tempHash.get(wT);
-      // TODO: can we clean this call up somehow?  perhaps make the
-      // TemplateHash aware of the TaggerExperiments if we need to, or
-      // vice-versa?
-      if (TaggerExperiments.isPopulated(nFeatFrame, li.getNum(), maxentTagger)) {
-        li.add(number);
-      }
-    } else {
-      ListInstances li = new ListInstances();
-      li.add(number);
-      tempHash.put(wT, li);
+  /**
+   * Adds history number to the instances of the value of feature extractor
+   * nFeatFrame which it has.  The histories must be added in order, and
+   * {@link #removeUnpopulated()} called once they all are.
+   */
+  protected void add(int nFeatFrame, String value, int number) {
+    Map<String, ListInstances> values = values(nFeatFrame);
+    ListInstances li = values.get(value);
+    if (li == null) {
+      li = new ListInstances();
+      values.put(value, li);
     }
-  }
-
-
-  protected void addPrev(int nFeatFrame, History history) {
-    Pair<Integer, String> wT;
-    int general = maxentTagger.extractors.getSize();
-
-      wT = new Pair<>(nFeatFrame, nFeatFrame < general ? maxentTagger.extractors.extract(nFeatFrame, history) : maxentTagger.extractorsRare.extract(nFeatFrame - general, history));
-    if (tempHash.containsKey(wT)) {
-      tempHash.get(wT).inc();
-    } else {
-      ListInstances li = new ListInstances();
-      li.inc();
-      tempHash.put(wT, li);
+    li.inc();
+    li.add(number);
+  }
+
+  /**
+   * Forgets the instances of the feature values which have too few of them
+   * for a feature to be made.
+   */
+  protected void removeUnpopulated() {
+    for (int nFeatFrame = 0; nFeatFrame < tempHash.size(); nFeatFrame++) {
+      for (ListInstances li : tempHash.get(nFeatFrame).values()) {
+        // TODO: can we clean this call up somehow?  perhaps make the
+        // TemplateHash aware of the TaggerExperiments if we need to, or
+        // vice-versa?
+        if ( ! TaggerExperiments.isPopulated(nFeatFrame, li.getNum(), maxentTagger)) {
+          li.clear();
+        }
+      }
     }
   }
 
 
-  protected int[] getXValues(Pair<Integer, String> key) {
-    if (tempHash.containsKey(key)) {
-      return tempHash.get(key).getInstances();
+  protected int[] getXValues(int nFeatFrame, String value) {
+    ListInstances li = values(nFeatFrame).get(value);
+    if (li != null) {
+      return li.getInstances();
     }
     return null;
   }
@@ -25,8 +25,9 @@ public class GenericTimeExpressionPatterns implements TimeExpressionPatterns {
   public GenericTimeExpressionPatterns(Options options) {
     this.options = options;
     initEnv();
-    if (options.binders != null) {
-      for (Env.Binder binder:options.binders) {
+    Env.Binder[] binders = options.getBinders();
+    if (binders != null) {
+      for (Env.Binder binder:binders) {
         binder.bind(env);
       }
     }
@@ -1,9 +1,13 @@
 package edu.stanford.nlp.time;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 
 import edu.stanford.nlp.ling.tokensregex.Env;
 import edu.stanford.nlp.util.PropertiesUtils;
+import javolution.text.TextBuilder;
 
 /**
  * Various options for using time expression extractor
@@ -31,7 +35,12 @@ public class Options {
   // TODO: Add default country for holidays and default time format
   // would want a per document default as well
   String grammarFilename;
-  Env.Binder[] binders;
+  // Binders are created (which may mean reading holiday definitions) only when first needed,
+  // since extractors with the same options share compiled rules (see TimeExpressionExtractorImpl)
+  private Env.Binder[] binders;
+  private String[] binderClasses;
+  private String binderPrefix;
+  private Properties binderProps;
 
   static final String DEFAULT_GRAMMAR_FILES = "edu/stanford/nlp/models/sutime/defs.sutime.txt,edu/stanford/nlp/models/sutime/english.sutime.txt,edu/stanford/nlp/models/sutime/english.holidays.sutime.txt";
   static final String[] DEFAULT_BINDERS = { "edu.stanford.nlp.time.JollyDayHolidays" };
@@ -39,12 +48,26 @@ public class Options {
 
   boolean verbose;
 
+  // The properties (without the name prefix) the options were read from, in sorted order,
+  // including those from the defaults of the properties (null if the options were not read from properties)
+  String propertiesKey;
+
   public Options()
   {
   }
 
   public Options(String name, Properties props)
   {
+    TextBuilder sb = new TextBuilder();
+    String prefix = name + '.';
+    List<String> keys = new ArrayList<>(props.stringPropertyNames());
+    Collections.sort(keys);
+    for (String key : keys) {
+      if (key.startsWith(prefix)) {
+        sb.append(key.substring(prefix.length())).append('=').append(props.getProperty(key)).append('\n');
+      }
+    }
+    propertiesKey = sb.toString();
     includeRange = PropertiesUtils.getBool(props, name + ".includeRange",
                                            includeRange);
     markTimeRanges = PropertiesUtils.getBool(props, name + ".markTimeRanges",
@@ -75,19 +98,46 @@ public class Options {
       }
     }
     if (nBinders > 0) {
-      binders = new Env.Binder[nBinders];
-      for (int i = 0; i < nBinders; i++) {
+      this.binderClasses = binderClasses;
+      this.binderPrefix = name + ".binder.";
+      this.binderProps = new Properties();
+      for (String key:props.stringPropertyNames()) {
+        if (key.startsWith(binderPrefix)) {
+          binderProps.setProperty(key, props.getProperty(key));
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the binders to apply to the environment of the rules, creating them on first use
+   * @return binders, or null if there are none
+   */
+  synchronized Env.Binder[] getBinders()
+  {
+    if (binders == null && binderClasses != null) {
+      Env.Binder[] binders = new Env.Binder[binderClasses.length];
+      for (int i = 0; i < binders.length; i++) {
         int bi = i+1;
-        String binderPrefix = name + ".binder." + bi;
         try {
           Class binderClass = Class.forName(binderClasses[i]);
-          binderPrefix = binderPrefix + '.';
           binders[i] = (Env.Binder) binderClass.newInstance();
-          binders[i].init(binderPrefix, props);
+          binders[i].init(binderPrefix + bi + '.', binderProps);
         } catch (Exception ex) {
           throw new RuntimeException("Error initializing binder " + bi, ex);
         }
       }
+      this.binders = binders;
     }
+    return binders;
+  }
+
+  /**
+   * Whether the options were read from the same properties as the other options,
+   * so that an extractor created with them extracts the same time expressions
+   */
+  public boolean sameProperties(Options other)
+  {
+    return propertiesKey != null && other != null && propertiesKey.equals(other.propertiesKey);
   }
 }
@@ -36,6 +36,16 @@ public class TimeAnnotations {
     public Class<List<CoreMap>> getType() {
       return ErasureUtils.<Class<List<CoreMap>>> uncheckedCast(List.class);
     }
-  }  
+  }
+
+  /**
+   * The CoreMap key for keeping the time expressions SUTime extracted from a sentence,
+   * so that a later SUTime pass with the same options can reuse them.
+   */
+  public static class SentenceTimeExpressionsAnnotation implements CoreAnnotation<TimeExpressionExtractorImpl.SentenceTimeExpressions> {
+    public Class<TimeExpressionExtractorImpl.SentenceTimeExpressions> getType() {
+      return TimeExpressionExtractorImpl.SentenceTimeExpressions.class;
+    }
+  }
 }
 
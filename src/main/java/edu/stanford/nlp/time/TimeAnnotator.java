@@ -26,6 +26,14 @@ import java.util.Set;
  *
  * If a reference time is set (via {@link edu.stanford.nlp.ling.CoreAnnotations.DocDateAnnotation}),
  * then temporal expressions are resolved with respect the to document date.
+ *
+ * If the NER annotator ran SUTime with {@code ner.shareSUTime} set, the time expressions it kept on
+ * each sentence are reused (and removed from the sentence) instead of running SUTime again, provided
+ * they were extracted with the same {@code sutime} properties and document date, and the rules that
+ * test token annotations changed by NER (such as {@code ner}) still match the same tokens.
+ * The year rule of the stock {@code english.sutime.txt} tests {@code ner}, so with those rules the time
+ * expressions are extracted again for sentences in which NER gave some token a tag that rule does not
+ * accept (such as DURATION or PERSON).
  * <p>
  * <br>
  * <b>Input annotations</b>
@@ -197,8 +205,10 @@ public class TimeAnnotator implements Annotator {
         CoreMap alignedSentence =  NumberSequenceClassifier.alignSentence(sentence); 
         // uncomment the next line for verbose dumping of tokens....
         // System.err.println("SENTENCE: " + ((ArrayCoreMap) sentence).toShorterString());
-        List<CoreMap> timeExpressions = 
-          timexExtractor.extractTimeExpressionCoreMaps(alignedSentence, docDate, timeIndex);
+        // reuses the time expressions found during NER if they were kept (see NumberSequenceClassifier.SHARE_SUTIME_PROPERTY)
+        List<CoreMap> timeExpressions =
+          timexExtractor.extractTimeExpressionCoreMaps(sentence, alignedSentence, docDate, timeIndex);
+        sentence.remove(TimeAnnotations.SentenceTimeExpressionsAnnotation.class);
         if (timeExpressions != null) {
           allTimeExpressions.addAll(timeExpressions);
           sentence.set(TimeAnnotations.TimexAnnotations.class, timeExpressions);
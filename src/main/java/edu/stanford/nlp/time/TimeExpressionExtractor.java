@@ -17,6 +17,13 @@ public interface TimeExpressionExtractor {
 
   List<CoreMap> extractTimeExpressionCoreMaps(CoreMap annotation, String docDate);
 
+  /**
+   * Extracts time expressions like {@link #extractTimeExpressionCoreMaps}, and keeps them on
+   * the sentence (see {@link TimeAnnotations.SentenceTimeExpressionsAnnotation}) for reuse by a
+   * later extractor with the same options
+   */
+  List<CoreMap> extractAndKeepTimeExpressionCoreMaps(CoreMap sentence, CoreMap alignedSentence, String docDate);
+
 //  List<TimeExpression> extractTimeExpressions(CoreMap annotation, String docDateStr);
 
 }
@@ -5,7 +5,9 @@ import edu.stanford.nlp.ling.CoreAnnotations;
 import edu.stanford.nlp.ling.tokensregex.*;
 import edu.stanford.nlp.pipeline.ChunkAnnotationUtils;
 import edu.stanford.nlp.util.*;
+import edu.stanford.nlp.util.concurrent.ConcurrentCache;
 
+import java.io.Serializable;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -30,6 +32,67 @@ public class TimeExpressionExtractorImpl implements TimeExpressionExtractor {
   // Options
   Options options;
 
+  // Token annotations that are set before NER and SUTime run, and are not changed by them
+  private static final Set<Class<?>> STABLE_TOKEN_KEYS = CollectionUtils.<Class<?>>asSet(
+          CoreAnnotations.TextAnnotation.class, CoreAnnotations.OriginalTextAnnotation.class,
+          CoreAnnotations.ValueAnnotation.class, CoreAnnotations.PartOfSpeechAnnotation.class,
+          CoreAnnotations.LemmaAnnotation.class);
+
+  // Node patterns of the rules that test token annotations that can change between
+  // two runs over the same sentence (e.g. the named entity tag set by NER),
+  // null if the rules compare tokens in ways that cannot be checked
+  List<NodePattern<CoreMap>> volatileNodePatterns;
+
+  // Compiled rules shared by the extractors created in this process, keyed by the properties
+  // the options were read from (see Options.propertiesKey).  Only the rules for the most recently
+  // used options are kept, since each set of compiled rules is large
+  private static final int MAX_COMPILED_RULES = 8;
+  private static final ConcurrentCache<String, CompiledRules> compiledRulesCache = new ConcurrentCache<>(MAX_COMPILED_RULES, null, 1);
+
+  /**
+   * Rules compiled for some options.
+   * Compiling the rules (and reading holidays for them) is slow and the compiled patterns are large,
+   * so extractors created with the same options share them; they are not modified after compilation.
+   */
+  private static class CompiledRules {
+    private final TimeExpressionPatterns timexPatterns;
+    private final CoreMapExpressionExtractor<?> expressionExtractor;
+    private final List<NodePattern<CoreMap>> volatileNodePatterns;
+
+    private CompiledRules(Options options) {
+      timexPatterns = options.grammarFilename != null ? new GenericTimeExpressionPatterns(options) : new EnglishTimeExpressionPatterns(options);
+      expressionExtractor = timexPatterns.createExtractor();
+      expressionExtractor.setLogger(logger);
+      volatileNodePatterns = getVolatileNodePatterns(expressionExtractor);
+    }
+  }
+
+  /**
+   * Time expressions extracted from a sentence, kept on the sentence
+   * (as {@link TimeAnnotations.SentenceTimeExpressionsAnnotation}) so that a later extractor with the same
+   * options can reuse them instead of matching the rules again.
+   * This is how the TimeAnnotator reuses the work done by SUTime during NER.
+   * The time expressions are only reused in the process that extracted them, so they are
+   * not serialized with the sentence.
+   */
+  public static class SentenceTimeExpressions implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final transient Options options;
+    private final transient String docDate;
+    private final transient List<TimeExpression> timeExpressions;
+    // Which of the volatile node patterns matched which token before extraction
+    private final transient BitSet volatileMatches;
+
+    private SentenceTimeExpressions(Options options, String docDate,
+                                    List<TimeExpression> timeExpressions, BitSet volatileMatches) {
+      this.options = options;
+      this.docDate = docDate;
+      this.timeExpressions = timeExpressions;
+      this.volatileMatches = volatileMatches;
+    }
+  }
+
   public TimeExpressionExtractorImpl()
   {
     init(new Options());
@@ -55,9 +118,56 @@ public class TimeExpressionExtractorImpl implements TimeExpressionExtractor {
       logger.setLevel(Level.SEVERE);
     }
     NumberNormalizer.setVerbose(options.verbose);
-      timexPatterns = options.grammarFilename != null ? new GenericTimeExpressionPatterns(options) : new EnglishTimeExpressionPatterns(options);
-    this.expressionExtractor = timexPatterns.createExtractor();
-    this.expressionExtractor.setLogger(logger);
+    CompiledRules rules = getCompiledRules(options);
+    this.timexPatterns = rules.timexPatterns;
+    this.expressionExtractor = rules.expressionExtractor;
+    this.volatileNodePatterns = rules.volatileNodePatterns;
+  }
+
+  /**
+   * Returns the compiled rules for the options, compiling them if no extractor
+   * was created with the same options recently
+   */
+  private static CompiledRules getCompiledRules(final Options options)
+  {
+    if (options.propertiesKey == null) {
+      return new CompiledRules(options);
+    }
+    return compiledRulesCache.getOrCompute(options.propertiesKey, new Function<String, CompiledRules>() {
+      @Override
+      public CompiledRules apply(String key) {
+        return new CompiledRules(options);
+      }
+    });
+  }
+
+  /**
+   * Clears the compiled rules kept for creating extractors
+   * (extractors that were already created keep using their rules)
+   */
+  public static void clearCompiledRules()
+  {
+    compiledRulesCache.clear();
+  }
+
+  private static List<NodePattern<CoreMap>> getVolatileNodePatterns(CoreMapExpressionExtractor<?> expressionExtractor)
+  {
+    Set<NodePattern<CoreMap>> nodePatterns = new LinkedHashSet<>();
+    Set<NodePattern<CoreMap>> chunkNodePatterns = new LinkedHashSet<>();
+    boolean checkable = expressionExtractor.collectNodePatterns(nodePatterns, chunkNodePatterns);
+    for (NodePattern<CoreMap> p:chunkNodePatterns) {
+      // Annotations of merged chunks are aggregated from the tokens, so chunks can only be checked
+      // through their tokens when the pattern only looks at annotations that do not change
+      checkable &= CoreMapNodePattern.testsOnly(p, STABLE_TOKEN_KEYS);
+    }
+    if (!checkable) return null;
+    List<NodePattern<CoreMap>> volatileNodePatterns = new ArrayList<>();
+    for (NodePattern<CoreMap> p:nodePatterns) {
+      if (!CoreMapNodePattern.testsOnly(p, STABLE_TOKEN_KEYS)) {
+        volatileNodePatterns.add(p);
+      }
+    }
+    return volatileNodePatterns;
   }
 
   public List<CoreMap> extractTimeExpressionCoreMaps(CoreMap annotation, String docDate)
@@ -72,6 +182,77 @@ public class TimeExpressionExtractorImpl implements TimeExpressionExtractor {
     return toCoreMaps(annotation, timeExpressions, timeIndex);
   }
 
+  /**
+   * Extracts time expressions like {@link #extractTimeExpressionCoreMaps(CoreMap, String)}, and keeps them on
+   * the sentence so that another extractor with the same options can reuse them
+   * (see {@link #extractTimeExpressionCoreMaps(CoreMap, CoreMap, String, SUTime.TimeIndex)}).
+   * @param sentence - Sentence on which the time expressions are kept
+   * @param alignedSentence - Sentence to extract time expressions from
+   *   (the sentence itself or its copy from {@code NumberSequenceClassifier.alignSentence})
+   * @param docDate - Document date
+   */
+  public List<CoreMap> extractAndKeepTimeExpressionCoreMaps(CoreMap sentence, CoreMap alignedSentence, String docDate)
+  {
+    findAndMergeNumbers(alignedSentence);
+    BitSet volatileMatches = matchVolatileNodePatterns(alignedSentence);
+    List<TimeExpression> timeExpressions = matchTimeExpressions(alignedSentence, docDate);
+    if (volatileMatches != null) {
+      sentence.set(TimeAnnotations.SentenceTimeExpressionsAnnotation.class,
+              new SentenceTimeExpressions(options, docDate, timeExpressions, volatileMatches));
+    }
+    return toCoreMaps(alignedSentence, timeExpressions, new SUTime.TimeIndex());
+  }
+
+  /**
+   * Returns the time expressions for a sentence, reusing the time expressions kept on the sentence
+   * (see {@link #extractAndKeepTimeExpressionCoreMaps}) if they were extracted with the same options
+   * and document date, and every rule that tests a token annotation other than the
+   * text, tag or lemma still matches the same tokens.  Otherwise extracts them from the aligned sentence.
+   * The numerized tokens of the aligned sentence are set as when extracting.
+   * @param sentence - Sentence on which time expressions may have been kept
+   * @param alignedSentence - Sentence to extract time expressions from
+   *   (the sentence itself or its copy from {@code NumberSequenceClassifier.alignSentence})
+   * @param docDate - Document date
+   * @param timeIndex - Index of temporal objects used to assign timex ids
+   */
+  public List<CoreMap> extractTimeExpressionCoreMaps(CoreMap sentence, CoreMap alignedSentence, String docDate, SUTime.TimeIndex timeIndex)
+  {
+    findAndMergeNumbers(alignedSentence);
+    SentenceTimeExpressions kept = sentence.get(TimeAnnotations.SentenceTimeExpressionsAnnotation.class);
+    if (kept != null && options.sameProperties(kept.options) &&
+        (docDate == null ? kept.docDate == null : docDate.equals(kept.docDate)) &&
+        kept.volatileMatches.equals(matchVolatileNodePatterns(alignedSentence))) {
+      // The aligned sentence has the same text and tokens as the one the time expressions were extracted from
+      return toCoreMaps(alignedSentence, kept.timeExpressions, timeIndex);
+    }
+    return toCoreMaps(alignedSentence, matchTimeExpressions(alignedSentence, docDate), timeIndex);
+  }
+
+  // Returns which of the volatile node patterns match which tokens
+  // (bit 2*(i*n+j) is set if pattern j matches token i, and the next bit if matching fails),
+  // or null if the rules cannot be checked
+  private BitSet matchVolatileNodePatterns(CoreMap annotation)
+  {
+    if (volatileNodePatterns == null) return null;
+    BitSet matches = new BitSet();
+    List<? extends CoreMap> tokens = annotation.get(CoreAnnotations.TokensAnnotation.class);
+    if (tokens != null) {
+      int n = volatileNodePatterns.size();
+      for (int i = 0; i < tokens.size(); i++) {
+        for (int j = 0; j < n; j++) {
+          try {
+            if (volatileNodePatterns.get(j).match(tokens.get(i))) {
+              matches.set(2*(i*n + j));
+            }
+          } catch (RuntimeException ex) {
+            matches.set(2*(i*n + j) + 1);
+          }
+        }
+      }
+    }
+    return matches;
+  }
+
   private List<CoreMap> toCoreMaps(CoreMap annotation, List<TimeExpression> timeExpressions, SUTime.TimeIndex timeIndex)
   {
     if (timeExpressions == null) return null;
@@ -119,10 +300,20 @@ public class TimeExpressionExtractorImpl implements TimeExpressionExtractor {
   }
 
   public List<TimeExpression> extractTimeExpressions(CoreMap annotation, String docDateStr)
+  {
+    findAndMergeNumbers(annotation);
+    return matchTimeExpressions(annotation, docDateStr);
+  }
+
+  private static void findAndMergeNumbers(CoreMap annotation)
   {
     List<CoreMap> mergedNumbers = NumberNormalizer.findAndMergeNumbers(annotation);
     annotation.set(CoreAnnotations.NumerizedTokensAnnotation.class, mergedNumbers);
+  }
 
+  // Matches the rules against an annotation with numerized tokens
+  private List<TimeExpression> matchTimeExpressions(CoreMap annotation, String docDateStr)
+  {
     // TODO: docDate may not have century....
 
     SUTime.Time docDate = null;
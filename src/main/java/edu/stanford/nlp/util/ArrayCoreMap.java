@@ -1,6 +1,7 @@
 package edu.stanford.nlp.util;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.AbstractSet;
@@ -12,6 +13,7 @@ import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Set;
 
+import edu.stanford.nlp.ling.AnnotationLookup;
 import edu.stanford.nlp.util.logging.PrettyLogger;
 import edu.stanford.nlp.util.logging.Redwood;
 import edu.stanford.nlp.util.logging.Redwood.RedwoodChannels;
@@ -29,6 +31,16 @@ import javolution.text.TextBuilder;
  * </p>
  *
  * <p>
+ * The values of the keys that nearly every token has (text, value, tag, lemma,
+ * named entity tag, character offsets and index; see
+ * {@link AnnotationLookup#getHotSlot}) are kept in fields, so getting or setting
+ * them does not scan the arrays, which only hold the other keys.  All other
+ * keys, such as AnswerAnnotation, are still found by a linear scan of the keys
+ * array.  Keys in fields come first when iterating over the keys, in slot
+ * order; the other keys follow in insertion order.
+ * </p>
+ *
+ * <p>
  * Note that like the base classes in the Collections API, this implementation
  * is <em>not thread-safe</em>. For speed reasons, these methods are not
  * synchronized. A synchronized wrapper could be developed by anyone so
@@ -58,6 +70,15 @@ public class ArrayCoreMap implements CoreMap, Serializable {
   /** Total number of elements actually in keys,values */
   private int size; // = 0;
 
+  /** Number of keys kept in fields */
+  private static final int HOT_SLOTS = AnnotationLookup.HOT_SLOTS;
+
+  /** Values of the keys kept in fields, in slot order */
+  private Object text, value, tag, lemma, ner, beginPosition, endPosition, index;
+
+  /** Which of the keys kept in fields are set (bit i for slot i) */
+  private int hotKeys; // = 0;
+
   /**
    * Default constructor - initializes with default initial annotation
    * capacity of 4.
@@ -82,6 +103,16 @@ public class ArrayCoreMap implements CoreMap, Serializable {
    * @param other The ArrayCoreMap to copy. It may not be null.
    */
   public ArrayCoreMap(ArrayCoreMap other) {
+    hotKeys = other.hotKeys;
+    text = other.text;
+    value = other.value;
+    tag = other.tag;
+    lemma = other.lemma;
+    ner = other.ner;
+    beginPosition = other.beginPosition;
+    endPosition = other.endPosition;
+    index = other.index;
+
     size = other.size;
     keys = ErasureUtils.uncheckedCast(new Class[size]);
     values = new Object[size];
@@ -98,18 +129,64 @@ public class ArrayCoreMap implements CoreMap, Serializable {
    */
   @SuppressWarnings("unchecked")
   public ArrayCoreMap(CoreMap other) {
-    Set<Class<?>> otherKeys = other.keySet();
+    this(other.size());
+    for (Class<?> key : other.keySet()) {
+      Class<? extends Key<Object>> typedKey = ErasureUtils.uncheckedCast(key);
+      set(typedKey, other.get(typedKey));
+    }
+  }
 
-    size = otherKeys.size();
-    keys = new Class[size];
-    values = new Object[size];
+  /** Returns the value in the field for the slot */
+  private Object getHot(int slot) {
+    switch (slot) {
+      case 0: return text;
+      case 1: return value;
+      case 2: return tag;
+      case 3: return lemma;
+      case 4: return ner;
+      case 5: return beginPosition;
+      case 6: return endPosition;
+      default: return index;
+    }
+  }
 
-    int i = 0;
-    for (Class key : otherKeys) {
-      this.keys[i] = key;
-      this.values[i] = other.get(key);
-      i++;
+  /** Sets the field for the slot, returning the old value */
+  private Object setHot(int slot, Object value) {
+    Object old;
+    switch (slot) {
+      case 0: old = text; text = value; break;
+      case 1: old = this.value; this.value = value; break;
+      case 2: old = tag; tag = value; break;
+      case 3: old = lemma; lemma = value; break;
+      case 4: old = ner; ner = value; break;
+      case 5: old = beginPosition; beginPosition = value; break;
+      case 6: old = endPosition; endPosition = value; break;
+      default: old = index; index = value; break;
     }
+    return old;
+  }
+
+  /** Returns the i-th key, counting the keys in fields first */
+  private Class<?> keyAt(int i) {
+    int slot = hotSlotAt(i);
+    return slot >= 0 ? AnnotationLookup.getHotKey(slot) : keys[i - Integer.bitCount(hotKeys)];
+  }
+
+  /** Returns the value of the i-th key, counting the keys in fields first */
+  private Object valueAt(int i) {
+    int slot = hotSlotAt(i);
+    return slot >= 0 ? getHot(slot) : values[i - Integer.bitCount(hotKeys)];
+  }
+
+  /** Returns the slot of the i-th key if it is kept in a field, -1 otherwise */
+  private int hotSlotAt(int i) {
+    int bits = hotKeys;
+    for (int slot = 0; bits != 0; slot++, bits >>>= 1) {
+      if ((bits & 1) != 0 && i-- == 0) {
+        return slot;
+      }
+    }
+    return -1;
   }
 
   /**
@@ -118,6 +195,10 @@ public class ArrayCoreMap implements CoreMap, Serializable {
   @Override
   @SuppressWarnings("unchecked")
   public <VALUE> VALUE get(Class<? extends Key<VALUE>> key) {
+    int slot = AnnotationLookup.getHotSlot(key);
+    if (slot >= 0) {
+      return (VALUE) getHot(slot);
+    }
     for (int i = 0; i < size; i++) {
       if (key.equals(keys[i])) {
         return (VALUE)values[i];
@@ -133,6 +214,10 @@ public class ArrayCoreMap implements CoreMap, Serializable {
    */
   @Override
   public <VALUE> boolean has(Class<? extends Key<VALUE>> key) {
+    int slot = AnnotationLookup.getHotSlot(key);
+    if (slot >= 0) {
+      return (hotKeys & (1 << slot)) != 0;
+    }
     for (int i = 0; i < size; i++) {
       if (keys[i].equals(key)) {
         return true;
@@ -149,6 +234,12 @@ public class ArrayCoreMap implements CoreMap, Serializable {
   @SuppressWarnings("unchecked")
   public <VALUE> VALUE set(Class<? extends Key<VALUE>> key, VALUE value) {
 
+    int slot = AnnotationLookup.getHotSlot(key);
+    if (slot >= 0) {
+      hotKeys |= 1 << slot;
+      return (VALUE) setHot(slot, value);
+    }
+
     // search array for existing value to replace
     for (int i = 0; i < size; i++) {
       if (keys[i].equals(key)) {
@@ -192,29 +283,31 @@ public class ArrayCoreMap implements CoreMap, Serializable {
 
           @Override
           public boolean hasNext() {
-            return i < size;
+            return i < ArrayCoreMap.this.size();
           }
 
           @Override
           public Class<?> next() {
-            try {
-              return keys[i++];
-            } catch (ArrayIndexOutOfBoundsException aioobe) {
+            if (i >= ArrayCoreMap.this.size()) {
               throw new NoSuchElementException("ArrayCoreMap keySet iterator exhausted");
             }
+            return keyAt(i++);
           }
 
           @Override
           @SuppressWarnings("unchecked")
           public void remove() {
-            ArrayCoreMap.this.remove((Class)keys[i]);
+            if (i == 0) {
+              throw new IllegalStateException();
+            }
+            ArrayCoreMap.this.remove(ErasureUtils.<Class<? extends Key<Object>>>uncheckedCast(keyAt(--i)));
           }
         };
       }
 
       @Override
       public int size() {
-        return size;
+        return ArrayCoreMap.this.size();
       }
     };
   }
@@ -226,6 +319,12 @@ public class ArrayCoreMap implements CoreMap, Serializable {
   @SuppressWarnings("unchecked")
   public <VALUE> VALUE remove(Class<? extends Key<VALUE>> key) {
 
+    int slot = AnnotationLookup.getHotSlot(key);
+    if (slot >= 0) {
+      hotKeys &= ~(1 << slot);
+      return (VALUE) setHot(slot, null);
+    }
+
     Object rv = null;
     for (int i = 0; i < size; i++) {
       if (keys[i].equals(key)) {
@@ -246,6 +345,10 @@ public class ArrayCoreMap implements CoreMap, Serializable {
    */
   @Override
   public <VALUE> boolean containsKey(Class<? extends Key<VALUE>> key) {
+    int slot = AnnotationLookup.getHotSlot(key);
+    if (slot >= 0) {
+      return (hotKeys & (1 << slot)) != 0;
+    }
     for (int i = 0; i < size; i++) {
       if (keys[i].equals(key)) {
         return true;
@@ -258,6 +361,7 @@ public class ArrayCoreMap implements CoreMap, Serializable {
   /**
    * Reduces memory consumption to the minimum for representing the values
    * currently stored stored in this object.
+   * (Keys kept in fields always take up their fields.)
    */
   public void compact() {
     if (keys.length > size) {
@@ -270,6 +374,10 @@ public class ArrayCoreMap implements CoreMap, Serializable {
     }
   }
 
+  /**
+   * Sets the number of key,value pairs the arrays can hold
+   * (keys kept in fields do not count).
+   */
   public void setCapacity(int newSize) {
     if (size > newSize) { throw new RuntimeException("You cannot set capacity to smaller than the current size."); }
     Class[] newKeys = new Class[newSize];
@@ -286,7 +394,7 @@ public class ArrayCoreMap implements CoreMap, Serializable {
    */
   @Override
   public int size() {
-    return size;
+    return Integer.bitCount(hotKeys) + size;
   }
 
   /**
@@ -315,10 +423,11 @@ public class ArrayCoreMap implements CoreMap, Serializable {
     calledSet.add(this);
 
     TextBuilder s = new TextBuilder("[");
+    int size = size();
     for (int i = 0; i < size; i++) {
-      s.append(keys[i].getSimpleName());
+      s.append(keyAt(i).getSimpleName());
       s.append('=');
-      s.append(values[i]);
+      s.append(valueAt(i));
       if (i < size-1) {
         s.append(' ');
       }
@@ -351,8 +460,9 @@ public class ArrayCoreMap implements CoreMap, Serializable {
    */
   public String toShorterString(String... what) {
     TextBuilder s = new TextBuilder("[");
+    int size = size();
     for (int i = 0; i < size; i++) {
-      String name = keys[i].getSimpleName();
+      String name = keyAt(i).getSimpleName();
       int annoIdx = name.lastIndexOf("Annotation");
       if (annoIdx >= 0) {
         name = name.substring(0, annoIdx);
@@ -375,7 +485,7 @@ public class ArrayCoreMap implements CoreMap, Serializable {
         }
         s.append(name);
         s.append('=');
-        s.append(values[i]);
+        s.append(valueAt(i));
       }
     }
     s.append(']');
@@ -401,10 +511,11 @@ public class ArrayCoreMap implements CoreMap, Serializable {
 
   public String toShortString(char separator, String... what) {
     TextBuilder s = new TextBuilder();
+    int size = size();
     for (int i = 0; i < size; i++) {
       boolean include;
       if (what.length > 0) {
-        String name = keys[i].getSimpleName();
+        String name = keyAt(i).getSimpleName();
         int annoIdx = name.lastIndexOf("Annotation");
         if (annoIdx >= 0) {
           name = name.substring(0, annoIdx);
@@ -423,7 +534,7 @@ public class ArrayCoreMap implements CoreMap, Serializable {
         if (s.length() > 0) {
           s.append(separator);
         }
-        s.append(values[i]);
+        s.append(valueAt(i));
       }
     }
     String answer = s.toString();
@@ -515,8 +626,15 @@ public class ArrayCoreMap implements CoreMap, Serializable {
     calledMap.put(this, other, true);
     calledMap.put(other, this, true);
 
-      if (this.size == other.size) {
-          for (int i = 0; i < this.size; i++) {
+      if (this.hotKeys == other.hotKeys && this.size == other.size) {
+          for (int slot = 0; slot < HOT_SLOTS; slot++) {
+              Object thisV = this.getHot(slot), otherV = other.getHot(slot);
+              if (thisV == null ? otherV != null : otherV == null || !thisV.equals(otherV)) {
+                  result = false;
+                  break;
+              }
+          }
+          for (int i = 0; result && i < this.size; i++) {
               // test if other contains this key,value pair
               boolean matched = false;
               for (int j = 0; j < other.size; j++) {
@@ -537,7 +655,6 @@ public class ArrayCoreMap implements CoreMap, Serializable {
 
               if (!matched) {
                   result = false;
-                  break;
               }
           }
       } else {
@@ -583,6 +700,13 @@ public class ArrayCoreMap implements CoreMap, Serializable {
 
     int keysCode = 0;
     int valuesCode = 0;
+    for (int slot = 0; slot < HOT_SLOTS; slot++) {
+      if ((hotKeys & (1 << slot)) != 0) {
+        keysCode += AnnotationLookup.getHotKey(slot).hashCode();
+        Object value = getHot(slot);
+        valuesCode += value != null ? value.hashCode() : 0;
+      }
+    }
     for (int i = 0; i < size; i++) {
       keysCode += keys[i].hashCode();
       valuesCode += values[i] != null ? values[i].hashCode() : 0;
@@ -618,6 +742,35 @@ public class ArrayCoreMap implements CoreMap, Serializable {
     out.defaultWriteObject();
   }
 
+  /**
+   * Overridden serialization method: maps serialized before keys were kept
+   * in fields have all their keys in the arrays, so those are moved to their fields.
+   *
+   * @param in Stream to read from
+   * @throws IOException If IO error
+   * @throws ClassNotFoundException If a class of the map is not found
+   */
+  private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+    in.defaultReadObject();
+    int j = 0;
+    for (int i = 0; i < size; i++) {
+      int slot = AnnotationLookup.getHotSlot(keys[i]);
+      if (slot >= 0) {
+        hotKeys |= 1 << slot;
+        setHot(slot, values[i]);
+      } else {
+        keys[j] = keys[i];
+        values[j] = values[i];
+        j++;
+      }
+    }
+    for (int i = j; i < size; i++) {
+      keys[i] = null;
+      values[i] = null;
+    }
+    size = j;
+  }
+
   // TODO: make prettyLog work in the situation of loops
   // in the object graph
 
@@ -7,6 +7,8 @@ import java.util.Map;
 /**
  * A fixed size hash map with LRU replacement.  Can optionally automatically
  * dump itself out to a file as the cache grows.
+ * It is not thread-safe; for a cache shared by several threads, see
+ * {@link edu.stanford.nlp.util.concurrent.ConcurrentCache}.
  *
  * @author Ari Steinberg (ari.steinberg@stanford.edu)
  */
@@ -87,7 +87,9 @@ public class CollectionUtils {
 
   /** Returns a new Set containing all the objects in the specified array. */
   public static <T> Set<T> asSet(T... o) {
-      return new FastSet<>((Set<? extends T>) Arrays.asList(o)) ;
+    Set<T> set = new FastSet<>();
+    Collections.addAll(set, o);
+    return set;
   }
 
   public static <T> Set<T> intersection(Set<T> set1, Set<T> set2) {
@@ -0,0 +1,382 @@
+package edu.stanford.nlp.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import edu.stanford.nlp.util.CacheMap;
+import edu.stanford.nlp.util.Function;
+
+/**
+ * A bounded cache which many threads can use at once, for memoizing things
+ * like lemmas, patterns or features in multithreaded annotators.
+ * Unlike {@link CacheMap}, which is a single LinkedHashMap, the cache is
+ * split into segments by key hash, each an LRU map with its own lock, so
+ * threads only contend when they use the same segment.
+ * <br>
+ * The capacity is a total weight rather than a number of entries: each entry
+ * weighs what the {@link Weigher} says (by default 1), and each segment evicts
+ * its least recently used entries once it holds more than its share of the weight.
+ * Hits, misses and evictions are counted, under the segment locks.
+ * <br>
+ * As in ConcurrentHashMap, neither keys nor values may be null, so a null
+ * result always means that nothing is cached.
+ *
+ * @param <K> The type of the keys
+ * @param <V> The type of the values
+ */
+public class ConcurrentCache<K,V> {
+
+  /** Gives the weight of an entry, in whatever unit the capacity is in */
+  public interface Weigher<K,V> {
+    int weigh(K key, V value);
+  }
+
+  private static final int DEFAULT_SEGMENTS = 16;
+
+  private final Segment<K,V>[] segments;
+  private final int segmentMask;
+  private final long maxWeight;
+
+  /**
+   * Makes a cache of at most the given number of entries
+   */
+  public ConcurrentCache(int maxEntries) {
+    this(maxEntries, null);
+  }
+
+  /**
+   * Makes a cache whose entries weigh at most maxWeight in all.
+   *
+   * @param maxWeight The total weight of entries to keep
+   * @param weigher Gives the weight of each entry, or null to count entries
+   */
+  public ConcurrentCache(long maxWeight, Weigher<? super K, ? super V> weigher) {
+    this(maxWeight, weigher, DEFAULT_SEGMENTS);
+  }
+
+  /**
+   * Makes a cache whose entries weigh at most maxWeight in all.
+   *
+   * @param maxWeight The total weight of entries to keep
+   * @param weigher Gives the weight of each entry, or null to count entries
+   * @param concurrency About how many threads will use the cache at once;
+   *     the number of segments is this rounded up to a power of 2
+   */
+  @SuppressWarnings("unchecked")
+  public ConcurrentCache(long maxWeight, Weigher<? super K, ? super V> weigher, int concurrency) {
+    int numSegments = 1;
+    while (numSegments < concurrency) {
+      numSegments <<= 1;
+    }
+    this.segments = (Segment<K,V>[]) new Segment<?,?>[numSegments];
+    this.segmentMask = numSegments - 1;
+    this.maxWeight = maxWeight;
+    for (int i = 0; i < numSegments; i++) {
+      long segmentWeight = maxWeight / numSegments + (i < maxWeight % numSegments ? 1 : 0);
+      segments[i] = new Segment<>(segmentWeight, weigher);
+    }
+  }
+
+  private Segment<K,V> segmentFor(Object key) {
+    if (key == null) {
+      throw new NullPointerException("null key");
+    }
+    int h = key.hashCode();
+    // spread the high bits down, since LinkedHashMap will use the low bits
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return segments[h & segmentMask];
+  }
+
+  /**
+   * Returns the value cached for the key, or null if there is none
+   */
+  public V get(K key) {
+    Segment<K,V> segment = segmentFor(key);
+    synchronized (segment) {
+      V value = segment.map.get(key);
+      if (value == null) {
+        segment.misses++;
+      } else {
+        segment.hits++;
+      }
+      return value;
+    }
+  }
+
+  /**
+   * Caches the value for the key, evicting the least recently used entries
+   * of its segment if needed.
+   *
+   * @return The value previously cached for the key, or null
+   * @throws NullPointerException If the key or the value is null
+   */
+  public V put(K key, V value) {
+    if (value == null) {
+      throw new NullPointerException("null value");
+    }
+    Segment<K,V> segment = segmentFor(key);
+    int weight = segment.weigh(key, value);
+    synchronized (segment) {
+      V previous = segment.map.put(key, value);
+      if (previous != null) {
+        segment.weight -= segment.weigh(key, previous);
+      }
+      segment.weight += weight;
+      segment.evict();
+      return previous;
+    }
+  }
+
+  /**
+   * Returns the value cached for the key, computing and caching it if there
+   * is none.  The function is called without holding any lock, so two threads
+   * may compute the same value; the first one cached is then kept and returned
+   * to both.  If the function returns null, nothing is cached and null is returned.
+   */
+  public V getOrCompute(K key, Function<? super K, ? extends V> function) {
+    V value = get(key);
+    if (value != null) {
+      return value;
+    }
+    value = function.apply(key);
+    if (value == null) {
+      return null;
+    }
+    Segment<K,V> segment = segmentFor(key);
+    int weight = segment.weigh(key, value);
+    synchronized (segment) {
+      V current = segment.map.get(key);
+      if (current != null) {
+        return current;
+      }
+      segment.map.put(key, value);
+      segment.weight += weight;
+      segment.evict();
+      return value;
+    }
+  }
+
+  /**
+   * Removes the key from the cache
+   *
+   * @return The value cached for the key, or null
+   */
+  public V remove(K key) {
+    Segment<K,V> segment = segmentFor(key);
+    synchronized (segment) {
+      V previous = segment.map.remove(key);
+      if (previous != null) {
+        segment.weight -= segment.weigh(key, previous);
+      }
+      return previous;
+    }
+  }
+
+  public void clear() {
+    for (Segment<K,V> segment : segments) {
+      synchronized (segment) {
+        segment.map.clear();
+        segment.weight = 0;
+      }
+    }
+  }
+
+  /** Returns the number of entries cached */
+  public int size() {
+    int size = 0;
+    for (Segment<K,V> segment : segments) {
+      synchronized (segment) {
+        size += segment.map.size();
+      }
+    }
+    return size;
+  }
+
+  /** Returns the total weight of the entries cached */
+  public long weight() {
+    long weight = 0;
+    for (Segment<K,V> segment : segments) {
+      synchronized (segment) {
+        weight += segment.weight;
+      }
+    }
+    return weight;
+  }
+
+  public long hits() {
+    long hits = 0;
+    for (Segment<K,V> segment : segments) {
+      synchronized (segment) {
+        hits += segment.hits;
+      }
+    }
+    return hits;
+  }
+
+  public long misses() {
+    long misses = 0;
+    for (Segment<K,V> segment : segments) {
+      synchronized (segment) {
+        misses += segment.misses;
+      }
+    }
+    return misses;
+  }
+
+  public long evictions() {
+    long evictions = 0;
+    for (Segment<K,V> segment : segments) {
+      synchronized (segment) {
+        evictions += segment.evictions;
+      }
+    }
+    return evictions;
+  }
+
+  /** Returns the fraction of calls to get which found a value */
+  public double hitRate() {
+    long hits = hits();
+    long lookups = hits + misses();
+    return lookups == 0 ? 0.0 : (double) hits / lookups;
+  }
+
+  @Override
+  public String toString() {
+    return String.format("cache stats: size: %d, weight: %d of %d, hits: %d, misses: %d, evictions: %d, hit %%: %.1f",
+            size(), weight(), maxWeight, hits(), misses(), evictions(), 100 * hitRate());
+  }
+
+
+  /** One LRU part of the cache, which is also the lock for its state */
+  private static class Segment<K,V> {
+    final LinkedHashMap<K,V> map = new LinkedHashMap<>(16, 0.75f, true);
+    final long maxWeight;
+    final Weigher<? super K, ? super V> weigher;
+    long weight;
+    long hits;
+    long misses;
+    long evictions;
+
+    Segment(long maxWeight, Weigher<? super K, ? super V> weigher) {
+      this.maxWeight = maxWeight;
+      this.weigher = weigher;
+    }
+
+    int weigh(K key, V value) {
+      return weigher == null ? 1 : weigher.weigh(key, value);
+    }
+
+    /** Removes the least recently used entries until the segment is within its weight; call holding the lock */
+    void evict() {
+      if (weight <= maxWeight) {
+        return;
+      }
+      Iterator<Map.Entry<K,V>> it = map.entrySet().iterator();
+      // always keep the newest entry, even if it alone is too heavy
+      while (weight > maxWeight && map.size() > 1) {
+        Map.Entry<K,V> eldest = it.next();
+        weight -= weigh(eldest.getKey(), eldest.getValue());
+        it.remove();
+        evictions++;
+      }
+    }
+  }
+
+
+  /**
+   * Compares the throughput of this cache, a CacheMap in LRU order, and a
+   * synchronized CacheMap, looking up a Zipf-distributed stream of keys and
+   * putting the ones missing.  A CacheMap is not thread-safe, so it is only
+   * run on one thread.
+   * Usage: ConcurrentCache [threads [operationsPerThread]]
+   */
+  public static void main(String[] args) throws InterruptedException {
+    int threads = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+    final int perThread = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+    final int capacity = 10000;
+    final int numKeys = 100000;
+    final Integer[] keys = new Integer[numKeys];
+    for (int i = 0; i < numKeys; i++) {
+      keys[i] = i;
+    }
+    // ranks of keys drawn with Zipf frequencies
+    final int[] stream = new int[1 << 20];
+    double norm = 0.0;
+    for (int i = 1; i <= numKeys; i++) {
+      norm += 1.0 / i;
+    }
+    double[] cumulative = new double[numKeys];
+    double sum = 0.0;
+    for (int i = 0; i < numKeys; i++) {
+      sum += 1.0 / (i + 1) / norm;
+      cumulative[i] = sum;
+    }
+    Random random = new Random(1);
+    for (int i = 0; i < stream.length; i++) {
+      int rank = java.util.Arrays.binarySearch(cumulative, random.nextDouble());
+      stream[i] = Math.min(numKeys - 1, rank < 0 ? -rank - 1 : rank);
+    }
+
+    // (the first round warms up the JIT)
+    for (int round = 0; round < 3; round++)
+    for (int numThreads : new int[] { 1, threads }) {
+      for (final String kind : new String[] { "ConcurrentCache", "CacheMap", "synchronized CacheMap" }) {
+        if (kind.equals("CacheMap") && numThreads > 1) {
+          continue;
+        }
+        final ConcurrentCache<Integer,Integer> cache = new ConcurrentCache<>(capacity);
+        final Map<Integer,Integer> map = kind.equals("CacheMap") ? new CacheMap<Integer,Integer>(capacity, 0.75f, true) :
+            Collections.synchronizedMap(new CacheMap<Integer,Integer>(capacity, 0.75f, true));
+        final long[] hits = new long[numThreads];
+        List<Thread> workers = new ArrayList<>();
+        for (int t = 0; t < numThreads; t++) {
+          final int thread = t;
+          workers.add(new Thread() {
+            @Override
+            public void run() {
+              long found = 0;
+              for (int i = 0; i < perThread; i++) {
+                Integer key = keys[stream[(thread * 7919 + i) & (stream.length - 1)]];
+                if (kind.equals("ConcurrentCache")) {
+                  if (cache.get(key) != null) {
+                    found++;
+                  } else {
+                    cache.put(key, key);
+                  }
+                } else {
+                  if (map.get(key) != null) {
+                    found++;
+                  } else {
+                    map.put(key, key);
+                  }
+                }
+              }
+              hits[thread] = found;
+            }
+          });
+        }
+        long start = System.nanoTime();
+        for (Thread worker : workers) {
+          worker.start();
+        }
+        for (Thread worker : workers) {
+          worker.join();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long found = 0;
+        for (long h : hits) {
+          found += h;
+        }
+        System.err.printf("round %d, %2d threads, %-22s %,12.0f ops/sec, hit %%: %.1f%n", round, numThreads, kind,
+                numThreads * perThread / seconds, 100.0 * found / ((long) numThreads * perThread));
+      }
+    }
+  }
+
+}
@@ -0,0 +1,108 @@
+package edu.stanford.nlp.util.concurrent;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits the items 0 up to n into contiguous blocks, one per thread, and
+ * processes the blocks on several threads, returning their results in block
+ * order.  Callers that add up the results of the blocks in that order get
+ * a result which depends on the number of blocks, but not on how the
+ * threads happen to be scheduled.
+ * <br>
+ * Block b is the items {@code starts[b]} up to {@code starts[b + 1]}.
+ */
+public class ContiguousBlocks {
+
+  private ContiguousBlocks() {} // static methods only
+
+  /**
+   * Processes one block of items
+   *
+   * @param <R> The type of the result of a block
+   */
+  public interface Job<R> {
+    /**
+     * Processes the items start up to end, which are block number block.
+     * Called from several threads at once, each with a different block.
+     */
+    R process(int block, int start, int end);
+  }
+
+  /**
+   * Splits size items into at most numBlocks contiguous blocks with about
+   * the same number of items each.  There is always at least one block.
+   */
+  public static int[] evenStarts(int size, int numBlocks) {
+    numBlocks = Math.max(1, Math.min(numBlocks, size));
+    int[] starts = new int[numBlocks + 1];
+    for (int b = 1; b <= numBlocks; b++) {
+      starts[b] = (int) ((long) size * b / numBlocks);
+    }
+    return starts;
+  }
+
+  /**
+   * Splits the items into at most numBlocks contiguous, nonempty blocks with
+   * about the same total weight each, where item i weighs weights[i].
+   * There is always at least one block.
+   */
+  public static int[] weightedStarts(int[] weights, int numBlocks) {
+    long totalWeight = 0;
+    for (int weight : weights) {
+      totalWeight += weight;
+    }
+    List<Integer> starts = new ArrayList<>();
+    starts.add(0);
+    long weight = 0;
+    for (int i = 0; i < weights.length && starts.size() < numBlocks; i++) {
+      weight += weights[i];
+      // end a block once it reaches its share of the weight
+      if (weight * numBlocks >= totalWeight * starts.size() && i + 1 < weights.length) {
+        starts.add(i + 1);
+      }
+    }
+    starts.add(weights.length);
+    int[] blockStarts = new int[starts.size()];
+    for (int b = 0; b < blockStarts.length; b++) {
+      blockStarts[b] = starts.get(b);
+    }
+    return blockStarts;
+  }
+
+  /**
+   * Runs the job on each block, each on its own thread, and returns the
+   * results in block order.  A single block is run on the calling thread.
+   *
+   * @param starts The block starts, as returned by {@link #evenStarts} or {@link #weightedStarts}
+   */
+  public static <R> List<R> process(final int[] starts, final Job<R> job) {
+    int numBlocks = starts.length - 1;
+    List<R> results = new ArrayList<>(numBlocks);
+    if (numBlocks == 1) {
+      results.add(job.process(0, starts[0], starts[1]));
+      return results;
+    }
+    ThreadsafeProcessor<Integer, R> processor = new ThreadsafeProcessor<Integer, R>() {
+      @Override
+      public R process(Integer block) {
+        return job.process(block, starts[block], starts[block + 1]);
+      }
+      @Override
+      public ThreadsafeProcessor<Integer, R> newInstance() {
+        return this;
+      }
+    };
+    MulticoreWrapper<Integer, R> wrapper = new MulticoreWrapper<>(numBlocks, processor);
+    for (int block = 0; block < numBlocks; block++) {
+      wrapper.put(block);
+    }
+    wrapper.join();
+    // results come back in block order
+    for (int block = 0; block < numBlocks; block++) {
+      results.add(wrapper.poll());
+    }
+    return results;
+  }
+
+}
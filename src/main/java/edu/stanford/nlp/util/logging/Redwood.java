@@ -13,6 +13,10 @@ import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 import javolution.text.TextBuilder;
@@ -105,12 +109,13 @@ public class Redwood {
   /**
    * Indicator that messages are coming from multiple threads
    */
-  private static boolean isThreaded;
+  private static volatile boolean isThreaded;
 
   /**
-   * Synchronization
+   * The thread which runs the log tasks of all threads in a multithreaded environment.
+   * The thread control variables above are only used by this thread.
    */
-  private static ReentrantLock control = new ReentrantLock();
+  private static volatile LogWriter writer;
 
   /*
       ---------------------------------------------------------
@@ -119,7 +124,6 @@ public class Redwood {
    */
 
   private static void queueTask(long threadId, Runnable toRun){
-    assert control.isHeldByCurrentThread();
     assert threadId != currentThread;
     //(get queue)
     if(!threadedLogQueue.containsKey(threadId)){
@@ -136,36 +140,39 @@ public class Redwood {
   }
 
   private static void releaseThreadControl(long threadId){
-    assert !isThreaded || control.isHeldByCurrentThread();
     assert currentThread < 0L || currentThread == threadId;
     //(release control)
     currentThread = -1L;
   }
 
-  private static void attemptThreadControl(long threadId, Runnable r){
-    //(get lock)
-    boolean tookLock = false;
-    if(!control.isHeldByCurrentThread()){
-      control.lock();
-      tookLock = true;
+  /**
+   * Hands a log task of the current thread to the writer thread.
+   * This does not take any lock; the task is run (or queued behind the tasks of
+   * the thread which has control) by the writer thread.
+   * If the threaded environment ended since the caller checked for it, the task is
+   * run on the current thread, as it would be outside of the environment.
+   */
+  private static void submit(Runnable r){
+    LogWriter w = writer;
+    if(w == null || !w.offer(Thread.currentThread().getId(), r)){
+      r.run();
     }
-    //(perform action)
+  }
+
+  /**
+   * Runs the task of the given thread if that thread has (or can get) control,
+   * or queues it otherwise. Only called by the writer thread.
+   */
+  private static void attemptThreadControl(long threadId, Runnable r){
     attemptThreadControlThreadsafe(threadId);
     if(threadId == currentThread){ 
       r.run(); 
     } else { 
       queueTask(threadId, r);
     }
-    //(release lock)
-    assert control.isHeldByCurrentThread();
-    if(tookLock){
-      control.unlock();
-    }
   }
 
   private static void attemptThreadControlThreadsafe(long threadId){
-    //--Assertions
-    assert control.isHeldByCurrentThread();
     //--Update Current Thread
     boolean hopeless = true;
     if(currentThread < 0L){
@@ -203,7 +210,6 @@ public class Redwood {
       attemptThreadControlThreadsafe(threadId);
     }
     assert !threadsWaiting.contains(currentThread);
-    assert control.isHeldByCurrentThread();
   }
 
   /*
@@ -422,22 +428,21 @@ public class Redwood {
     //--Create Record
     final Object content = args[args.length-1];
     final Object[] tags = new Object[args.length-1];
-    final StackTraceElement ste = getStackTrace();
     System.arraycopy(args,0,tags,0,args.length-1);
+    if(!isShown(new Record(content,tags,0,"","",0L))){ return; }
+    final StackTraceElement ste = getStackTrace();
     final long timestamp = System.currentTimeMillis();
     //--Handle Record
     if(isThreaded){
       //(case: multithreaded)
+      final long threadId = Thread.currentThread().getId();
       Runnable log = new Runnable(){
         public void run(){
-          assert !isThreaded || control.isHeldByCurrentThread();
-          Record toPass = new Record(content,tags,depth,ste,timestamp);
+          Record toPass = new Record(content,tags,depth,ste,timestamp,threadId);
           handlers.process(toPass, MessageType.SIMPLE,depth, toPass.timesstamp);
-          assert !isThreaded || control.isHeldByCurrentThread();
         }
       };
-      long threadId = Thread.currentThread().getId();
-      attemptThreadControl( threadId, log );
+      submit(log);
     } else {
       //(case: no threading)
       Record toPass = new Record(content,tags,depth,ste,timestamp);
@@ -450,7 +455,28 @@ public class Redwood {
    * @param format The format string, as per java's Formatter.format() object.
    * @param args The arguments to format.
    */
-  public static void logf(String format, Object... args){ log(new Formatter().format(format, args)); }
+  public static void logf(String format, Object... args){
+    if(!isShown()){ return; }
+    log(new Formatter().format(format, args));
+  }
+
+  /**
+   * Returns whether a message logged to the given channels would be shown by any handler;
+   * that is, whether it is not hidden by {@link VisibilityHandler}s on the way to every other handler.
+   * Callers can use this to skip building expensive messages, e.g.
+   * <pre>
+   *   if (Redwood.isShown(DBG)) { Redwood.log(DBG, expensiveDescription()); }
+   * </pre>
+   * @param channels The channels the message would be logged to
+   * @return false if the message would not be shown
+   */
+  public static boolean isShown(Object... channels){
+    return isShown(new Record("", channels.clone(), 0, "", "", 0L));
+  }
+
+  private static boolean isShown(Record probe){
+    return handlers.isShown(probe);
+  }
 
   /**
    * Begin a "track;" that is, begin logging at one level deeper.
@@ -465,23 +491,21 @@ public class Redwood {
     final Object[] tags = new Object[len];
     final StackTraceElement ste = getStackTrace();
     final long timestamp = System.currentTimeMillis();
+    final long threadId = Thread.currentThread().getId();
     System.arraycopy(args,0,tags,0,len);
     //--Create Task
     Runnable startTrack = new Runnable(){
       public void run(){
-        assert !isThreaded || control.isHeldByCurrentThread();
-        Record toPass = new Record(content,tags,depth,ste,timestamp);
+        Record toPass = new Record(content,tags,depth,ste,timestamp,threadId);
         depth += 1;
         titleStack.push(args.length == 0 ? "" : args[len].toString());
         handlers.process(toPass, MessageType.START_TRACK, depth, toPass.timesstamp);
-        assert !isThreaded || control.isHeldByCurrentThread();
       }
     };
     //--Run Task
     if(isThreaded){
       //(case: multithreaded)
-      long threadId = Thread.currentThread().getId();
-      attemptThreadControl( threadId, startTrack );
+      submit(startTrack);
     } else {
       //(case: no threading)
       startTrack.run();
@@ -513,7 +537,6 @@ public class Redwood {
     final long timestamp = System.currentTimeMillis();
     Runnable endTrack = new Runnable(){
       public void run(){
-        assert !isThreaded || control.isHeldByCurrentThread();
         //(check name match)
         String expected = titleStack.pop();
         if(!expected.equalsIgnoreCase(title)){
@@ -523,14 +546,12 @@ public class Redwood {
         depth -= 1;
         //(send signal)
         handlers.process(null, MessageType.END_TRACK, depth, timestamp);
-        assert !isThreaded || control.isHeldByCurrentThread();
       }
     };
     //--Run Task
     if(isThreaded){
       //(case: multithreaded)
-      long threadId = Thread.currentThread().getId();
-      attemptThreadControl( threadId, endTrack );
+      submit(endTrack);
     } else {
       //(case: no threading)
       endTrack.run();
@@ -548,7 +569,10 @@ public class Redwood {
    * from one of the threads; as each thread finishes, another thread begins logging,
    * first by making up the backlog, and then by printing any new log messages.
    * A thread signals that it has finished logging with the finishThread() function;
-   * the multithreaded environment is ended with the endThreads() function
+   * the multithreaded environment is ended with the endThreads() function.
+   *
+   * Within the environment, logging does not take any lock: log calls put their task on a
+   * queue, and a single writer thread runs the tasks, keeping the output of each thread together.
    * @param title The name of the thread group being started
    */
   public static void startThreads(String title){
@@ -556,6 +580,8 @@ public class Redwood {
       throw new IllegalStateException("Cannot nest Redwood threaded environments");
     }
     startTrack(FORCE,"Threads( "+title+" )");
+    writer = new LogWriter(title);
+    writer.start();
     isThreaded = true;
   }
 
@@ -574,7 +600,7 @@ public class Redwood {
     //--Run Task
     if(isThreaded){
       //(case: multithreaded)
-      attemptThreadControl( threadId, finish );
+      submit(finish);
     } else {
       //(case: no threading)
       throw new IllegalStateException("finishThreads() called outside of threaded environment");
@@ -587,13 +613,14 @@ public class Redwood {
    * @param check The name of the thread group passed to startThreads()
    */
   public static void endThreads(String check){
+    //(run the tasks submitted so far)
+    isThreaded = false;
+    writer.close();
+    writer = null;
     //(error check)
     if(currentThread != -1L){
       throw new IllegalStateException("endThreads() called, but thread " + currentThread + " has not finished (exception in thread?)");
     }
-    //(end threaded environment)
-    assert !control.isHeldByCurrentThread();
-    isThreaded = false;
     //(write remaining threads)
     boolean cleanPass = false;
     while(!cleanPass){
@@ -610,7 +637,6 @@ public class Redwood {
           while(currentThread >= 0){
             if(currentThread != thread){ throw new IllegalStateException("Redwood control shifted away from flushing thread"); }
             if(backlog.isEmpty()){ throw new IllegalStateException("Forgot to call finishThread() on thread " + currentThread); }
-            assert !control.isHeldByCurrentThread();
             backlog.poll().run();
           }
           //(unregister thread)
@@ -620,11 +646,7 @@ public class Redwood {
     }
     while(!threadsWaiting.isEmpty()){
       assert currentThread < 0L;
-      assert control.tryLock();
-      assert !threadsWaiting.isEmpty();
-      control.lock();
       attemptThreadControlThreadsafe(-1);
-      control.unlock();
     }
     //(clean up)
     for(Map.Entry<Long, Queue<Runnable>> longQueueEntry : threadedLogQueue.entrySet()){
@@ -1028,6 +1050,21 @@ public class Redwood {
       }
     }
 
+    /**
+     * Returns true if the record would get past the visibility handlers to some other handler
+     */
+    private boolean isShown(Record probe){
+      if(head instanceof VisibilityHandler){
+        if(!((VisibilityHandler) head).isShown(probe)){ return false; }
+      } else if(head != null){
+        return true;
+      }
+      for(RecordHandlerTree child : children){
+        if(child.isShown(probe)){ return true; }
+      }
+      return false;
+    }
+
     private TextBuilder toStringHelper(TextBuilder b, int depth){
       for(int i=0; i<depth; i++){
         b.append("  ");
@@ -1058,7 +1095,7 @@ public class Redwood {
     public final String callingMethod;
     public final long timesstamp;
     //(known at creation)
-    public final long thread = Thread.currentThread().getId();
+    public final long thread;
     //(state)
     private boolean channelsSorted;
 
@@ -1072,7 +1109,15 @@ public class Redwood {
      * @param timestamp The time this record was created
      */
     protected Record(Object content, Object[] channels, int depth, StackTraceElement stackTraceElement, long timestamp) {
-      this(content, channels, depth, stackTraceElement.getClassName(), stackTraceElement.getMethodName(), timestamp);
+      this(content, channels, depth, stackTraceElement, timestamp, Thread.currentThread().getId());
+    }
+
+    /**
+     * Create a new Record for a message logged by another thread
+     * @param thread The id of the thread which logged the message
+     */
+    private Record(Object content, Object[] channels, int depth, StackTraceElement stackTraceElement, long timestamp, long thread) {
+      this(content, channels, depth, stackTraceElement.getClassName(), stackTraceElement.getMethodName(), timestamp, thread);
     }
 
     /**
@@ -1085,12 +1130,17 @@ public class Redwood {
      * @param callingMethod The method this record should claim to be called from
      */
     protected Record(Object content, Object[] channels, int depth, String callingClass, String callingMethod, long timestamp) {
+      this(content, channels, depth, callingClass, callingMethod, timestamp, Thread.currentThread().getId());
+    }
+
+    private Record(Object content, Object[] channels, int depth, String callingClass, String callingMethod, long timestamp, long thread) {
       this.content = content;
       this.channels = channels;
       this.depth = depth;
       this.callingClass = callingClass;
       this.callingMethod = callingMethod;
       this.timesstamp = timestamp;
+      this.thread = thread;
     }
 
     /**
@@ -1435,8 +1485,17 @@ public class Redwood {
      * @param args The arguments to the printf function
      */
     public void logf(String format, Object... args) {
+      if (!isShown()) return;
       log(new Formatter().format(format, args));
     }
+
+    /**
+     * Returns whether messages logged to these channels are shown.
+     * @see Redwood#isShown(Object...)
+     */
+    public boolean isShown() {
+      return Redwood.isShown(channelNames);
+    }
     
     /**
      * PrettyLog an object using these channels.  A default description will be created
@@ -1469,6 +1528,131 @@ public class Redwood {
     }
   }
   
+  /**
+   * Runs the log tasks of a multithreaded environment.
+   * Logging threads put their tasks on a bounded ring buffer without taking any lock:
+   * a slot is claimed by advancing the tail, and published by setting its sequence number.
+   * This thread is the only consumer; it takes the tasks in order and hands them to
+   * {@link Redwood#attemptThreadControl}, so the handlers and the track state are only used by one thread.
+   */
+  private static class LogWriter extends Thread {
+    private static final int CAPACITY = 1 << 13;
+    private static final int MASK = CAPACITY - 1;
+
+    // for each slot, the position it can next be written at, or that position + 1 once it is written
+    private final AtomicLongArray sequences = new AtomicLongArray(CAPACITY);
+    private final Runnable[] tasks = new Runnable[CAPACITY];
+    private final long[] threadIds = new long[CAPACITY];
+    private final AtomicLong tail = new AtomicLong();
+    // number of threads in offer(), so that close() can wait for them
+    private final AtomicInteger offering = new AtomicInteger();
+    // only used by the writer (and by close(), once the writer has stopped)
+    private long head;
+    private volatile boolean sleeping;
+    private volatile boolean closed;
+
+    LogWriter(String title){
+      super("Redwood( " + title + " )");
+      setDaemon(true);
+      for(int i = 0; i < CAPACITY; i++){
+        sequences.set(i, i);
+      }
+    }
+
+    /**
+     * Adds a task of the given thread; waits for the writer if the buffer is full
+     * @return false if the writer was closed, in which case the task was not added
+     */
+    boolean offer(long threadId, Runnable task){
+      offering.incrementAndGet();
+      try {
+        if(closed){ return false; }
+        while(true){
+          long pos = tail.get();
+          int slot = (int) pos & MASK;
+          long seq = sequences.get(slot);
+          if(seq == pos){
+            if(tail.compareAndSet(pos, pos + 1)){
+              threadIds[slot] = threadId;
+              tasks[slot] = task;
+              sequences.set(slot, pos + 1);
+              if(sleeping){ LockSupport.unpark(this); }
+              return true;
+            }
+          } else if(seq < pos){
+            //(case: full)
+            LockSupport.unpark(this);
+            Thread.yield();
+          }
+        }
+      } finally {
+        offering.decrementAndGet();
+      }
+    }
+
+    private boolean hasNext(){
+      return sequences.get((int) head & MASK) == head + 1;
+    }
+
+    private void runNext(){
+      int slot = (int) head & MASK;
+      long threadId = threadIds[slot];
+      Runnable task = tasks[slot];
+      tasks[slot] = null;
+      sequences.set(slot, head + CAPACITY);
+      head += 1;
+      try {
+        attemptThreadControl(threadId, task);
+      } catch (RuntimeException e) {
+        // the logging thread has moved on, so report it here rather than losing the writer
+        e.printStackTrace(realSysErr);
+      }
+    }
+
+    @Override
+    public void run(){
+      while(true){
+        boolean wasClosed = closed;
+        while(hasNext()){
+          runNext();
+        }
+        if(wasClosed){ return; }
+        sleeping = true;
+        if(!hasNext() && !closed){
+          LockSupport.parkNanos(this, 10000000L);
+        }
+        sleeping = false;
+      }
+    }
+
+    /**
+     * Runs all the tasks offered so far, and stops the writer.
+     * Tasks offered after this is called are refused.
+     */
+    void close(){
+      closed = true;
+      //(wait for threads which were adding a task when the writer was closed)
+      while(offering.get() > 0){
+        LockSupport.unpark(this);
+        Thread.yield();
+      }
+      LockSupport.unpark(this);
+      boolean interrupted = false;
+      while(isAlive()){
+        try {
+          join();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if(interrupted){ Thread.currentThread().interrupt(); }
+      //(run the tasks added after the writer last looked for them)
+      while(hasNext()){
+        runNext();
+      }
+    }
+  }
+
    /**
    * Standard channels; enum for the sake of efficiency
    */
@@ -83,6 +83,19 @@ public class VisibilityHandler extends LogRecordHandler {
 
   /** {@inheritDoc} */
   public List<Record> handle(Record record) {
+    if(isShown(record)){
+      ArrayList<Record> retVal = new ArrayList<>();
+      retVal.add(record);
+      return retVal;
+    } else {
+      return EMPTY;
+    }
+  }
+
+  /**
+   * Returns whether this handler passes the record on
+   */
+  boolean isShown(Record record) {
     boolean isPrinting = false;
     if(record.force()){
       //--Case: Force Printing
@@ -111,14 +124,7 @@ public class VisibilityHandler extends LogRecordHandler {
           throw new IllegalStateException("Unknown default state setting: " + this.defaultState);
       }
     }
-    //--Return
-    if(isPrinting){
-      ArrayList<Record> retVal = new ArrayList<>();
-      retVal.add(record);
-      return retVal;
-    } else {
-      return EMPTY;
-    }
+    return isPrinting;
   }
 
   /** {@inheritDoc} */